@@ -0,0 +1,475 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.dns;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of DNS responses, keyed by question name, type, and class.  Each entry
+ * expires after the smallest TTL among its records, and the TTLs in a cached response are counted
+ * down as the entry ages.  When the cached responses exceed the byte budget, the least recently
+ * used entries are evicted.
+ * Responses to EDNS queries are cached separately from responses to plain queries, because their
+ * OPT record must not be sent to a client that didn't send one (RFC 6891 Section 7).
+ * Negative responses (NXDOMAIN and NODATA) are cached separately, with their own budget and
+ * counters, for the negative caching TTL defined by RFC 2308.
+ * If a maximum staleness is configured, expired entries are retained for that long and served
+ * with a short TTL, as described in RFC 8767, while the caller refreshes them in the background.
+ * Popular entries are also refreshed shortly before they expire ("prefetch"), so that they stay
+ * warm.  Prefetches are rate-limited and counted separately.
+ * The contents of the cache can be written to a snapshot and restored later, e.g. across a restart
+ * of the service.
+ * All times are in milliseconds on the SystemClock.elapsedRealtime() timebase.
+ * Thread-safe.
+ */
+public class DnsCache {
+
+  // Upper bound on the lifetime of an entry, regardless of the TTLs it contains.
+  private static final int MAX_TTL_SECONDS = 24 * 60 * 60;  // One day
+
+  // Upper bound on the lifetime of a negative entry, as recommended by RFC 2308 Section 5.
+  private static final int MAX_NEGATIVE_TTL_SECONDS = 3 * 60 * 60;  // Three hours
+
+  // Approximate memory cost of an entry beyond its key and response, counted against the budget.
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  // TTL of records in a stale response, as recommended by RFC 8767 Section 4.
+  private static final int STALE_TTL_SECONDS = 30;
+
+  // Minimum interval between refreshes of a stale entry, so that an unreachable server is not
+  // asked again on every stale hit.  RFC 8767 calls this the "failure recheck timer".
+  private static final long STALE_REFRESH_INTERVAL_MS = 30 * 1000;
+
+  // An entry with at least this many hits is prefetched once it reaches the last
+  // PREFETCH_FRACTION of its lifetime.
+  private static final int PREFETCH_MIN_HITS = 3;
+  private static final double PREFETCH_FRACTION = 0.1;
+
+  // Prefetch rate limit.
+  private static final int PREFETCH_MAX_PER_WINDOW = 30;
+  private static final long PREFETCH_WINDOW_MS = 60 * 1000;
+
+  /**
+   * The result of a successful cache lookup.
+   */
+  public static class Hit {
+    // The response, addressed to the query that was looked up.
+    public final byte[] response;
+    // True if the entry has expired, and |response| is being served under RFC 8767.
+    public final boolean stale;
+    // True if the caller should refresh this entry by sending the query upstream.
+    public final boolean needsRefresh;
+    // True if the refresh is a prefetch of a popular entry that is about to expire.
+    public final boolean prefetch;
+
+    Hit(byte[] response, boolean stale, boolean needsRefresh, boolean prefetch) {
+      this.response = response;
+      this.stale = stale;
+      this.needsRefresh = needsRefresh;
+      this.prefetch = prefetch;
+    }
+  }
+
+  private static class Entry {
+    final byte[] response;
+    final int[] ttlOffsets;
+    final long insertTime;
+    final long expiration;
+    final int size;
+    // Earliest time at which the caller should be asked to refresh this entry.
+    long nextRefresh;
+    // Number of cache hits on this entry, including hits on the entries it replaced.
+    int hits = 0;
+
+    Entry(String key, byte[] response, int[] ttlOffsets, long insertTime, long expiration) {
+      this.response = response;
+      this.ttlOffsets = ttlOffsets;
+      this.insertTime = insertTime;
+      this.expiration = expiration;
+      size = 2 * key.length() + response.length + ENTRY_OVERHEAD_BYTES;
+      nextRefresh = insertTime;
+    }
+
+    boolean isPrefetchDue(long now) {
+      long lifetime = expiration - insertTime;
+      return hits >= PREFETCH_MIN_HITS && now < expiration &&
+          expiration - now <= lifetime * PREFETCH_FRACTION;
+    }
+
+    // Returns a copy of the response with |requestId| and with every TTL reduced by the age
+    // of this entry.  No TTL is allowed to outlive the entry itself, so that negative responses
+    // carry the remaining negative caching TTL in their SOA record (RFC 2308 Section 5).
+    // Expired entries are rendered with every TTL set to STALE_TTL_SECONDS.
+    byte[] render(short requestId, long now) {
+      byte[] copy = Arrays.copyOf(response, response.length);
+      ByteBuffer buffer = ByteBuffer.wrap(copy);
+      buffer.putShort(0, requestId);
+      int age = (int) ((now - insertTime) / 1000);
+      int remaining = (int) ((expiration - now) / 1000);
+      for (int offset : ttlOffsets) {
+        int ttl = Math.max(buffer.getInt(offset), 0);
+        if (now >= expiration) {
+          ttl = STALE_TTL_SECONDS;
+        } else {
+          ttl = Math.max(Math.min(ttl - age, remaining), 0);
+        }
+        buffer.putInt(offset, ttl);
+      }
+      return copy;
+    }
+  }
+
+  // A set of entries sharing a byte budget and hit/miss counters.  Not thread-safe on its own.
+  private static class Partition {
+    private final int maxBytes;
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int totalBytes = 0;
+    private long hits = 0;
+    private long staleHits = 0;
+    private long misses = 0;
+
+    Partition(int maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    // Returns the entry for |key| if it is unexpired, or expired by less than |maxStaleMs|.
+    // Otherwise, returns null.  Updates the counters, except for misses if |countMiss| is false.
+    Entry get(String key, long now, long maxStaleMs, boolean countMiss) {
+      Entry entry = entries.get(key);
+      if (entry != null && now >= entry.expiration + maxStaleMs) {
+        remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        if (countMiss) {
+          ++misses;
+        }
+      } else if (now >= entry.expiration) {
+        ++staleHits;
+      } else {
+        ++hits;
+      }
+      return entry;
+    }
+
+    void put(String key, Entry entry) {
+      Entry old = entries.get(key);
+      if (old != null) {
+        // Popularity carries over to the replacement.
+        entry.hits = old.hits;
+      }
+      remove(key);
+      if (entry.size > maxBytes) {
+        return;
+      }
+      entries.put(key, entry);
+      totalBytes += entry.size;
+      evict();
+    }
+
+    void remove(String key) {
+      Entry old = entries.remove(key);
+      if (old != null) {
+        totalBytes -= old.size;
+      }
+    }
+
+    // Drop least recently used entries until the partition fits in its budget.
+    private void evict() {
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        totalBytes -= it.next().getValue().size;
+        it.remove();
+      }
+    }
+
+    void clear() {
+      entries.clear();
+      totalBytes = 0;
+    }
+  }
+
+  private final Partition positive;
+  private final Partition negative;
+  private long maxStaleMs = 0;
+  private long prefetchWindowStart = 0;
+  private int prefetchesInWindow = 0;
+  private long prefetches = 0;
+
+  /**
+   * @param maxBytes The approximate memory budget for cached positive responses.
+   * @param maxNegativeBytes The approximate memory budget for cached negative responses.
+   */
+  public DnsCache(int maxBytes, int maxNegativeBytes) {
+    positive = new Partition(maxBytes);
+    negative = new Partition(maxNegativeBytes);
+  }
+
+  /**
+   * @param seconds How long expired entries may be served, per RFC 8767.  Zero disables
+   *   serving stale responses.
+   */
+  public synchronized void setMaxStaleness(int seconds) {
+    maxStaleMs = seconds * 1000L;
+  }
+
+  private static String makeKey(String name, short type, short qclass, boolean edns) {
+    return name + "/" + type + "/" + qclass + (edns ? "/edns" : "");
+  }
+
+  // A response has an OPT record if and only if its query did.
+  private static String makeKey(DnsPacket response) {
+    return makeKey(response.getQueryName(), response.getQueryType(), response.getQueryClass(),
+        response.hasEdns());
+  }
+
+  /**
+   * Look up a cached response.  The positive cache is consulted first, and the negative cache
+   * only on a positive miss.
+   * @param query The incoming query.
+   * @param now The current time.
+   * @return A response to |query|, with the query's ID and remaining TTLs, or null on a miss.
+   */
+  public synchronized Hit get(DnsUdpQuery query, long now) {
+    String key = makeKey(query.name, query.type, query.qclass, query.edns);
+    // A negative hit is not a positive miss.
+    Entry entry = positive.get(key, now, maxStaleMs, false);
+    if (entry == null) {
+      entry = negative.get(key, now, maxStaleMs, true);
+    }
+    if (entry == null) {
+      ++positive.misses;
+      return null;
+    }
+    ++entry.hits;
+    boolean stale = now >= entry.expiration;
+    boolean prefetch = !stale && entry.isPrefetchDue(now) && now >= entry.nextRefresh &&
+        allowPrefetch(now);
+    boolean needsRefresh = false;
+    if ((stale || prefetch) && now >= entry.nextRefresh) {
+      // Only one refresh per interval, even if the refresh fails.
+      needsRefresh = true;
+      entry.nextRefresh = now + STALE_REFRESH_INTERVAL_MS;
+    }
+    return new Hit(entry.render(query.requestId, now), stale, needsRefresh, prefetch);
+  }
+
+  /**
+   * @return True if there is an unexpired positive or negative entry for this question.  Unlike
+   *   get(), this does not count as a hit or miss.
+   */
+  public synchronized boolean contains(String name, short type, short qclass, boolean edns,
+      long now) {
+    String key = makeKey(name, type, qclass, edns);
+    for (Partition partition : new Partition[]{positive, negative}) {
+      Entry entry = partition.entries.get(key);
+      if (entry != null && now < entry.expiration) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Consumes one unit of the prefetch rate limit, if available.
+  private boolean allowPrefetch(long now) {
+    if (now - prefetchWindowStart >= PREFETCH_WINDOW_MS) {
+      prefetchWindowStart = now;
+      prefetchesInWindow = 0;
+    }
+    if (prefetchesInWindow >= PREFETCH_MAX_PER_WINDOW) {
+      return false;
+    }
+    ++prefetchesInWindow;
+    ++prefetches;
+    return true;
+  }
+
+  /**
+   * Add a response to the cache, if it is cacheable.  Successful, untruncated responses with at
+   * least one answer record and a nonzero TTL are cached as positive entries.  NXDOMAIN and NODATA
+   * responses with an SOA record in the authority section are cached as negative entries.
+   * @param response A DNS response, which is copied and may be modified after this call returns.
+   * @param now The time at which the response was received.
+   */
+  public synchronized void put(byte[] response, long now) {
+    DnsPacket packet;
+    try {
+      packet = new DnsPacket(response);
+    } catch (ProtocolException e) {
+      return;
+    }
+    String name = packet.getQueryName();
+    if (name == null || !packet.isResponse() || packet.isTruncated()) {
+      return;
+    }
+    byte rcode = packet.getResponseCode();
+    boolean isPositive = rcode == DnsPacket.RCODE_NOERROR && packet.getAnswerCount() > 0;
+    boolean isNegative = rcode == DnsPacket.RCODE_NXDOMAIN ||
+        (rcode == DnsPacket.RCODE_NOERROR && packet.getAnswerCount() == 0);
+    int ttl;
+    if (isPositive) {
+      ttl = Math.min(packet.getMinTtl(), MAX_TTL_SECONDS);
+    } else if (isNegative) {
+      ttl = Math.min(packet.getNegativeTtl(), MAX_NEGATIVE_TTL_SECONDS);
+    } else {
+      return;
+    }
+    if (ttl <= 0) {
+      return;
+    }
+    String key = makeKey(packet);
+    Entry entry = new Entry(key, Arrays.copyOf(response, response.length),
+        packet.getTtlOffsets(), now, now + ttl * 1000L);
+    // A new response replaces any previous entry for this question, positive or negative.
+    if (isPositive) {
+      negative.remove(key);
+      positive.put(key, entry);
+    } else {
+      positive.remove(key);
+      negative.put(key, entry);
+    }
+  }
+
+  /**
+   * Write every entry to |out|, from least to most recently used.  Times are recorded relative to
+   * |now|, so that the snapshot can be restored on a different timebase (e.g. after a reboot).
+   * @return The number of entries written.
+   */
+  public synchronized int writeSnapshot(DataOutput out, long now) throws IOException {
+    int count = positive.entries.size() + negative.entries.size();
+    out.writeInt(count);
+    for (Partition partition : new Partition[]{positive, negative}) {
+      for (Entry entry : partition.entries.values()) {
+        out.writeBoolean(partition == negative);
+        out.writeLong(now - entry.insertTime);
+        out.writeLong(entry.expiration - now);
+        out.writeInt(entry.hits);
+        out.writeInt(entry.response.length);
+        out.write(entry.response);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Restore entries from a snapshot written by writeSnapshot().  Entries that are too old to serve,
+   * or that are already present in the cache, are skipped.
+   * @param in The snapshot data, positioned at the start of the entries.
+   * @param now The current time.
+   * @param age How long ago the snapshot was taken, in milliseconds.
+   * @return The number of entries restored.
+   */
+  public synchronized int readSnapshot(ByteBuffer in, long now, long age) {
+    int restored = 0;
+    try {
+      int count = in.getInt();
+      for (int i = 0; i < count; ++i) {
+        boolean isNegative = in.get() != 0;
+        long insertTime = now - age - in.getLong();
+        long expiration = now - age + in.getLong();
+        int hits = in.getInt();
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+          break;
+        }
+        byte[] response = new byte[length];
+        in.get(response);
+        if (now >= expiration + maxStaleMs) {
+          continue;
+        }
+        DnsPacket packet = new DnsPacket(response);
+        if (packet.getQueryName() == null) {
+          continue;
+        }
+        String key = makeKey(packet);
+        if (positive.entries.containsKey(key) || negative.entries.containsKey(key)) {
+          continue;
+        }
+        Entry entry = new Entry(key, response, packet.getTtlOffsets(), insertTime, expiration);
+        entry.hits = hits;
+        (isNegative ? negative : positive).put(key, entry);
+        ++restored;
+      }
+    } catch (BufferUnderflowException | ProtocolException e) {
+      // Truncated or corrupt snapshot.  Keep whatever was restored so far.
+    }
+    return restored;
+  }
+
+  /**
+   * Remove all entries, e.g. because the upstream server has changed.
+   */
+  public synchronized void clear() {
+    positive.clear();
+    negative.clear();
+  }
+
+  public synchronized long getHits() {
+    return positive.hits;
+  }
+
+  public synchronized long getStaleHits() {
+    return positive.staleHits;
+  }
+
+  public synchronized long getMisses() {
+    return positive.misses;
+  }
+
+  public synchronized int getSizeBytes() {
+    return positive.totalBytes;
+  }
+
+  public synchronized int getEntryCount() {
+    return positive.entries.size();
+  }
+
+  /**
+   * @return The number of prefetches requested from the caller.
+   */
+  public synchronized long getPrefetches() {
+    return prefetches;
+  }
+
+  public synchronized long getNegativeHits() {
+    return negative.hits;
+  }
+
+  public synchronized long getNegativeStaleHits() {
+    return negative.staleHits;
+  }
+
+  public synchronized long getNegativeMisses() {
+    return negative.misses;
+  }
+
+  public synchronized int getNegativeSizeBytes() {
+    return negative.totalBytes;
+  }
+
+  public synchronized int getNegativeEntryCount() {
+    return negative.entries.size();
+  }
+}
@@ -32,7 +32,14 @@ public class DnsPacket {
   private byte[] data;
 
   private static final short TYPE_A = 1;
+  private static final short TYPE_SOA = 6;
   private static final short TYPE_AAAA = 28;
+  private static final short TYPE_OPT = 41;
+
+  // RFC 1035 response codes.
+  public static final byte RCODE_NOERROR = 0;
+  public static final byte RCODE_SERVFAIL = 2;
+  public static final byte RCODE_NXDOMAIN = 3;
 
   private static class DnsQuestion {
 
@@ -47,6 +54,8 @@ public class DnsPacket {
     short rtype;
     short rclass;
     int ttl;
+    int ttlOffset;  // Position of the TTL field within the packet.
+    int dataOffset;  // Position of the RDATA within the packet.
     byte[] data;
   }
 
@@ -109,8 +118,10 @@ public class DnsPacket {
       r.name = readName(src);
       r.rtype = src.getShort();
       r.rclass = src.getShort();
+      r.ttlOffset = src.position();
       r.ttl = src.getInt();
       r.data = new byte[src.getShort()];
+      r.dataOffset = src.position();
       src.get(r.data);
       dest[i] = r;
     }
@@ -202,6 +213,110 @@ public class DnsPacket {
     return 0;
   }
 
+  public short getQueryClass() {
+    if (question.length > 0) {
+      return question[0].qclass;
+    }
+    return 0;
+  }
+
+  /**
+   * @return True if the additional section contains an EDNS0 OPT record (RFC 6891).
+   */
+  public boolean hasEdns() {
+    for (DnsRecord r : additional) {
+      if (r.rtype == TYPE_OPT) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public byte getResponseCode() {
+    return rcode;
+  }
+
+  public boolean isTruncated() {
+    return tc;
+  }
+
+  public int getAnswerCount() {
+    return answer.length;
+  }
+
+  // EDNS0 OPT pseudo-records reuse the TTL field for flags, so they are excluded from TTL logic.
+  private List<DnsRecord> getRecordsWithTtl() {
+    List<DnsRecord> records = new ArrayList<>();
+    for (DnsRecord[] src : new DnsRecord[][]{answer, authority, additional}) {
+      for (DnsRecord r : src) {
+        if (r.rtype != TYPE_OPT) {
+          records.add(r);
+        }
+      }
+    }
+    return records;
+  }
+
+  /**
+   * @return The smallest TTL (in seconds) of any record in this packet, or -1 if there are no
+   * records.  TTLs with the high bit set are treated as zero, per RFC 2181 Section 8.
+   */
+  public int getMinTtl() {
+    int min = -1;
+    for (DnsRecord r : getRecordsWithTtl()) {
+      int ttl = Math.max(r.ttl, 0);
+      if (min < 0 || ttl < min) {
+        min = ttl;
+      }
+    }
+    return min;
+  }
+
+  /**
+   * @return The offset within the packet data of every record's TTL field.  Callers can use these
+   * offsets to rewrite the TTLs in a copy of the packet.
+   */
+  public int[] getTtlOffsets() {
+    List<DnsRecord> records = getRecordsWithTtl();
+    int[] offsets = new int[records.size()];
+    for (int i = 0; i < offsets.length; ++i) {
+      offsets[i] = records.get(i).ttlOffset;
+    }
+    return offsets;
+  }
+
+  /**
+   * Computes the negative caching TTL of this response, as defined in RFC 2308 Section 5: the
+   * lesser of the SOA record's own TTL and its MINIMUM field.
+   * @return The negative caching TTL in seconds, or -1 if the authority section has no valid SOA
+   * record.
+   */
+  public int getNegativeTtl() {
+    for (DnsRecord r : authority) {
+      if (r.rtype != TYPE_SOA) {
+        continue;
+      }
+      // SOA RDATA: MNAME, RNAME, SERIAL, REFRESH, RETRY, EXPIRE, MINIMUM.  The names may be
+      // compressed, so they must be read in the context of the whole packet.
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      buffer.position(r.dataOffset);
+      try {
+        readName(buffer);
+        readName(buffer);
+        final int MINIMUM_OFFSET = 16;  // SERIAL, REFRESH, RETRY, and EXPIRE are 4 bytes each.
+        buffer.position(buffer.position() + MINIMUM_OFFSET);
+        if (buffer.position() + 4 > r.dataOffset + r.data.length) {
+          continue;
+        }
+        int minimum = Math.max(buffer.getInt(), 0);
+        return Math.min(Math.max(r.ttl, 0), minimum);
+      } catch (BufferUnderflowException | IllegalArgumentException | ProtocolException e) {
+        // Malformed SOA record.
+      }
+    }
+    return -1;
+  }
+
   public List<InetAddress> getResponseAddresses() {
     List<InetAddress> addresses = new ArrayList<>();
     for (DnsRecord[] src : new DnsRecord[][]{answer, authority}) {
@@ -28,6 +28,10 @@ public class DnsUdpQuery {
   public String name;
   public short requestId;
   public short type;
+  public short qclass;
+  // True if the query has an EDNS0 OPT record.  Responses to EDNS queries can carry an OPT record,
+  // which must not be sent to a client that didn't send one (RFC 6891 Section 7).
+  public boolean edns;
   public InetAddress sourceAddress;
   public InetAddress destAddress;
   public short sourcePort;
@@ -54,6 +58,8 @@ public class DnsUdpQuery {
 
     dnsUdpQuery.type = dnsPacket.getQueryType();
     dnsUdpQuery.name = dnsPacket.getQueryName();
+    dnsUdpQuery.qclass = dnsPacket.getQueryClass();
+    dnsUdpQuery.edns = dnsPacket.hasEdns();
     if (dnsUdpQuery.name == null || dnsUdpQuery.type == 0) {
       LogWrapper.log(Log.INFO, LOG_TAG, "No question in DNS packet");
       return null;
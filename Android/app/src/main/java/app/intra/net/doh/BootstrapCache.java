@@ -0,0 +1,206 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.content.Context;
+import android.util.Log;
+import app.intra.sys.LogWrapper;
+import app.intra.sys.PersistentState;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent record of the addresses that the system resolver returned for each DoH server
+ * hostname, and when.  Connections are built from these addresses immediately, instead of
+ * waiting for the system resolver, and the record is refreshed in the background once it is
+ * older than REFRESH_INTERVAL_MS.
+ *
+ * Times are wall-clock milliseconds, because the record outlives reboots.
+ */
+class BootstrapCache {
+  private static final String LOG_TAG = "BootstrapCache";
+
+  static final long REFRESH_INTERVAL_MS = 60 * 60 * 1000;
+
+  // Listeners for each hostname with a refresh in progress, shared by all instances so that
+  // concurrent Probes don't each start one.
+  private static final Map<String, List<Listener>> refreshing = new HashMap<>();
+
+  /**
+   * Receives the addresses from a background refresh.
+   */
+  interface Listener {
+    void onRefreshed(List<InetAddress> ips);
+  }
+
+  static class Entry {
+    final long timestamp;
+    final List<InetAddress> ips;
+
+    Entry(long timestamp, List<InetAddress> ips) {
+      this.timestamp = timestamp;
+      this.ips = ips;
+    }
+
+    boolean isStale(long now) {
+      // A timestamp in the future means that the clock was changed.
+      return now - timestamp > REFRESH_INTERVAL_MS || now < timestamp;
+    }
+  }
+
+  private final Context context;
+
+  BootstrapCache(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * @return The format stored in PersistentState: the timestamp, then a semicolon, then the
+   *     addresses separated by commas.
+   */
+  static String encode(long timestamp, Collection<InetAddress> ips) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(timestamp).append(';');
+    boolean first = true;
+    for (InetAddress ip : ips) {
+      if (!first) {
+        builder.append(',');
+      }
+      builder.append(ip.getHostAddress());
+      first = false;
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @return The entry represented by |encoded|, or null if it is malformed or has no addresses.
+   */
+  static Entry decode(String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    int separator = encoded.indexOf(';');
+    if (separator < 0) {
+      return null;
+    }
+    long timestamp;
+    try {
+      timestamp = Long.parseLong(encoded.substring(0, separator));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    // Only literals are stored.
+    List<InetAddress> ips = parseLiterals(encoded.substring(separator + 1));
+    if (ips.isEmpty()) {
+      return null;
+    }
+    return new Entry(timestamp, ips);
+  }
+
+  /**
+   * @return The IP literals in the comma-separated |list|.  Empty entries, hostnames and
+   *     malformed literals are skipped, so this never queries the resolver.
+   */
+  static List<InetAddress> parseLiterals(String list) {
+    List<InetAddress> ips = new ArrayList<>();
+    for (String ip : list.split(",")) {
+      ip = ip.trim();
+      if (ip.isEmpty() || !isLiteral(ip)) {
+        continue;
+      }
+      try {
+        ips.add(InetAddress.getByName(ip));
+      } catch (UnknownHostException e) {
+        // Skip it.
+      }
+    }
+    return ips;
+  }
+
+  // True for anything that could be an IPv4 or IPv6 literal, rather than a hostname.
+  private static boolean isLiteral(String ip) {
+    return ip.indexOf(':') >= 0 || ip.matches("[0-9.]+");
+  }
+
+  /**
+   * @return The stored entry for |host|, or null if there is none.
+   */
+  Entry get(String host) {
+    return decode(PersistentState.getBootstrapIps(context, host));
+  }
+
+  private void put(String host, List<InetAddress> ips) {
+    PersistentState.setBootstrapIps(context, host, encode(System.currentTimeMillis(), ips));
+  }
+
+  /**
+   * Resolves |host| with the system resolver, which may block, and stores the result.
+   * @return The addresses, or an empty list if resolution failed.
+   */
+  List<InetAddress> resolve(String host) {
+    List<InetAddress> ips;
+    try {
+      ips = Arrays.asList(InetAddress.getAllByName(host));
+    } catch (UnknownHostException e) {
+      LogWrapper.log(Log.INFO, LOG_TAG, "Couldn't resolve server name: " + host);
+      return new ArrayList<>();
+    }
+    if (!ips.isEmpty()) {
+      put(host, ips);
+    }
+    return ips;
+  }
+
+  /**
+   * Resolves and stores |host| on a background thread, and passes the addresses to |listener| if
+   * resolution succeeds.  If a refresh of |host| is already in progress, |listener| receives its
+   * result instead of starting another one.
+   */
+  void refreshInBackground(final String host, Listener listener) {
+    synchronized (refreshing) {
+      List<Listener> listeners = refreshing.get(host);
+      if (listeners != null) {
+        listeners.add(listener);
+        return;
+      }
+      listeners = new ArrayList<>();
+      listeners.add(listener);
+      refreshing.put(host, listeners);
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        List<InetAddress> ips = resolve(host);
+        List<Listener> listeners;
+        synchronized (refreshing) {
+          listeners = refreshing.remove(host);
+        }
+        if (ips.isEmpty()) {
+          return;
+        }
+        for (Listener listener : listeners) {
+          listener.onRefreshed(ips);
+        }
+      }
+    }, "BootstrapCache refresh").start();
+  }
+}
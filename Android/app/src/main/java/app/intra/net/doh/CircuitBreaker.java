@@ -0,0 +1,203 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A circuit breaker for each IP address of a DoH server, so that a broken endpoint, such as a
+ * failing anycast node, stops receiving queries instead of failing them until the connection
+ * happens to move elsewhere.
+ *
+ * An endpoint starts CLOSED, and opens after FAILURE_THRESHOLD consecutive failures.  OPEN
+ * endpoints are not offered to new connections.  When an endpoint has been open for its current
+ * open interval, its owner starts a health check, which moves it to HALF_OPEN.  If the check
+ * succeeds, the endpoint closes.  If it fails, the endpoint reopens, and its open interval
+ * doubles, up to MAX_OPEN_MS.  A success on a query that was already in flight also closes the
+ * endpoint.
+ *
+ * State changes are reported to each Listener, outside of this object's lock.
+ *
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  /**
+   * Receives every state change.  Called on the thread that reported the outcome.
+   */
+  public interface Listener {
+    void onStateChanged(String ip, State from, State to);
+  }
+
+  static final int FAILURE_THRESHOLD = 3;
+  static final long INITIAL_OPEN_MS = 30 * 1000;
+  static final long MAX_OPEN_MS = 5 * 60 * 1000;
+
+  private static class Endpoint {
+    State state = State.CLOSED;
+    int consecutiveFailures = 0;
+    // How long the endpoint stays open before the next health check.
+    long openMs = INITIAL_OPEN_MS;
+  }
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final Map<String, Endpoint> endpoints = new HashMap<>();
+  private int trips = 0;
+  private int recoveries = 0;
+  private int failedChecks = 0;
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  private Endpoint getEndpoint(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    if (endpoint == null) {
+      endpoint = new Endpoint();
+      endpoints.put(ip, endpoint);
+    }
+    return endpoint;
+  }
+
+  private void report(String ip, State from, State to) {
+    if (from == to) {
+      return;
+    }
+    for (Listener listener : listeners) {
+      listener.onStateChanged(ip, from, to);
+    }
+  }
+
+  /**
+   * Records a query or health check that |ip| answered.
+   */
+  public void onSuccess(String ip) {
+    State from;
+    synchronized (this) {
+      Endpoint endpoint = getEndpoint(ip);
+      endpoint.consecutiveFailures = 0;
+      from = endpoint.state;
+      endpoint.state = State.CLOSED;
+      if (from != State.CLOSED) {
+        endpoint.openMs = INITIAL_OPEN_MS;
+        ++recoveries;
+      }
+    }
+    report(ip, from, State.CLOSED);
+  }
+
+  /**
+   * Records a failed connection attempt, query, or health check on |ip|.
+   */
+  public void onFailure(String ip) {
+    State from;
+    State to;
+    synchronized (this) {
+      Endpoint endpoint = getEndpoint(ip);
+      ++endpoint.consecutiveFailures;
+      from = endpoint.state;
+      to = from;
+      if (from == State.HALF_OPEN) {
+        ++failedChecks;
+        endpoint.openMs = Math.min(endpoint.openMs * 2, MAX_OPEN_MS);
+        to = State.OPEN;
+      } else if (from == State.CLOSED && endpoint.consecutiveFailures >= FAILURE_THRESHOLD) {
+        ++trips;
+        to = State.OPEN;
+      }
+      endpoint.state = to;
+    }
+    report(ip, from, to);
+  }
+
+  /**
+   * Moves an open endpoint to HALF_OPEN, because a health check is starting.
+   * @return False if the endpoint isn't open, so no check is needed.
+   */
+  public boolean startHealthCheck(String ip) {
+    State from;
+    synchronized (this) {
+      Endpoint endpoint = endpoints.get(ip);
+      if (endpoint == null || endpoint.state != State.OPEN) {
+        return false;
+      }
+      from = endpoint.state;
+      endpoint.state = State.HALF_OPEN;
+    }
+    report(ip, from, State.HALF_OPEN);
+    return true;
+  }
+
+  /**
+   * @return True if new connections may use |ip|.
+   */
+  public synchronized boolean isAvailable(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    return endpoint == null || endpoint.state == State.CLOSED;
+  }
+
+  public synchronized State getState(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    return endpoint == null ? State.CLOSED : endpoint.state;
+  }
+
+  /**
+   * @return How long |ip| should stay open before its next health check.
+   */
+  public synchronized long getOpenMs(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    return endpoint == null ? INITIAL_OPEN_MS : endpoint.openMs;
+  }
+
+  /**
+   * @return The endpoints that are currently OPEN or HALF_OPEN.
+   */
+  public synchronized List<String> getUnavailable() {
+    List<String> unavailable = new ArrayList<>();
+    for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+      if (entry.getValue().state != State.CLOSED) {
+        unavailable.add(entry.getKey());
+      }
+    }
+    return unavailable;
+  }
+
+  /**
+   * @return The number of times that a closed endpoint has opened.
+   */
+  public synchronized int getTripCount() {
+    return trips;
+  }
+
+  /**
+   * @return The number of times that an open or half-open endpoint has closed.
+   */
+  public synchronized int getRecoveryCount() {
+    return recoveries;
+  }
+
+  /**
+   * @return The number of health checks that failed.
+   */
+  public synchronized int getFailedCheckCount() {
+    return failedChecks;
+  }
+}
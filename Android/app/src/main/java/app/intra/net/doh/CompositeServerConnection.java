@@ -0,0 +1,172 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.net.dns.DnsUdpQuery;
+import app.intra.sys.LogWrapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * A ServerConnection that spreads queries across several upstream servers, so that an incident at
+ * one provider doesn't affect every query.  Each query goes to the upstream chosen by an
+ * UpstreamBalancer.  If that upstream fails, or returns an HTTP error, the same query is sent to
+ * the next best upstream that hasn't been tried, until one succeeds or all have failed.
+ *
+ * Its URL is the upstreams' URLs, separated by spaces.
+ */
+public class CompositeServerConnection implements ServerConnection {
+  private static final String LOG_TAG = "CompositeConnection";
+
+  private final String url;
+  private final List<ServerConnection> upstreams;
+  private final UpstreamBalancer balancer;
+
+  /**
+   * @return True if |url| lists more than one server.
+   */
+  public static boolean isComposite(String url) {
+    return url != null && split(url).size() > 1;
+  }
+
+  /**
+   * @return The server URLs in |url|, which are separated by whitespace.
+   */
+  public static List<String> split(String url) {
+    List<String> urls = new ArrayList<>();
+    for (String part : url.trim().split("\\s+")) {
+      if (!part.isEmpty()) {
+        urls.add(part);
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * @param url The URL that identifies this connection.
+   * @param upstreams The connections to the servers listed in |url|.  Must not be empty.
+   */
+  CompositeServerConnection(String url, List<ServerConnection> upstreams) {
+    this.url = url;
+    this.upstreams = Collections.unmodifiableList(new ArrayList<>(upstreams));
+    List<String> urls = new ArrayList<>();
+    for (ServerConnection upstream : upstreams) {
+      urls.add(upstream.getUrl());
+    }
+    balancer = new UpstreamBalancer(urls);
+  }
+
+  /**
+   * @return Each upstream's share of the queries, and its latency.
+   */
+  public UpstreamBalancer getBalancer() {
+    return balancer;
+  }
+
+  @Override
+  public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    new Attempts(metadata, data, cb).next();
+  }
+
+  // Sends one query to each upstream in turn, until one succeeds or all have failed.
+  private class Attempts {
+    private final DnsUdpQuery metadata;
+    private final byte[] data;
+    private final Callback cb;
+    private final Set<Integer> tried = new HashSet<>();
+
+    Attempts(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      this.metadata = metadata;
+      this.data = data;
+      this.cb = cb;
+    }
+
+    // Only called while some upstream hasn't been tried.  Attempts are sequential, so |tried| is
+    // never accessed concurrently.
+    void next() {
+      final long startTime = SystemClock.elapsedRealtime();
+      final int index = balancer.choose(tried, !tried.isEmpty(), startTime);
+      tried.add(index);
+      // Connections may modify the query, e.g. to zero its ID, so each gets its own copy.
+      upstreams.get(index).performDnsRequest(metadata, data.clone(), new Callback() {
+        @Override
+        public void onFailure(Call call, IOException e) {
+          balancer.onFailure(index, SystemClock.elapsedRealtime());
+          if (tried.size() < upstreams.size()) {
+            LogWrapper.log(Log.INFO, LOG_TAG, "Upstream failed, trying another: " + e);
+            next();
+            return;
+          }
+          cb.onFailure(call, e);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+          long now = SystemClock.elapsedRealtime();
+          if (response.isSuccessful()) {
+            balancer.onSuccess(index, now - startTime, now);
+            cb.onResponse(call, response);
+            return;
+          }
+          balancer.onFailure(index, now);
+          if (tried.size() < upstreams.size()) {
+            LogWrapper.log(Log.INFO, LOG_TAG,
+                "Upstream returned HTTP " + response.code() + ", trying another");
+            response.close();
+            next();
+            return;
+          }
+          cb.onResponse(call, response);
+        }
+      });
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  @Override
+  public void warmUp() {
+    for (ServerConnection upstream : upstreams) {
+      upstream.warmUp();
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (ServerConnection upstream : upstreams) {
+      upstream.reset();
+    }
+  }
+
+  @Override
+  public void close() {
+    for (ServerConnection upstream : upstreams) {
+      upstream.close();
+    }
+  }
+}
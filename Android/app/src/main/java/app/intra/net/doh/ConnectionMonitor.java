@@ -0,0 +1,215 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.util.Log;
+import app.intra.sys.LogWrapper;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+
+/**
+ * Recovers from broken HTTP connections without discarding healthy ones.  This is a more targeted
+ * workaround for https://github.com/square/okhttp/issues/3146, in which a connection stops
+ * responding but stays in the pool, so every later query on it times out as well.
+ *
+ * When a query times out, only the connection that it was using is closed, so other connections,
+ * and the queries in flight on them, are unaffected.  If queries keep timing out, every
+ * connection is closed.  The OkHttpClient, its dispatcher and connection pools are never
+ * replaced, so TLS sessions and idle healthy connections survive recovery.
+ *
+ * It also measures how often a query has to wait for a new ("cold") connection, and reports the
+ * results of keepalive pings to a Keepalive.
+ *
+ * Thread-safe.
+ */
+public class ConnectionMonitor {
+  private static final String LOG_TAG = "ConnectionMonitor";
+
+  // After this many timeouts in a row with no successful query in between, close all connections.
+  static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+  public enum ResetCause {
+    // A query timed out, so the connection it was using was closed.
+    CONNECTION_TIMEOUT,
+    // Queries kept timing out, so all connections were closed.
+    REPEATED_TIMEOUTS,
+    // reset() was called, e.g. because the network changed.
+    EXPLICIT,
+    // The ServerConnection was closed, because it is no longer used.
+    CLOSED
+  }
+
+  private final Keepalive keepalive;
+  private final List<ConnectionPool> pools;
+  // Every connection that has carried a query and has not been closed by this class.  Weak, so
+  // that connections that OkHttp has discarded can be garbage collected.
+  private final Set<Connection> connections =
+      Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+  // Connections that this class closed, or on which a failure has already been counted.  Weak, for
+  // the same reason.
+  private final Set<Connection> failed =
+      Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+  private int consecutiveTimeouts = 0;
+  private final Map<ResetCause, Integer> resetCounts = new EnumMap<>(ResetCause.class);
+  // Queries that completed, and how many of them opened a new connection.  Excludes keepalives.
+  private int calls = 0;
+  private int coldCalls = 0;
+
+  ConnectionMonitor(Keepalive keepalive, ConnectionPool... pools) {
+    this.keepalive = keepalive;
+    List<ConnectionPool> list = new ArrayList<>();
+    Collections.addAll(list, pools);
+    this.pools = list;
+  }
+
+  synchronized void onConnectionAcquired(Connection connection) {
+    connections.add(connection);
+  }
+
+  /**
+   * Called when a call completes successfully.
+   * @param isKeepalive True if the call was a keepalive ping
+   * @param cold True if the call opened a new connection
+   * @param durationMs The time from the start of the call to its end
+   */
+  void onCallEnd(boolean isKeepalive, boolean cold, long durationMs) {
+    synchronized (this) {
+      consecutiveTimeouts = 0;
+      if (!isKeepalive) {
+        ++calls;
+        if (cold) {
+          ++coldCalls;
+        }
+      }
+    }
+    if (isKeepalive) {
+      keepalive.onPingResult(cold, durationMs);
+    }
+  }
+
+  /**
+   * Must be called for a failed call before onCallFailed().  The calls in flight on a connection
+   * all fail together when it breaks, or when this class closes it, so only the first failure on
+   * a connection says anything about the server.
+   * @return True if this is the first failure on |connection|, and this class didn't close it.
+   */
+  synchronized boolean isNewFailure(Connection connection) {
+    return failed.add(connection);
+  }
+
+  /**
+   * Called when a call fails.
+   * @param connection The connection that the call was using, or null if it had none.
+   */
+  void onCallFailed(boolean isKeepalive, Connection connection, IOException e) {
+    if (isKeepalive) {
+      keepalive.onPingFailed();
+    }
+    if (e instanceof SocketTimeoutException) {
+      onCallTimedOut(connection);
+    }
+  }
+
+  /**
+   * @param connection The connection that the call was using, or null if it timed out while
+   *     connecting.
+   */
+  void onCallTimedOut(Connection connection) {
+    boolean resetAll;
+    synchronized (this) {
+      ++consecutiveTimeouts;
+      resetAll = consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS;
+    }
+    if (resetAll) {
+      reset(ResetCause.REPEATED_TIMEOUTS);
+    } else if (connection != null) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Closing connection after timeout");
+      count(ResetCause.CONNECTION_TIMEOUT);
+      synchronized (this) {
+        connections.remove(connection);
+        failed.add(connection);
+      }
+      close(connection);
+    }
+  }
+
+  /**
+   * Closes every connection.  Queries in flight on those connections will fail.
+   */
+  void reset(ResetCause cause) {
+    LogWrapper.log(Log.WARN, LOG_TAG, "Closing all connections: " + cause);
+    count(cause);
+    List<Connection> toClose;
+    synchronized (this) {
+      consecutiveTimeouts = 0;
+      toClose = new ArrayList<>(connections);
+      connections.clear();
+      failed.addAll(toClose);
+    }
+    for (ConnectionPool pool : pools) {
+      pool.evictAll();
+    }
+    for (Connection connection : toClose) {
+      close(connection);
+    }
+  }
+
+  private synchronized void count(ResetCause cause) {
+    Integer count = resetCounts.get(cause);
+    resetCounts.put(cause, count == null ? 1 : count + 1);
+  }
+
+  private static void close(Connection connection) {
+    try {
+      // The pool discards closed connections instead of reusing them.
+      connection.socket().close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
+  }
+
+  /**
+   * @return The fraction of completed queries that had to open a new connection.
+   */
+  public synchronized double getColdConnectionRate() {
+    return calls == 0 ? 0 : (double) coldCalls / calls;
+  }
+
+  public synchronized int getCallCount() {
+    return calls;
+  }
+
+  public synchronized int getColdCallCount() {
+    return coldCalls;
+  }
+
+  /**
+   * @return The number of times that connections have been closed for |cause|.
+   */
+  public synchronized int getResetCount(ResetCause cause) {
+    Integer count = resetCounts.get(cause);
+    return count == null ? 0 : count;
+  }
+}
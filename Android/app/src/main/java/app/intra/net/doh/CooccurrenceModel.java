@@ -0,0 +1,191 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A first-order model of which names are queried shortly after each name.  A name B is a
+ * successor of A each time B is queried within SEQUENCE_WINDOW_MS after A.  The confidence of a
+ * prediction is the fraction of A's occurrences that were followed by B.
+ *
+ * Memory is bounded: at most MAX_NAMES names are tracked, least recently used first out, each
+ * with at most MAX_SUCCESSORS successors.  Counts are halved once a name has been seen MAX_COUNT
+ * times, so the model follows changes in behavior.
+ *
+ * Times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+class CooccurrenceModel {
+  static final long SEQUENCE_WINDOW_MS = 1000;
+  // Bound on the number of recent queries that count as predecessors of a new query.
+  private static final int MAX_RECENT = 8;
+  static final int MAX_NAMES = 512;
+  static final int MAX_SUCCESSORS = 8;
+  static final int MAX_COUNT = 64;
+
+  // Names seen fewer times than this have no predictions.
+  static final int MIN_OCCURRENCES = 3;
+  static final double MIN_CONFIDENCE = 0.5;
+  static final int MAX_PREDICTIONS = 3;
+
+  private static class Node {
+    int count = 0;
+    final Map<String, Integer> successors = new HashMap<>();
+  }
+
+  private static class Recent {
+    final String name;
+    final long time;
+
+    Recent(String name, long time) {
+      this.name = name;
+      this.time = time;
+    }
+  }
+
+  // Access-ordered, so iteration starts at the least recently used name.
+  private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+  // Queries within the last SEQUENCE_WINDOW_MS, oldest first.
+  private final LinkedList<Recent> recent = new LinkedList<>();
+
+  private Node getOrCreate(String name) {
+    Node node = nodes.get(name);
+    if (node == null) {
+      node = new Node();
+      nodes.put(name, node);
+      if (nodes.size() > MAX_NAMES) {
+        Iterator<String> it = nodes.keySet().iterator();
+        it.next();
+        it.remove();
+      }
+    }
+    return node;
+  }
+
+  private static void addSuccessor(Node node, String successor) {
+    Integer count = node.successors.get(successor);
+    if (count != null) {
+      node.successors.put(successor, count + 1);
+      return;
+    }
+    if (node.successors.size() >= MAX_SUCCESSORS) {
+      // Replace the least frequent successor.
+      String weakest = null;
+      int weakestCount = Integer.MAX_VALUE;
+      for (Map.Entry<String, Integer> entry : node.successors.entrySet()) {
+        if (entry.getValue() < weakestCount) {
+          weakest = entry.getKey();
+          weakestCount = entry.getValue();
+        }
+      }
+      node.successors.remove(weakest);
+    }
+    node.successors.put(successor, 1);
+  }
+
+  private static void decay(Node node) {
+    node.count /= 2;
+    Iterator<Map.Entry<String, Integer>> it = node.successors.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, Integer> entry = it.next();
+      if (entry.getValue() < 2) {
+        it.remove();
+      } else {
+        entry.setValue(entry.getValue() / 2);
+      }
+    }
+  }
+
+  /**
+   * Records a query for |name|.  Repeats of a name within SEQUENCE_WINDOW_MS, such as the AAAA
+   * query that follows an A query, count as a single occurrence.  A |now| that is earlier than the
+   * previous query's, e.g. from a racing thread, is treated as simultaneous with it.
+   */
+  synchronized void record(String name, long now) {
+    if (!recent.isEmpty()) {
+      now = Math.max(now, recent.getLast().time);
+    }
+    while (!recent.isEmpty() && now - recent.getFirst().time >= SEQUENCE_WINDOW_MS) {
+      recent.removeFirst();
+    }
+    Set<String> predecessors = new HashSet<>();
+    for (Recent query : recent) {
+      predecessors.add(query.name);
+    }
+    if (predecessors.contains(name)) {
+      return;
+    }
+    for (String predecessor : predecessors) {
+      Node node = nodes.get(predecessor);
+      if (node != null) {
+        addSuccessor(node, name);
+      }
+    }
+    Node node = getOrCreate(name);
+    ++node.count;
+    if (node.count >= MAX_COUNT) {
+      decay(node);
+    }
+    recent.addLast(new Recent(name, now));
+    if (recent.size() > MAX_RECENT) {
+      recent.removeFirst();
+    }
+  }
+
+  /**
+   * @return The names that are likely to be queried soon after |name|, most likely first.
+   */
+  synchronized List<String> predict(String name) {
+    List<String> predictions = new ArrayList<>();
+    Node node = nodes.get(name);
+    if (node == null || node.count < MIN_OCCURRENCES) {
+      return predictions;
+    }
+    final Map<String, Integer> successors = node.successors;
+    for (Map.Entry<String, Integer> entry : successors.entrySet()) {
+      if (entry.getValue() >= MIN_CONFIDENCE * node.count) {
+        predictions.add(entry.getKey());
+      }
+    }
+    Collections.sort(predictions, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return successors.get(b) - successors.get(a);
+      }
+    });
+    return predictions.size() > MAX_PREDICTIONS ?
+        new ArrayList<>(predictions.subList(0, MAX_PREDICTIONS)) : predictions;
+  }
+
+  /**
+   * @return The number of names in the model.
+   */
+  synchronized int size() {
+    return nodes.size();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import okhttp3.Dispatcher;
+
+/**
+ * Shows how much query latency comes from waiting in OkHttp's Dispatcher, as opposed to the
+ * network.  A query waits in the Dispatcher's queue when the maximum number of concurrent requests
+ * to the server has been reached.
+ *
+ * Thread-safe.
+ */
+public class DispatchStats {
+  private final Dispatcher dispatcher;
+
+  private long queries = 0;
+  private long queuedQueries = 0;
+  private long totalQueueMs = 0;
+  private long maxQueueMs = 0;
+
+  DispatchStats(Dispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * @param queueMs Time from when a call was enqueued until it started executing.
+   */
+  synchronized void recordQueueTime(long queueMs) {
+    ++queries;
+    if (queueMs > 0) {
+      ++queuedQueries;
+      totalQueueMs += queueMs;
+      maxQueueMs = Math.max(maxQueueMs, queueMs);
+    }
+  }
+
+  /**
+   * @return The number of calls that are currently waiting for a free slot.
+   */
+  public int getQueuedCallCount() {
+    return dispatcher.queuedCallsCount();
+  }
+
+  /**
+   * @return The number of calls that are currently executing.
+   */
+  public int getRunningCallCount() {
+    return dispatcher.runningCallsCount();
+  }
+
+  public int getMaxConcurrentCalls() {
+    return dispatcher.getMaxRequestsPerHost();
+  }
+
+  public synchronized long getQueryCount() {
+    return queries;
+  }
+
+  /**
+   * @return The number of queries that spent any measurable time in the queue.
+   */
+  public synchronized long getQueuedQueryCount() {
+    return queuedQueries;
+  }
+
+  /**
+   * @return The mean time spent in the queue, over all queries.
+   */
+  public synchronized double getAverageQueueMs() {
+    return queries == 0 ? 0 : (double) totalQueueMs / queries;
+  }
+
+  public synchronized long getMaxQueueMs() {
+    return maxQueueMs;
+  }
+}
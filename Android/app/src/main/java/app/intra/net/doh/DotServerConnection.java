@@ -0,0 +1,608 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.net.dns.DnsUdpQuery;
+import app.intra.sys.LogWrapper;
+import app.intra.sys.SafeTimerTask;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * A DNS-over-TLS (RFC 7858) client.  Queries are pipelined over one persistent TLS connection, as
+ * RFC 7766 allows: each query is written as soon as it arrives, without waiting for the responses
+ * to earlier ones, and queries that arrive together are written in a single flush.  The server
+ * may answer in any order, so each query's ID is rewritten to one that is unique on the
+ * connection, and responses are matched to queries by ID.
+ *
+ * Servers may close idle connections at any time (RFC 7766 Section 6.2.3), so if an established
+ * connection closes, the queries that were waiting on it are retried once on a new connection.
+ *
+ * URLs have the form tls://host[:port].  Results are delivered to the Callback as HTTP responses
+ * with status 200, like those of the DoH connections.
+ */
+public class DotServerConnection implements ServerConnection {
+  private static final String LOG_TAG = "DotServerConnection";
+
+  private static final String SCHEME = "tls";
+  // RFC 7858 Section 3.1.
+  static final int DEFAULT_PORT = 853;
+  private static final MediaType DNS_MESSAGE = MediaType.parse("application/dns-message");
+
+  private static final int CONNECT_TIMEOUT_MS = 3000;
+  // A query fails if it has no response after this long.  The same as the DoH connections.
+  static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+  // How often to look for queries that have timed out.
+  private static final long SWEEP_INTERVAL_MS = 1000;
+  // Limits the queries awaiting a response on one connection.  Far below the 65536 possible IDs,
+  // so that an ID is only reused long after its previous query has been answered or abandoned,
+  // and a very late response can't be mistaken for the answer to a newer query.
+  static final int MAX_IN_FLIGHT = 1024;
+  // A DNS header, which every response must contain.
+  private static final int MIN_MESSAGE_LENGTH = 12;
+
+  // Checks the connections for timeouts.  Shared by all connections.
+  private static final Timer timer = new Timer("DotServerConnection", true);
+
+  /**
+   * Opens connections to the server.
+   */
+  interface Transport {
+    /**
+     * @return A socket connected to |address|, over which the TLS handshake has completed.
+     */
+    Socket connect(InetAddress address) throws IOException;
+  }
+
+  /**
+   * Connects over TLS, and verifies that the server's certificate matches the hostname.
+   */
+  static class TlsTransport implements Transport {
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final TlsSessionCache tlsSessions;
+
+    /**
+     * @param tlsSessions May be null, in which case |socketFactory| is used.  Otherwise its
+     *     persistent sessions are used, since DoT doesn't need ALPN.
+     */
+    TlsTransport(String host, int port, SSLSocketFactory socketFactory,
+        HostnameVerifier hostnameVerifier, TlsSessionCache tlsSessions) {
+      this.host = host;
+      this.port = port;
+      this.hostnameVerifier = hostnameVerifier;
+      this.tlsSessions = tlsSessions;
+      this.socketFactory =
+          tlsSessions != null ? tlsSessions.getPersistentSocketFactory() : socketFactory;
+    }
+
+    @Override
+    public Socket connect(InetAddress address) throws IOException {
+      Socket rawSocket = new Socket();
+      try {
+        rawSocket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+        rawSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        // The persistent factory completes the handshake in createSocket, with SNI for |host|, in
+        // which case configure() has no effect and startHandshake() returns immediately.
+        long handshakeStart = System.currentTimeMillis();
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket(rawSocket, host, port, true);
+        TlsSockets.configure(socket, host);
+        socket.startHandshake();
+        TlsSockets.verifyHostname(socket, host, hostnameVerifier);
+        if (tlsSessions != null) {
+          tlsSessions.recordHandshake(socket.getSession().getCreationTime(), handshakeStart);
+        }
+        rawSocket.setSoTimeout(0);
+        return socket;
+      } catch (IOException e) {
+        rawSocket.close();
+        throw e;
+      }
+    }
+  }
+
+  private final String url;
+  private final List<InetAddress> ips;
+  private final Transport transport;
+  private final int readTimeoutMs;
+  // Attached to each Response, as the Resolver's Callback expects.  OkHttp only represents HTTP
+  // URLs, so this is the https URL with the same host and port.
+  private final Request request;
+  // The current connection, or null if there is none.
+  private Session session = null;
+
+  /**
+   * @return True if |url| identifies a DNS-over-TLS server.
+   */
+  public static boolean isDotUrl(String url) {
+    return url != null && url.startsWith(SCHEME + "://");
+  }
+
+  /**
+   * @param url A URL of the form tls://host[:port]
+   * @param ips The server's addresses.  The server name is not resolved.
+   * @param tlsSessions If non-null, TLS sessions are shared with other connections through this
+   *     cache.
+   * @return A connection, or null if the URL is invalid or |ips| is empty.
+   */
+  public static DotServerConnection get(String url, Collection<InetAddress> ips,
+      TlsSessionCache tlsSessions) {
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      Log.w(LOG_TAG, "Malformed URL: " + url);
+      return null;
+    }
+    String host = getHost(uri);
+    if (!SCHEME.equals(uri.getScheme()) || host == null) {
+      return null;
+    }
+    if (ips.isEmpty()) {
+      return null;
+    }
+    SSLSocketFactory socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    return new DotServerConnection(url, ips,
+        new TlsTransport(host, getPort(uri), socketFactory,
+            HttpsURLConnection.getDefaultHostnameVerifier(), tlsSessions),
+        DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  // Returns the host of |uri| without the brackets around an IPv6 literal, or null if it has none.
+  private static String getHost(URI uri) {
+    String host = uri.getHost();
+    if (host != null && host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+    return host;
+  }
+
+  private static int getPort(URI uri) {
+    return uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort();
+  }
+
+  /**
+   * @param url A URL of the form tls://host[:port]
+   * @param ips The server's addresses, tried in order.
+   * @param transport Opens connections to |ips|.
+   * @param readTimeoutMs How long to wait for each response.
+   */
+  DotServerConnection(String url, Collection<InetAddress> ips, Transport transport,
+      int readTimeoutMs) {
+    this.url = url;
+    this.ips = new ArrayList<>(ips);
+    this.transport = transport;
+    this.readTimeoutMs = readTimeoutMs;
+    URI uri = URI.create(url);
+    HttpUrl httpUrl = new HttpUrl.Builder()
+        .scheme("https")
+        .host(getHost(uri))
+        .port(getPort(uri))
+        .build();
+    request = new Request.Builder().url(httpUrl).build();
+  }
+
+  @Override
+  public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    if (data.length < MIN_MESSAGE_LENGTH || data.length > 0xffff) {
+      cb.onFailure(null, new ProtocolException("Invalid query length"));
+      return;
+    }
+    submit(new Query(data, cb));
+  }
+
+  private void submit(Query query) {
+    Session current;
+    synchronized (this) {
+      if (session == null || !session.isAccepting()) {
+        session = new Session();
+        session.start();
+      }
+      current = session;
+    }
+    if (!current.enqueue(query)) {
+      // The session stopped accepting queries in the meantime.
+      submit(query);
+    }
+  }
+
+  // Called when |closed| will not accept any more queries.
+  private synchronized void onSessionClosed(Session closed) {
+    if (session == closed) {
+      session = null;
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Opens a connection if there isn't one, so that the next query doesn't have to wait for it.
+   * DNS has no equivalent of a ping, so an existing connection is assumed to be working.
+   */
+  @Override
+  public void warmUp() {
+    synchronized (this) {
+      if (session == null || !session.isAccepting()) {
+        session = new Session();
+        session.start();
+      }
+    }
+  }
+
+  /**
+   * Closes the connection.  Queries in flight on it will fail.
+   */
+  @Override
+  public void reset() {
+    Session current;
+    synchronized (this) {
+      current = session;
+      session = null;
+    }
+    if (current != null) {
+      current.fail(new IOException("Connection reset"), false);
+    }
+  }
+
+  /**
+   * The only background work is each session's timeout sweep, which stops when the session is
+   * closed, so this is the same as reset().
+   */
+  @Override
+  public void close() {
+    reset();
+  }
+
+  /**
+   * One query.  Its Callback receives a null Call, because there is no OkHttp call to pass.
+   */
+  private class Query {
+    final byte[] data;
+    private final Callback cb;
+    // Set by the Session that sends this query.
+    int id = 0;
+    long sentTime = 0;
+    // True if this query has already been moved to a new connection after its first one closed.
+    boolean retried = false;
+    // True once the Callback has been called.
+    private boolean finished = false;
+
+    Query(byte[] data, Callback cb) {
+      this.data = data;
+      this.cb = cb;
+    }
+
+    // Returns true the first time it's called.
+    private synchronized boolean finish() {
+      if (finished) {
+        return false;
+      }
+      finished = true;
+      return true;
+    }
+
+    void complete(byte[] response, String serverIp) {
+      if (!finish()) {
+        return;
+      }
+      Response built = new Response.Builder()
+          .request(request)
+          .protocol(Protocol.HTTP_1_1)
+          .code(200)
+          .message("")
+          .header(IpTagInterceptor.HEADER_NAME, serverIp)
+          .body(ResponseBody.create(DNS_MESSAGE, response))
+          .build();
+      try {
+        cb.onResponse(null, built);
+      } catch (IOException e) {
+        LogWrapper.logException(e);
+      }
+    }
+
+    void fail(IOException e) {
+      if (finish()) {
+        cb.onFailure(null, e);
+      }
+    }
+  }
+
+  /**
+   * One TLS connection.  A writer thread opens the connection and writes the queries, and a
+   * reader thread reads the responses.  Thread-safe.
+   */
+  private class Session {
+    // Queries waiting to be written.  Guarded by this.
+    private final ArrayDeque<Query> queue = new ArrayDeque<>();
+    // Queries that have been written, by ID.  Guarded by this.
+    private final Map<Integer, Query> inFlight = new HashMap<>();
+    // False once the session has failed or been reset.  Guarded by this.
+    private boolean accepting = true;
+    // True once the socket has been closed.  Guarded by this.
+    private boolean closed = false;
+    // True once the connection has been established.  Guarded by this.
+    private boolean connected = false;
+    private int nextId = 0;
+
+    private Socket socket = null;
+    private String serverIp = null;
+    private BufferedSink sink = null;
+    private BufferedSource source = null;
+    private TimerTask sweepTask = null;
+    // When the last response was received.
+    private volatile long lastReadTime = 0;
+
+    void start() {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            connect();
+          } catch (IOException e) {
+            LogWrapper.log(Log.WARN, LOG_TAG, "Connection failed: " + e);
+            fail(e, false);
+            return;
+          }
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                readLoop();
+              } catch (IOException e) {
+                fail(e, true);
+              }
+            }
+          }, "DotServerConnection reader").start();
+          try {
+            writeLoop();
+          } catch (IOException e) {
+            fail(e, true);
+          } catch (InterruptedException e) {
+            fail(new IOException(e), false);
+          }
+        }
+      }, "DotServerConnection writer").start();
+    }
+
+    synchronized boolean isAccepting() {
+      return accepting;
+    }
+
+    /**
+     * @return False if this session doesn't accept new queries.
+     */
+    synchronized boolean enqueue(Query query) {
+      if (!accepting) {
+        return false;
+      }
+      queue.add(query);
+      notifyAll();
+      return true;
+    }
+
+    private void connect() throws IOException {
+      IOException lastException = new IOException("No addresses");
+      Socket opened = null;
+      for (InetAddress ip : ips) {
+        try {
+          opened = transport.connect(ip);
+          serverIp = ip.getHostAddress();
+          break;
+        } catch (IOException e) {
+          lastException = e;
+        }
+      }
+      if (opened == null) {
+        throw lastException;
+      }
+      synchronized (this) {
+        if (closed) {
+          opened.close();
+          throw new IOException("Connection reset");
+        }
+        socket = opened;
+        connected = true;
+        sweepTask = new SafeTimerTask() {
+          @Override
+          protected void runSafely() {
+            sweep();
+          }
+        };
+        timer.schedule(sweepTask, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS);
+      }
+      lastReadTime = SystemClock.elapsedRealtime();
+      source = Okio.buffer(Okio.source(socket.getInputStream()));
+      sink = Okio.buffer(Okio.sink(socket.getOutputStream()));
+    }
+
+    // Returns an ID that isn't in use on this connection.  Must hold the lock.
+    private int allocateId() {
+      do {
+        nextId = (nextId + 1) & 0xffff;
+      } while (inFlight.containsKey(nextId));
+      return nextId;
+    }
+
+    private void writeLoop() throws IOException, InterruptedException {
+      List<Query> batch = new ArrayList<>();
+      while (true) {
+        synchronized (this) {
+          while (!closed && (queue.isEmpty() || inFlight.size() >= MAX_IN_FLIGHT)) {
+            wait();
+          }
+          if (closed) {
+            return;
+          }
+          long now = SystemClock.elapsedRealtime();
+          while (!queue.isEmpty() && inFlight.size() < MAX_IN_FLIGHT) {
+            Query query = queue.poll();
+            query.id = allocateId();
+            query.sentTime = now;
+            inFlight.put(query.id, query);
+            batch.add(query);
+          }
+        }
+        // RFC 7858 Section 3.3: each message is preceded by its two-byte length.
+        for (Query query : batch) {
+          sink.writeShort(query.data.length);
+          sink.writeShort(query.id);
+          sink.write(query.data, 2, query.data.length - 2);
+        }
+        sink.flush();
+        batch.clear();
+      }
+    }
+
+    private void readLoop() throws IOException {
+      while (true) {
+        int length = source.readShort() & 0xffff;
+        if (length < MIN_MESSAGE_LENGTH) {
+          throw new ProtocolException("Response too short: " + length);
+        }
+        byte[] response = source.readByteArray(length);
+        lastReadTime = SystemClock.elapsedRealtime();
+        int id = ((response[0] & 0xff) << 8) | (response[1] & 0xff);
+        Query query;
+        synchronized (this) {
+          query = inFlight.remove(id);
+          // Room for another query.
+          notifyAll();
+        }
+        if (query == null) {
+          // The query timed out, or this is a response that the server sent twice.
+          LogWrapper.log(Log.INFO, LOG_TAG, "Discarding response with unknown ID");
+          continue;
+        }
+        query.complete(response, serverIp);
+      }
+    }
+
+    // Fails queries that have waited too long for a response.  If nothing at all has been
+    // received since the oldest of them was sent, the connection is presumed dead, and closed.
+    private void sweep() {
+      long now = SystemClock.elapsedRealtime();
+      List<Query> expired = new ArrayList<>();
+      boolean dead = false;
+      synchronized (this) {
+        Iterator<Query> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+          Query query = iterator.next();
+          if (now - query.sentTime >= readTimeoutMs) {
+            iterator.remove();
+            expired.add(query);
+            if (lastReadTime < query.sentTime) {
+              dead = true;
+            }
+          }
+        }
+        notifyAll();
+      }
+      for (Query query : expired) {
+        query.fail(new SocketTimeoutException("No response from server"));
+      }
+      if (dead) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "Connection is unresponsive");
+        fail(new SocketTimeoutException("Connection is unresponsive"), false);
+      }
+    }
+
+    /**
+     * Closes the connection.  Queries that haven't received a response are moved to a new
+     * connection if |retry| is true, the connection had been established, and they haven't
+     * already been retried.  The rest fail with |e|.
+     */
+    void fail(IOException e, boolean retry) {
+      List<Query> pending = new ArrayList<>();
+      synchronized (this) {
+        accepting = false;
+        retry = retry && connected;
+        pending.addAll(inFlight.values());
+        inFlight.clear();
+        pending.addAll(queue);
+        queue.clear();
+      }
+      onSessionClosed(this);
+      close();
+      for (Query query : pending) {
+        if (retry && !query.retried) {
+          query.retried = true;
+          submit(query);
+        } else {
+          query.fail(e);
+        }
+      }
+    }
+
+    private void close() {
+      Socket toClose;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        accepting = false;
+        toClose = socket;
+        if (sweepTask != null) {
+          sweepTask.cancel();
+        }
+        notifyAll();
+      }
+      if (toClose != null) {
+        try {
+          toClose.close();
+        } catch (IOException e) {
+          // Nothing to do.
+        }
+      }
+    }
+  }
+}
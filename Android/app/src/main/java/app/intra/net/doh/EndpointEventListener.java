@@ -0,0 +1,211 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.os.SystemClock;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Records the TCP connect and TLS handshake times of each new connection in an EndpointStats,
+ * whether each handshake resumed a session in a TlsSessionCache, and reports the connection used by
+ * each call, and how the call ended, to a ConnectionMonitor.  Also records how long each call
+ * waited in the Dispatcher's queue in a DispatchStats, and whether each server IP connected and
+ * answered in a CircuitBreaker.  OkHttp creates one listener per call, and a call makes at most one
+ * connection attempt at a time, so no synchronization is needed.
+ */
+class EndpointEventListener extends EventListener {
+
+  static class Factory implements EventListener.Factory {
+    private final EndpointStats stats;
+    private final ConnectionMonitor monitor;
+    private final TlsSessionCache tlsSessions;
+    private final DispatchStats dispatchStats;
+    private final CircuitBreaker breaker;
+
+    /**
+     * @param tlsSessions May be null.
+     */
+    Factory(EndpointStats stats, ConnectionMonitor monitor, TlsSessionCache tlsSessions,
+        DispatchStats dispatchStats, CircuitBreaker breaker) {
+      this.stats = stats;
+      this.monitor = monitor;
+      this.tlsSessions = tlsSessions;
+      this.dispatchStats = dispatchStats;
+      this.breaker = breaker;
+    }
+
+    @Override
+    public EventListener create(Call call) {
+      return new EndpointEventListener(stats, monitor, tlsSessions, dispatchStats, breaker);
+    }
+  }
+
+  private final EndpointStats stats;
+  private final ConnectionMonitor monitor;
+  private final TlsSessionCache tlsSessions;
+  private final DispatchStats dispatchStats;
+  private final CircuitBreaker breaker;
+  private String ip = null;
+  private long connectStart = 0;
+  private long tlsStart = -1;
+  // Wall-clock start of this call's most recent TLS handshake, or -1 if it hasn't been recorded.
+  private long tlsStartWallClock = -1;
+  // The most recent connection used by the call.  Not cleared on release, because OkHttp
+  // releases the connection before reporting that the call failed.
+  private Connection connection = null;
+  private long callStart = 0;
+  // True if this call opened a new connection.
+  private boolean cold = false;
+  // True once the Dispatcher has started executing the call.
+  private boolean executing = false;
+
+  private EndpointEventListener(EndpointStats stats, ConnectionMonitor monitor,
+      TlsSessionCache tlsSessions, DispatchStats dispatchStats, CircuitBreaker breaker) {
+    this.stats = stats;
+    this.monitor = monitor;
+    this.tlsSessions = tlsSessions;
+    this.dispatchStats = dispatchStats;
+    this.breaker = breaker;
+  }
+
+  private static boolean isKeepalive(Call call) {
+    return call.request().tag() == Keepalive.TAG;
+  }
+
+  private static String getIp(Connection connection) {
+    return connection.route().socketAddress().getAddress().getHostAddress();
+  }
+
+  @Override
+  public void callStart(Call call) {
+    // OkHttp reports the start of an asynchronous call when it is enqueued.
+    callStart = SystemClock.elapsedRealtime();
+  }
+
+  // OkHttp doesn't report when the Dispatcher starts executing a call, so this is called from
+  // the first event that can only happen during execution.  A call either looks up the server
+  // address to make a new connection, or acquires a pooled connection, before anything else.
+  private void onExecuting() {
+    if (!executing) {
+      executing = true;
+      dispatchStats.recordQueueTime(SystemClock.elapsedRealtime() - callStart);
+    }
+  }
+
+  @Override
+  public void dnsStart(Call call, String domainName) {
+    onExecuting();
+  }
+
+  @Override
+  public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+    onExecuting();
+    cold = true;
+    ip = address.getAddress().getHostAddress();
+    connectStart = SystemClock.elapsedRealtime();
+    tlsStart = -1;
+  }
+
+  @Override
+  public void secureConnectStart(Call call) {
+    tlsStart = SystemClock.elapsedRealtime();
+    tlsStartWallClock = System.currentTimeMillis();
+    if (ip != null) {
+      stats.recordConnect(ip, tlsStart - connectStart);
+    }
+  }
+
+  @Override
+  public void secureConnectEnd(Call call, Handshake handshake) {
+    if (ip != null && tlsStart >= 0) {
+      stats.recordTls(ip, SystemClock.elapsedRealtime() - tlsStart);
+    }
+  }
+
+  @Override
+  public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+    if (ip != null && tlsStart < 0) {
+      // Cleartext connection, so the connect time hasn't been recorded yet.
+      stats.recordConnect(ip, SystemClock.elapsedRealtime() - connectStart);
+    }
+    ip = null;
+  }
+
+  @Override
+  public void connectFailed(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol,
+      IOException ioe) {
+    String failedIp = address.getAddress().getHostAddress();
+    stats.recordConnectFailure(failedIp);
+    breaker.onFailure(failedIp);
+    ip = null;
+  }
+
+  @Override
+  public void connectionAcquired(Call call, Connection connection) {
+    onExecuting();
+    this.connection = connection;
+    monitor.onConnectionAcquired(connection);
+    // A connection that this call just set up is acquired right after its handshake completes.
+    if (tlsSessions != null && tlsStartWallClock >= 0
+        && connection.socket() instanceof SSLSocket) {
+      SSLSession session = ((SSLSocket) connection.socket()).getSession();
+      tlsSessions.recordHandshake(session.getCreationTime(), tlsStartWallClock);
+    }
+    tlsStartWallClock = -1;
+  }
+
+  @Override
+  public void responseHeadersEnd(Call call, Response response) {
+    if (connection == null) {
+      return;
+    }
+    // A server error means that this endpoint can't answer, even though it is reachable.
+    if (response.code() >= 500) {
+      breaker.onFailure(getIp(connection));
+    } else {
+      breaker.onSuccess(getIp(connection));
+    }
+  }
+
+  @Override
+  public void callEnd(Call call) {
+    monitor.onCallEnd(isKeepalive(call), cold, SystemClock.elapsedRealtime() - callStart);
+  }
+
+  @Override
+  public void callFailed(Call call, IOException ioe) {
+    // Cancelled calls, such as hedges that lost the race, say nothing about the endpoint, and
+    // neither do calls that failed because the monitor closed their connection.  Checked before
+    // onCallFailed(), which may close the connection.  Connect failures have already been
+    // recorded.
+    boolean countFailure = connection != null && !call.isCanceled()
+        && monitor.isNewFailure(connection);
+    monitor.onCallFailed(isKeepalive(call), connection, ioe);
+    if (countFailure) {
+      breaker.onFailure(getIp(connection));
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tracks the measured performance of each IP address of a DoH server, as exponentially weighted
+ * moving averages of the TCP connect time, the TLS handshake time, and the time to first byte of
+ * each response.  The addresses can then be ordered from fastest to slowest.
+ *
+ * Thread-safe.
+ */
+public class EndpointStats {
+  // Weight of each new sample in the moving averages.
+  private static final double ALPHA = 0.3;
+  // Score of an address that has never been measured.  Addresses that are faster than this are
+  // preferred over unknown addresses, and slower ones are tried after them.
+  static final double UNKNOWN_SCORE_MS = 1000;
+  // A failed connection attempt counts as a connection that took this long.
+  static final double FAILURE_PENALTY_MS = 5000;
+  // Probability that lookup() moves a random address to the front, so that addresses with a bad
+  // score are eventually measured again.
+  private static final double EXPLORATION_PROBABILITY = 0.05;
+
+  /**
+   * Performance measurements of a single address.
+   */
+  public static class Endpoint {
+    // Negative until the first sample.
+    private double connectMs = -1;
+    private double tlsMs = -1;
+    private double ttfbMs = -1;
+    private int failures = 0;
+    private boolean lastConnectFailed = false;
+
+    private static double update(double average, double sample) {
+      return average < 0 ? sample : ALPHA * sample + (1 - ALPHA) * average;
+    }
+
+    public double getConnectMs() {
+      return connectMs;
+    }
+
+    public double getTlsMs() {
+      return tlsMs;
+    }
+
+    public double getTtfbMs() {
+      return ttfbMs;
+    }
+
+    public int getFailures() {
+      return failures;
+    }
+
+    /**
+     * @return The expected time to receive a response over a new connection to this address.
+     */
+    double getScore() {
+      if (connectMs < 0 && ttfbMs < 0) {
+        return UNKNOWN_SCORE_MS;
+      }
+      return Math.max(connectMs, 0) + Math.max(tlsMs, 0) + Math.max(ttfbMs, 0);
+    }
+  }
+
+  private final Map<String, Endpoint> endpoints = new HashMap<>();
+  private final Random random;
+
+  public EndpointStats() {
+    this(new Random());
+  }
+
+  EndpointStats(Random random) {
+    this.random = random;
+  }
+
+  private Endpoint getEndpoint(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    if (endpoint == null) {
+      endpoint = new Endpoint();
+      endpoints.put(ip, endpoint);
+    }
+    return endpoint;
+  }
+
+  public synchronized void recordConnect(String ip, long ms) {
+    Endpoint endpoint = getEndpoint(ip);
+    endpoint.connectMs = Endpoint.update(endpoint.connectMs, ms);
+    endpoint.lastConnectFailed = false;
+  }
+
+  public synchronized void recordConnectFailure(String ip) {
+    Endpoint endpoint = getEndpoint(ip);
+    endpoint.connectMs = Endpoint.update(endpoint.connectMs, FAILURE_PENALTY_MS);
+    ++endpoint.failures;
+    endpoint.lastConnectFailed = true;
+  }
+
+  /**
+   * @return True if the most recent connection attempt to |ip| succeeded.
+   */
+  public synchronized boolean isReachable(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    return endpoint != null && endpoint.connectMs >= 0 && !endpoint.lastConnectFailed;
+  }
+
+  public synchronized void recordTls(String ip, long ms) {
+    Endpoint endpoint = getEndpoint(ip);
+    endpoint.tlsMs = Endpoint.update(endpoint.tlsMs, ms);
+  }
+
+  public synchronized void recordTtfb(String ip, long ms) {
+    Endpoint endpoint = getEndpoint(ip);
+    endpoint.ttfbMs = Endpoint.update(endpoint.ttfbMs, ms);
+  }
+
+  /**
+   * @return A snapshot of the measurements for |ip|, or null if it has never been measured.
+   */
+  public synchronized Endpoint get(String ip) {
+    Endpoint endpoint = endpoints.get(ip);
+    if (endpoint == null) {
+      return null;
+    }
+    Endpoint copy = new Endpoint();
+    copy.connectMs = endpoint.connectMs;
+    copy.tlsMs = endpoint.tlsMs;
+    copy.ttfbMs = endpoint.ttfbMs;
+    copy.failures = endpoint.failures;
+    copy.lastConnectFailed = endpoint.lastConnectFailed;
+    return copy;
+  }
+
+  /**
+   * @param addresses Addresses in their default order of preference
+   * @return The addresses, sorted by score.  Ties, including all unmeasured addresses, keep their
+   *     default order.  Occasionally, a random address is moved to the front for exploration.
+   */
+  public synchronized List<InetAddress> order(List<InetAddress> addresses) {
+    List<InetAddress> ordered = new ArrayList<>(addresses);
+    final Map<InetAddress, Double> scores = new HashMap<>();
+    for (InetAddress address : ordered) {
+      Endpoint endpoint = endpoints.get(address.getHostAddress());
+      scores.put(address, endpoint == null ? UNKNOWN_SCORE_MS : endpoint.getScore());
+    }
+    // Collections.sort is stable.
+    Collections.sort(ordered, new Comparator<InetAddress>() {
+      @Override
+      public int compare(InetAddress a, InetAddress b) {
+        return Double.compare(scores.get(a), scores.get(b));
+      }
+    });
+    if (ordered.size() > 1 && random.nextDouble() < EXPLORATION_PROBABILITY) {
+      int index = 1 + random.nextInt(ordered.size() - 1);
+      ordered.add(0, ordered.remove(index));
+    }
+    return ordered;
+  }
+}
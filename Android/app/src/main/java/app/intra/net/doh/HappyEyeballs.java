@@ -0,0 +1,334 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.sys.LogWrapper;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds a reachable server address by racing staggered TCP connection attempts, as in RFC 8305
+ * ("Happy Eyeballs v2").  Attempts alternate between address families, starting with the family
+ * that won the most recent race, and a new attempt starts every ATTEMPT_DELAY_MS, or immediately
+ * when an earlier attempt fails.  The first address to connect wins.
+ *
+ * OkHttp can't adopt the winning socket, so the race doesn't run on the connection path.  Instead,
+ * it runs in the background when the network changes, and the winner is moved to the front of
+ * later lookups on the same network.
+ *
+ * Thread-safe.
+ */
+public class HappyEyeballs {
+  private static final String LOG_TAG = "HappyEyeballs";
+
+  // The "Connection Attempt Delay" recommended by RFC 8305 Section 5.
+  static final long ATTEMPT_DELAY_MS = 250;
+
+  /**
+   * Opens a TCP connection.  Replaceable for testing.
+   */
+  interface Connector {
+    Socket connect(InetSocketAddress address, int timeoutMs) throws IOException;
+  }
+
+  private static final Connector DEFAULT_CONNECTOR = new Connector() {
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMs) throws IOException {
+      Socket socket = new Socket();
+      try {
+        socket.connect(address, timeoutMs);
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+      return socket;
+    }
+  };
+
+  // The state of a single race.
+  private static class Round {
+    final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+    final List<Attempt> started = new ArrayList<>();
+    // Guarded by |this|.  Once set, attempts that are still in progress close their own sockets.
+    boolean over = false;
+  }
+
+  // The outcome of a single connection attempt.
+  private static class Attempt {
+    final InetAddress address;
+    final long startTime;
+    Socket socket = null;
+
+    Attempt(InetAddress address, long startTime) {
+      this.address = address;
+      this.startTime = startTime;
+    }
+  }
+
+  private final int port;
+  private final int timeoutMs;
+  private final EndpointStats stats;
+  private final Connector connector;
+
+  // Per-family results, guarded by |this|.
+  private boolean preferV6 = true;
+  private int v4Wins = 0;
+  private int v6Wins = 0;
+  private int v4Failures = 0;
+  private int v6Failures = 0;
+  // The winner of the most recent race on the current network, or null if there is none.
+  private InetAddress winner = null;
+  private boolean racing = false;
+
+  HappyEyeballs(int port, int timeoutMs, EndpointStats stats) {
+    this(port, timeoutMs, stats, DEFAULT_CONNECTOR);
+  }
+
+  HappyEyeballs(int port, int timeoutMs, EndpointStats stats, Connector connector) {
+    this.port = port;
+    this.timeoutMs = timeoutMs;
+    this.stats = stats;
+    this.connector = connector;
+  }
+
+  /**
+   * @return |addresses|, reordered to alternate between families, starting with the family that
+   *     won the most recent race.  The relative order within each family is preserved.
+   */
+  synchronized List<InetAddress> interleave(List<InetAddress> addresses) {
+    LinkedList<InetAddress> v4 = new LinkedList<>();
+    LinkedList<InetAddress> v6 = new LinkedList<>();
+    for (InetAddress address : addresses) {
+      if (address instanceof Inet6Address) {
+        v6.add(address);
+      } else {
+        v4.add(address);
+      }
+    }
+    LinkedList<InetAddress> first = preferV6 ? v6 : v4;
+    LinkedList<InetAddress> second = preferV6 ? v4 : v6;
+    List<InetAddress> interleaved = new ArrayList<>(addresses.size());
+    while (!first.isEmpty() || !second.isEmpty()) {
+      if (!first.isEmpty()) {
+        interleaved.add(first.removeFirst());
+      }
+      if (!second.isEmpty()) {
+        interleaved.add(second.removeFirst());
+      }
+    }
+    return interleaved;
+  }
+
+  /**
+   * Forgets the previous winner, which may not be reachable on the new network.
+   */
+  synchronized void onNetworkChanged() {
+    winner = null;
+  }
+
+  /**
+   * @return True if there is a winner on the current network.
+   */
+  synchronized boolean hasWinner() {
+    return winner != null;
+  }
+
+  /**
+   * @return |addresses|, with the winner of the most recent race on this network moved to the
+   *     front, if it is present.
+   */
+  synchronized List<InetAddress> promoteWinner(List<InetAddress> addresses) {
+    List<InetAddress> ordered = new ArrayList<>(addresses);
+    if (winner != null && ordered.remove(winner)) {
+      ordered.add(0, winner);
+    }
+    return ordered;
+  }
+
+  /**
+   * Runs race() on a background thread, unless a race is already in progress.
+   * @param then Runs after the race, whether or not it found a winner.  May be null.
+   * @return False if a race was already in progress, in which case |then| doesn't run.
+   */
+  boolean raceInBackground(final List<InetAddress> addresses, final Runnable then) {
+    synchronized (this) {
+      if (racing) {
+        return false;
+      }
+      racing = true;
+    }
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (addresses.size() > 1) {
+            race(addresses);
+          }
+        } finally {
+          synchronized (HappyEyeballs.this) {
+            racing = false;
+          }
+        }
+        if (then != null) {
+          then.run();
+        }
+      }
+    }, "happyEyeballs-race").start();
+    return true;
+  }
+
+  /**
+   * Races connection attempts to |addresses|.  Blocks until one succeeds, all fail, or the
+   * timeout expires.  Sockets opened by the race are closed before it returns.
+   * @param addresses The addresses to try, in order
+   * @return The address that connected first, or null if none did.
+   */
+  InetAddress race(List<InetAddress> addresses) {
+    Round round = new Round();
+    final long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+    Attempt winner = null;
+    int finishedCount = 0;
+    try {
+      start(round, addresses.get(0));
+      while (finishedCount < addresses.size()) {
+        boolean moreToStart = round.started.size() < addresses.size();
+        long wait = moreToStart ? ATTEMPT_DELAY_MS : deadline - SystemClock.elapsedRealtime();
+        Attempt attempt = wait > 0 ? round.finished.poll(wait, TimeUnit.MILLISECONDS) : null;
+        if (attempt == null) {
+          if (!moreToStart) {
+            break;  // Timed out.
+          }
+        } else {
+          ++finishedCount;
+          if (attempt.socket != null) {
+            winner = attempt;
+            break;
+          }
+          recordFailure(attempt.address);
+        }
+        if (round.started.size() < addresses.size()) {
+          start(round, addresses.get(round.started.size()));
+        }
+      }
+    } catch (InterruptedException e) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Interrupted");
+    }
+
+    synchronized (round) {
+      round.over = true;
+      for (Attempt attempt : round.finished) {
+        close(attempt.socket);
+      }
+    }
+    if (winner == null) {
+      return null;
+    }
+    close(winner.socket);
+    recordWin(winner);
+    return winner.address;
+  }
+
+  private void start(final Round round, final InetAddress address) {
+    final Attempt attempt = new Attempt(address, SystemClock.elapsedRealtime());
+    round.started.add(attempt);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Socket socket = null;
+        try {
+          socket = connector.connect(new InetSocketAddress(address, port), timeoutMs);
+        } catch (IOException e) {
+          // Reported as an attempt with no socket.
+        }
+        synchronized (round) {
+          attempt.socket = socket;
+          if (round.over) {
+            close(socket);
+          } else {
+            round.finished.add(attempt);
+          }
+        }
+      }
+    }, "happyEyeballs").start();
+  }
+
+  private static void close(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Nothing to do.
+    }
+  }
+
+  private void recordWin(Attempt winner) {
+    String ip = winner.address.getHostAddress();
+    stats.recordConnect(ip, SystemClock.elapsedRealtime() - winner.startTime);
+    synchronized (this) {
+      this.winner = winner.address;
+      preferV6 = winner.address instanceof Inet6Address;
+      if (preferV6) {
+        ++v6Wins;
+      } else {
+        ++v4Wins;
+      }
+    }
+  }
+
+  private void recordFailure(InetAddress address) {
+    stats.recordConnectFailure(address.getHostAddress());
+    synchronized (this) {
+      if (address instanceof Inet6Address) {
+        ++v6Failures;
+      } else {
+        ++v4Failures;
+      }
+    }
+  }
+
+  public synchronized boolean isV6Preferred() {
+    return preferV6;
+  }
+
+  public synchronized int getV4Wins() {
+    return v4Wins;
+  }
+
+  public synchronized int getV6Wins() {
+    return v6Wins;
+  }
+
+  public synchronized int getV4Failures() {
+    return v4Failures;
+  }
+
+  public synchronized int getV6Failures() {
+    return v6Failures;
+  }
+}
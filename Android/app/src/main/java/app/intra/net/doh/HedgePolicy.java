@@ -0,0 +1,121 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a slow DNS query should be duplicated ("hedged") to a different server IP.
+ * The hedge delay tracks the 90th percentile of recent response times, so only the slowest
+ * queries are hedged, and the hedge rate is capped by a token bucket so that hedging cannot
+ * add more than a small fraction of extra load.
+ *
+ * Thread-safe.
+ */
+public class HedgePolicy {
+  // Number of recent response times used to estimate the percentile.
+  private static final int SAMPLE_COUNT = 128;
+  // Until this many samples have been collected, DEFAULT_DELAY_MS is used.
+  private static final int MIN_SAMPLES = 20;
+  private static final double PERCENTILE = 0.9;
+  static final long DEFAULT_DELAY_MS = 1000;
+  static final long MIN_DELAY_MS = 50;
+  static final long MAX_DELAY_MS = 3000;
+
+  // Each query earns this many hedge tokens, and each hedge costs one, so at most 5% of queries
+  // are hedged over the long term.
+  static final double HEDGE_FRACTION = 0.05;
+  // Allows a short burst of hedges, e.g. when a connection stalls.
+  private static final double MAX_TOKENS = 3;
+
+  private final long[] samples = new long[SAMPLE_COUNT];
+  private int sampleCount = 0;
+  private int nextSample = 0;
+  private double tokens = MAX_TOKENS;
+
+  private long queries = 0;
+  private long hedges = 0;
+  private long hedgeWins = 0;
+
+  /**
+   * Records a completed query.
+   * @param latencyMs Time from sending the query to receiving the response headers.
+   */
+  public synchronized void recordLatency(long latencyMs) {
+    samples[nextSample] = latencyMs;
+    nextSample = (nextSample + 1) % SAMPLE_COUNT;
+    sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+  }
+
+  /**
+   * @return How long to wait for a response before hedging.
+   */
+  public synchronized long getDelayMs() {
+    if (sampleCount < MIN_SAMPLES) {
+      return DEFAULT_DELAY_MS;
+    }
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    long percentile = sorted[(int) Math.ceil(PERCENTILE * sampleCount) - 1];
+    return Math.min(Math.max(percentile, MIN_DELAY_MS), MAX_DELAY_MS);
+  }
+
+  /**
+   * Must be called once for every query that is sent, whether or not it is hedged.
+   */
+  public synchronized void onQuery() {
+    ++queries;
+    tokens = Math.min(tokens + HEDGE_FRACTION, MAX_TOKENS);
+  }
+
+  /**
+   * @return True if a hedge may be sent now.  If so, the hedge is counted against the budget.
+   */
+  public synchronized boolean tryHedge() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    ++hedges;
+    return true;
+  }
+
+  /**
+   * Called when a hedge's response arrives before the original query's response.
+   */
+  public synchronized void onHedgeWon() {
+    ++hedgeWins;
+  }
+
+  public synchronized long getQueryCount() {
+    return queries;
+  }
+
+  public synchronized long getHedgeCount() {
+    return hedges;
+  }
+
+  public synchronized long getHedgeWinCount() {
+    return hedgeWins;
+  }
+
+  /**
+   * @return The fraction of queries that were hedged.
+   */
+  public synchronized double getHedgeRate() {
+    return queries == 0 ? 0 : (double) hedges / queries;
+  }
+}
@@ -0,0 +1,427 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import okio.BufferedSink;
+
+/**
+ * The parts of HPACK (RFC 7541) that a DoH client needs: a decoder for response header blocks,
+ * including Huffman-coded strings and the dynamic table, and an encoder for request headers.  The
+ * encoder only writes indexed fields and literals without indexing, and never uses Huffman coding,
+ * so that a connection's request headers don't depend on any state, and can be encoded once.
+ */
+final class Hpack {
+  private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+  // The dynamic table size that the decoder allows, unless the client sends a different
+  // SETTINGS_HEADER_TABLE_SIZE.
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  // Static table indices used in requests.
+  static final int AUTHORITY = 1;
+  static final int METHOD_POST = 3;
+  static final int PATH = 4;
+  static final int SCHEME_HTTP = 6;
+  static final int SCHEME_HTTPS = 7;
+  static final int ACCEPT = 19;
+  static final int CONTENT_LENGTH = 28;
+  static final int CONTENT_TYPE = 31;
+  static final int USER_AGENT = 58;
+
+  // RFC 7541 Appendix A.  Entry i has index i + 1.
+  private static final String[][] STATIC_TABLE = {
+      {":authority", ""},
+      {":method", "GET"},
+      {":method", "POST"},
+      {":path", "/"},
+      {":path", "/index.html"},
+      {":scheme", "http"},
+      {":scheme", "https"},
+      {":status", "200"},
+      {":status", "204"},
+      {":status", "206"},
+      {":status", "304"},
+      {":status", "400"},
+      {":status", "404"},
+      {":status", "500"},
+      {"accept-charset", ""},
+      {"accept-encoding", "gzip, deflate"},
+      {"accept-language", ""},
+      {"accept-ranges", ""},
+      {"accept", ""},
+      {"access-control-allow-origin", ""},
+      {"age", ""},
+      {"allow", ""},
+      {"authorization", ""},
+      {"cache-control", ""},
+      {"content-disposition", ""},
+      {"content-encoding", ""},
+      {"content-language", ""},
+      {"content-length", ""},
+      {"content-location", ""},
+      {"content-range", ""},
+      {"content-type", ""},
+      {"cookie", ""},
+      {"date", ""},
+      {"etag", ""},
+      {"expect", ""},
+      {"expires", ""},
+      {"from", ""},
+      {"host", ""},
+      {"if-match", ""},
+      {"if-modified-since", ""},
+      {"if-none-match", ""},
+      {"if-range", ""},
+      {"if-unmodified-since", ""},
+      {"last-modified", ""},
+      {"link", ""},
+      {"location", ""},
+      {"max-forwards", ""},
+      {"proxy-authenticate", ""},
+      {"proxy-authorization", ""},
+      {"range", ""},
+      {"referer", ""},
+      {"refresh", ""},
+      {"retry-after", ""},
+      {"server", ""},
+      {"set-cookie", ""},
+      {"strict-transport-security", ""},
+      {"transfer-encoding", ""},
+      {"user-agent", ""},
+      {"vary", ""},
+      {"via", ""},
+      {"www-authenticate", ""}
+  };
+
+  // RFC 7541 Appendix B, for symbols 0-255.  EOS is omitted, because it must not be decoded.
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+      0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+      0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+      0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+      0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+      0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+      0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+      0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+      0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+      0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+      0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+      0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+      0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+      0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+      0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+      0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+      0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+      0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+      0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+      0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+      0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+      0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+      0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+      0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+      0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+      0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+      0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+      0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+      0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+      0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+      0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+      0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+      0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+  };
+
+  private static final byte[] HUFFMAN_CODE_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+  };
+
+  // The Huffman decoding tree.  HUFFMAN_TREE[node][bit] is the next node after reading |bit| at
+  // |node|.  A positive value is the index of an internal node, a negative value -1 - symbol is a
+  // leaf, and 0 means that there is no such code.  The root is node 0.
+  private static final int[][] HUFFMAN_TREE;
+
+  static {
+    // A binary tree with 256 leaves has 255 internal nodes, plus a few on the path to EOS.
+    int[][] tree = new int[256 + 32][2];
+    int nodes = 1;
+    for (int symbol = 0; symbol < HUFFMAN_CODES.length; ++symbol) {
+      int code = HUFFMAN_CODES[symbol];
+      int length = HUFFMAN_CODE_LENGTHS[symbol];
+      int node = 0;
+      for (int i = length - 1; i > 0; --i) {
+        int bit = (code >>> i) & 1;
+        if (tree[node][bit] == 0) {
+          tree[node][bit] = nodes++;
+        }
+        node = tree[node][bit];
+      }
+      tree[node][code & 1] = -1 - symbol;
+    }
+    HUFFMAN_TREE = tree;
+  }
+
+  private Hpack() {}
+
+  /**
+   * Receives the fields of a header block, in order.
+   */
+  interface Listener {
+    void onHeader(String name, String value);
+  }
+
+  /**
+   * Decodes the header blocks received on one connection, which share a dynamic table.  Not
+   * thread-safe.
+   */
+  static final class Decoder {
+    // The largest table size that the server may choose, i.e. our SETTINGS_HEADER_TABLE_SIZE.
+    private final int maxTableSize;
+    // The table size chosen by the server's most recent size update.
+    private int tableSizeLimit;
+    private int tableSize = 0;
+    // The dynamic table, oldest entry first.  Each entry is {name, value}.
+    private final List<String[]> table = new ArrayList<>();
+
+    // The header block being decoded.
+    private byte[] block;
+    private int position;
+    private int limit;
+
+    Decoder(int maxTableSize) {
+      this.maxTableSize = maxTableSize;
+      this.tableSizeLimit = maxTableSize;
+    }
+
+    /**
+     * Decodes the first |length| bytes of |block|, a complete header block.
+     */
+    void decode(byte[] block, int length, Listener listener) throws ProtocolException {
+      this.block = block;
+      this.position = 0;
+      this.limit = length;
+      try {
+        while (position < limit) {
+          int b = block[position] & 0xFF;
+          if ((b & 0x80) != 0) {
+            // Indexed header field.
+            String[] entry = getEntry(readInt(7));
+            listener.onHeader(entry[0], entry[1]);
+          } else if ((b & 0x40) != 0) {
+            // Literal header field with incremental indexing.
+            readLiteral(6, true, listener);
+          } else if ((b & 0x20) != 0) {
+            // Dynamic table size update.
+            int size = readInt(5);
+            if (size > maxTableSize) {
+              throw new ProtocolException("Table size update too large: " + size);
+            }
+            tableSizeLimit = size;
+            evict(0);
+          } else {
+            // Literal header field without indexing, or never indexed.
+            readLiteral(4, false, listener);
+          }
+        }
+      } finally {
+        this.block = null;
+      }
+    }
+
+    private void readLiteral(int prefixBits, boolean index, Listener listener)
+        throws ProtocolException {
+      int nameIndex = readInt(prefixBits);
+      String name = nameIndex == 0 ? readString() : getEntry(nameIndex)[0];
+      String value = readString();
+      if (index) {
+        add(name, value);
+      }
+      listener.onHeader(name, value);
+    }
+
+    private String[] getEntry(int index) throws ProtocolException {
+      if (index > 0 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      // Dynamic table indices start after the static table, newest entry first.
+      int dynamicIndex = index - STATIC_TABLE.length;
+      if (index <= 0 || dynamicIndex > table.size()) {
+        throw new ProtocolException("Invalid header index: " + index);
+      }
+      return table.get(table.size() - dynamicIndex);
+    }
+
+    private static int entrySize(String name, String value) {
+      final int ENTRY_OVERHEAD = 32;
+      return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    private void add(String name, String value) {
+      int size = entrySize(name, value);
+      evict(size);
+      if (size > tableSizeLimit) {
+        // An entry that is larger than the table empties it, and is not added.
+        return;
+      }
+      table.add(new String[]{name, value});
+      tableSize += size;
+    }
+
+    // Evicts the oldest entries until there is room for |size| more bytes.
+    private void evict(int size) {
+      while (!table.isEmpty() && tableSize + size > tableSizeLimit) {
+        String[] entry = table.remove(0);
+        tableSize -= entrySize(entry[0], entry[1]);
+      }
+    }
+
+    // The current byte must be in bounds.
+    private int readInt(int prefixBits) throws ProtocolException {
+      int max = (1 << prefixBits) - 1;
+      int value = block[position++] & max;
+      if (value < max) {
+        return value;
+      }
+      final int MAX_SHIFT = 21;  // Allows values up to 2^28, which is more than enough.
+      for (int shift = 0; shift <= MAX_SHIFT; shift += 7) {
+        if (position >= limit) {
+          throw new ProtocolException("Truncated integer");
+        }
+        int b = block[position++] & 0xFF;
+        value += (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new ProtocolException("Integer too large");
+    }
+
+    private String readString() throws ProtocolException {
+      if (position >= limit) {
+        throw new ProtocolException("Missing string");
+      }
+      boolean huffman = (block[position] & 0x80) != 0;
+      int length = readInt(7);
+      if (length > limit - position) {
+        throw new ProtocolException("Truncated string");
+      }
+      String s = huffman ? decodeHuffman(block, position, length)
+          : new String(block, position, length, LATIN1);
+      position += length;
+      return s;
+    }
+  }
+
+  // Package-private for testing.
+  static String decodeHuffman(byte[] src, int offset, int length) throws ProtocolException {
+    // The shortest code is 5 bits long.
+    byte[] out = new byte[length * 8 / 5];
+    int count = 0;
+    int node = 0;
+    // The bits read since the last complete symbol, and whether they were all 1.
+    int pendingBits = 0;
+    boolean allOnes = true;
+    for (int i = offset; i < offset + length; ++i) {
+      int b = src[i] & 0xFF;
+      for (int shift = 7; shift >= 0; --shift) {
+        int bit = (b >>> shift) & 1;
+        int next = HUFFMAN_TREE[node][bit];
+        if (next == 0) {
+          throw new ProtocolException("Invalid Huffman code");
+        }
+        if (next < 0) {
+          out[count++] = (byte) (-1 - next);
+          node = 0;
+          pendingBits = 0;
+          allOnes = true;
+        } else {
+          node = next;
+          ++pendingBits;
+          allOnes &= bit == 1;
+        }
+      }
+    }
+    // Per RFC 7541 Section 5.2, the string must end with fewer than 8 bits of EOS padding.
+    if (pendingBits > 7 || !allOnes) {
+      throw new ProtocolException("Invalid Huffman padding");
+    }
+    return new String(out, 0, count, LATIN1);
+  }
+
+  /**
+   * Writes |value| as an HPACK integer, with the given prefix size, OR-ed into |flags|.
+   */
+  static void writeInt(BufferedSink sink, int value, int prefixBits, int flags)
+      throws IOException {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      sink.writeByte(flags | value);
+      return;
+    }
+    sink.writeByte(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      sink.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    sink.writeByte(value);
+  }
+
+  /**
+   * Writes a field from the static table.
+   */
+  static void writeIndexed(BufferedSink sink, int index) throws IOException {
+    writeInt(sink, index, 7, 0x80);
+  }
+
+  /**
+   * Writes a field as a literal without indexing, whose name is entry |nameIndex| of the static
+   * table.
+   */
+  static void writeLiteral(BufferedSink sink, int nameIndex, String value) throws IOException {
+    writeInt(sink, nameIndex, 4, 0);
+    writeInt(sink, value.length(), 7, 0);  // Not Huffman coded.
+    sink.writeString(value, LATIN1);
+  }
+}
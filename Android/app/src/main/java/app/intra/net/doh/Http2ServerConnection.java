@@ -0,0 +1,997 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.BuildConfig;
+import app.intra.net.dns.DnsUdpQuery;
+import app.intra.sys.LogWrapper;
+import app.intra.sys.SafeTimerTask;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * A DNS-over-HTTPS client that sends every query over one long-lived HTTP/2 connection, without
+ * OkHttp's per-call machinery.  The request headers are encoded once per connection, each query
+ * is written as a HEADERS frame and a DATA frame taken straight from the query, and responses are
+ * matched to queries by stream ID.  Queries that arrive while earlier ones are being written are
+ * sent together, in a single flush.
+ *
+ * Queries use POST, so there is no HTTP cache.  If the connection fails, the queries on it fail,
+ * and the next query opens a new connection.  HTTP/2 is negotiated with ALPN, which is only
+ * public on API 29 and later, so get() returns null on older versions.
+ */
+public class Http2ServerConnection implements ServerConnection {
+  // The class name is longer than Android's log tag length limit.
+  private static final String LOG_TAG = "Http2DOH";
+
+  private static final MediaType DNS_MESSAGE = MediaType.parse("application/dns-message");
+  private static final String USER_AGENT =
+      String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME);
+
+  private static final int CONNECT_TIMEOUT_MS = 3000;
+  // A query fails if it has no response after this long.  The same as OkHttp's read timeout.
+  static final int DEFAULT_READ_TIMEOUT_MS = 10000;
+  // How often to look for queries that have timed out.
+  private static final long SWEEP_INTERVAL_MS = 1000;
+
+  // Checks the connections for timeouts.  Shared by all connections.
+  private static final Timer timer = new Timer("Http2DOH", true);
+
+  // RFC 7540 constants.
+  private static final byte[] CONNECTION_PREFACE =
+      "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+  private static final int TYPE_DATA = 0x0;
+  private static final int TYPE_HEADERS = 0x1;
+  private static final int TYPE_RST_STREAM = 0x3;
+  private static final int TYPE_SETTINGS = 0x4;
+  private static final int TYPE_PUSH_PROMISE = 0x5;
+  private static final int TYPE_PING = 0x6;
+  private static final int TYPE_GOAWAY = 0x7;
+  private static final int TYPE_WINDOW_UPDATE = 0x8;
+  private static final int TYPE_CONTINUATION = 0x9;
+  private static final int FLAG_END_STREAM = 0x1;
+  private static final int FLAG_ACK = 0x1;
+  private static final int FLAG_END_HEADERS = 0x4;
+  private static final int FLAG_PADDED = 0x8;
+  private static final int FLAG_PRIORITY = 0x20;
+  private static final int SETTINGS_ENABLE_PUSH = 0x2;
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  private static final int ERROR_CANCEL = 0x8;
+  private static final int ERROR_REFUSED_STREAM = 0x7;
+  private static final int DEFAULT_WINDOW_SIZE = 65535;
+  private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+  // The limit on concurrent streams until the server's SETTINGS arrive.  RFC 7540 recommends that
+  // servers allow at least this many.
+  private static final int INITIAL_MAX_CONCURRENT_STREAMS = 100;
+  // Received data is acknowledged with a WINDOW_UPDATE once this much has accumulated.
+  private static final int WINDOW_UPDATE_THRESHOLD = DEFAULT_WINDOW_SIZE / 2;
+
+  /**
+   * Opens connections to the server.
+   */
+  interface Transport {
+    /**
+     * @return A socket connected to |address|, over which HTTP/2 has been negotiated.
+     */
+    Socket connect(InetAddress address) throws IOException;
+  }
+
+  /**
+   * Connects over TLS, negotiates HTTP/2 using ALPN, and verifies that the server's certificate
+   * matches the hostname.  Requires TlsSockets.supportsAlpn().
+   */
+  static class TlsTransport implements Transport {
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final TlsSessionCache tlsSessions;
+
+    /**
+     * @param tlsSessions May be null, in which case |socketFactory| is used.
+     */
+    TlsTransport(String host, int port, SSLSocketFactory socketFactory,
+        HostnameVerifier hostnameVerifier, TlsSessionCache tlsSessions) {
+      this.host = host;
+      this.port = port;
+      this.hostnameVerifier = hostnameVerifier;
+      this.tlsSessions = tlsSessions;
+      this.socketFactory = tlsSessions != null ? tlsSessions.getSocketFactory() : socketFactory;
+    }
+
+    @Override
+    public Socket connect(InetAddress address) throws IOException {
+      Socket rawSocket = new Socket();
+      try {
+        rawSocket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+        rawSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        SSLSocket socket = (SSLSocket) socketFactory.createSocket(rawSocket, host, port, true);
+        TlsSockets.configure(socket, host);
+        TlsSockets.setApplicationProtocols(socket, Protocol.HTTP_2.toString());
+        long handshakeStart = System.currentTimeMillis();
+        socket.startHandshake();
+        TlsSockets.verifyHostname(socket, host, hostnameVerifier);
+        if (tlsSessions != null) {
+          tlsSessions.recordHandshake(socket.getSession().getCreationTime(), handshakeStart);
+        }
+        if (!Protocol.HTTP_2.toString().equals(socket.getApplicationProtocol())) {
+          throw new ProtocolException("Server doesn't support HTTP/2");
+        }
+        rawSocket.setSoTimeout(0);
+        return socket;
+      } catch (IOException e) {
+        rawSocket.close();
+        throw e;
+      }
+    }
+  }
+
+  private final String url;
+  private final List<InetAddress> ips;
+  private final Transport transport;
+  private final int readTimeoutMs;
+  // The request headers, which are the same for every query except for content-length.
+  private final byte[] headerBlockPrefix;
+  // Attached to each Response, as the Resolver's Callback expects.
+  private final Request request;
+  // The current connection, or null if there is none.
+  private Session session = null;
+
+  /**
+   * @param ips The server's addresses.  The server name is not resolved.
+   * @param tlsSessions If non-null, TLS sessions are shared with other connections through this
+   *     cache.
+   * @return A connection, or null if the URL is invalid, |ips| is empty, or ALPN is unavailable.
+   */
+  public static Http2ServerConnection get(String url, Collection<InetAddress> ips,
+      TlsSessionCache tlsSessions) {
+    if (!TlsSockets.supportsAlpn()) {
+      return null;
+    }
+    URL parsedUrl;
+    try {
+      parsedUrl = new URL(url);
+    } catch (MalformedURLException e) {
+      Log.w(LOG_TAG, "Malformed URL: " + url);
+      return null;
+    }
+    if (!"https".equals(parsedUrl.getProtocol())) {
+      return null;
+    }
+    if (ips.isEmpty()) {
+      return null;
+    }
+    HttpUrl httpUrl = HttpUrl.get(url);
+    SSLSocketFactory socketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    return new Http2ServerConnection(url, ips,
+        new TlsTransport(httpUrl.host(), httpUrl.port(), socketFactory,
+            HttpsURLConnection.getDefaultHostnameVerifier(), tlsSessions),
+        DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  /**
+   * @param ips The server's addresses, tried in order.
+   * @param transport Opens connections to |ips|.
+   * @param readTimeoutMs How long to wait for each response.
+   */
+  Http2ServerConnection(String url, Collection<InetAddress> ips, Transport transport,
+      int readTimeoutMs) {
+    this.url = url;
+    this.ips = new ArrayList<>(ips);
+    this.transport = transport;
+    this.readTimeoutMs = readTimeoutMs;
+    HttpUrl httpUrl = HttpUrl.get(url);
+    request = new Request.Builder().url(httpUrl).build();
+
+    String authority = httpUrl.host();
+    if (httpUrl.port() != HttpUrl.defaultPort(httpUrl.scheme())) {
+      authority += ":" + httpUrl.port();
+    }
+    Buffer block = new Buffer();
+    try {
+      Hpack.writeIndexed(block, Hpack.METHOD_POST);
+      Hpack.writeIndexed(block, httpUrl.isHttps() ? Hpack.SCHEME_HTTPS : Hpack.SCHEME_HTTP);
+      Hpack.writeLiteral(block, Hpack.AUTHORITY, authority);
+      Hpack.writeLiteral(block, Hpack.PATH, httpUrl.encodedPath() +
+          (httpUrl.encodedQuery() != null ? "?" + httpUrl.encodedQuery() : ""));
+      Hpack.writeLiteral(block, Hpack.CONTENT_TYPE, DNS_MESSAGE.toString());
+      Hpack.writeLiteral(block, Hpack.ACCEPT, DNS_MESSAGE.toString());
+      Hpack.writeLiteral(block, Hpack.USER_AGENT, USER_AGENT);
+    } catch (IOException e) {
+      // Writes to a Buffer don't fail.
+      throw new AssertionError(e);
+    }
+    headerBlockPrefix = block.readByteArray();
+  }
+
+  @Override
+  public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+    // RFC 8484 Section 4.1: the ID should be zero.
+    data[0] = 0;
+    data[1] = 0;
+    submit(new Exchange(data, cb));
+  }
+
+  private void submit(Exchange exchange) {
+    Session current;
+    synchronized (this) {
+      if (session == null || !session.isAccepting()) {
+        session = new Session();
+        session.start();
+      }
+      current = session;
+    }
+    if (!current.enqueue(exchange)) {
+      // The session stopped accepting streams in the meantime.
+      submit(exchange);
+    }
+  }
+
+  // Called when |closed| will not accept any more queries.
+  private synchronized void onSessionClosed(Session closed) {
+    if (session == closed) {
+      session = null;
+    }
+  }
+
+  @Override
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * Opens a connection if there isn't one, or checks that the current one still works, so that
+   * the next query isn't delayed by a dead connection.
+   */
+  @Override
+  public void warmUp() {
+    Session current;
+    synchronized (this) {
+      if (session == null || !session.isAccepting()) {
+        session = new Session();
+        session.start();
+        return;
+      }
+      current = session;
+    }
+    current.requestPing();
+  }
+
+  /**
+   * Closes the connection.  Queries in flight on it will fail.
+   */
+  @Override
+  public void reset() {
+    Session current;
+    synchronized (this) {
+      current = session;
+      session = null;
+    }
+    if (current != null) {
+      current.fail(new IOException("Connection reset"));
+    }
+  }
+
+  /**
+   * The only background work is the session's timeout sweep, which stops when the session is
+   * closed, so this is the same as reset().
+   */
+  @Override
+  public void close() {
+    reset();
+  }
+
+  /**
+   * One query, and its stream once it has been sent.  Its Callback receives a null Call, because
+   * there is no OkHttp call to pass.
+   */
+  private class Exchange implements Hpack.Listener {
+    final byte[] data;
+    private final Callback cb;
+    // Set by the Session that sends this query.
+    int streamId = 0;
+    long sentTime = 0;
+
+    private int status = 0;
+    private String age = null;
+    private byte[] body = null;
+    private int bodyLength = 0;
+
+    // True once the Callback has been called.
+    private boolean finished = false;
+
+    Exchange(byte[] data, Callback cb) {
+      this.data = data;
+      this.cb = cb;
+    }
+
+    @Override
+    public void onHeader(String name, String value) {
+      if (":status".equals(name)) {
+        try {
+          status = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+          status = 0;
+        }
+      } else if ("age".equals(name)) {
+        age = value;
+      }
+    }
+
+    void readBody(BufferedSource source, int length) throws IOException {
+      if (body == null) {
+        body = new byte[length];
+      } else if (bodyLength + length > body.length) {
+        body = Arrays.copyOf(body, Math.max(bodyLength + length, body.length * 2));
+      }
+      readFully(source, body, bodyLength, length);
+      bodyLength += length;
+    }
+
+    // Returns true the first time it's called.
+    private synchronized boolean finish() {
+      if (finished) {
+        return false;
+      }
+      finished = true;
+      return true;
+    }
+
+    void complete(String serverIp) {
+      if (!finish()) {
+        return;
+      }
+      if (status == 0) {
+        cb.onFailure(null, new ProtocolException("Response has no status"));
+        return;
+      }
+      byte[] content = body == null ? new byte[0]
+          : bodyLength == body.length ? body : Arrays.copyOf(body, bodyLength);
+      Response.Builder builder = new Response.Builder()
+          .request(request)
+          .protocol(Protocol.HTTP_2)
+          .code(status)
+          .message("")
+          .header(IpTagInterceptor.HEADER_NAME, serverIp)
+          .body(ResponseBody.create(DNS_MESSAGE, content));
+      if (age != null) {
+        builder.header("Age", age);
+      }
+      try {
+        cb.onResponse(null, builder.build());
+      } catch (IOException e) {
+        LogWrapper.logException(e);
+      }
+    }
+
+    void fail(IOException e) {
+      if (finish()) {
+        cb.onFailure(null, e);
+      }
+    }
+  }
+
+  /**
+   * One HTTP/2 connection.  A writer thread opens the connection and writes the queries, and a
+   * reader thread reads the responses.  Thread-safe.
+   */
+  private class Session {
+    // Queries waiting to be written.  Guarded by this.
+    private final ArrayDeque<Exchange> queue = new ArrayDeque<>();
+    // Queries that have been written, by stream ID.  Guarded by this.
+    private final Map<Integer, Exchange> streams = new HashMap<>();
+    // False once the session has failed, been reset, or received GOAWAY.  Guarded by this.
+    private boolean accepting = true;
+    // True once the socket has been closed.  Guarded by this.
+    private boolean closed = false;
+    private boolean pingRequested = false;
+    private int nextStreamId = 1;
+    // The server's limits.  Guarded by this.
+    private int maxConcurrentStreams = INITIAL_MAX_CONCURRENT_STREAMS;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    // Read by the writer without holding the lock.
+    private volatile int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private Socket socket = null;
+    private String serverIp = null;
+    private BufferedSink sink = null;
+    private BufferedSource source = null;
+    private SafeTimerTask sweepTask = null;
+    // When the last frame was received.
+    private volatile long lastFrameTime = 0;
+
+    // Used only by the reader thread.
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private byte[] headerBlock = new byte[256];
+    private int unacknowledgedBytes = 0;
+
+    void start() {
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            connect();
+          } catch (IOException e) {
+            LogWrapper.log(Log.WARN, LOG_TAG, "Connection failed: " + e);
+            fail(e);
+            return;
+          }
+          new Thread(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                readLoop();
+              } catch (IOException e) {
+                fail(e);
+              }
+            }
+          }, "Http2DOH reader").start();
+          try {
+            writeLoop();
+          } catch (IOException e) {
+            fail(e);
+          } catch (InterruptedException e) {
+            fail(new IOException(e));
+          }
+        }
+      }, "Http2DOH writer").start();
+    }
+
+    synchronized boolean isAccepting() {
+      return accepting;
+    }
+
+    /**
+     * @return False if this session doesn't accept new queries.
+     */
+    boolean enqueue(Exchange exchange) {
+      synchronized (this) {
+        if (!accepting) {
+          return false;
+        }
+        if (exchange.data.length <= peerInitialWindowSize) {
+          queue.add(exchange);
+          notifyAll();
+          return true;
+        }
+      }
+      exchange.fail(new ProtocolException("Query exceeds the server's flow control window"));
+      return true;
+    }
+
+    void requestPing() {
+      synchronized (this) {
+        pingRequested = true;
+        notifyAll();
+      }
+    }
+
+    private void connect() throws IOException {
+      IOException lastException = new IOException("No addresses");
+      Socket connected = null;
+      for (InetAddress ip : ips) {
+        try {
+          connected = transport.connect(ip);
+          serverIp = ip.getHostAddress();
+          break;
+        } catch (IOException e) {
+          lastException = e;
+        }
+      }
+      if (connected == null) {
+        throw lastException;
+      }
+      synchronized (this) {
+        if (closed) {
+          connected.close();
+          throw new IOException("Connection reset");
+        }
+        socket = connected;
+      }
+      lastFrameTime = SystemClock.elapsedRealtime();
+      source = Okio.buffer(Okio.source(socket.getInputStream()));
+      sink = Okio.buffer(Okio.sink(socket.getOutputStream()));
+      synchronized (sink) {
+        sink.write(CONNECTION_PREFACE);
+        writeFrameHeader(6, TYPE_SETTINGS, 0, 0);
+        sink.writeShort(SETTINGS_ENABLE_PUSH);
+        sink.writeInt(0);
+        sink.flush();
+      }
+      synchronized (this) {
+        if (!closed) {
+          sweepTask = new SafeTimerTask() {
+            @Override
+            protected void runSafely() {
+              sweep();
+            }
+          };
+          timer.schedule(sweepTask, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS);
+        }
+      }
+    }
+
+    // Returns true if the next query in the queue can be sent now.
+    private boolean canSend() {
+      Exchange next = queue.peek();
+      return next != null && streams.size() < maxConcurrentStreams &&
+          sendWindow >= next.data.length;
+    }
+
+    private void writeLoop() throws IOException, InterruptedException {
+      List<Exchange> batch = new ArrayList<>();
+      while (true) {
+        boolean ping;
+        synchronized (this) {
+          while (!closed && !pingRequested && !canSend()) {
+            wait();
+          }
+          if (closed) {
+            return;
+          }
+          ping = pingRequested;
+          pingRequested = false;
+          while (canSend() && nextStreamId > 0) {
+            Exchange exchange = queue.poll();
+            exchange.streamId = nextStreamId;
+            nextStreamId += 2;
+            streams.put(exchange.streamId, exchange);
+            sendWindow -= exchange.data.length;
+            batch.add(exchange);
+          }
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (sink) {
+          if (ping) {
+            writeFrameHeader(8, TYPE_PING, 0, 0);
+            sink.writeLong(now);
+          }
+          for (Exchange exchange : batch) {
+            exchange.sentTime = now;
+            writeQuery(exchange);
+          }
+          sink.flush();
+        }
+        batch.clear();
+        if (nextStreamId < 0) {
+          // Stream IDs are exhausted, so the remaining queries need a new connection.
+          retire(Integer.MAX_VALUE);
+        }
+      }
+    }
+
+    // Must hold the sink lock.
+    private void writeFrameHeader(int length, int type, int flags, int streamId)
+        throws IOException {
+      sink.writeByte((length >>> 16) & 0xFF);
+      sink.writeByte((length >>> 8) & 0xFF);
+      sink.writeByte(length & 0xFF);
+      sink.writeByte(type);
+      sink.writeByte(flags);
+      sink.writeInt(streamId & 0x7FFFFFFF);
+    }
+
+    // Must hold the sink lock.
+    private void writeQuery(Exchange exchange) throws IOException {
+      int length = exchange.data.length;
+      int digits = 1;
+      for (int n = length; n >= 10; n /= 10) {
+        ++digits;
+      }
+      // content-length is a literal without indexing, with a two-byte name index and a one-byte
+      // string length.
+      final int CONTENT_LENGTH_OVERHEAD = 3;
+      writeFrameHeader(headerBlockPrefix.length + CONTENT_LENGTH_OVERHEAD + digits,
+          TYPE_HEADERS, FLAG_END_HEADERS, exchange.streamId);
+      sink.write(headerBlockPrefix);
+      Hpack.writeInt(sink, Hpack.CONTENT_LENGTH, 4, 0);
+      sink.writeByte(digits);
+      sink.writeDecimalLong(length);
+
+      int offset = 0;
+      do {
+        int frameLength = Math.min(length - offset, peerMaxFrameSize);
+        boolean last = offset + frameLength == length;
+        writeFrameHeader(frameLength, TYPE_DATA, last ? FLAG_END_STREAM : 0, exchange.streamId);
+        sink.write(exchange.data, offset, frameLength);
+        offset += frameLength;
+      } while (offset < length);
+    }
+
+    private void writeControlFrame(int type, int flags, int streamId, int payload)
+        throws IOException {
+      synchronized (sink) {
+        writeFrameHeader(4, type, flags, streamId);
+        sink.writeInt(payload);
+        sink.flush();
+      }
+    }
+
+    private void readLoop() throws IOException {
+      while (true) {
+        int length = (source.readByte() & 0xFF) << 16 | (source.readShort() & 0xFFFF);
+        int type = source.readByte() & 0xFF;
+        int flags = source.readByte() & 0xFF;
+        int streamId = source.readInt() & 0x7FFFFFFF;
+        lastFrameTime = SystemClock.elapsedRealtime();
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+          throw new ProtocolException("Frame too large: " + length);
+        }
+        switch (type) {
+          case TYPE_DATA:
+            readData(length, flags, streamId);
+            break;
+          case TYPE_HEADERS:
+            readHeaders(length, flags, streamId);
+            break;
+          case TYPE_RST_STREAM:
+            onReset(streamId, source.readInt());
+            break;
+          case TYPE_SETTINGS:
+            readSettings(length, flags);
+            break;
+          case TYPE_PING:
+            if ((flags & FLAG_ACK) == 0) {
+              long payload = source.readLong();
+              synchronized (sink) {
+                writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+                sink.writeLong(payload);
+                sink.flush();
+              }
+            } else {
+              source.skip(length);
+            }
+            break;
+          case TYPE_GOAWAY:
+            int lastStreamId = source.readInt() & 0x7FFFFFFF;
+            int errorCode = source.readInt();
+            source.skip(length - 8);
+            LogWrapper.log(Log.INFO, LOG_TAG, "GOAWAY: " + errorCode);
+            retire(lastStreamId);
+            break;
+          case TYPE_WINDOW_UPDATE:
+            long increment = source.readInt() & 0x7FFFFFFF;
+            if (streamId == 0) {
+              synchronized (this) {
+                sendWindow += increment;
+                notifyAll();
+              }
+            }
+            break;
+          case TYPE_PUSH_PROMISE:
+          case TYPE_CONTINUATION:
+            throw new ProtocolException("Unexpected frame type: " + type);
+          default:
+            // PRIORITY, and extension frames.
+            source.skip(length);
+        }
+      }
+    }
+
+    private synchronized Exchange getStream(int streamId) {
+      return streams.get(streamId);
+    }
+
+    // Removes the stream, and wakes the writer, which may be waiting for a free stream.
+    private synchronized Exchange removeStream(int streamId) {
+      Exchange exchange = streams.remove(streamId);
+      if (exchange != null) {
+        notifyAll();
+      }
+      return exchange;
+    }
+
+    private void readData(int length, int flags, int streamId) throws IOException {
+      int padding = (flags & FLAG_PADDED) != 0 ? source.readByte() & 0xFF : 0;
+      int dataLength = length - padding - ((flags & FLAG_PADDED) != 0 ? 1 : 0);
+      if (dataLength < 0) {
+        throw new ProtocolException("Invalid padding");
+      }
+      Exchange exchange = getStream(streamId);
+      if (exchange != null) {
+        exchange.readBody(source, dataLength);
+      } else {
+        // The stream was canceled or timed out.
+        source.skip(dataLength);
+      }
+      source.skip(padding);
+
+      unacknowledgedBytes += length;
+      if (unacknowledgedBytes >= WINDOW_UPDATE_THRESHOLD) {
+        writeControlFrame(TYPE_WINDOW_UPDATE, 0, 0, unacknowledgedBytes);
+        unacknowledgedBytes = 0;
+      }
+      if ((flags & FLAG_END_STREAM) != 0) {
+        onStreamEnd(streamId);
+      }
+    }
+
+    private void readHeaders(int length, int flags, int streamId) throws IOException {
+      int padding = 0;
+      if ((flags & FLAG_PADDED) != 0) {
+        padding = source.readByte() & 0xFF;
+        --length;
+      }
+      if ((flags & FLAG_PRIORITY) != 0) {
+        final int PRIORITY_LENGTH = 5;
+        source.skip(PRIORITY_LENGTH);
+        length -= PRIORITY_LENGTH;
+      }
+      length -= padding;
+      if (length < 0) {
+        throw new ProtocolException("Invalid padding");
+      }
+      int blockLength = readHeaderFragment(0, length);
+      source.skip(padding);
+      boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+      while (!endHeaders) {
+        int fragmentLength = (source.readByte() & 0xFF) << 16 | (source.readShort() & 0xFFFF);
+        int type = source.readByte() & 0xFF;
+        int continuationFlags = source.readByte() & 0xFF;
+        int continuationStreamId = source.readInt() & 0x7FFFFFFF;
+        if (type != TYPE_CONTINUATION || continuationStreamId != streamId ||
+            fragmentLength > DEFAULT_MAX_FRAME_SIZE) {
+          throw new ProtocolException("Expected CONTINUATION");
+        }
+        blockLength = readHeaderFragment(blockLength, fragmentLength);
+        endHeaders = (continuationFlags & FLAG_END_HEADERS) != 0;
+      }
+
+      Exchange exchange = getStream(streamId);
+      // The block must be decoded even if the stream is gone, to keep the dynamic table in sync.
+      decoder.decode(headerBlock, blockLength, exchange != null ? exchange : IGNORE_HEADERS);
+      if ((flags & FLAG_END_STREAM) != 0) {
+        onStreamEnd(streamId);
+      }
+    }
+
+    // Appends |length| bytes to |headerBlock| at |offset|.  Returns the new length.
+    private int readHeaderFragment(int offset, int length) throws IOException {
+      final int MAX_HEADER_BLOCK = 64 * 1024;
+      if (offset + length > MAX_HEADER_BLOCK) {
+        throw new ProtocolException("Header block too large");
+      }
+      if (offset + length > headerBlock.length) {
+        headerBlock = Arrays.copyOf(headerBlock, Math.max(offset + length, headerBlock.length * 2));
+      }
+      readFully(source, headerBlock, offset, length);
+      return offset + length;
+    }
+
+    private void readSettings(int length, int flags) throws IOException {
+      if ((flags & FLAG_ACK) != 0) {
+        source.skip(length);
+        return;
+      }
+      final int SETTING_LENGTH = 6;
+      if (length % SETTING_LENGTH != 0) {
+        throw new ProtocolException("Invalid SETTINGS length: " + length);
+      }
+      for (int i = 0; i < length; i += SETTING_LENGTH) {
+        int id = source.readShort() & 0xFFFF;
+        int value = source.readInt();
+        synchronized (this) {
+          if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+            maxConcurrentStreams = value;
+          } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+            peerInitialWindowSize = value;
+          } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+            peerMaxFrameSize = value;
+          }
+          notifyAll();
+        }
+      }
+      synchronized (sink) {
+        writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+        sink.flush();
+      }
+    }
+
+    private void onStreamEnd(int streamId) {
+      Exchange exchange = removeStream(streamId);
+      if (exchange != null) {
+        exchange.complete(serverIp);
+      }
+      closeIfDone();
+    }
+
+    private void onReset(int streamId, int errorCode) {
+      Exchange exchange = removeStream(streamId);
+      if (exchange == null) {
+        return;
+      }
+      if (errorCode == ERROR_REFUSED_STREAM) {
+        // The server didn't process the query, so it's safe to send it again.
+        exchange.streamId = 0;
+        submit(exchange);
+      } else {
+        exchange.fail(new IOException("Stream reset: " + errorCode));
+      }
+      closeIfDone();
+    }
+
+    // Fails queries that have waited too long for a response.  If nothing at all has been
+    // received since the oldest of them was sent, the connection is presumed dead.
+    private void sweep() {
+      long now = SystemClock.elapsedRealtime();
+      List<Exchange> expired = new ArrayList<>();
+      synchronized (this) {
+        Iterator<Exchange> it = streams.values().iterator();
+        while (it.hasNext()) {
+          Exchange exchange = it.next();
+          if (now - exchange.sentTime >= readTimeoutMs) {
+            it.remove();
+            expired.add(exchange);
+          }
+        }
+        if (!expired.isEmpty()) {
+          notifyAll();
+        }
+      }
+      boolean dead = false;
+      for (Exchange exchange : expired) {
+        dead |= lastFrameTime < exchange.sentTime;
+        exchange.fail(new SocketTimeoutException("No response"));
+      }
+      if (dead) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "Closing unresponsive connection");
+        fail(new SocketTimeoutException("Connection timed out"));
+        return;
+      }
+      for (Exchange exchange : expired) {
+        try {
+          writeControlFrame(TYPE_RST_STREAM, 0, exchange.streamId, ERROR_CANCEL);
+        } catch (IOException e) {
+          fail(e);
+          return;
+        }
+      }
+      closeIfDone();
+    }
+
+    // Stops accepting queries.  Queries that the server won't process, i.e. those that haven't
+    // been sent or whose stream ID is after |lastStreamId|, are moved to a new session.
+    private void retire(int lastStreamId) {
+      List<Exchange> moved = new ArrayList<>();
+      synchronized (this) {
+        accepting = false;
+        moved.addAll(queue);
+        queue.clear();
+        Iterator<Exchange> it = streams.values().iterator();
+        while (it.hasNext()) {
+          Exchange exchange = it.next();
+          if (exchange.streamId > lastStreamId) {
+            it.remove();
+            moved.add(exchange);
+          }
+        }
+      }
+      onSessionClosed(this);
+      for (Exchange exchange : moved) {
+        exchange.streamId = 0;
+        submit(exchange);
+      }
+      closeIfDone();
+    }
+
+    // Closes the connection once it has been retired and has no more queries in flight.
+    private void closeIfDone() {
+      synchronized (this) {
+        if (accepting || !streams.isEmpty() || !queue.isEmpty()) {
+          return;
+        }
+      }
+      close();
+    }
+
+    /**
+     * Closes the connection, and fails every query that hasn't received a response.
+     */
+    void fail(IOException e) {
+      List<Exchange> failed = new ArrayList<>();
+      synchronized (this) {
+        accepting = false;
+        failed.addAll(queue);
+        queue.clear();
+        failed.addAll(streams.values());
+        streams.clear();
+      }
+      onSessionClosed(this);
+      close();
+      for (Exchange exchange : failed) {
+        exchange.fail(e);
+      }
+    }
+
+    private void close() {
+      Socket toClose;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        accepting = false;
+        toClose = socket;
+        if (sweepTask != null) {
+          sweepTask.cancel();
+        }
+        notifyAll();
+      }
+      if (toClose != null) {
+        try {
+          toClose.close();
+        } catch (IOException e) {
+          // Nothing to do.
+        }
+      }
+    }
+  }
+
+  // Reads exactly |length| bytes into |dst| at |offset|.
+  private static void readFully(BufferedSource source, byte[] dst, int offset, int length)
+      throws IOException {
+    while (length > 0) {
+      int read = source.read(dst, offset, length);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+
+  // Receives the headers of streams that are no longer outstanding.
+  private static final Hpack.Listener IGNORE_HEADERS = new Hpack.Listener() {
+    @Override
+    public void onHeader(String name, String value) {}
+  };
+}
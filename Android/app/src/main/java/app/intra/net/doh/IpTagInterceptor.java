@@ -15,6 +15,7 @@ limitations under the License.
 */
 package app.intra.net.doh;
 
+import android.os.SystemClock;
 import java.io.IOException;
 import java.net.InetAddress;
 import okhttp3.Connection;
@@ -23,12 +24,26 @@ import okhttp3.Response;
 
 /**
  * This is an OkHttp3 Network Interceptor that marks each response with the IP address of the
- * server that sent it.
+ * server that sent it.  Optionally, it also records the time to first byte for each server IP.
  */
 public class IpTagInterceptor implements Interceptor {
 
   public static final String HEADER_NAME = "X-OkHttp3-Server-IP";
 
+  private final EndpointStats stats;
+
+  public IpTagInterceptor() {
+    this(null);
+  }
+
+  /**
+   * @param stats If non-null, receives the time from sending each request to receiving the
+   *     response headers, keyed by server IP.
+   */
+  public IpTagInterceptor(EndpointStats stats) {
+    this.stats = stats;
+  }
+
   @Override
   public Response intercept(Interceptor.Chain chain) throws IOException {
     Connection connection = chain.connection();
@@ -36,9 +51,13 @@ public class IpTagInterceptor implements Interceptor {
     if (connection != null) {
       server = connection.route().socketAddress().getAddress();
     }
+    long start = SystemClock.elapsedRealtime();
     Response response = chain.proceed(chain.request());
 
     if (server != null) {
+      if (stats != null) {
+        stats.recordTtfb(server.getHostAddress(), SystemClock.elapsedRealtime() - start);
+      }
       return response.newBuilder()
           .header(HEADER_NAME, server.getHostAddress())
           .build();
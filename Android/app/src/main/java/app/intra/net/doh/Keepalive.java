@@ -0,0 +1,141 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+/**
+ * Schedules keepalive pings that stop an idle DoH connection from being silently dropped by a NAT
+ * or firewall, so that the next query doesn't have to wait for a new connection.
+ *
+ * Pings are only sent while the device is active, i.e. within ACTIVE_WINDOW_MS of the last query,
+ * and only when the connection has been idle for the current interval.  The interval adapts to
+ * the network: it grows after each ping that finds the connection still open, and shrinks after
+ * a ping that has to open a new connection, because that means the old one was dropped.
+ *
+ * All times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+public class Keepalive {
+  // Marks keepalive requests, so that they can be told apart from queries.
+  static final Object TAG = new Object();
+
+  static final long INITIAL_INTERVAL_MS = 30 * 1000;
+  static final long MIN_INTERVAL_MS = 15 * 1000;
+  static final long MAX_INTERVAL_MS = 4 * 60 * 1000;
+  // Pings stop this long after the last query.
+  static final long ACTIVE_WINDOW_MS = 5 * 60 * 1000;
+  // Weight of each new sample in the RTT moving average.
+  private static final double ALPHA = 0.3;
+
+  private long intervalMs = INITIAL_INTERVAL_MS;
+  // The interval must stay below this, because a ping after this interval found the connection
+  // dropped.  Reset when the network changes.
+  private long ceilingMs = MAX_INTERVAL_MS;
+  private long lastQuery = -1;
+  private long lastPing = -1;
+
+  private int pings = 0;
+  private int coldPings = 0;
+  private long lastRttMs = -1;
+  private double averageRttMs = -1;
+
+  /**
+   * Called for every query.
+   */
+  public synchronized void onQuery(long now) {
+    lastQuery = now;
+  }
+
+  /**
+   * Called when a ping, or a warm-up request, is sent.
+   */
+  public synchronized void onPingSent(long now) {
+    lastPing = now;
+  }
+
+  /**
+   * Called when the network changes, because the new network's NAT timeout is unknown.
+   */
+  public synchronized void onNetworkChanged() {
+    intervalMs = INITIAL_INTERVAL_MS;
+    ceilingMs = MAX_INTERVAL_MS;
+  }
+
+  /**
+   * @return How long to wait before the next ping, 0 if one is due now, or -1 if the device is
+   *     idle and no ping should be scheduled.
+   */
+  public synchronized long getDelay(long now) {
+    if (lastQuery < 0 || now - lastQuery > ACTIVE_WINDOW_MS) {
+      return -1;
+    }
+    long lastTraffic = Math.max(lastQuery, lastPing);
+    return Math.max(lastTraffic + intervalMs - now, 0);
+  }
+
+  /**
+   * @param cold True if the ping had to open a new connection
+   * @param rttMs The ping's round trip time.  Only meaningful if |cold| is false.
+   */
+  public synchronized void onPingResult(boolean cold, long rttMs) {
+    ++pings;
+    if (cold) {
+      ++coldPings;
+      ceilingMs = Math.max(intervalMs - 1, MIN_INTERVAL_MS);
+      intervalMs = Math.max(intervalMs / 2, MIN_INTERVAL_MS);
+      return;
+    }
+    lastRttMs = rttMs;
+    averageRttMs = averageRttMs < 0 ? rttMs : ALPHA * rttMs + (1 - ALPHA) * averageRttMs;
+    intervalMs = Math.min(intervalMs * 2, ceilingMs);
+  }
+
+  /**
+   * Called when a ping fails.  The connection is presumed dropped.
+   */
+  public void onPingFailed() {
+    onPingResult(true, -1);
+  }
+
+  public synchronized long getIntervalMs() {
+    return intervalMs;
+  }
+
+  public synchronized int getPingCount() {
+    return pings;
+  }
+
+  /**
+   * @return The number of pings that found the connection closed.
+   */
+  public synchronized int getColdPingCount() {
+    return coldPings;
+  }
+
+  /**
+   * @return The round trip time of the last ping over a warm connection, or -1 if none.
+   */
+  public synchronized long getLastPingRttMs() {
+    return lastRttMs;
+  }
+
+  /**
+   * @return The moving average of the ping round trip time, or -1 if there have been no pings.
+   */
+  public synchronized double getAveragePingRttMs() {
+    return averageRttMs;
+  }
+}
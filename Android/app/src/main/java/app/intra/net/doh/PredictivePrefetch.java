@@ -0,0 +1,194 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Learns which names are queried together, and decides which of a name's likely successors to
+ * prefetch into the cache when it is queried.  Queries are recorded when they arrive, so the model
+ * sees them in the order that the client sent them.  Prefetches are limited to MAX_PER_WINDOW per
+ * WINDOW_MS.
+ *
+ * A prefetch is a correct prediction if a client sends the same question within USE_WINDOW_MS.
+ * The latency it saved is the head start that it had on the client's query, up to the time that
+ * the prefetch itself took.
+ *
+ * All times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+public class PredictivePrefetch {
+  static final int MAX_PER_WINDOW = 30;
+  static final long WINDOW_MS = 60 * 1000;
+  static final long USE_WINDOW_MS = 10 * 1000;
+
+  // A prefetch awaiting the client's query.
+  private static class Pending {
+    final long sent;
+    // Time of the prefetch's result, or -1 if it is still in flight.
+    long completed = -1;
+    boolean succeeded = false;
+
+    Pending(long sent) {
+      this.sent = sent;
+    }
+  }
+
+  private final CooccurrenceModel model = new CooccurrenceModel();
+  // Insertion-ordered, so iteration starts at the oldest prefetch.
+  private final LinkedHashMap<String, Pending> outstanding = new LinkedHashMap<>();
+  private long windowStart = 0;
+  private int prefetchesInWindow = 0;
+
+  private long prefetches = 0;
+  private long rateLimited = 0;
+  private long correct = 0;
+  private long incorrect = 0;
+  private long savedMs = 0;
+
+  private static String makeKey(String name, short type) {
+    return name + "/" + type;
+  }
+
+  // Counts prefetches that went unused for USE_WINDOW_MS as incorrect predictions.
+  private void expire(long now) {
+    Iterator<Pending> it = outstanding.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next().sent < USE_WINDOW_MS) {
+        break;
+      }
+      it.remove();
+      ++incorrect;
+    }
+  }
+
+  /**
+   * Records a client query when it arrives, which trains the model and may confirm an earlier
+   * prediction.
+   */
+  public synchronized void recordQuery(String name, short type, long now) {
+    expire(now);
+    model.record(name, now);
+    Pending pending = outstanding.remove(makeKey(name, type));
+    if (pending == null) {
+      return;
+    }
+    ++correct;
+    if (pending.completed >= 0 && !pending.succeeded) {
+      // The client's query had to be sent upstream anyway.
+      return;
+    }
+    long headStart = now - pending.sent;
+    if (pending.completed >= 0) {
+      headStart = Math.min(headStart, pending.completed - pending.sent);
+    }
+    savedMs += Math.max(headStart, 0);
+  }
+
+  /**
+   * @return The names that are likely to be queried soon after |name|, most likely first.
+   */
+  public List<String> getPredictions(String name) {
+    return model.predict(name);
+  }
+
+  /**
+   * Consumes one unit of the rate limit, if available, and records the prefetch.
+   * @return True if the caller should prefetch this question now.
+   */
+  public synchronized boolean tryPrefetch(String name, short type, long now) {
+    expire(now);
+    String key = makeKey(name, type);
+    if (outstanding.containsKey(key)) {
+      return false;
+    }
+    if (now - windowStart >= WINDOW_MS) {
+      windowStart = now;
+      prefetchesInWindow = 0;
+    }
+    if (prefetchesInWindow >= MAX_PER_WINDOW) {
+      ++rateLimited;
+      return false;
+    }
+    ++prefetchesInWindow;
+    ++prefetches;
+    outstanding.put(key, new Pending(now));
+    return true;
+  }
+
+  /**
+   * Undoes tryPrefetch(), for a prefetch that joined an identical query already in flight, such as
+   * the client's own.  It is not counted as a prediction, and doesn't use up the rate limit.
+   */
+  public synchronized void withdraw(String name, short type) {
+    if (outstanding.remove(makeKey(name, type)) == null) {
+      return;
+    }
+    --prefetches;
+    if (prefetchesInWindow > 0) {
+      --prefetchesInWindow;
+    }
+  }
+
+  /**
+   * Records the result of a prefetch started by tryPrefetch().
+   */
+  public synchronized void onPrefetchResult(String name, short type, boolean succeeded,
+      long now) {
+    Pending pending = outstanding.get(makeKey(name, type));
+    if (pending != null && pending.completed < 0) {
+      pending.completed = now;
+      pending.succeeded = succeeded;
+    }
+  }
+
+  public synchronized long getPrefetchCount() {
+    return prefetches;
+  }
+
+  /**
+   * @return The number of predictions that were not prefetched because of the rate limit.
+   */
+  public synchronized long getRateLimitedCount() {
+    return rateLimited;
+  }
+
+  public synchronized long getCorrectCount() {
+    return correct;
+  }
+
+  public synchronized long getIncorrectCount() {
+    return incorrect;
+  }
+
+  /**
+   * @return The fraction of prefetches with a known outcome that the client went on to query.
+   */
+  public synchronized double getPrecision() {
+    long outcomes = correct + incorrect;
+    return outcomes == 0 ? 0 : (double) correct / outcomes;
+  }
+
+  /**
+   * @return The total latency that correct predictions saved clients, in milliseconds.
+   */
+  public synchronized long getSavedLatencyMs() {
+    return savedMs;
+  }
+}
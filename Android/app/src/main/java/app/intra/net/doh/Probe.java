@@ -15,33 +15,30 @@ limitations under the License.
 */
 package app.intra.net.doh;
 
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import app.intra.net.dns.DnsUdpQuery;
+import app.intra.sys.SafeTimerTask;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
 import okhttp3.Call;
 import okhttp3.Response;
 
 /**
- * Implements an asynchronous check to determine whether a DOH server is working.  Each instance can
- * only be used once.
+ * Measures a DOH server by sending it a ProbeSuite of queries, one at a time, over a single
+ * connection.  The result separates the latency of the first query, which includes connection
+ * setup, from the latency distribution of the rest.  Each instance can only be used once.
  */
 class Probe extends Thread {
-  private static final byte[] QUERY_DATA = {
-      0, 0,  // [0-1]   query ID
-      1, 0,  // [2-3]   flags, RD=1
-      0, 1,  // [4-5]   QDCOUNT (number of queries) = 1
-      0, 0,  // [6-7]   ANCOUNT (number of answers) = 0
-      0, 0,  // [8-9]   NSCOUNT (number of authoritative answers) = 0
-      0, 0,  // [10-11] ARCOUNT (number of additional records) = 0
-      // Start of first query
-      7, 'y', 'o', 'u', 't', 'u', 'b', 'e',
-      3, 'c', 'o', 'm',
-      0,  // null terminator of FQDN (DNS root)
-      0, 1,  // QTYPE = A
-      0, 1   // QCLASS = IN (Internet)
-  };
-
-  private static final DnsUdpQuery QUERY = DnsUdpQuery.fromUdpBody(QUERY_DATA);
+  // A query that hasn't been answered after this long counts as failed.
+  static final long QUERY_TIMEOUT_MS = 5000;
+
+  // Fires query timeouts.  Shared by all probes.
+  private static final Timer timer = new Timer("Probe", true);
 
   enum Status { NEW, RUNNING, SUCCEEDED, FAILED }
   private Status status = Status.NEW;
@@ -53,18 +50,42 @@ class Probe extends Thread {
 
   private final ServerConnectionFactory factory;
   private final String url;
+  private final ProbeSuite suite;
   private final Callback callback;
+  // Varies the case pattern of the queries, so that they miss the HTTP cache.
+  private final int salt = new Random().nextInt();
+  // The connection used by this probe, or null if it hasn't been made yet.  Guarded by |this|.
+  private ServerConnection conn = null;
+  private boolean canceled = false;
+
+  // Measurements, guarded by |this|.
+  private long coldLatencyMs = -1;
+  private final List<Long> warmLatenciesMs = new ArrayList<>();
+  private int queries = 0;
+  private int failures = 0;
+  // Null until the probe has finished.
+  private ProbeResult result = null;
 
   /**
-   * Creates a Probe.  Call start() to run the probe asynchronously.
+   * Creates a Probe that sends a single query.  Call start() to run the probe asynchronously.
    * @param factory This factory is used exactly once, to connect to the specified URL.
    * @param url The URL of the DOH server.
    * @param callback A callback indicating whether the connection succeeded or failed.  Runs on an
    *   arbitrary thread.
    */
   Probe(ServerConnectionFactory factory, String url, Callback callback) {
+    this(factory, url, ProbeSuite.REACHABILITY, callback);
+  }
+
+  /**
+   * @param suite The queries to send.
+   * @param callback Called once the suite has finished.  onSuccess() means that the result is
+   *   usable.
+   */
+  Probe(ServerConnectionFactory factory, String url, ProbeSuite suite, Callback callback) {
     this.factory = factory;
     this.url = url;
+    this.suite = suite;
     this.callback = callback;
   }
 
@@ -76,17 +97,140 @@ class Probe extends Thread {
     status = s;
   }
 
-  private class QueryCallback implements okhttp3.Callback {
+  /**
+   * @return The connection that this probe made, or null if it hasn't made one.
+   */
+  synchronized ServerConnection getConnection() {
+    return conn;
+  }
+
+  /**
+   * @return The measurements, or null if the probe hasn't finished.
+   */
+  synchronized ProbeResult getResult() {
+    return result;
+  }
+
+  /**
+   * Stops this probe, and closes its connection, now or as soon as it is made.  Used once the
+   * probe can no longer win.
+   */
+  void cancel() {
+    ServerConnection toClose;
+    synchronized (this) {
+      canceled = true;
+      toClose = conn;
+    }
+    interrupt();
+    if (toClose != null) {
+      toClose.close();
+    }
+  }
+
+  // Handles the outcome of the query at |index|, which is reported exactly once: by the server,
+  // or by the timeout.
+  private class QueryCallback extends SafeTimerTask implements okhttp3.Callback {
+    private final int index;
+    private final long startTime = SystemClock.elapsedRealtime();
+    // Guarded by |this|.
+    private boolean done = false;
+
+    QueryCallback(int index) {
+      this.index = index;
+    }
+
+    // Returns true the first time that it is called.
+    private synchronized boolean markDone() {
+      boolean first = !done;
+      done = true;
+      return first;
+    }
+
     @Override
-    public void onFailure(@NonNull Call call, @NonNull IOException e) {
-      setStatus(Status.FAILED);
-      callback.onFailure();
+    protected void runSafely() {
+      if (markDone()) {
+        onQueryDone(index, -1);
+      }
+    }
+
+    @Override
+    public void onFailure(@Nullable Call call, @NonNull IOException e) {
+      if (markDone()) {
+        // Cancels the timeout.
+        cancel();
+        onQueryDone(index, -1);
+      }
     }
 
     @Override
-    public void onResponse(@NonNull Call call, @NonNull Response response) {
+    public void onResponse(@Nullable Call call, @NonNull Response response) {
+      boolean answered = false;
+      try {
+        answered = response.isSuccessful() && isAnswer(response.body().bytes());
+      } catch (IOException e) {
+        // Not answered.
+      } finally {
+        response.close();
+      }
+      if (markDone()) {
+        // Cancels the timeout.
+        cancel();
+        onQueryDone(index, answered ? SystemClock.elapsedRealtime() - startTime : -1);
+      }
+    }
+  }
+
+  // True if |response| is a DNS response that doesn't report a server failure.
+  private static boolean isAnswer(byte[] response) {
+    final int SERVFAIL = 2;
+    return response.length >= 12 && (response[3] & 0x0F) != SERVFAIL;
+  }
+
+  private void sendQuery(int index) {
+    byte[] data = suite.getQuery(index, salt);
+    QueryCallback queryCallback = new QueryCallback(index);
+    timer.schedule(queryCallback, QUERY_TIMEOUT_MS);
+    getConnection().performDnsRequest(DnsUdpQuery.fromUdpBody(data), data, queryCallback);
+  }
+
+  // Records the outcome of the query at |index|, and sends the next query, unless the probe is
+  // finished.
+  private void onQueryDone(int index, long latencyMs) {
+    boolean giveUp;
+    synchronized (this) {
+      ++queries;
+      if (latencyMs < 0) {
+        ++failures;
+      } else if (index == 0) {
+        coldLatencyMs = latencyMs;
+      } else {
+        warmLatenciesMs.add(latencyMs);
+      }
+      // Stop early if the server has already failed too often to be usable.
+      giveUp = canceled || (index == 0 && latencyMs < 0)
+          || failures > ProbeResult.MAX_ERROR_RATE * suite.size();
+    }
+    if (!giveUp && index + 1 < suite.size()) {
+      sendQuery(index + 1);
+      return;
+    }
+    finish();
+  }
+
+  private void finish() {
+    ProbeResult finalResult;
+    synchronized (this) {
+      finalResult = new ProbeResult(url, coldLatencyMs, warmLatenciesMs, queries, failures);
+      result = finalResult;
+    }
+    if (finalResult.isUsable()) {
       setStatus(Status.SUCCEEDED);
       callback.onSuccess();
+    } else {
+      setStatus(Status.FAILED);
+      // The connection won't be used again.
+      getConnection().close();
+      callback.onFailure();
     }
   }
 
@@ -94,11 +238,24 @@ class Probe extends Thread {
   public void run() {
     setStatus(Status.RUNNING);
     ServerConnection conn = factory.get(url);
-    if (isInterrupted() || conn == null) {
+    boolean wasCanceled;
+    synchronized (this) {
+      wasCanceled = canceled;
+      if (!wasCanceled) {
+        this.conn = conn;
+      }
+    }
+    if (wasCanceled && conn != null) {
+      conn.close();
+    }
+    if (wasCanceled || isInterrupted() || conn == null) {
+      synchronized (this) {
+        result = new ProbeResult(url, -1, warmLatenciesMs, 0, 0);
+      }
       setStatus(Status.FAILED);
       callback.onFailure();
       return;
     }
-    conn.performDnsRequest(QUERY, QUERY_DATA, new QueryCallback());
+    sendQuery(0);
   }
 }
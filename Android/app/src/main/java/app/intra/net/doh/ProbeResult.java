@@ -0,0 +1,110 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The measurements of one Probe: the latency of the cold query, which includes connection setup,
+ * the distribution of warm query latencies, and how many queries failed.  Latencies are in
+ * milliseconds.
+ *
+ * Immutable.
+ */
+public class ProbeResult {
+  /**
+   * A server that fails more than this fraction of its probe queries is not usable.
+   */
+  public static final double MAX_ERROR_RATE = 0.25;
+
+  private final String url;
+  private final long coldLatencyMs;
+  private final long[] warmLatenciesMs;
+  private final int queries;
+  private final int failures;
+
+  /**
+   * @param coldLatencyMs -1 if the cold query failed.
+   * @param warmLatenciesMs The latencies of the warm queries that succeeded.
+   * @param queries The number of queries sent, including the cold query.
+   * @param failures The number of queries that failed.
+   */
+  ProbeResult(String url, long coldLatencyMs, List<Long> warmLatenciesMs, int queries,
+      int failures) {
+    this.url = url;
+    this.coldLatencyMs = coldLatencyMs;
+    this.warmLatenciesMs = new long[warmLatenciesMs.size()];
+    for (int i = 0; i < this.warmLatenciesMs.length; ++i) {
+      this.warmLatenciesMs[i] = warmLatenciesMs.get(i);
+    }
+    Arrays.sort(this.warmLatenciesMs);
+    this.queries = queries;
+    this.failures = failures;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * @return The latency of the first query, including connection setup, or -1 if it failed.
+   */
+  public long getColdLatencyMs() {
+    return coldLatencyMs;
+  }
+
+  private long getWarmPercentileMs(double percentile) {
+    if (warmLatenciesMs.length == 0) {
+      return -1;
+    }
+    return warmLatenciesMs[(int) Math.ceil(percentile * warmLatenciesMs.length) - 1];
+  }
+
+  /**
+   * @return The median latency of the warm queries, or -1 if none succeeded.
+   */
+  public long getWarmP50Ms() {
+    return getWarmPercentileMs(0.5);
+  }
+
+  /**
+   * @return The 95th percentile latency of the warm queries, or -1 if none succeeded.
+   */
+  public long getWarmP95Ms() {
+    return getWarmPercentileMs(0.95);
+  }
+
+  public int getQueryCount() {
+    return queries;
+  }
+
+  public int getFailureCount() {
+    return failures;
+  }
+
+  public double getErrorRate() {
+    return queries == 0 ? 1 : (double) failures / queries;
+  }
+
+  /**
+   * @return True if the server answered the cold query, and at most MAX_ERROR_RATE of all
+   *     queries failed.
+   */
+  public boolean isUsable() {
+    return coldLatencyMs >= 0 && getErrorRate() <= MAX_ERROR_RATE;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The queries that a Probe sends to a server: every query in the suite, in order, once per round.
+ * The first query of the first round opens the connection, so its latency is "cold", and all
+ * later queries are "warm".
+ *
+ * Immutable.
+ */
+public class ProbeSuite {
+  static final int TYPE_A = 1;
+  static final int TYPE_AAAA = 28;
+
+  /**
+   * A single query, which only checks that the server is reachable.
+   */
+  public static final ProbeSuite REACHABILITY =
+      new ProbeSuite(Collections.singletonList(makeQuery("youtube.com", TYPE_A)), 1);
+
+  /**
+   * Popular names that every resolver should have cached, so that the warm latency measures the
+   * server itself rather than its upstream authorities.
+   */
+  public static final ProbeSuite DEFAULT = new ProbeSuite(Arrays.asList(
+      makeQuery("youtube.com", TYPE_A),
+      makeQuery("www.google.com", TYPE_AAAA),
+      makeQuery("www.facebook.com", TYPE_A),
+      makeQuery("www.wikipedia.org", TYPE_A)), 3);
+
+  // Only this many letters of a name vary in case, so that a pattern fits in a long.
+  private static final int MAX_CASE_LETTERS = 30;
+
+  private final List<byte[]> queries;
+  private final int rounds;
+
+  /**
+   * @param queries DNS queries in wire format.  Must not be empty.
+   * @param rounds The number of times to send each query.  Must be positive.
+   */
+  public ProbeSuite(List<byte[]> queries, int rounds) {
+    this.queries = new ArrayList<>();
+    for (byte[] query : queries) {
+      this.queries.add(query.clone());
+    }
+    this.rounds = rounds;
+  }
+
+  /**
+   * @return The number of queries that a probe sends in total.
+   */
+  public int size() {
+    return queries.size() * rounds;
+  }
+
+  /**
+   * @param i The index of the query in the probe, from 0 to size() - 1.
+   * @param salt Chosen at random for each probe.
+   * @return A new copy of the query, with the case of the name's letters varied as in DNS 0x20.
+   *     The pattern is never all lowercase, like client queries, and differs in each round and
+   *     with each |salt|, so that the query isn't answered from the HTTP cache.  Servers match
+   *     names case-insensitively, so the answer is the same.
+   */
+  byte[] getQuery(int i, int salt) {
+    byte[] query = queries.get(i % queries.size()).clone();
+    int round = i / queries.size();
+    List<Integer> letters = new ArrayList<>();
+    int offset = 12;  // End of the header.
+    while (offset < query.length && query[offset] != 0) {
+      int labelLength = query[offset] & 0xFF;
+      for (int j = offset + 1; j <= offset + labelLength && j < query.length; ++j) {
+        if (Character.isLetter((char) query[j]) && letters.size() < MAX_CASE_LETTERS) {
+          letters.add(j);
+        }
+      }
+      offset += labelLength + 1;
+    }
+    if (letters.isEmpty()) {
+      return query;
+    }
+    // Bit k selects uppercase for letter k.  Consecutive rounds use consecutive nonzero patterns.
+    long patterns = (1L << letters.size()) - 1;
+    long pattern = ((salt & 0xFFFFFFFFL) + round) % patterns + 1;
+    for (int k = 0; k < letters.size(); ++k) {
+      if ((pattern >> k & 1) != 0) {
+        int j = letters.get(k);
+        query[j] = (byte) Character.toUpperCase((char) query[j]);
+      }
+    }
+    return query;
+  }
+
+  /**
+   * @return A recursive query for |name| with the given QTYPE, in wire format, with ID 0.
+   */
+  static byte[] makeQuery(String name, int type) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] header = {
+        0, 0,  // [0-1]   query ID
+        1, 0,  // [2-3]   flags, RD=1
+        0, 1,  // [4-5]   QDCOUNT (number of queries) = 1
+        0, 0,  // [6-7]   ANCOUNT (number of answers) = 0
+        0, 0,  // [8-9]   NSCOUNT (number of authoritative answers) = 0
+        0, 0,  // [10-11] ARCOUNT (number of additional records) = 0
+    };
+    out.write(header, 0, header.length);
+    for (String label : name.split("\\.")) {
+      out.write(label.length());
+      for (int i = 0; i < label.length(); ++i) {
+        out.write(label.charAt(i));
+      }
+    }
+    out.write(0);  // The root label.
+    out.write(type >> 8);
+    out.write(type);
+    out.write(0);
+    out.write(1);  // QCLASS = IN (Internet)
+    return out.toByteArray();
+  }
+}
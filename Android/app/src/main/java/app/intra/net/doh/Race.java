@@ -16,82 +16,183 @@ limitations under the License.
 package app.intra.net.doh;
 
 import app.intra.net.doh.Probe.Status;
+import app.intra.sys.SafeTimerTask;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Timer;
 
 /**
- * This class performs parallel probes to all of the specified servers and calls the listener when
- * the fastest probe succeeds or all probes have failed.  Each instance can only be used once.
+ * This class probes all of the specified servers in parallel, and calls the listener once every
+ * probe has finished, with the server whose measured latency distribution is best.  Each instance
+ * can only be used once.
+ *
+ * The winning probe's connection is offered to the ServerConnectionFactory, so that switching to
+ * the winner doesn't need a new connection.  The other probes' connections are closed.
+ *
+ * If some probes are still running after DEADLINE_MS, the race concludes without them, and they
+ * count as failed.
  */
 public class Race {
+  static final long DEADLINE_MS = 30 * 1000;
+
+  // Fires race deadlines.  Shared by all races.
+  private static final Timer timer = new Timer("Race", true);
+
   public interface Listener {
     /**
      * This method is called once, when the race has concluded.
-     * @param index The index in urls of the fastest server, or -1 if all probes failed.
+     * @param index The index in urls of the best server, or -1 if all probes failed.
      */
     void onResult(int index);
   }
 
+  private final ServerConnectionFactory factory;
+  private final String[] urls;
   private final List<Probe> probes;
   private final Listener listener;
+  private final long deadlineMs;
+  // Null until the race has concluded.  Guarded by |this|.
+  private List<ProbeResult> results = null;
+  // Null until the race has started.  Guarded by |this|.
+  private SafeTimerTask deadlineTask = null;
 
   /**
-   * Creates a race between different servers.  To run the race, call start().
+   * Creates a race between different servers, which sends ProbeSuite.DEFAULT to each server.  To
+   * run the race, call start().
    * @param factory The factory will be called once for each server.
    * @param urls The URLs for all the DOH servers to compare.
    * @param listener Called once on an arbitrary thread with the result of the race.
    */
   public Race(ServerConnectionFactory factory, String[] urls, Listener listener) {
+    this(factory, urls, ProbeSuite.DEFAULT, listener);
+  }
+
+  /**
+   * @param suite The queries to send to each server.
+   */
+  public Race(ServerConnectionFactory factory, String[] urls, ProbeSuite suite,
+      Listener listener) {
+    this(factory, urls, suite, DEADLINE_MS, listener);
+  }
+
+  /**
+   * @param deadlineMs How long to wait for the probes after start().
+   */
+  Race(ServerConnectionFactory factory, String[] urls, ProbeSuite suite, long deadlineMs,
+      Listener listener) {
+    this.factory = factory;
+    this.urls = urls.clone();
     probes = new ArrayList<>(urls.length);
     for (int i = 0; i < urls.length; ++i) {
-      probes.add(new Probe(factory, urls[i], new Callback(i)));
+      probes.add(new Probe(factory, urls[i], suite, new Callback()));
     }
     this.listener = listener;
+    this.deadlineMs = deadlineMs;
   }
 
   public synchronized void start() {
+    deadlineTask = new SafeTimerTask() {
+      @Override
+      protected void runSafely() {
+        conclude(true);
+      }
+    };
+    timer.schedule(deadlineTask, deadlineMs);
     for (Probe task : probes) {
       task.start();
     }
   }
 
-  private class Callback implements Probe.Callback {
-    private final int index;
+  /**
+   * @return Each server's measurements, in the same order as the URLs, or null if the race hasn't
+   *     concluded.
+   */
+  public synchronized List<ProbeResult> getResults() {
+    return results;
+  }
+
+  /**
+   * @return A server's score, based on its warm latency distribution, or on its cold latency if
+   *     no warm queries were sent, and inflated by its error rate.  Lower is better.
+   */
+  static double score(ProbeResult result) {
+    double latencyMs = result.getWarmP50Ms() >= 0
+        ? (result.getWarmP50Ms() + result.getWarmP95Ms()) / 2.0
+        : result.getColdLatencyMs();
+    return latencyMs / (1 - result.getErrorRate());
+  }
 
-    private Callback(int index) {
-      this.index = index;
+  /**
+   * @return The index of the usable result with the lowest score, or -1 if none is usable.
+   */
+  static int chooseWinner(List<ProbeResult> results) {
+    int best = -1;
+    double bestScore = 0;
+    for (int i = 0; i < results.size(); ++i) {
+      ProbeResult result = results.get(i);
+      if (!result.isUsable()) {
+        continue;
+      }
+      double score = score(result);
+      if (best < 0 || score < bestScore) {
+        best = i;
+        bestScore = score;
+      }
     }
+    return best;
+  }
 
+  // Concludes the race once every probe has finished.
+  private class Callback implements Probe.Callback {
     @Override
     public void onFailure() {
-      synchronized(Race.this) {
-        if (probes.isEmpty()) {
-          return;
-        }
-        for (Probe task : probes) {
-          if (task.getStatus() != Status.FAILED) {
-            return;
-          }
-        }
-        // All probes have failed.
-        listener.onResult(-1);
-        probes.clear();
-      }
+      conclude(false);
     }
 
     @Override
     public void onSuccess() {
-      synchronized (Race.this) {
-        if (probes.isEmpty()) {
-          return;
-        }
-        listener.onResult(index);
-        // Minor optimization: cancel any probes that haven't issued a probe query yet.
+      conclude(false);
+    }
+  }
+
+  // Concludes the race if every probe has finished, or if |deadlinePassed|.
+  private void conclude(boolean deadlinePassed) {
+    synchronized (this) {
+      if (results != null) {
+        return;
+      }
+      if (!deadlinePassed) {
         for (Probe probe : probes) {
-          probe.interrupt();
+          Status status = probe.getStatus();
+          if (status != Status.SUCCEEDED && status != Status.FAILED) {
+            return;
+          }
+        }
+      }
+      if (deadlineTask != null) {
+        deadlineTask.cancel();
+      }
+      List<ProbeResult> finished = new ArrayList<>(probes.size());
+      for (int i = 0; i < probes.size(); ++i) {
+        ProbeResult result = probes.get(i).getResult();
+        // A probe that is still running has no result yet.
+        finished.add(result != null ? result
+            : new ProbeResult(urls[i], -1, Collections.<Long>emptyList(), 0, 0));
+      }
+      results = Collections.unmodifiableList(finished);
+      int index = chooseWinner(results);
+      Probe winner = index >= 0 ? probes.get(index) : null;
+      if (winner != null) {
+        // Offered before the listener runs, so that it is ready if the listener switches servers.
+        factory.offerWarmConnection(winner.getConnection());
+      }
+      listener.onResult(index);
+      // Close the other probes' connections.
+      for (Probe probe : probes) {
+        if (probe != winner) {
+          probe.cancel();
         }
-        // Mark the race as completed to prevent additional Listener callbacks.
-        probes.clear();
       }
     }
   }
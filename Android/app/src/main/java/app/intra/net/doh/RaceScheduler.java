@@ -0,0 +1,182 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.Arrays;
+
+/**
+ * Decides when to re-run a Race among the built-in servers in the background, and whether its
+ * result should replace the active server.
+ *
+ * A race runs at most once every PERIODIC_INTERVAL_MS while the network is unmetered and idle,
+ * and at most once every DEGRADED_INTERVAL_MS while the 95th percentile of recent query latencies
+ * exceeds DEGRADED_P95_MS.  To avoid thrashing, a different server must win REQUIRED_WINS
+ * consecutive races before it replaces the active server, and the active server is kept for at
+ * least MIN_DWELL_MS.
+ *
+ * All times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+public class RaceScheduler {
+  static final long PERIODIC_INTERVAL_MS = 6 * 60 * 60 * 1000;
+  static final long DEGRADED_INTERVAL_MS = 15 * 60 * 1000;
+  static final long DEGRADED_P95_MS = 1500;
+  // The network counts as idle once there have been no queries for this long.
+  static final long IDLE_MS = 60 * 1000;
+  static final int REQUIRED_WINS = 2;
+  static final long MIN_DWELL_MS = 60 * 60 * 1000;
+
+  // Number of recent query latencies used to estimate the percentile.
+  private static final int SAMPLE_COUNT = 100;
+  // Until this many samples have been collected, latency never triggers a race.
+  static final int MIN_SAMPLES = 20;
+  private static final double PERCENTILE = 0.95;
+
+  private final long[] samples = new long[SAMPLE_COUNT];
+  private int sampleCount = 0;
+  private int nextSample = 0;
+  private long lastQuery = 0;
+
+  // Start time of the most recent race, or -1 if there hasn't been one.
+  private long lastRace = -1;
+  // The server that has won the most recent races, and how many in a row, or -1 if the active
+  // server won the most recent race.
+  private int candidate = -1;
+  private int candidateWins = 0;
+  // Time of the most recent switch, or -1 if there hasn't been one.
+  private long lastSwitch = -1;
+
+  private int races = 0;
+  private int degradedRaces = 0;
+  private int switches = 0;
+
+  /**
+   * Records a query that the active server answered.  Cache hits and responses synthesized
+   * locally, e.g. after a deadline, must not be recorded, because they don't measure the server.
+   */
+  public synchronized void recordLatency(long latencyMs, long now) {
+    samples[nextSample] = latencyMs;
+    nextSample = (nextSample + 1) % SAMPLE_COUNT;
+    sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+    lastQuery = now;
+  }
+
+  /**
+   * Records a query that failed on the active server.
+   */
+  public synchronized void onQuery(long now) {
+    lastQuery = now;
+  }
+
+  /**
+   * @return The 95th percentile of recent query latencies, or -1 if there are too few samples.
+   */
+  public synchronized long getP95Ms() {
+    if (sampleCount < MIN_SAMPLES) {
+      return -1;
+    }
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    return sorted[(int) Math.ceil(PERCENTILE * sampleCount) - 1];
+  }
+
+  private boolean isDue(long interval, long now) {
+    return lastRace < 0 || now - lastRace >= interval;
+  }
+
+  private boolean isDegradedRaceDue(long now) {
+    return getP95Ms() > DEGRADED_P95_MS && isDue(DEGRADED_INTERVAL_MS, now);
+  }
+
+  // True if a periodic race is due, provided that the network is unmetered.
+  private boolean isPeriodicRaceDue(long now) {
+    return now - lastQuery >= IDLE_MS && isDue(PERIODIC_INTERVAL_MS, now);
+  }
+
+  /**
+   * Lets callers skip looking up the network state, which is much more expensive, when no race
+   * can start.
+   * @return True if maybeStartRace() would start a race now on an unmetered network.
+   */
+  public synchronized boolean isRaceCandidate(long now) {
+    return isDegradedRaceDue(now) || isPeriodicRaceDue(now);
+  }
+
+  /**
+   * Starts a race if one is due.
+   * @param unmetered True if the active network is unmetered.
+   * @return True if the caller should run a race now, and report its result to onRaceResult().
+   */
+  public synchronized boolean maybeStartRace(boolean unmetered, long now) {
+    boolean degraded = isDegradedRaceDue(now);
+    boolean periodic = unmetered && isPeriodicRaceDue(now);
+    if (!degraded && !periodic) {
+      return false;
+    }
+    lastRace = now;
+    ++races;
+    if (degraded) {
+      ++degradedRaces;
+    }
+    return true;
+  }
+
+  /**
+   * @param winner The index of the winning server, or -1 if every server failed.
+   * @param active The index of the active server.
+   * @return True if the caller should switch to |winner|.
+   */
+  public synchronized boolean onRaceResult(int winner, int active, long now) {
+    if (winner < 0 || winner == active) {
+      candidate = -1;
+      candidateWins = 0;
+      return false;
+    }
+    if (winner == candidate) {
+      ++candidateWins;
+    } else {
+      candidate = winner;
+      candidateWins = 1;
+    }
+    if (candidateWins < REQUIRED_WINS || (lastSwitch >= 0 && now - lastSwitch < MIN_DWELL_MS)) {
+      return false;
+    }
+    candidate = -1;
+    candidateWins = 0;
+    lastSwitch = now;
+    ++switches;
+    // The samples describe the old server.
+    sampleCount = 0;
+    nextSample = 0;
+    return true;
+  }
+
+  public synchronized int getRaceCount() {
+    return races;
+  }
+
+  /**
+   * @return The number of races that were started because latency was high.
+   */
+  public synchronized int getDegradedRaceCount() {
+    return degradedRaces;
+  }
+
+  public synchronized int getSwitchCount() {
+    return switches;
+  }
+}
@@ -15,13 +15,26 @@ limitations under the License.
 */
 package app.intra.net.doh;
 
+import android.os.SystemClock;
 import android.util.Log;
+import app.intra.net.dns.DnsCache;
+import app.intra.net.dns.DnsPacket;
 import app.intra.net.dns.DnsUdpQuery;
 import app.intra.sys.LogWrapper;
+import app.intra.sys.SafeTimerTask;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.net.ProtocolException;
+import java.net.InetAddress;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Response;
@@ -32,51 +45,430 @@ import okhttp3.Response;
 public class Resolver {
   private static final String LOG_TAG = "Resolver";
 
+  // Queries that have been sent and are awaiting a response, keyed by question.  An identical
+  // query that arrives while one of these is outstanding on the same ServerConnection is not sent
+  // again.  Instead, it waits for the outstanding query's response.
+  private static final Map<String, DnsResponseCallback> pendingQueries = new HashMap<>();
+
+  /**
+   * The default per-query deadline.  Android's stub resolver waits 5 seconds for a response before
+   * retrying, so a query that hasn't been answered by this time is answered with SERVFAIL first.
+   */
+  public static final long DEFAULT_QUERY_DEADLINE_MS = 4000;
+
+  private static volatile long queryDeadlineMs = DEFAULT_QUERY_DEADLINE_MS;
+
+  // Decides when a cache miss on an A query also sends its sibling queries.
+  private static final SiblingPrefetch siblingPrefetch = new SiblingPrefetch();
+
+  // Learns which names follow each other, and decides which ones to fetch before they are asked.
+  private static final PredictivePrefetch predictivePrefetch = new PredictivePrefetch();
+
+  // Fires the deadlines of outstanding queries.
+  private static final Timer deadlines = new Timer("Resolver deadlines", true);
+
+  /**
+   * Sets how long a query may wait for its response before the client is sent SERVFAIL instead.
+   * A response that arrives after the deadline is still cached, but is not sent to the client.
+   * @param deadlineMs The deadline in milliseconds, or 0 for no deadline.
+   */
+  public static void setQueryDeadline(long deadlineMs) {
+    queryDeadlineMs = deadlineMs;
+  }
+
+  public static long getQueryDeadline() {
+    return queryDeadlineMs;
+  }
+
+  /**
+   * @return The policy and statistics for speculative AAAA and HTTPS queries.
+   */
+  public static SiblingPrefetch getSiblingPrefetch() {
+    return siblingPrefetch;
+  }
+
   /**
-   * Send a query.
+   * @return The model and statistics for prefetching the names that are likely to be queried next.
+   */
+  public static PredictivePrefetch getPredictivePrefetch() {
+    return predictivePrefetch;
+  }
+
+  private static String makeKey(DnsUdpQuery query) {
+    // A response to an EDNS query can't be shared with a query that doesn't use EDNS.
+    return query.name + "/" + query.type + "/" + query.qclass + (query.edns ? "/edns" : "");
+  }
+
+  /**
+   * @return The number of seconds that |response| has spent in HTTP caches, including our own.
+   */
+  static long getHttpAge(Response response) {
+    long age = 0;
+    String ageHeader = response.header("Age");
+    if (ageHeader != null) {
+      try {
+        age = Math.max(Long.parseLong(ageHeader.trim()), 0);
+      } catch (NumberFormatException e) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "Invalid Age header");
+      }
+    }
+    if (response.networkResponse() == null && response.cacheResponse() != null) {
+      long residentMs = System.currentTimeMillis() - response.receivedResponseAtMillis();
+      age += Math.max(residentMs, 0) / 1000;
+    }
+    return age;
+  }
+
+  /**
+   * Per RFC 8484 Section 5.1, reduce every TTL in |dnsResponse| by the time it has spent in HTTP
+   * caches, so that clients don't hold the records past their original expiration.
+   */
+  static void reduceTtls(byte[] dnsResponse, long age) {
+    if (age <= 0) {
+      return;
+    }
+    DnsPacket packet;
+    try {
+      packet = new DnsPacket(dnsResponse);
+    } catch (ProtocolException e) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(dnsResponse);
+    for (int offset : packet.getTtlOffsets()) {
+      long ttl = Math.max(buffer.getInt(offset), 0);
+      buffer.putInt(offset, (int) Math.max(ttl - age, 0));
+    }
+  }
+
+  /**
+   * @return The offset just past the first question in |query|, i.e. past its QTYPE and QCLASS,
+   *   or -1 if the question is truncated or malformed.  The name in the first question of a query
+   *   is never compressed.
+   */
+  private static int getQuestionEnd(byte[] query) {
+    final int HEADER_SIZE = 12;
+    final int MAX_LABEL_LENGTH = 63;
+    int end = HEADER_SIZE;
+    int labelLength;
+    while (end < query.length && (labelLength = query[end] & 0xFF) != 0) {
+      if (labelLength > MAX_LABEL_LENGTH) {
+        return -1;
+      }
+      end += 1 + labelLength;
+    }
+    end += 1 + 4;
+    return end > query.length ? -1 : end;
+  }
+
+  /**
+   * Builds a SERVFAIL response to |query|, so that the client can retry or give up right away
+   * instead of waiting for its own timeout.  Per RFC 1035, the response repeats the query's
+   * header and question, with QR set and no records.  Any EDNS OPT record is dropped.
+   * @param query The raw DNS query.  Its ID is ignored.
+   * @param requestId The ID to write into the response.
+   * @return The response, or null if |query| is too malformed to answer.
+   */
+  static byte[] makeServfail(byte[] query, short requestId) {
+    final int HEADER_SIZE = 12;
+    if (query == null || query.length < HEADER_SIZE) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(query);
+    int end = HEADER_SIZE;
+    boolean hasQuestion = buffer.getShort(4) != 0;
+    if (hasQuestion) {
+      end = getQuestionEnd(query);
+      if (end < 0) {
+        return null;
+      }
+    }
+    byte[] response = Arrays.copyOf(query, end);
+    buffer = ByteBuffer.wrap(response);
+    buffer.putShort(0, requestId);
+    // QR = 1.  Opcode and RD are copied from the query.  AA and TC are cleared.
+    final int OPCODE_AND_RD_MASK = 0x79;
+    response[2] = (byte) (0x80 | (query[2] & OPCODE_AND_RD_MASK));
+    // RA = 1, Z = 0.
+    response[3] = (byte) (0x80 | DnsPacket.RCODE_SERVFAIL);
+    buffer.putShort(4, (short) (hasQuestion ? 1 : 0));  // QDCOUNT
+    buffer.putShort(6, (short) 0);  // ANCOUNT
+    buffer.putShort(8, (short) 0);  // NSCOUNT
+    buffer.putShort(10, (short) 0);  // ARCOUNT
+    return response;
+  }
+
+  /**
+   * Send a query, or answer it immediately from the cache.  If the cached answer is stale, or is
+   * popular and about to expire, it is refreshed in the background.
    * @param serverConnection The connection to use for the query
+   * @param cache The cache to consult before sending the query, and to populate with the
+   *   response.  May be null, in which case no caching is performed.
    * @param query The query information parsed from the packet
    * @param dnsPacketData The raw data of the DNS query (starting with the ID number)
    * @param responseWriter The object that will receive the response when it's ready.
    */
-  public static void processQuery(ServerConnection serverConnection, DnsUdpQuery query,
-                           byte[] dnsPacketData, ResponseWriter responseWriter) {
+  public static void processQuery(ServerConnection serverConnection, DnsCache cache,
+                           DnsUdpQuery query, byte[] dnsPacketData,
+                           ResponseWriter responseWriter) {
+    long now = SystemClock.elapsedRealtime();
+    siblingPrefetch.onQuery(query, now);
+    predictivePrefetch.recordQuery(query.name, query.type, now);
+    if (cache != null) {
+      DnsCache.Hit hit = cache.get(query, now);
+      if (hit != null) {
+        Transaction transaction = new Transaction(query);
+        transaction.status = Transaction.Status.COMPLETE;
+        transaction.response = hit.response;
+        transaction.cacheHit = true;
+        responseWriter.sendResult(query, transaction);
+        if (hit.needsRefresh) {
+          sendQuery(serverConnection, cache, query, dnsPacketData, null);
+        }
+        if (serverConnection != null) {
+          prefetchSuccessors(serverConnection, cache, query, dnsPacketData, now);
+        }
+        return;
+      }
+    }
+    sendQuery(serverConnection, cache, query, dnsPacketData, responseWriter);
+    if (cache != null && serverConnection != null) {
+      prefetchSiblings(serverConnection, cache, query, dnsPacketData, now);
+      prefetchSuccessors(serverConnection, cache, query, dnsPacketData, now);
+    }
+  }
+
+  /**
+   * If |query| is an A query, send the uncached sibling queries for the same name in the
+   * background, subject to siblingPrefetch.  Each sibling is a copy of |dnsPacketData| with a
+   * different QTYPE, so it carries the same flags and EDNS options.  On a multiplexed connection,
+   * the siblings are in flight at the same time as |query|.
+   */
+  private static void prefetchSiblings(ServerConnection serverConnection, DnsCache cache,
+                                       DnsUdpQuery query, byte[] dnsPacketData, long now) {
+    if (!SiblingPrefetch.isTrigger(query)) {
+      return;
+    }
+    int typeOffset = getQuestionEnd(dnsPacketData) - 4;
+    if (typeOffset < 0) {
+      return;
+    }
+    List<Short> uncached = new ArrayList<>();
+    for (short type : SiblingPrefetch.SIBLING_TYPES) {
+      if (!cache.contains(query.name, type, query.qclass, query.edns, now)) {
+        uncached.add(type);
+      }
+    }
+    for (short type : siblingPrefetch.choose(query, uncached, now)) {
+      DnsUdpQuery sibling = new DnsUdpQuery();
+      sibling.name = query.name;
+      sibling.type = type;
+      sibling.qclass = query.qclass;
+      sibling.edns = query.edns;
+      sibling.requestId = query.requestId;
+      sibling.timestamp = query.timestamp;
+      byte[] siblingData = Arrays.copyOf(dnsPacketData, dnsPacketData.length);
+      ByteBuffer.wrap(siblingData).putShort(typeOffset, type);
+      sendQuery(serverConnection, cache, sibling, siblingData, null);
+    }
+  }
+
+  /**
+   * Sends the uncached names that predictivePrefetch expects to follow |query| in the background,
+   * so that their responses are in |cache| when a client asks for them.  Each one is a copy of
+   * |dnsPacketData| with a different name, so it carries the same flags and EDNS options, and has
+   * the same cache key as the client's query will.
+   */
+  private static void prefetchSuccessors(ServerConnection serverConnection, DnsCache cache,
+                                         DnsUdpQuery query, byte[] dnsPacketData, long now) {
+    final short type = query.type;
+    for (final String name : predictivePrefetch.getPredictions(query.name)) {
+      if (cache.contains(name, type, query.qclass, query.edns, now)) {
+        continue;
+      }
+      byte[] successorData = replaceName(dnsPacketData, query.edns, name);
+      if (successorData == null || !predictivePrefetch.tryPrefetch(name, type, now)) {
+        continue;
+      }
+      DnsUdpQuery successor = new DnsUdpQuery();
+      successor.name = name;
+      successor.type = type;
+      successor.qclass = query.qclass;
+      successor.edns = query.edns;
+      successor.requestId = query.requestId;
+      successor.timestamp = now;
+      boolean sent = sendQuery(serverConnection, cache, successor, successorData,
+          new ResponseWriter() {
+            @Override
+            public void sendResult(DnsUdpQuery query, Transaction result) {
+              predictivePrefetch.onPrefetchResult(name, type,
+                  result.status == Transaction.Status.COMPLETE, SystemClock.elapsedRealtime());
+            }
+          });
+      if (!sent) {
+        // An identical query, e.g. from a client, was already in flight, so this isn't a
+        // prediction.
+        predictivePrefetch.withdraw(name, type);
+      }
+    }
+  }
+
+  /**
+   * @param edns True if |query| has an EDNS OPT record.
+   * @return A copy of |query| that asks for |name| instead, or null if |name| can't be encoded, or
+   *     if |query| has records other than an OPT record, which might refer to the old name.
+   */
+  static byte[] replaceName(byte[] query, boolean edns, String name) {
+    final int HEADER_SIZE = 12;
+    final int MAX_LABEL_LENGTH = 63;
+    int questionEnd = getQuestionEnd(query);
+    if (questionEnd < 0) {
+      return null;
+    }
+    ByteBuffer header = ByteBuffer.wrap(query);
+    if (header.getShort(4) != 1 || header.getShort(6) != 0 || header.getShort(8) != 0 ||
+        header.getShort(10) != (edns ? 1 : 0)) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(query, 0, HEADER_SIZE);
+    for (String label : name.split("\\.")) {
+      byte[] labelBytes = label.getBytes();
+      if (labelBytes.length == 0 || labelBytes.length > MAX_LABEL_LENGTH) {
+        return null;
+      }
+      out.write(labelBytes.length);
+      out.write(labelBytes, 0, labelBytes.length);
+    }
+    out.write(0);  // The root label.
+    // QTYPE, QCLASS, and the OPT record, whose name is the root.
+    out.write(query, questionEnd - 4, query.length - (questionEnd - 4));
+    return out.toByteArray();
+  }
+
+  /**
+   * Send a query upstream, unless an identical query is already outstanding.
+   * @param responseWriter Receives the response, or null for a background query that only serves
+   *   to populate the cache.
+   * @return False if |query| joined an identical query that was already outstanding.
+   */
+  private static boolean sendQuery(ServerConnection serverConnection, DnsCache cache,
+                                DnsUdpQuery query, byte[] dnsPacketData,
+                                ResponseWriter responseWriter) {
+    String key = makeKey(query);
+    DnsResponseCallback callback;
+    synchronized (pendingQueries) {
+      DnsResponseCallback pending = pendingQueries.get(key);
+      if (pending != null && serverConnection != null &&
+          pending.serverConnection == serverConnection) {
+        if (responseWriter != null) {
+          pending.addFollower(query, responseWriter);
+        }
+        return false;
+      }
+      callback = new DnsResponseCallback(serverConnection, cache, key, query, dnsPacketData,
+          responseWriter);
+      pendingQueries.put(key, callback);
+    }
+    callback.startDeadline(queryDeadlineMs);
+
     try {
-      serverConnection.performDnsRequest(query, dnsPacketData,
-          new Resolver.DnsResponseCallback(serverConnection, query, responseWriter));
+      serverConnection.performDnsRequest(query, dnsPacketData, callback);
     } catch (NullPointerException e) {
-      Transaction transaction = new Transaction(query);
-      transaction.status = Transaction.Status.SEND_FAIL;
-      responseWriter.sendResult(query, transaction);
+      callback.onSendFailure();
     }
+    return true;
+  }
+
+  // A query that is waiting for the response to an identical query.
+  private static class Follower {
+    final DnsUdpQuery query;
+    final ResponseWriter responseWriter;
+
+    Follower(DnsUdpQuery query, ResponseWriter responseWriter) {
+      this.query = query;
+      this.responseWriter = responseWriter;
+    }
+  }
+
+  private static boolean sameAddress(InetAddress a, InetAddress b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  // Returns true if |a| and |b| are the same query from the same client socket, i.e. |b| is a
+  // retransmission of |a|.
+  private static boolean isRetransmit(DnsUdpQuery a, DnsUdpQuery b) {
+    return a.requestId == b.requestId && a.sourcePort == b.sourcePort &&
+        sameAddress(a.sourceAddress, b.sourceAddress);
   }
 
   /**
    * A callback object to listen for a DNS response. The caller should create one such object for
-   * each DNS request. Responses will run on a reader thread owned by OkHttp.
+   * each DNS request. Responses will run on a reader thread owned by OkHttp.  The result is also
+   * delivered to any identical queries that arrived while this one was outstanding.
+   *
+   * If the query fails, or its deadline passes first, the clients are sent SERVFAIL.  Only the
+   * first result is delivered.
    */
   private static class DnsResponseCallback implements Callback {
 
     private final ServerConnection serverConnection;
+    private final DnsCache cache;
+    private final String key;
     private final ResponseWriter responseWriter;
     private final DnsUdpQuery dnsUdpQuery;
+    private final byte[] dnsPacketData;
     private final Transaction transaction;
+    // Guarded by pendingQueries.
+    private final List<Follower> followers = new ArrayList<>();
+    // True once a result has been delivered.  Guarded by pendingQueries.
+    private boolean delivered = false;
+    private TimerTask deadlineTask = null;
 
     /**
      * Constructs a callback object to listen for a DNS response
      *
+     * @param cache Receives a copy of successful responses.  May be null.
+     * @param key The key of this query in pendingQueries.
      * @param request Represents the request. Used to know the request ID, and the client's ip and
      * port.
-     * @param responseWriter Receives the response
+     * @param dnsPacketData The raw request, used to construct SERVFAIL responses.
+     * @param responseWriter Receives the response.  May be null for background queries.
      */
-    DnsResponseCallback(ServerConnection serverConnection, DnsUdpQuery request,
+    DnsResponseCallback(ServerConnection serverConnection, DnsCache cache, String key,
+                        DnsUdpQuery request, byte[] dnsPacketData,
                         ResponseWriter responseWriter) {
       this.serverConnection = serverConnection;
+      this.cache = cache;
+      this.key = key;
       dnsUdpQuery = request;
+      this.dnsPacketData = dnsPacketData;
       this.responseWriter = responseWriter;
       transaction = new Transaction(request);
     }
 
+    // Answers the query with SERVFAIL if there is no result within |deadlineMs|.  Followers share
+    // this deadline, even though they arrived later, because they share the result.
+    synchronized void startDeadline(long deadlineMs) {
+      if (deadlineMs <= 0) {
+        return;
+      }
+      deadlineTask = new SafeTimerTask() {
+        @Override
+        protected void runSafely() {
+          onDeadline();
+        }
+      };
+      deadlines.schedule(deadlineTask, deadlineMs);
+    }
+
+    private void onDeadline() {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Query deadline passed");
+      Transaction timedOut = new Transaction(dnsUdpQuery);
+      timedOut.status = Transaction.Status.TIMEOUT;
+      timedOut.response = makeServfail(dnsPacketData, dnsUdpQuery.requestId);
+      deliver(timedOut);
+    }
+
     // Writes |dnsRequestId| to |dnsResponse|'s ID header.
     private void writeRequestIdToDnsResponse(byte[] dnsResponse, short dnsRequestId)
         throws BufferOverflowException {
@@ -84,24 +476,76 @@ public class Resolver {
       buffer.putShort(dnsRequestId);
     }
 
+    // Must be called while holding the pendingQueries lock.
+    void addFollower(DnsUdpQuery query, ResponseWriter writer) {
+      if (isRetransmit(dnsUdpQuery, query)) {
+        return;
+      }
+      for (Follower follower : followers) {
+        if (isRetransmit(follower.query, query)) {
+          return;
+        }
+      }
+      followers.add(new Follower(query, writer));
+    }
+
+    void onSendFailure() {
+      transaction.status = Transaction.Status.SEND_FAIL;
+      sendResult();
+    }
+
+    // Returns a copy of |result|, addressed to |query|.
+    private Transaction copyTransaction(Transaction result, DnsUdpQuery query) {
+      Transaction copy = new Transaction(query);
+      copy.status = result.status;
+      copy.serverIp = result.serverIp;
+      if (result.response != null) {
+        copy.response = Arrays.copyOf(result.response, result.response.length);
+        writeRequestIdToDnsResponse(copy.response, query.requestId);
+      }
+      return copy;
+    }
+
     private void sendResult() {
-      responseWriter.sendResult(dnsUdpQuery, transaction);
+      if (transaction.status != Transaction.Status.COMPLETE) {
+        transaction.response = makeServfail(dnsPacketData, dnsUdpQuery.requestId);
+      }
+      deliver(transaction);
+    }
+
+    // Sends |result| to the client and all followers, unless a result has already been sent.
+    private void deliver(Transaction result) {
+      List<Follower> waiting;
+      synchronized (pendingQueries) {
+        if (delivered) {
+          return;
+        }
+        delivered = true;
+        if (pendingQueries.get(key) == this) {
+          pendingQueries.remove(key);
+        }
+        // No more followers can be added once this callback is out of pendingQueries.
+        waiting = new ArrayList<>(followers);
+        followers.clear();
+      }
+      synchronized (this) {
+        if (deadlineTask != null) {
+          deadlineTask.cancel();
+        }
+      }
+      if (responseWriter != null) {
+        responseWriter.sendResult(dnsUdpQuery, result);
+      }
+      for (Follower follower : waiting) {
+        follower.responseWriter.sendResult(follower.query, copyTransaction(result, follower.query));
+      }
     }
 
     @Override
     public void onFailure(Call call, IOException e) {
-      transaction.status = call.isCanceled() ?
+      transaction.status = call != null && call.isCanceled() ?
           Transaction.Status.CANCELED : Transaction.Status.SEND_FAIL;
       LogWrapper.log(Log.WARN, LOG_TAG, "Failed to read HTTPS response: " + e.toString());
-      if (e instanceof SocketTimeoutException) {
-        LogWrapper.log(Log.WARN, LOG_TAG, "Workaround for OkHttp3 #3146: resetting");
-        try {
-          serverConnection.reset();
-        } catch (NullPointerException npe) {
-          LogWrapper.log(Log.WARN, LOG_TAG,
-              "Unlikely race: Null server connection at reset.");
-        }
-      }
       sendResult();
     }
 
@@ -126,6 +570,7 @@ public class Resolver {
         transaction.status = Transaction.Status.BAD_RESPONSE;
         return;
       }
+      reduceTtls(dnsResponse, getHttpAge(response));
       DnsUdpQuery parsedDnsResponse = DnsUdpQuery.fromUdpBody(dnsResponse);
       if (parsedDnsResponse != null) {
         Log.d(LOG_TAG, "RNAME: " + parsedDnsResponse.name + " NAME: " + dnsUdpQuery.name);
@@ -138,6 +583,9 @@ public class Resolver {
 
       transaction.status = Transaction.Status.COMPLETE;
       transaction.response = dnsResponse;
+      if (cache != null) {
+        cache.put(dnsResponse, SystemClock.elapsedRealtime());
+      }
     }
 
     @Override
@@ -23,7 +23,8 @@ import app.intra.net.dns.DnsUdpQuery;
 public interface ResponseWriter {
   /**
    * @param query The query that was sent.
-   * @param transaction The record of the transaction, including the response if any.
+   * @param transaction The record of the transaction, including the response if any.  A failed
+   *     transaction usually carries a SERVFAIL response, which should be sent to the client.
    */
   void sendResult(DnsUdpQuery query, Transaction transaction);
 }
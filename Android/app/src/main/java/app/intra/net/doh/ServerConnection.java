@@ -19,7 +19,7 @@ import app.intra.net.dns.DnsUdpQuery;
 import okhttp3.Callback;
 
 /**
- * Generic representation of a connection to a DNS-over-HTTPS server.
+ * Generic representation of a connection to an encrypted DNS server, over HTTPS or TLS.
  */
 public interface ServerConnection {
 
@@ -32,11 +32,13 @@ public interface ServerConnection {
   enum State { NEW, WORKING, FAILING };
 
   /**
-   * Performs a binary, asynchronous DNS request over HTTPS.
+   * Performs a binary, asynchronous DNS request.  The result is delivered as an HTTP response
+   * whose body is the DNS response, even if the server doesn't use HTTPS.
    *
    * @param metadata Information about the request
    * @param data The request body
-   * @param cb An OkHttp response callback to receive the result.
+   * @param cb An OkHttp response callback to receive the result.  The Call that it receives is
+   *     null if the connection doesn't use OkHttp.
    */
   void performDnsRequest(final DnsUdpQuery metadata, final byte[] data, Callback cb);
 
@@ -45,10 +47,22 @@ public interface ServerConnection {
    */
   String getUrl();
 
+  /**
+   * Prepare for queries, e.g. by opening a connection, so that the next query is not delayed by
+   * connection setup.  Asynchronous.
+   */
+  void warmUp();
+
   /**
    * Reset the state of the connection.  Users can call this if they believe the connection has
-   * gotten into an invalid state.
-   * Workaround for https://github.com/square/okhttp/issues/3146
+   * gotten into an invalid state, e.g. because the network has changed.
    */
   void reset();
+
+  /**
+   * Discard the connection: close it, and stop any background work, such as keepalive pings, so
+   * that it doesn't keep contacting the server.  Queries in flight may fail.  The connection must
+   * not be used afterwards.
+   */
+  void close();
 }
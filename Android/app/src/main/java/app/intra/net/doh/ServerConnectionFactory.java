@@ -18,14 +18,27 @@ package app.intra.net.doh;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.content.res.Resources;
+import android.os.SystemClock;
 import android.util.Log;
 import app.intra.R;
-import java.io.IOException;
+import app.intra.sys.PersistentState;
+import java.io.File;
 import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.Dispatcher;
 
 /**
  * Factory for ServerConnections.  Used by IntraVpnService and Probe.
@@ -33,9 +46,45 @@ import java.util.List;
 public class ServerConnectionFactory {
   private static final String LOG_TAG = "ServerConnectionFactory";
 
+  // Responses to GET queries are cached on disk by OkHttp, bounded to this size.
+  private static final String HTTP_CACHE_DIRECTORY = "doh";
+  private static final long HTTP_CACHE_MAX_BYTES = 1024 * 1024;
+  private static Cache httpCache = null;
+  // Shared by all connections, so that a session established by one of them, e.g. by a Probe,
+  // can be resumed by the others.
+  private static TlsSessionCache tlsSessionCache = null;
+
+  // Concurrent query limit for custom servers, whose capacity is unknown.
+  private static final int DEFAULT_MAX_CONCURRENT_QUERIES = 16;
+  // Runs the queries for all connections.  Like OkHttp's default, it creates threads on demand
+  // and lets them expire when idle, but sharing it means that connections created by a Probe
+  // don't each leave behind their own idle threads.
+  private static final ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+      60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "DoH Dispatcher");
+          thread.setDaemon(false);
+          return thread;
+        }
+      });
+
+  // The built-in servers' addresses, parsed from R.array.ips on first use.
+  private static List<List<InetAddress>> builtinIps = null;
+
+  // How long a Race winner's connection is kept for get(), e.g. while the user decides whether to
+  // switch to that server.
+  private static final long WARM_CONNECTION_MAX_AGE_MS = 2 * 60 * 1000;
+  // The connection of the most recent Race winner, until get() claims it or it expires.  Guarded
+  // by the class lock.
+  private static ServerConnection warmConnection = null;
+  private static long warmConnectionTime = 0;
+
   private final Context context;
+  private final BootstrapCache bootstrapCache;
   public ServerConnectionFactory(Context context) {
     this.context = context;
+    bootstrapCache = new BootstrapCache(context);
   }
 
   /**
@@ -52,30 +101,213 @@ public class ServerConnectionFactory {
     return url1.equals(url2);
   }
 
-  private Collection<InetAddress> getKnownIps(String url) {
-    Resources res = context.getResources();
-    String[] urls = res.getStringArray(R.array.urls);
-    String[] ips = res.getStringArray(R.array.ips);
+  // Returns the index of |url| in the built-in server table, or -1 if it is a custom server.
+  private int getServerIndex(String url) {
+    String[] urls = context.getResources().getStringArray(R.array.urls);
     for (int i = 0; i < urls.length; ++i) {
       // TODO: Consider relaxing this equality condition to a match on just the domain.
       if (urls[i].equals(url)) {
-        String[] ipStrings = ips[i].split(",");
-        List<InetAddress> ret = new ArrayList<>();
-        for (String ip : ipStrings) {
-          try {
-            ret.addAll(Arrays.asList(InetAddress.getAllByName(ip)));
-          } catch (IOException e) {
-            Log.e(LOG_TAG, "Invalid IP address in servers resource");
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Only IP literals are used from the servers resource.  Other entries, such as hostnames, are
+  // skipped rather than resolved here, so the table never holds a lookup result or failure.
+  private static synchronized List<List<InetAddress>> getBuiltinIps(Context context) {
+    if (builtinIps == null) {
+      builtinIps = new ArrayList<>();
+      for (String ipList : context.getResources().getStringArray(R.array.ips)) {
+        builtinIps.add(Collections.unmodifiableList(BootstrapCache.parseLiterals(ipList)));
+      }
+    }
+    return builtinIps;
+  }
+
+  private Collection<InetAddress> getKnownIps(int index) {
+    if (index < 0) {
+      return Collections.emptyList();
+    }
+    return getBuiltinIps(context).get(index);
+  }
+
+  // Returns the host of |url|, without the brackets around an IPv6 literal, or null if it has none.
+  private static String getHost(String url) {
+    if (url == null) {
+      return null;
+    }
+    String host;
+    try {
+      host = new URI(url).getHost();
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    if (host != null && host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+    return host;
+  }
+
+  // Custom servers always use POST, which every RFC 8484 server is required to support.
+  private boolean usesGet(int index) {
+    if (index < 0) {
+      return false;
+    }
+    String[] methods = context.getResources().getStringArray(R.array.methods);
+    return "GET".equals(methods[index]);
+  }
+
+  private Dispatcher makeDispatcher(int index) {
+    int maxQueries = DEFAULT_MAX_CONCURRENT_QUERIES;
+    if (index >= 0) {
+      maxQueries = context.getResources().getIntArray(R.array.max_concurrent_queries)[index];
+    }
+    Dispatcher dispatcher = new Dispatcher(executor);
+    dispatcher.setMaxRequests(maxQueries);
+    // All queries go to the same host, so the per-host limit is the one that matters.
+    dispatcher.setMaxRequestsPerHost(maxQueries);
+    return dispatcher;
+  }
+
+  // OkHttp requires that each cache directory be owned by a single Cache instance, so the
+  // cache is shared by all connections.
+  private static synchronized Cache getHttpCache(Context context) {
+    if (httpCache == null) {
+      File directory = new File(context.getCacheDir(), HTTP_CACHE_DIRECTORY);
+      httpCache = new Cache(directory, HTTP_CACHE_MAX_BYTES);
+    }
+    return httpCache;
+  }
+
+  private static synchronized TlsSessionCache getTlsSessionCache(Context context) {
+    if (tlsSessionCache == null) {
+      tlsSessionCache = TlsSessionCache.create(context);
+    }
+    return tlsSessionCache;
+  }
+
+  /**
+   * Keeps |connection|, which has just answered a query, so that the next call to get() for its
+   * URL returns it instead of connecting again.  Any connection kept before is closed.  Used by
+   * Race to hand the winner's connection to IntraVpnService.
+   */
+  public void offerWarmConnection(ServerConnection connection) {
+    ServerConnection previous;
+    synchronized (ServerConnectionFactory.class) {
+      previous = warmConnection;
+      warmConnection = connection;
+      warmConnectionTime = SystemClock.elapsedRealtime();
+    }
+    if (previous != null && previous != connection) {
+      previous.close();
+    }
+  }
+
+  // Returns the kept connection if it is for |url| and hasn't expired, and forgets it.  An expired
+  // connection is closed.
+  private static ServerConnection claimWarmConnection(String url) {
+    ServerConnection connection;
+    synchronized (ServerConnectionFactory.class) {
+      connection = warmConnection;
+      if (connection == null || !equalUrls(url, connection.getUrl())) {
+        return null;
+      }
+      warmConnection = null;
+      if (SystemClock.elapsedRealtime() - warmConnectionTime <= WARM_CONNECTION_MAX_AGE_MS) {
+        return connection;
+      }
+    }
+    connection.close();
+    return null;
+  }
+
+  /**
+   * @param url An https:// URL for a DNS-over-HTTPS server, a tls://host[:port] URL for a
+   *     DNS-over-TLS server, or several such URLs separated by whitespace, whose servers will
+   *     share the queries.
+   * @return A connection to the server, or null if the URL is invalid or the server's address is
+   *     unknown.  The server name is resolved in the background, unless the server has no built-in
+   *     or stored addresses.  For several servers, null only if none of them is usable.  If a
+   *     Race has just found that this server works, the connection that it used is returned.
+   */
+  public ServerConnection get(String url) {
+    ServerConnection warm = claimWarmConnection(url);
+    if (warm != null) {
+      return warm;
+    }
+    if (CompositeServerConnection.isComposite(url)) {
+      return getComposite(url);
+    }
+    final int index = getServerIndex(url);
+    final String host = getHost(url);
+    if (host == null) {
+      Log.w(LOG_TAG, "No host in server URL");
+      return null;
+    }
+
+    // Start from the built-in and stored addresses, so that the connection doesn't wait for the
+    // system resolver.  The server name is only resolved first if there are none, e.g. the first
+    // time that a custom server is used.
+    Set<InetAddress> ips = new LinkedHashSet<>(getKnownIps(index));
+    BootstrapCache.Entry entry = bootstrapCache.get(host);
+    boolean refresh = true;
+    if (entry != null) {
+      ips.addAll(entry.ips);
+      refresh = entry.isStale(System.currentTimeMillis());
+    }
+    if (ips.isEmpty()) {
+      ips.addAll(bootstrapCache.resolve(host));
+      refresh = false;
+    }
+
+    final ServerConnection connection = get(url, index, ips);
+    if (connection != null && refresh) {
+      bootstrapCache.refreshInBackground(host, new BootstrapCache.Listener() {
+        @Override
+        public void onRefreshed(List<InetAddress> resolvedIps) {
+          // Other connection types pick up the new addresses the next time they are created.
+          if (connection instanceof StandardServerConnection) {
+            Set<InetAddress> allIps = new LinkedHashSet<>(getKnownIps(index));
+            allIps.addAll(resolvedIps);
+            ((StandardServerConnection) connection).updateIps(allIps);
           }
         }
-        return ret;
+      });
+    }
+    return connection;
+  }
+
+  private ServerConnection get(String url, int index, Collection<InetAddress> ips) {
+    if (DotServerConnection.isDotUrl(url)) {
+      return DotServerConnection.get(url, ips, getTlsSessionCache(context));
+    }
+    // Servers that use GET keep the OkHttp client, for its HTTP cache.
+    if (!usesGet(index) && PersistentState.getMultiplexedClientEnabled(context)) {
+      ServerConnection connection =
+          Http2ServerConnection.get(url, ips, getTlsSessionCache(context));
+      if (connection != null) {
+        return connection;
       }
     }
-    return new ArrayList<>();
+    Cache cache = usesGet(index) ? getHttpCache(context) : null;
+    return StandardServerConnection.get(url, ips, cache, getTlsSessionCache(context),
+        makeDispatcher(index));
   }
 
-  public ServerConnection get(String url) {
-    return StandardServerConnection.get(url, getKnownIps(url));
+  private ServerConnection getComposite(String url) {
+    List<ServerConnection> upstreams = new ArrayList<>();
+    for (String upstreamUrl : CompositeServerConnection.split(url)) {
+      ServerConnection upstream = get(upstreamUrl);
+      if (upstream != null) {
+        upstreams.add(upstream);
+      } else {
+        Log.w(LOG_TAG, "Skipping unusable upstream server");
+      }
+    }
+    if (upstreams.isEmpty()) {
+      return null;
+    }
+    return new CompositeServerConnection(url, upstreams);
   }
 }
-
@@ -0,0 +1,211 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when an A query that misses the cache should also send the AAAA and HTTPS queries for
+ * the same name, which dual-stack clients almost always send right after it.  The speculative
+ * responses go into the cache, so the client's own queries are answered locally.
+ *
+ * A speculative query counts as used if the client sends the same question within USE_WINDOW_MS,
+ * and as wasted otherwise.  A sibling type that is rarely used, e.g. HTTPS on Android versions
+ * that never query it, is only sent for one trigger in PROBE_INTERVAL, so that its usefulness can
+ * still be re-measured.  Triggers are limited to MAX_PER_WINDOW per WINDOW_MS.
+ *
+ * All times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+public class SiblingPrefetch {
+  static final short TYPE_A = 1;
+  static final short TYPE_AAAA = 28;
+  static final short TYPE_HTTPS = 65;
+  private static final short CLASS_IN = 1;
+  static final short[] SIBLING_TYPES = {TYPE_AAAA, TYPE_HTTPS};
+
+  static final int MAX_PER_WINDOW = 30;
+  static final long WINDOW_MS = 60 * 1000;
+  // The rate limit also bounds the number of speculative queries awaiting a client query.
+  static final long USE_WINDOW_MS = 10 * 1000;
+
+  // Usefulness is an exponentially weighted average of outcomes, 1 for used and 0 for wasted.
+  static final double MIN_USEFULNESS = 0.2;
+  private static final double USEFULNESS_WEIGHT = 0.1;
+  static final int PROBE_INTERVAL = 10;
+
+  // A speculative query awaiting the client's query.
+  private static class Pending {
+    final short type;
+    final long sent;
+
+    Pending(short type, long sent) {
+      this.type = type;
+      this.sent = sent;
+    }
+  }
+
+  // Insertion-ordered, so iteration starts at the oldest query.
+  private final LinkedHashMap<String, Pending> outstanding = new LinkedHashMap<>();
+  private final Map<Short, Double> usefulness = new HashMap<>();
+  // Number of triggers on which each unuseful type was skipped.
+  private final Map<Short, Integer> skips = new HashMap<>();
+  private long windowStart = 0;
+  private int triggersInWindow = 0;
+
+  private long triggers = 0;
+  private long rateLimited = 0;
+  private long fetches = 0;
+  private long used = 0;
+  private long wasted = 0;
+
+  private static String makeKey(String name, short type, short qclass) {
+    return name + "/" + type + "/" + qclass;
+  }
+
+  /**
+   * @return True if a cache miss on |query| should prefetch its siblings.
+   */
+  static boolean isTrigger(DnsUdpQuery query) {
+    return query.type == TYPE_A && query.qclass == CLASS_IN;
+  }
+
+  private double getUsefulness(short type) {
+    Double value = usefulness.get(type);
+    return value == null ? 1 : value;
+  }
+
+  private void recordOutcome(short type, boolean wasUsed) {
+    if (wasUsed) {
+      ++used;
+    } else {
+      ++wasted;
+    }
+    double sample = wasUsed ? 1 : 0;
+    usefulness.put(type, getUsefulness(type) * (1 - USEFULNESS_WEIGHT) +
+        sample * USEFULNESS_WEIGHT);
+  }
+
+  // Counts speculative queries that went unused for USE_WINDOW_MS as wasted.
+  private void expire(long now) {
+    Iterator<Pending> it = outstanding.values().iterator();
+    while (it.hasNext()) {
+      Pending pending = it.next();
+      if (now - pending.sent < USE_WINDOW_MS) {
+        break;
+      }
+      it.remove();
+      recordOutcome(pending.type, false);
+    }
+  }
+
+  /**
+   * Must be called for every client query, before the cache is consulted, so that a speculative
+   * query that it matches is counted as used.
+   */
+  public synchronized void onQuery(DnsUdpQuery query, long now) {
+    expire(now);
+    Pending pending = outstanding.remove(makeKey(query.name, query.type, query.qclass));
+    if (pending != null) {
+      recordOutcome(pending.type, true);
+    }
+  }
+
+  /**
+   * Consumes one unit of the rate limit, if available, and records the speculative queries that
+   * the caller should send.
+   * @param trigger A query for which isTrigger() is true.
+   * @param uncached The sibling types that have no cached answer for |trigger|'s name.
+   * @return The types to send, which may be empty.
+   */
+  public synchronized List<Short> choose(DnsUdpQuery trigger, List<Short> uncached, long now) {
+    List<Short> chosen = new ArrayList<>();
+    if (uncached.isEmpty()) {
+      return chosen;
+    }
+    if (now - windowStart >= WINDOW_MS) {
+      windowStart = now;
+      triggersInWindow = 0;
+    }
+    if (triggersInWindow >= MAX_PER_WINDOW) {
+      ++rateLimited;
+      return chosen;
+    }
+    ++triggersInWindow;
+    ++triggers;
+    for (short type : uncached) {
+      if (getUsefulness(type) < MIN_USEFULNESS) {
+        Integer skipped = skips.get(type);
+        int count = skipped == null ? 1 : skipped + 1;
+        skips.put(type, count);
+        if (count % PROBE_INTERVAL != 0) {
+          continue;
+        }
+      }
+      String key = makeKey(trigger.name, type, trigger.qclass);
+      if (outstanding.containsKey(key)) {
+        continue;
+      }
+      outstanding.put(key, new Pending(type, now));
+      ++fetches;
+      chosen.add(type);
+    }
+    expire(now);
+    return chosen;
+  }
+
+  /**
+   * @return The number of cache misses that sent speculative queries, or would have, if not for
+   *     the usefulness of each type.
+   */
+  public synchronized long getTriggerCount() {
+    return triggers;
+  }
+
+  /**
+   * @return The number of cache misses that were not allowed to send speculative queries.
+   */
+  public synchronized long getRateLimitedCount() {
+    return rateLimited;
+  }
+
+  public synchronized long getFetchCount() {
+    return fetches;
+  }
+
+  public synchronized long getUsedCount() {
+    return used;
+  }
+
+  public synchronized long getWastedCount() {
+    return wasted;
+  }
+
+  /**
+   * @return The fraction of speculative queries with a known outcome that were wasted.
+   */
+  public synchronized double getWastedRatio() {
+    long outcomes = used + wasted;
+    return outcomes == 0 ? 0 : (double) wasted / outcomes;
+  }
+}
@@ -15,26 +15,43 @@ limitations under the License.
 */
 package app.intra.net.doh;
 
+import android.os.SystemClock;
 import android.util.Log;
 import app.intra.BuildConfig;
 import app.intra.net.dns.DnsUdpQuery;
+import app.intra.sys.LogWrapper;
+import app.intra.sys.SafeTimerTask;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.ByteString;
 
 /**
  * Allows the caller to perform DNS-over-HTTPS queries using the IETF draft protocol.
@@ -43,27 +60,234 @@ public class StandardServerConnection implements ServerConnection {
   // The class name is longer than Android's log tag length limit.
   private static final String LOG_TAG = "StandardDOH";
 
+  private static final MediaType DNS_MESSAGE = MediaType.parse("application/dns-message");
+
+  // Detect blocked connections.  TODO: tune.
+  private static final int CONNECT_TIMEOUT_MS = 3000;
+
+  // Fires hedges for slow queries, keepalive pings, and health checks.  Shared by all connections.
+  private static final Timer timer = new Timer("StandardDOH", true);
+
+  // A query for the root zone's A record, which doesn't exist.  The NODATA response is small, and
+  // every resolver can answer it from cache.  Used for keepalive pings and warm-up.
+  private static final byte[] PING_QUERY = {
+      0, 0,     // [0-1]   query ID
+      1, 0,     // [2-3]   flags, RD=1
+      0, 1,     // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,     // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,     // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,     // [10-11] ARCOUNT (number of additional records) = 0
+      0,        // The root name
+      0, 1,     // QTYPE = A
+      0, 1      // QCLASS = IN (Internet)
+  };
+
   private final String url;
-  private OkHttpClient client;
-  private final Collection<InetAddress> ips;
+  // The clients are never replaced, so that reset() doesn't discard warm connections and TLS
+  // sessions.  Broken connections are closed individually by |connectionMonitor|.
+  private final OkHttpClient client;
+  // Sends hedges.  It has its own connection pool and address order, so that the hedge goes
+  // over a different connection, to a different IP, than the original query.
+  private final OkHttpClient hedgeClient;
+  private final ConnectionMonitor connectionMonitor;
+  private final DispatchStats dispatchStats;
+  private final Keepalive keepalive = new Keepalive();
+  // The next keepalive check, or null if none is scheduled.  Guarded by |keepalive|.
+  private TimerTask keepaliveTask = null;
+  // Health checks that are scheduled but haven't started.  Guarded by |keepalive|.
+  private final Set<TimerTask> healthCheckTasks = new HashSet<>();
+  // True once close() has been called, after which no background work is scheduled.  Guarded by
+  // |keepalive|.
+  private boolean closed = false;
+  private final HedgePolicy hedgePolicy = new HedgePolicy();
+  // Measured performance of each server IP.  Kept across resets.
+  private final EndpointStats endpointStats = new EndpointStats();
+  private final HappyEyeballs happyEyeballs;
+  // Keeps broken server IPs out of new connections.  Kept across resets.
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+  // The server IP that most recently answered a query on |client|, or null if none has.
+  private volatile String lastPrimaryIp = null;
+  // The server's addresses, in interleaved IPv6/IPv4 order.  Replaced by updateIps().
+  private volatile List<InetAddress> ips;
+  // If non-null, queries are sent using GET so that responses can be stored in this cache.
+  private final Cache cache;
+  // May be null, in which case TLS sessions are not shared with other connections.
+  private final TlsSessionCache tlsSessions;
 
+  // Returns the server's addresses, fastest first, omitting any that |circuitBreaker| has opened,
+  // unless all of them are open.  Addresses that haven't been measured yet are tried in
+  // interleaved IPv6/IPv4 order.  If the first address isn't known to be reachable, the winner of
+  // the most recent Happy Eyeballs race on this network goes first instead, and if there is no
+  // winner yet, a race starts in the background for later lookups.  Racing inline would cost a
+  // throwaway TCP connection, because OkHttp can't adopt the winning socket.
   private class PinnedDns implements Dns {
 
-    private final List<InetAddress> ips;
+    @Override
+    public List<InetAddress> lookup(String hostname) {
+      List<InetAddress> ordered = endpointStats.order(getAvailable(ips));
+      if (ordered.size() > 1 && !endpointStats.isReachable(ordered.get(0).getHostAddress())) {
+        if (!happyEyeballs.hasWinner()) {
+          happyEyeballs.raceInBackground(happyEyeballs.interleave(ordered), null);
+        }
+        ordered = happyEyeballs.promoteWinner(ordered);
+      }
+      return ordered;
+    }
+
+  }
 
-    PinnedDns(Collection<InetAddress> ips) {
-      DualStackResult result = new DualStackResult(ips);
-      this.ips = result.getInterleaved();
+  private List<InetAddress> getAvailable(List<InetAddress> ips) {
+    List<InetAddress> available = new ArrayList<>();
+    for (InetAddress ip : ips) {
+      if (circuitBreaker.isAvailable(ip.getHostAddress())) {
+        available.add(ip);
+      }
     }
+    // Trying a broken address is better than failing without trying at all.
+    return available.isEmpty() ? ips : available;
+  }
+
+  // Returns the same addresses as PinnedDns, except that the address currently used by |client|
+  // is moved to the end of the list.
+  private class HedgeDns extends PinnedDns {
 
     @Override
     public List<InetAddress> lookup(String hostname) {
-      return ips;
+      List<InetAddress> ordered = super.lookup(hostname);
+      if (ordered.isEmpty()) {
+        return ordered;
+      }
+      String avoid = lastPrimaryIp;
+      if (avoid == null) {
+        // |client| is most likely using the first address.
+        avoid = ordered.get(0).getHostAddress();
+      }
+      for (int i = 0; i < ordered.size(); ++i) {
+        if (ordered.get(i).getHostAddress().equals(avoid)) {
+          ordered.add(ordered.remove(i));
+          break;
+        }
+      }
+      return ordered;
+    }
+  }
+
+  // Delivers the first response from either the original call or its hedge, and cancels the
+  // other.  A failure is only delivered once every call that was sent has failed.
+  private class HedgedCall implements Callback {
+    private final Callback cb;
+    private final Request request;
+    private final Call primary;
+    private final long startTime = SystemClock.elapsedRealtime();
+    private Call hedge = null;
+    private TimerTask hedgeTask = null;
+    private int outstanding = 1;
+    private boolean done = false;
+
+    HedgedCall(Callback cb, Request request, Call primary) {
+      this.cb = cb;
+      this.request = request;
+      this.primary = primary;
+    }
+
+    synchronized void scheduleHedge(long delayMs) {
+      if (done) {
+        return;
+      }
+      hedgeTask = new SafeTimerTask() {
+        @Override
+        protected void runSafely() {
+          sendHedge();
+        }
+      };
+      timer.schedule(hedgeTask, delayMs);
+    }
+
+    private synchronized void sendHedge() {
+      if (done || !hedgePolicy.tryHedge()) {
+        return;
+      }
+      LogWrapper.log(Log.INFO, LOG_TAG, "Hedging slow query");
+      hedge = hedgeClient.newCall(request);
+      ++outstanding;
+      hedge.enqueue(this);
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      synchronized (this) {
+        --outstanding;
+        if (done || outstanding > 0) {
+          // Either the result has already been delivered, or the other call may yet succeed.
+          return;
+        }
+        done = true;
+        if (hedgeTask != null) {
+          hedgeTask.cancel();
+        }
+      }
+      cb.onFailure(call, e);
     }
 
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      Call loser;
+      synchronized (this) {
+        --outstanding;
+        if (done) {
+          response.close();
+          return;
+        }
+        done = true;
+        if (hedgeTask != null) {
+          hedgeTask.cancel();
+        }
+        loser = call == primary ? hedge : primary;
+      }
+      if (loser != null) {
+        loser.cancel();
+      }
+      if (call == primary) {
+        String serverIp = response.header(IpTagInterceptor.HEADER_NAME);
+        if (serverIp != null) {
+          lastPrimaryIp = serverIp;
+        }
+      } else {
+        hedgePolicy.onHedgeWon();
+      }
+      hedgePolicy.recordLatency(SystemClock.elapsedRealtime() - startTime);
+      cb.onResponse(call, response);
+    }
   }
 
+  /**
+   * Resolves the server name synchronously, and uses the result in addition to |fixedIps|.
+   */
   public static StandardServerConnection get(String url, Collection<InetAddress> fixedIps) {
+    Set<InetAddress> allIps = new LinkedHashSet<>(fixedIps);
+    HttpUrl parsedUrl = HttpUrl.parse(url);
+    if (parsedUrl != null) {
+      try {
+        allIps.addAll(Arrays.asList(InetAddress.getAllByName(parsedUrl.host())));
+      } catch (UnknownHostException e) {
+        Log.i(LOG_TAG, "Couldn't resolve server name: " + parsedUrl.host());
+      }
+    }
+    return get(url, allIps, null, null, new Dispatcher());
+  }
+
+  /**
+   * @param ips The server's addresses.  The server name is not resolved, so if this is empty,
+   *     there is no connection.
+   * @param cache If non-null, queries are sent using the RFC 8484 GET method, and responses are
+   *     cached in |cache| according to their Cache-Control headers.
+   * @param tlsSessions If non-null, TLS sessions are shared with other connections through this
+   *     cache.
+   * @param dispatcher Limits the number of concurrent queries, and provides the threads that run
+   *     them.  Must not be shared with other connections.
+   */
+  public static StandardServerConnection get(String url, Collection<InetAddress> ips,
+      Cache cache, TlsSessionCache tlsSessions, Dispatcher dispatcher) {
     URL parsedUrl;
     try {
       parsedUrl = new URL(url);
@@ -74,40 +298,265 @@ public class StandardServerConnection implements ServerConnection {
     if (!"https".equals(parsedUrl.getProtocol())) {
       return null;
     }
-    Set<InetAddress> allIps = new HashSet<>(fixedIps);
-    try {
-      List<InetAddress> resolvedIps = Arrays.asList(InetAddress.getAllByName(parsedUrl.getHost()));
-      allIps.addAll(resolvedIps);
-    } catch (UnknownHostException e) {
-      Log.i(LOG_TAG, "Couldn't resolve server name: " + parsedUrl.getHost());
-    }
-    if (allIps.isEmpty()) {
+    if (ips.isEmpty()) {
       return null;
     }
-    return new StandardServerConnection(url, allIps);
+    return new StandardServerConnection(url, ips, cache, tlsSessions, dispatcher);
   }
 
-  private StandardServerConnection(String url, Collection<InetAddress> ips) {
+  private StandardServerConnection(String url, Collection<InetAddress> ips, Cache cache,
+      TlsSessionCache tlsSessions, Dispatcher dispatcher) {
     this.url = url;
-    this.ips = ips;
+    this.ips = new DualStackResult(ips).getInterleaved();
+    this.cache = cache;
+    this.tlsSessions = tlsSessions;
+    happyEyeballs = new HappyEyeballs(HttpUrl.get(url).port(), CONNECT_TIMEOUT_MS, endpointStats);
 
-    reset();
+    dispatchStats = new DispatchStats(dispatcher);
+    ConnectionPool pool = new ConnectionPool();
+    ConnectionPool hedgePool = new ConnectionPool();
+    connectionMonitor = new ConnectionMonitor(keepalive, pool, hedgePool);
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+        .dns(new PinnedDns())
+        .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        .connectionPool(pool)
+        .addNetworkInterceptor(new IpTagInterceptor(endpointStats))
+        .dispatcher(dispatcher)
+        .eventListenerFactory(new EndpointEventListener.Factory(
+            endpointStats, connectionMonitor, tlsSessions, dispatchStats, circuitBreaker))
+        .cache(cache);
+    if (tlsSessions != null) {
+      builder.sslSocketFactory(tlsSessions.getSocketFactory(), tlsSessions.getTrustManager());
+    }
+    client = builder.build();
+    // Shares the dispatcher with |client|.
+    hedgeClient = client.newBuilder()
+        .dns(new HedgeDns())
+        .connectionPool(hedgePool)
+        .build();
+
+    circuitBreaker.addListener(new CircuitBreaker.Listener() {
+      @Override
+      public void onStateChanged(String ip, CircuitBreaker.State from, CircuitBreaker.State to) {
+        LogWrapper.log(Log.INFO, LOG_TAG, "Endpoint " + ip + ": " + from + " -> " + to);
+        if (to == CircuitBreaker.State.OPEN) {
+          scheduleHealthCheck(ip);
+        }
+      }
+    });
   }
 
   @Override
   public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
-    // Zero out the ID
+    // Zero out the ID.  This is also what makes GET responses cacheable, because otherwise
+    // every query for the same name would have a different URL.
     data[0] = 0;
     data[1] = 0;
+    Request request = buildRequest(data).build();
+
+    keepalive.onQuery(SystemClock.elapsedRealtime());
+    scheduleKeepalive();
+    hedgePolicy.onQuery();
+    Call call = client.newCall(request);
+    HedgedCall hedgedCall = new HedgedCall(cb, request, call);
+    call.enqueue(hedgedCall);
+    if (ips.size() > 1) {
+      hedgedCall.scheduleHedge(hedgePolicy.getDelayMs());
+    }
+  }
 
-    MediaType mediaType = MediaType.parse("application/dns-message");
-    RequestBody body = RequestBody.create(mediaType, data);
-    Request request = new Request.Builder()
-        .url(url)
-        .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME))
-        .post(body)
+  private Request.Builder buildRequest(byte[] data) {
+    Request.Builder builder = new Request.Builder()
+        .header("User-Agent", String.format("Jigsaw-DNS/%s", BuildConfig.VERSION_NAME));
+    if (cache != null) {
+      builder.url(getQueryUrl(url, data))
+          .header("Accept", DNS_MESSAGE.toString())
+          .get();
+    } else {
+      builder.url(url)
+          .post(RequestBody.create(DNS_MESSAGE, data));
+    }
+    return builder;
+  }
+
+  /**
+   * Opens a connection to the best server address, if there isn't one already, so that the next
+   * query doesn't have to wait for it.  The addresses are raced first, on the new network, so that
+   * the connection goes to the winner.
+   */
+  @Override
+  public void warmUp() {
+    if (isClosed()) {
+      return;
+    }
+    keepalive.onNetworkChanged();
+    happyEyeballs.onNetworkChanged();
+    Runnable ping = new Runnable() {
+      @Override
+      public void run() {
+        sendPing();
+      }
+    };
+    if (!happyEyeballs.raceInBackground(happyEyeballs.interleave(getAvailable(ips)), ping)) {
+      ping.run();
+    }
+  }
+
+  // Sends a ping over the connection that queries would use, or opens one.  The ping is a minimal
+  // DNS query rather than an HTTP/2 PING frame (OkHttpClient.Builder.pingInterval), because it
+  // should exercise the whole path that queries take, including the server's resolver, and because
+  // it must only run while Keepalive says the device is active, which a fixed interval can't
+  // follow.  The outcome is reported to |keepalive| by EndpointEventListener.
+  private void sendPing() {
+    keepalive.onPingSent(SystemClock.elapsedRealtime());
+    Request request = buildRequest(PING_QUERY.clone())
+        .tag(Keepalive.TAG)
+        // A response from the HTTP cache wouldn't exercise the connection.
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    client.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        LogWrapper.log(Log.INFO, LOG_TAG, "Ping failed: " + e);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        response.close();
+      }
+    });
+  }
+
+  private boolean isClosed() {
+    synchronized (keepalive) {
+      return closed;
+    }
+  }
+
+  // Schedules the next keepalive check, unless one is already scheduled, the device is idle, or
+  // the connection is closed.
+  private void scheduleKeepalive() {
+    synchronized (keepalive) {
+      if (closed || keepaliveTask != null) {
+        return;
+      }
+      long delay = keepalive.getDelay(SystemClock.elapsedRealtime());
+      if (delay < 0) {
+        return;
+      }
+      keepaliveTask = new SafeTimerTask() {
+        @Override
+        protected void runSafely() {
+          synchronized (keepalive) {
+            keepaliveTask = null;
+          }
+          // The connection may have carried queries since this check was scheduled.
+          if (keepalive.getDelay(SystemClock.elapsedRealtime()) == 0) {
+            sendPing();
+          }
+          scheduleKeepalive();
+        }
+      };
+      timer.schedule(keepaliveTask, delay);
+    }
+  }
+
+  /**
+   * Replaces the server's addresses, e.g. after a background refresh of a BootstrapCache.  New
+   * connections use the new addresses.  Existing connections are unaffected.
+   */
+  void updateIps(Collection<InetAddress> ips) {
+    if (!ips.isEmpty()) {
+      this.ips = new DualStackResult(ips).getInterleaved();
+    }
+  }
+
+  // Checks |ip| once it has been open for its current interval, unless the connection is closed
+  // by then.
+  private void scheduleHealthCheck(final String ip) {
+    synchronized (keepalive) {
+      if (closed) {
+        return;
+      }
+      TimerTask task = new SafeTimerTask() {
+        @Override
+        protected void runSafely() {
+          synchronized (keepalive) {
+            if (!healthCheckTasks.remove(this)) {
+              // Cancelled by close().
+              return;
+            }
+          }
+          if (circuitBreaker.startHealthCheck(ip)) {
+            checkHealth(ip);
+          }
+        }
+      };
+      healthCheckTasks.add(task);
+      timer.schedule(task, circuitBreaker.getOpenMs(ip));
+    }
+  }
+
+  // Sends a ping to |ip| alone, on a new connection, and reports the outcome to |circuitBreaker|.
+  // The check's own events aren't reported by EndpointEventListener, so that they are only
+  // counted once.
+  private void checkHealth(final String ip) {
+    final InetAddress address;
+    try {
+      address = InetAddress.getByName(ip);
+    } catch (UnknownHostException e) {
+      // Not possible for a literal address.
+      circuitBreaker.onFailure(ip);
+      return;
+    }
+    final ConnectionPool checkPool = new ConnectionPool();
+    OkHttpClient checkClient = client.newBuilder()
+        .dns(new Dns() {
+          @Override
+          public List<InetAddress> lookup(String hostname) {
+            return Collections.singletonList(address);
+          }
+        })
+        .connectionPool(checkPool)
+        .eventListener(EventListener.NONE)
+        .build();
+    Request request = buildRequest(PING_QUERY.clone())
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    checkClient.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        LogWrapper.log(Log.INFO, LOG_TAG, "Health check failed: " + e);
+        circuitBreaker.onFailure(ip);
+        checkPool.evictAll();
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        if (response.isSuccessful()) {
+          circuitBreaker.onSuccess(ip);
+        } else {
+          circuitBreaker.onFailure(ip);
+        }
+        response.close();
+        checkPool.evictAll();
+      }
+    });
+  }
+
+  /**
+   * @return The RFC 8484 GET URL for |data|, which is passed as unpadded base64url in the "dns"
+   *     query parameter.
+   */
+  static HttpUrl getQueryUrl(String url, byte[] data) {
+    String encoded = ByteString.of(data).base64Url();
+    int end = encoded.length();
+    while (end > 0 && encoded.charAt(end - 1) == '=') {
+      --end;
+    }
+    return HttpUrl.get(url).newBuilder()
+        .addQueryParameter("dns", encoded.substring(0, end))
         .build();
-    client.newCall(request).enqueue(cb);
   }
 
   @Override
@@ -115,22 +564,88 @@ public class StandardServerConnection implements ServerConnection {
     return url;
   }
 
+  /**
+   * @return The hedging state, including hedge rate metrics, for this connection.
+   */
+  public HedgePolicy getHedgePolicy() {
+    return hedgePolicy;
+  }
+
+  /**
+   * @return The measured performance of each of this server's IP addresses.
+   */
+  public EndpointStats getEndpointStats() {
+    return endpointStats;
+  }
+
+  /**
+   * @return The connection racer, including per-address-family success statistics.
+   */
+  public HappyEyeballs getHappyEyeballs() {
+    return happyEyeballs;
+  }
+
+  /**
+   * @return The shared TLS session cache, including resumption metrics, or null if there is none.
+   */
+  public TlsSessionCache getTlsSessionCache() {
+    return tlsSessions;
+  }
+
+  /**
+   * @return Live queue and concurrency counts, and queueing delay metrics.
+   */
+  public DispatchStats getDispatchStats() {
+    return dispatchStats;
+  }
+
+  /**
+   * @return The keepalive schedule, including ping round trip time metrics.
+   */
+  public Keepalive getKeepalive() {
+    return keepalive;
+  }
+
+  /**
+   * @return The circuit breaker state of each server IP, and counts of its transitions.
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * @return Counts of connection resets, by cause, and the cold connection rate.
+   */
+  public ConnectionMonitor getConnectionMonitor() {
+    return connectionMonitor;
+  }
+
+  /**
+   * Closes all connections, e.g. because they are bound to a network that is no longer active.
+   * Queries that are waiting for a connection are not cancelled, and will use a new one.
+   */
   @Override
   public void reset() {
-    OkHttpClient oldClient = client;
-    client = new OkHttpClient.Builder()
-        .dns(new PinnedDns(ips))
-        .connectTimeout(3, TimeUnit.SECONDS) // Detect blocked connections.  TODO: tune.
-        .addNetworkInterceptor(new IpTagInterceptor())
-        .build();
-    if (oldClient != null) {
-      for (Call call : oldClient.dispatcher().queuedCalls()) {
-        call.cancel();
+    connectionMonitor.reset(ConnectionMonitor.ResetCause.EXPLICIT);
+  }
+
+  /**
+   * Cancels the keepalive pings and health checks, and closes all connections, including those
+   * with queries in flight.
+   */
+  @Override
+  public void close() {
+    synchronized (keepalive) {
+      closed = true;
+      if (keepaliveTask != null) {
+        keepaliveTask.cancel();
+        keepaliveTask = null;
       }
-      for (Call call : oldClient.dispatcher().runningCalls()) {
-        call.cancel();
+      for (TimerTask task : healthCheckTasks) {
+        task.cancel();
       }
+      healthCheckTasks.clear();
     }
-
+    connectionMonitor.reset(ConnectionMonitor.ResetCause.CLOSED);
   }
 }
@@ -0,0 +1,158 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.util.Log;
+import app.intra.sys.LogWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * TLS client contexts whose sessions are shared by every connection that uses them, so that
+ * handshakes after a reset, a VPN restart, or a server probe can resume an earlier session
+ * instead of paying for a full handshake.
+ *
+ * Sessions are also stored on disk, keyed by server host and port, so that they survive process
+ * restarts, using the platform's SSLSessionCache through SSLCertificateSocketFactory.  That
+ * factory completes the handshake and checks the hostname as soon as it creates a socket, before
+ * ALPN can be configured, so it would restrict DoH connections to HTTP/1.1.  It is therefore only
+ * used by connections that don't need ALPN, through getPersistentSocketFactory().  Connections
+ * that negotiate HTTP/2 share their sessions in memory, through getSocketFactory().
+ *
+ * Thread-safe.
+ */
+public class TlsSessionCache {
+  private static final String LOG_TAG = "TlsSessionCache";
+
+  // Holds the persistent sessions, in the cache directory, which is not backed up.
+  private static final String DIRECTORY = "tls_sessions";
+  // The same as the connect timeout of the connections that use it.
+  private static final int HANDSHAKE_TIMEOUT_MS = 3000;
+
+  private final SSLSocketFactory socketFactory;
+  private final X509TrustManager trustManager;
+  private final SSLSocketFactory persistentSocketFactory;
+
+  private int handshakes = 0;
+  private int resumptions = 0;
+
+  // Package-private for testing.
+  TlsSessionCache(SSLSocketFactory socketFactory, X509TrustManager trustManager,
+      SSLSocketFactory persistentSocketFactory) {
+    this.socketFactory = socketFactory;
+    this.trustManager = trustManager;
+    this.persistentSocketFactory = persistentSocketFactory;
+  }
+
+  /**
+   * @return A new cache, or null if the TLS context could not be initialized.
+   */
+  static TlsSessionCache create(Context context) {
+    X509TrustManager trustManager = null;
+    SSLContext sslContext;
+    try {
+      TrustManagerFactory factory =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      factory.init((KeyStore) null);
+      for (TrustManager manager : factory.getTrustManagers()) {
+        if (manager instanceof X509TrustManager) {
+          trustManager = (X509TrustManager) manager;
+          break;
+        }
+      }
+      if (trustManager == null) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "No X509TrustManager");
+        return null;
+      }
+      sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, new TrustManager[]{trustManager}, null);
+    } catch (GeneralSecurityException e) {
+      LogWrapper.logException(e);
+      return null;
+    }
+    SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+    SSLSocketFactory persistentSocketFactory;
+    try {
+      SSLSessionCache sessions = new SSLSessionCache(new File(context.getCacheDir(), DIRECTORY));
+      persistentSocketFactory =
+          SSLCertificateSocketFactory.getDefault(HANDSHAKE_TIMEOUT_MS, sessions);
+    } catch (IOException e) {
+      LogWrapper.log(Log.INFO, LOG_TAG, "TLS sessions will not be persisted: " + e);
+      persistentSocketFactory = socketFactory;
+    }
+    return new TlsSessionCache(socketFactory, trustManager, persistentSocketFactory);
+  }
+
+  /**
+   * @return A factory for connections that configure ALPN before the handshake.  Its sessions are
+   *     kept in memory.
+   */
+  SSLSocketFactory getSocketFactory() {
+    return socketFactory;
+  }
+
+  X509TrustManager getTrustManager() {
+    return trustManager;
+  }
+
+  /**
+   * @return A factory whose sessions are also stored on disk.  Its sockets may have completed the
+   *     handshake, including hostname verification, when they are returned.
+   */
+  SSLSocketFactory getPersistentSocketFactory() {
+    return persistentSocketFactory;
+  }
+
+  /**
+   * Records a completed TLS handshake.  A resumed session keeps the creation time of the session
+   * that it resumes, so a session that was created before the handshake started must have been
+   * resumed.
+   * @param sessionCreationTime From SSLSession.getCreationTime()
+   * @param handshakeStart The wall-clock time when the handshake started
+   */
+  synchronized void recordHandshake(long sessionCreationTime, long handshakeStart) {
+    ++handshakes;
+    // Some implementations only report the creation time to the second.
+    if (sessionCreationTime < handshakeStart - handshakeStart % 1000) {
+      ++resumptions;
+    }
+  }
+
+  public synchronized int getHandshakeCount() {
+    return handshakes;
+  }
+
+  public synchronized int getResumptionCount() {
+    return resumptions;
+  }
+
+  /**
+   * @return The fraction of TLS handshakes that resumed an existing session.
+   */
+  public synchronized double getResumptionRate() {
+    return handshakes == 0 ? 0 : (double) resumptions / handshakes;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import android.net.SSLCertificateSocketFactory;
+import android.os.Build;
+import java.util.Collections;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * TLS setup for connections that are made without OkHttp, using only public APIs.
+ */
+final class TlsSockets {
+  private TlsSockets() {}
+
+  /**
+   * Enables SNI for |host| and session tickets on |socket|, before the handshake.
+   */
+  static void configure(SSLSocket socket, String host) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      SSLParameters parameters = socket.getSSLParameters();
+      parameters.setServerNames(Collections.<SNIServerName>singletonList(new SNIHostName(host)));
+      socket.setSSLParameters(parameters);
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+      SSLCertificateSocketFactory factory =
+          (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
+      try {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+          factory.setHostname(socket, host);
+        }
+        factory.setUseSessionTickets(socket, true);
+      } catch (IllegalArgumentException e) {
+        // Not a platform socket, e.g. in tests.  It keeps its defaults.
+      }
+    }
+  }
+
+  /**
+   * @return True if ALPN is available through public APIs, i.e. on API 29 and later.
+   */
+  static boolean supportsAlpn() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+  }
+
+  /**
+   * Offers |protocols| with ALPN on |socket|, before the handshake.  Requires supportsAlpn().
+   */
+  static void setApplicationProtocols(SSLSocket socket, String... protocols) {
+    SSLParameters parameters = socket.getSSLParameters();
+    parameters.setApplicationProtocols(protocols);
+    socket.setSSLParameters(parameters);
+  }
+
+  /**
+   * @throws SSLPeerUnverifiedException if the certificate of |socket|, which has completed the
+   *     handshake, is not valid for |host| according to |verifier|.
+   */
+  static void verifyHostname(SSLSocket socket, String host, HostnameVerifier verifier)
+      throws SSLPeerUnverifiedException {
+    if (!verifier.verify(host, socket.getSession())) {
+      throw new SSLPeerUnverifiedException("Hostname not verified: " + host);
+    }
+  }
+}
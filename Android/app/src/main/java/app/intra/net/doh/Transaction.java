@@ -30,7 +30,9 @@ public class Transaction implements Serializable {
     HTTP_ERROR,
     BAD_RESPONSE,
     INTERNAL_ERROR,
-    CANCELED
+    CANCELED,
+    // No response arrived before the query's deadline.
+    TIMEOUT
   }
 
   public Transaction(DnsUdpQuery query) {
@@ -47,4 +49,6 @@ public class Transaction implements Serializable {
   public byte[] response;
   public Calendar responseCalendar;
   public String serverIp;
+  // True if the response came from the local DnsCache instead of the server.
+  public boolean cacheHit;
 }
@@ -0,0 +1,174 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Chooses the upstream server for each query of a CompositeServerConnection, and records how
+ * each upstream performs.
+ *
+ * Each upstream's cost is its moving average latency, multiplied by one more than the number of
+ * queries it has outstanding, and the cheapest upstream is chosen.  This sends most queries to
+ * the fastest upstream, but spreads a burst of queries across upstreams before any of them is
+ * overloaded.  A failure counts as a sample of FAILURE_PENALTY_MS.  An upstream's latency
+ * estimate halves every HALF_LIFE_MS while it goes unused, so an upstream that was slow or
+ * failing is eventually retried.  Upstreams with no latency samples are tried first.
+ *
+ * All times are in milliseconds, per SystemClock.elapsedRealtime().
+ *
+ * Thread-safe.
+ */
+public class UpstreamBalancer {
+  // Weight of each new sample in the latency moving average.
+  private static final double ALPHA = 0.3;
+  static final long FAILURE_PENALTY_MS = 10 * 1000;
+  static final long HALF_LIFE_MS = 10 * 1000;
+
+  private static class Upstream {
+    final String url;
+    int outstanding = 0;
+    long queries = 0;
+    long failures = 0;
+    long failovers = 0;
+    // -1 if there have been no samples.
+    double averageLatencyMs = -1;
+    long lastSample = 0;
+
+    Upstream(String url) {
+      this.url = url;
+    }
+
+    double getCost(long now) {
+      if (averageLatencyMs < 0) {
+        return 0;
+      }
+      double idleHalfLives = (double) Math.max(now - lastSample, 0) / HALF_LIFE_MS;
+      return (outstanding + 1) * averageLatencyMs * Math.pow(0.5, idleHalfLives);
+    }
+
+    void addSample(double latencyMs, long now) {
+      averageLatencyMs = averageLatencyMs < 0 ? latencyMs
+          : ALPHA * latencyMs + (1 - ALPHA) * averageLatencyMs;
+      lastSample = now;
+    }
+  }
+
+  private final List<Upstream> upstreams = new ArrayList<>();
+  private long queries = 0;
+
+  UpstreamBalancer(List<String> urls) {
+    for (String url : urls) {
+      upstreams.add(new Upstream(url));
+    }
+  }
+
+  /**
+   * Chooses an upstream for a query, and counts the query as outstanding on it.
+   * @param exclude Indices of upstreams that must not be chosen, e.g. because they have already
+   *     failed this query.
+   * @param failover True if this query already failed on another upstream.
+   * @return The index of the chosen upstream, or -1 if every upstream is excluded.
+   */
+  synchronized int choose(Collection<Integer> exclude, boolean failover, long now) {
+    int best = -1;
+    double bestCost = 0;
+    for (int i = 0; i < upstreams.size(); ++i) {
+      if (exclude.contains(i)) {
+        continue;
+      }
+      Upstream upstream = upstreams.get(i);
+      double cost = upstream.getCost(now);
+      if (best < 0 || cost < bestCost ||
+          (cost == bestCost && upstream.outstanding < upstreams.get(best).outstanding)) {
+        best = i;
+        bestCost = cost;
+      }
+    }
+    if (best >= 0) {
+      Upstream chosen = upstreams.get(best);
+      ++chosen.outstanding;
+      ++chosen.queries;
+      if (failover) {
+        ++chosen.failovers;
+      } else {
+        ++queries;
+      }
+    }
+    return best;
+  }
+
+  synchronized void onSuccess(int index, long latencyMs, long now) {
+    Upstream upstream = upstreams.get(index);
+    --upstream.outstanding;
+    upstream.addSample(latencyMs, now);
+  }
+
+  synchronized void onFailure(int index, long now) {
+    Upstream upstream = upstreams.get(index);
+    --upstream.outstanding;
+    ++upstream.failures;
+    upstream.addSample(FAILURE_PENALTY_MS, now);
+  }
+
+  public synchronized int getUpstreamCount() {
+    return upstreams.size();
+  }
+
+  public synchronized String getUrl(int index) {
+    return upstreams.get(index).url;
+  }
+
+  /**
+   * @return The number of queries sent to this upstream, including failovers from others.
+   */
+  public synchronized long getQueryCount(int index) {
+    return upstreams.get(index).queries;
+  }
+
+  /**
+   * @return The number of queries that this upstream received after failing on another one.
+   */
+  public synchronized long getFailoverCount(int index) {
+    return upstreams.get(index).failovers;
+  }
+
+  public synchronized long getFailureCount(int index) {
+    return upstreams.get(index).failures;
+  }
+
+  public synchronized int getOutstandingCount(int index) {
+    return upstreams.get(index).outstanding;
+  }
+
+  /**
+   * @return The fraction of queries that were first sent to this upstream.
+   */
+  public synchronized double getShare(int index) {
+    Upstream upstream = upstreams.get(index);
+    return queries == 0 ? 0 : (double) (upstream.queries - upstream.failovers) / queries;
+  }
+
+  /**
+   * @return The moving average of this upstream's latency, counting failures as
+   *     FAILURE_PENALTY_MS, or -1 if it has answered no queries.
+   */
+  public synchronized double getAverageLatencyMs(int index) {
+    return upstreams.get(index).averageLatencyMs;
+  }
+}
@@ -96,7 +96,8 @@ class LocalhostResolver extends Thread implements ResponseWriter {
       dnsRequest.sourcePort = (short)packet.getPort();
       dnsRequest.destPort = (short)socket.getLocalPort();
 
-      Resolver.processQuery(vpnService.getServerConnection(), dnsRequest, data, this);
+      Resolver.processQuery(vpnService.getServerConnection(), vpnService.getDnsCache(),
+          dnsRequest, data, this);
     }
   }
 
@@ -121,8 +122,7 @@ class LocalhostResolver extends Thread implements ResponseWriter {
 
   @Override
   public void sendResult(DnsUdpQuery query, Transaction transaction) {
-    if (transaction.status == Transaction.Status.COMPLETE &&
-        transaction.response != null) {
+    if (transaction.response != null) {
       // Construct a reply to the query's source port.
       DatagramPacket responsePacket = new DatagramPacket(transaction.response,
           transaction.response.length, query.sourceAddress, query.sourcePort & 0xFFFF);
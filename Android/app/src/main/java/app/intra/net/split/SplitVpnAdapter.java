@@ -288,7 +288,7 @@ public class SplitVpnAdapter extends VpnAdapter implements ResponseWriter {
         dnsRequest.sourcePort = udpPacket.sourcePort;
         dnsRequest.destPort = udpPacket.destPort;
 
-        Resolver.processQuery(vpnService.getServerConnection(),
+        Resolver.processQuery(vpnService.getServerConnection(), vpnService.getDnsCache(),
             dnsRequest, udpPacket.data, this);
       } catch (Exception e) {
         if (!isInterrupted()) {
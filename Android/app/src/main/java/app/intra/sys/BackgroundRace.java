@@ -0,0 +1,196 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static app.intra.net.doh.ServerConnectionFactory.equalUrls;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.R;
+import app.intra.net.doh.Race;
+import app.intra.net.doh.RaceScheduler;
+import app.intra.net.doh.ServerConnectionFactory;
+import app.intra.net.doh.Transaction;
+import app.intra.ui.MainActivity;
+import java.util.Timer;
+
+/**
+ * Re-runs a Race among the built-in servers in the background, when a RaceScheduler says that one
+ * is due, and switches to the winner when the RaceScheduler says so.  Does nothing unless the user
+ * has opted in, because the built-in servers don't all filter the same way, or while a custom
+ * server is selected.  The switch goes through PersistentState, like a switch made by the user,
+ * IntraVpnService reuses the winner's connection, and a notification tells the user.
+ */
+class BackgroundRace {
+  private static final String LOG_TAG = "BackgroundRace";
+
+  // How often to check whether a race is due while there are no queries.
+  private static final long CHECK_INTERVAL_MS = 15 * 60 * 1000;
+
+  private static final String CHANNEL_ID = "server_switch";
+  // Only has to be unique within this app.
+  private static final int NOTIFICATION_ID = 2;
+
+  private final Context context;
+  private final String[] urls;
+  private final RaceScheduler scheduler = new RaceScheduler();
+  // Non-null between start() and stop().
+  private Timer timer = null;
+
+  BackgroundRace(Context context) {
+    this.context = context;
+    urls = context.getResources().getStringArray(R.array.urls);
+  }
+
+  RaceScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Starts the periodic checks, which let a race start while there are no queries.
+   */
+  synchronized void start() {
+    if (timer != null) {
+      return;
+    }
+    timer = new Timer(LOG_TAG, true);
+    timer.schedule(new SafeTimerTask() {
+      @Override
+      protected void runSafely() {
+        maybeRace(PersistentState.getServerUrl(context));
+      }
+    }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS);
+  }
+
+  synchronized void stop() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  /**
+   * Records a query on the active server, and starts a race if latency has degraded.  Cache hits
+   * are ignored, because they say nothing about the server.
+   * @param url The active server's URL.
+   */
+  void recordTransaction(Transaction transaction, String url) {
+    if (transaction.cacheHit) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    // Other statuses, such as TIMEOUT, carry a SERVFAIL made locally, so their latency isn't the
+    // server's.
+    if (transaction.status == Transaction.Status.COMPLETE) {
+      scheduler.recordLatency(transaction.responseTime - transaction.queryTime, now);
+    } else if (transaction.status != Transaction.Status.CANCELED) {
+      scheduler.onQuery(now);
+    }
+    maybeRace(url);
+  }
+
+  private int indexOf(String url) {
+    for (int i = 0; i < urls.length; ++i) {
+      if (equalUrls(urls[i], url)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void maybeRace(String url) {
+    if (!scheduler.isRaceCandidate(SystemClock.elapsedRealtime())) {
+      return;
+    }
+    if (!PersistentState.getAutoSwitchEnabled(context)) {
+      return;
+    }
+    final int active = indexOf(url);
+    if (active < 0) {
+      return;
+    }
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+    if (networkInfo == null || !networkInfo.isConnected()) {
+      return;
+    }
+    // Without an API to check, the network is assumed to be metered.
+    boolean unmetered = VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN
+        && !connectivityManager.isActiveNetworkMetered();
+    if (!scheduler.maybeStartRace(unmetered, SystemClock.elapsedRealtime())) {
+      return;
+    }
+    LogWrapper.log(Log.INFO, LOG_TAG, "Starting background race, p95=" + scheduler.getP95Ms());
+    new Race(new ServerConnectionFactory(context), urls, new Race.Listener() {
+      @Override
+      public void onResult(int index) {
+        if (scheduler.onRaceResult(index, active, SystemClock.elapsedRealtime())
+            // The user may have opted out during the race.
+            && PersistentState.getAutoSwitchEnabled(context)) {
+          LogWrapper.log(Log.INFO, LOG_TAG, "Switching to server " + index);
+          PersistentState.setServerUrl(context, urls[index]);
+          notifySwitch(index);
+        }
+      }
+    }).start();
+  }
+
+  // Tells the user that the server has been switched to the built-in server at |index|.
+  private void notifySwitch(int index) {
+    String name = context.getResources().getStringArray(R.array.names)[index];
+    NotificationManager notificationManager =
+        (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    Notification.Builder builder;
+    if (VERSION.SDK_INT >= VERSION_CODES.O) {
+      CharSequence channelName = context.getString(R.string.server_switch_channel_name);
+      String description = context.getString(R.string.server_switch_channel_description);
+      int importance = NotificationManager.IMPORTANCE_LOW;
+      NotificationChannel channel = new NotificationChannel(CHANNEL_ID, channelName, importance);
+      channel.setDescription(description);
+
+      notificationManager.createNotificationChannel(channel);
+      builder = new Notification.Builder(context, CHANNEL_ID);
+    } else {
+      builder = new Notification.Builder(context);
+      if (VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN) {
+        // Only available in API >= 16.  Deprecated in API 26.
+        builder = builder.setPriority(Notification.PRIORITY_LOW);
+      }
+    }
+
+    PendingIntent mainActivityIntent = PendingIntent.getActivity(
+        context, 0, new Intent(context, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+
+    builder.setSmallIcon(R.drawable.ic_status_bar)
+        .setContentTitle(context.getText(R.string.server_switch_title))
+        .setContentText(context.getString(R.string.server_switch_content, name))
+        .setContentIntent(mainActivityIntent)
+        .setAutoCancel(true);
+
+    notificationManager.notify(NOTIFICATION_ID, builder.getNotification());
+  }
+}
@@ -0,0 +1,190 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import app.intra.net.dns.DnsCache;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A saved copy of the DNS cache in app-private storage, which allows the cache to survive restarts
+ * of IntraVpnService and of the device.  The snapshot reveals browsing history, so it is stored
+ * where it is excluded from backups.  Call serialize() followed by write() to save a
+ * snapshot, and read() followed by restoreTo() to restore it.
+ * The file consists of a header (magic number, version, server URL, and wall-clock save time)
+ * followed by the entries written by DnsCache.writeSnapshot().
+ */
+class DnsCacheSnapshot {
+  private static final String LOG_TAG = "DnsCacheSnapshot";
+
+  private static final String FILENAME = "dns_cache.bin";
+  private static final int MAGIC = 0x444e5343;  // "DNSC"
+  private static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // The URL of the server whose responses are in the snapshot.
+  final String url;
+  // How long ago the snapshot was taken, in milliseconds.
+  private final long age;
+  // The memory-mapped entries.
+  private final ByteBuffer entries;
+
+  private DnsCacheSnapshot(String url, long age, ByteBuffer entries) {
+    this.url = url;
+    this.age = age;
+    this.entries = entries;
+  }
+
+  // Returns the snapshot's location, which is excluded from backups.  Before API 21 there is no
+  // such directory, so the cache directory is used instead, which backups also skip.
+  private static File getFile(Context context) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      return new File(context.getNoBackupFilesDir(), FILENAME);
+    }
+    return new File(context.getCacheDir(), FILENAME);
+  }
+
+  // Deletes the snapshot written by earlier versions to the files directory, which is backed up.
+  private static void deleteLegacyFile(Context context) {
+    new File(context.getFilesDir(), FILENAME).delete();
+  }
+
+  /**
+   * Serialize the contents of |cache| into a snapshot.  This is fast, so the caller can hold a lock
+   * to keep |cache| and |url| consistent.
+   * @param url The URL of the server whose responses are in the cache.
+   * @return The snapshot, to be passed to write().
+   */
+  static byte[] serialize(DnsCache cache, String url) {
+    if (url == null) {
+      url = "";
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      byte[] urlBytes = url.getBytes(UTF8);
+      out.writeInt(urlBytes.length);
+      out.write(urlBytes);
+      out.writeLong(System.currentTimeMillis());
+      cache.writeSnapshot(out, SystemClock.elapsedRealtime());
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw.
+      LogWrapper.logException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Write a snapshot to disk, replacing any previous snapshot.  This method performs disk I/O, so
+   * it should not run on the main thread.
+   */
+  static synchronized void write(Context context, byte[] snapshot) {
+    // Write to a temporary file and rename it, so that a crash can't leave a partial snapshot.
+    File file = getFile(context);
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      out.write(snapshot);
+      out.getFD().sync();
+    } catch (IOException e) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Failed to write DNS cache snapshot");
+      tmp.delete();
+      return;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+    if (!tmp.renameTo(file)) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Failed to replace DNS cache snapshot");
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Read the saved snapshot, if any.  The file is memory-mapped rather than copied onto the heap.
+   * This method performs disk I/O, so it should not run on the main thread.
+   * @return The snapshot, or null if there is no valid snapshot.
+   */
+  static DnsCacheSnapshot read(Context context) {
+    deleteLegacyFile(context);
+    File file = getFile(context);
+    if (!file.exists()) {
+      return null;
+    }
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      // The mapping remains valid after the file is closed.
+      ByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "Unrecognized DNS cache snapshot");
+        return null;
+      }
+      int urlLength = in.getInt();
+      if (urlLength < 0 || urlLength > in.remaining()) {
+        return null;
+      }
+      byte[] urlBytes = new byte[urlLength];
+      in.get(urlBytes);
+      long age = System.currentTimeMillis() - in.getLong();
+      if (age < 0) {
+        // The wall clock has moved backwards, so the age of the snapshot is unknown.
+        return null;
+      }
+      return new DnsCacheSnapshot(new String(urlBytes, UTF8), age, in.slice());
+    } catch (IOException | BufferUnderflowException e) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Failed to read DNS cache snapshot");
+      return null;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the entries in this snapshot to |cache|, with their TTLs reduced by the snapshot's age.
+   * Can only be called once.
+   */
+  void restoreTo(DnsCache cache) {
+    int restored = cache.readSnapshot(entries, SystemClock.elapsedRealtime(), age);
+    LogWrapper.log(Log.INFO, LOG_TAG, "Restored " + restored + " entries");
+  }
+}
@@ -40,6 +40,8 @@ import androidx.annotation.WorkerThread;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import app.intra.R;
 import app.intra.net.VpnAdapter;
+import app.intra.net.dns.DnsCache;
+import app.intra.net.doh.RaceScheduler;
 import app.intra.net.doh.ServerConnection;
 import app.intra.net.doh.ServerConnectionFactory;
 import app.intra.net.doh.Transaction;
@@ -57,6 +59,12 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   private static final String MAIN_CHANNEL_ID = "vpn";
   private static final String WARNING_CHANNEL_ID = "warning";
   private static final String NO_PENDING_CONNECTION = "This value is not a possible URL.";
+  private static final int DNS_CACHE_MAX_BYTES = 1024 * 1024;
+  private static final int DNS_NEGATIVE_CACHE_MAX_BYTES = 256 * 1024;
+  // How long an expired DNS response may be served while it is refreshed (RFC 8767).
+  private static final int DNS_CACHE_MAX_STALE_SECONDS = 24 * 60 * 60;
+  // How often to save the DNS cache to disk while the service is running.
+  private static final long DNS_CACHE_SNAPSHOT_INTERVAL_MS = 5 * 60 * 1000;  // Five minutes
 
   // The network manager is populated in onStartCommand.  Its main function is to enable delayed
   // initialization if the network is initially disconnected.
@@ -85,6 +93,20 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   // previously selected server.
   private String pendingUrl = NO_PENDING_CONNECTION;
 
+  // Cache of DNS responses, shared by all VPN adapters.  It outlives restartVpn(), but is cleared
+  // whenever the server changes, since different servers may give different answers.
+  private final DnsCache dnsCache =
+      new DnsCache(DNS_CACHE_MAX_BYTES, DNS_NEGATIVE_CACHE_MAX_BYTES);
+
+  // The URL of the server whose responses are in dnsCache.
+  private String dnsCacheUrl = null;
+
+  // The time of the last DNS cache snapshot, per SystemClock.elapsedRealtime().
+  private long lastDnsCacheSnapshot = 0;
+
+  // Switches to a faster built-in server when one appears.  Populated in onCreate.
+  private BackgroundRace backgroundRace = null;
+
   public boolean isOn() {
     return vpnAdapter != null;
   }
@@ -182,6 +204,17 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     return serverConnection;
   }
 
+  public DnsCache getDnsCache() {
+    return dnsCache;
+  }
+
+  /**
+   * @return When background races have run, and how often they switched servers.
+   */
+  public RaceScheduler getRaceScheduler() {
+    return backgroundRace.getScheduler();
+  }
+
   @WorkerThread
   private void updateServerConnection() {
     // This method consists of three steps:
@@ -190,6 +223,7 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     // 3. a synchronized block to unset the flag and confirm the update
 
     // Step 1: Check if an update is necessary and set a flag (pendingUrl).
+    ServerConnection oldConnection;
     synchronized (this) {
       if (serverConnection != null && equalUrls(url, serverConnection.getUrl())) {
         // Connection state is consistent.  No need for an update.
@@ -205,8 +239,14 @@ public class IntraVpnService extends VpnService implements NetworkListener,
       pendingUrl = url;
 
       // Stop using the old connection if present.
+      oldConnection = serverConnection;
       serverConnection = null;
     }
+    if (oldConnection != null) {
+      // Stop its keepalive pings and health checks, which would otherwise continue on the shared
+      // timer indefinitely.
+      oldConnection.close();
+    }
 
     // Step 2: Perform the update (which blocks on network activity) without holding the lock.
 
@@ -214,8 +254,8 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     VpnController controller = VpnController.getInstance();
     controller.onConnectionStateChanged(this, ServerConnection.State.NEW);
 
-    // Bootstrap the new server connection, which may require resolving the new server's name, using
-    // the current DNS configuration.
+    // Bootstrap the new server connection.  This only waits to resolve the new server's name, using
+    // the current DNS configuration, if it has no built-in or stored addresses.
     Bundle bootstrap = new Bundle();
     bootstrap.putString(Names.SERVER.name(),
         PersistentState.extractHostForAnalytics(this, url));
@@ -233,20 +273,38 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     }
 
     // Step 3: Unset the flag and confirm the update.
+    boolean used = false;
     synchronized (this) {
       pendingUrl = NO_PENDING_CONNECTION;
 
       if (serverConnection != null && equalUrls(url, serverConnection.getUrl())) {
         // Connection state has somehow become consistent, so an update is no longer needed.
-        return;
-      }
-
-      if (newConnection != null && equalUrls(url, newConnection.getUrl())) {
+      } else if (newConnection != null && equalUrls(url, newConnection.getUrl())) {
         // Current connection state is not consistent, but newConnection is consistent with the
         // current URL, so perform the update.
         serverConnection = newConnection;
+        used = true;
+        if (!equalUrls(url, dnsCacheUrl)) {
+          dnsCache.clear();
+          dnsCacheUrl = url;
+        }
       }
     }
+    if (newConnection != null && !used) {
+      newConnection.close();
+    }
+  }
+
+  // Opens a connection on the newly connected network, so that the first query doesn't have to
+  // wait for TCP and TLS setup.
+  private void warmUpServerConnection() {
+    ServerConnection connection;
+    synchronized (this) {
+      connection = serverConnection;
+    }
+    if (connection != null) {
+      connection.warmUp();
+    }
   }
 
   /**
@@ -274,8 +332,8 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     final VpnAdapter oldAdapter = vpnAdapter;
     vpnAdapter = makeVpnAdapter();
     if (serverConnection != null) {
-      // Cancel all outstanding queries, and establish a new client bound to the new active network.
-      // Subsequent queries will flow into the new tunFd, and then into the new HTTP client.
+      // Close all connections, which are bound to the old network.  Subsequent queries will flow
+      // into the new tunFd, and then into new connections on the new active network.
       serverConnection.reset();
     }
     oldAdapter.close();
@@ -290,8 +348,64 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   public void onCreate() {
     LogWrapper.log(Log.INFO, LOG_TAG, "Creating DNS VPN service");
     VpnController.getInstance().setIntraVpnService(this);
+    dnsCache.setMaxStaleness(DNS_CACHE_MAX_STALE_SECONDS);
+    dnsCacheUrl = PersistentState.getServerUrl(this);
+    lastDnsCacheSnapshot = SystemClock.elapsedRealtime();
+    new Thread(
+        new Runnable() {
+          public void run() {
+            restoreDnsCache();
+          }
+        }, "restoreDnsCache-onCreate")
+        .start();
 
     syncNumRequests();
+
+    backgroundRace = new BackgroundRace(this);
+    backgroundRace.start();
+  }
+
+  @WorkerThread
+  private void restoreDnsCache() {
+    DnsCacheSnapshot snapshot = DnsCacheSnapshot.read(this);
+    if (snapshot == null) {
+      return;
+    }
+    synchronized (this) {
+      // Don't restore responses from a server other than the current one.
+      if (equalUrls(snapshot.url, dnsCacheUrl)) {
+        snapshot.restoreTo(dnsCache);
+      }
+    }
+  }
+
+  private void saveDnsCache() {
+    byte[] snapshot;
+    synchronized (this) {
+      snapshot = DnsCacheSnapshot.serialize(dnsCache, dnsCacheUrl);
+    }
+    DnsCacheSnapshot.write(this, snapshot);
+  }
+
+  // Periodically save the DNS cache, in case the service is killed without a clean shutdown.
+  private synchronized void maybeSaveDnsCacheAsync() {
+    long now = SystemClock.elapsedRealtime();
+    if (now - lastDnsCacheSnapshot < DNS_CACHE_SNAPSHOT_INTERVAL_MS) {
+      return;
+    }
+    lastDnsCacheSnapshot = now;
+    saveDnsCacheAsync();
+  }
+
+  // Serializing and writing the snapshot can take a while, so it never runs on the main thread.
+  private void saveDnsCacheAsync() {
+    new Thread(
+        new Runnable() {
+          public void run() {
+            saveDnsCache();
+          }
+        }, "saveDnsCache")
+        .start();
   }
 
   public void signalStopService(boolean userInitiated) {
@@ -392,9 +506,18 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     if (networkManager != null) {
       networkManager.destroy();
     }
+    backgroundRace.stop();
 
     syncNumRequests();
-    serverConnection = null;
+    saveDnsCacheAsync();
+    ServerConnection oldConnection;
+    synchronized (this) {
+      oldConnection = serverConnection;
+      serverConnection = null;
+    }
+    if (oldConnection != null) {
+      oldConnection.close();
+    }
 
     VpnController.getInstance().setIntraVpnService(null);
 
@@ -440,6 +563,7 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     transaction.responseCalendar = Calendar.getInstance();
 
     getTracker().recordTransaction(this, transaction);
+    maybeSaveDnsCacheAsync();
 
     Intent intent = new Intent(Names.RESULT.name());
     intent.putExtra(Names.TRANSACTION.name(), transaction);
@@ -450,6 +574,8 @@ public class IntraVpnService extends VpnService implements NetworkListener,
       return;
     }
 
+    backgroundRace.recordTransaction(transaction, url);
+
     // Update the connection state.  If the transaction succeeded, then the connection is working.
     // If the transaction failed, then the connection is not working.
     // If the transaction was canceled, then we don't have any new information about the status
@@ -491,6 +617,7 @@ public class IntraVpnService extends VpnService implements NetworkListener,
         new Runnable() {
           public void run() {
             updateServerConnection();
+            warmUpServerConnection();
             startVpn();
           }
         }, "startVpn-onNetworkConnected")
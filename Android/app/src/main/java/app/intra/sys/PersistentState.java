@@ -21,9 +21,10 @@ import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import app.intra.R;
+import app.intra.net.doh.CompositeServerConnection;
 import app.intra.ui.settings.Untemplate;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -38,6 +39,8 @@ public class PersistentState {
 
   public static final String APPS_KEY = "pref_apps";
   public static final String URL_KEY = "pref_server_url";
+  public static final String MULTIPLEXED_CLIENT_KEY = "pref_multiplexed_client";
+  public static final String AUTO_SWITCH_KEY = "pref_auto_switch";
 
   private static final String APPROVED_KEY = "approved";
   private static final String ENABLED_KEY = "enabled";
@@ -51,6 +54,10 @@ public class PersistentState {
   // TODO: Unify preferences into a single file.
   private static final String APPROVAL_PREFS_NAME = "IntroState";
 
+  // Addresses of DoH servers, keyed by hostname, so that connections don't have to wait for the
+  // system resolver.
+  private static final String BOOTSTRAP_PREFS_NAME = "BootstrapIps";
+
   private static SharedPreferences getInternalState(Context context) {
     return context.getSharedPreferences(INTERNAL_STATE_NAME, Context.MODE_PRIVATE);
   }
@@ -104,14 +111,31 @@ public class PersistentState {
     return Untemplate.strip(urlTemplate);
   }
 
+  // Returns the server's hostname, or the hostnames of all the servers, separated by ", ", if the
+  // URL lists several.
   private static String extractHost(String url) {
-    try {
-      URL parsed = new URL(url);
-      return parsed.getHost();
-    } catch (MalformedURLException e) {
-      LogWrapper.log(Log.WARN, LOG_TAG, "URL is corrupted");
+    if (url == null) {
       return null;
     }
+    StringBuilder hosts = new StringBuilder();
+    for (String serverUrl : CompositeServerConnection.split(url)) {
+      String host = null;
+      try {
+        // URI, unlike URL, accepts the tls:// scheme of DNS-over-TLS servers.
+        host = new URI(serverUrl).getHost();
+      } catch (URISyntaxException e) {
+        // Reported below.
+      }
+      if (host == null) {
+        LogWrapper.log(Log.WARN, LOG_TAG, "URL is corrupted");
+        return null;
+      }
+      if (hosts.length() > 0) {
+        hosts.append(", ");
+      }
+      hosts.append(host);
+    }
+    return hosts.toString();
   }
 
   public static String getServerName(Context context) {
@@ -155,6 +179,23 @@ public class PersistentState {
     editor.apply();
   }
 
+  private static SharedPreferences getBootstrapState(Context context) {
+    return context.getSharedPreferences(BOOTSTRAP_PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return The stored addresses of |host|, as encoded by the caller, or null if there are none.
+   */
+  public static String getBootstrapIps(Context context, String host) {
+    return getBootstrapState(context).getString(host, null);
+  }
+
+  public static void setBootstrapIps(Context context, String host, String encoded) {
+    SharedPreferences.Editor editor = getBootstrapState(context).edit();
+    editor.putString(host, encoded);
+    editor.apply();
+  }
+
   private static SharedPreferences getApprovalSettings(Context context) {
     return context.getSharedPreferences(APPROVAL_PREFS_NAME, Context.MODE_PRIVATE);
   }
@@ -169,6 +210,22 @@ public class PersistentState {
     editor.apply();
   }
 
+  /**
+   * @return True if the user has opted in to the lightweight HTTP/2 client for servers that use
+   *     POST.  Applies to connections that are created afterwards.
+   */
+  public static boolean getMultiplexedClientEnabled(Context context) {
+    return getUserPreferences(context).getBoolean(MULTIPLEXED_CLIENT_KEY, false);
+  }
+
+  /**
+   * @return True if the user has opted in to switching automatically to a faster built-in server.
+   *     Off by default, because the built-in servers don't all filter the same way.
+   */
+  public static boolean getAutoSwitchEnabled(Context context) {
+    return getUserPreferences(context).getBoolean(AUTO_SWITCH_KEY, false);
+  }
+
   static Set<String> getExcludedPackages(Context context) {
     return getUserPreferences(context).getStringSet(APPS_KEY, new HashSet<String>());
   }
@@ -0,0 +1,40 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import java.util.TimerTask;
+
+/**
+ * A TimerTask that logs RuntimeExceptions instead of letting them escape.  An exception that
+ * escapes TimerTask.run() kills the Timer's thread, after which every call to Timer.schedule()
+ * throws IllegalStateException, so every task on a shared Timer should extend this class.
+ */
+public abstract class SafeTimerTask extends TimerTask {
+
+  @Override
+  public final void run() {
+    try {
+      runSafely();
+    } catch (RuntimeException e) {
+      LogWrapper.logException(e);
+    }
+  }
+
+  /**
+   * The task's action.
+   */
+  protected abstract void runSafely();
+}
@@ -34,8 +34,13 @@ import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.preference.PreferenceDialogFragmentCompat;
 import app.intra.R;
+import app.intra.net.doh.CompositeServerConnection;
+import app.intra.net.doh.DotServerConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.List;
 
 /**
  * User interface for a the server URL selection.
@@ -110,8 +115,32 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
     }
 
     // Check that the URL is a plausible DOH server: https with a domain, a path (at least "/"),
-    // and no query parameters or fragment.
+    // and no query parameters or fragment.  DNS-over-TLS servers are tls://host[:port].  Several
+    // servers can be listed, separated by spaces, to share the queries between them.
     private boolean checkUrl(String url) {
+        List<String> urls = CompositeServerConnection.split(url);
+        if (urls.isEmpty()) {
+            return false;
+        }
+        for (String serverUrl : urls) {
+            if (!checkServerUrl(serverUrl)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean checkServerUrl(String url) {
+        if (DotServerConnection.isDotUrl(url)) {
+            try {
+                URI parsed = new URI(url);
+                return parsed.getHost() != null && (parsed.getPath() == null ||
+                    parsed.getPath().isEmpty()) && parsed.getQuery() == null &&
+                    parsed.getFragment() == null;
+            } catch (URISyntaxException e) {
+                return false;
+            }
+        }
         try {
             URL parsed = new URL(url);
             return parsed.getProtocol().equals("https") && !parsed.getHost().isEmpty() &&
@@ -104,6 +104,13 @@ public class SettingsFragment extends PreferenceFragmentCompat {
       appPref.setEnabled(false);
       appPref.setSummary(R.string.old_android);
     }
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+      // The lightweight client negotiates HTTP/2 with SSLSocket.setApplicationProtocols, which was
+      // added in Q.
+      Preference multiplexedPref = findPreference(PersistentState.MULTIPLEXED_CLIENT_KEY);
+      multiplexedPref.setEnabled(false);
+      multiplexedPref.setSummary(R.string.old_android);
+    }
   }
 
   @Override
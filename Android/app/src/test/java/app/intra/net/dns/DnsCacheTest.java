@@ -0,0 +1,375 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.dns;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class DnsCacheTest {
+  private static final int BUDGET = 64 * 1024;
+
+  private static final byte[] QUERY_DATA = {
+      -107, -6,  // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      5, 'm', 't', 'a', 'l', 'k',
+      6, 'g', 'o', 'o', 'g', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  private static final byte[] RESPONSE_DATA = {
+      0, 0,        // [0-1]   query ID
+      -127, -128,  // [2-3]   flags: RD=1, QR=1, RA=1
+      0, 1,        // [4-5]   QDCOUNT (number of queries) = 1
+      0, 2,        // [6-7]   ANCOUNT (number of answers) = 2
+      0, 0,        // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,        // [10-11] ARCOUNT (number of additional records) = 0
+      // First query
+      5, 'm', 't', 'a', 'l', 'k',
+      6, 'g', 'o', 'o', 'g', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1,  // QCLASS = IN (Internet)
+      // First answer
+      -64, 12,  // Compressed name reference, starting at byte 12: mtalk.google.com
+      0, 5,     // QTYPE = CNAME
+      0, 1,     // QCLASS = IN (Internet)
+      0, 0, 84, 44,  // TTL = 21548s
+      0, 17,    // RDLENGTH = 17
+      12, 'm', 'o', 'b', 'i', 'l', 'e', '-', 'g', 't', 'a', 'l', 'k',
+      1, 'l',
+      -64, 18,  // Compressed name reference to byte 18: google.com
+      // Second answer
+      -64, 46,      // Compressed name reference to byte 46: mobile-gtalk.l.google.com
+      0, 1,         // QTYPE = A
+      0, 1,         // QCLASS = IN (Internet)
+      0, 0, 0, -8,  // TTL = 248
+      0, 4,         // RDLEN = 4
+      -83, -62, -52, -68   // 173.194.204.188
+  };
+
+  private static final byte[] NXDOMAIN_DATA = {
+      0, 0,      // [0-1]   query ID
+      -127, -93, // [2-3]   flags: RD=1, QR=1, RA=1, RCODE=NXDOMAIN
+      0, 1,      // [4-5]   QDCOUNT=1
+      0, 0,      // [6-7]   ANCOUNT=0
+      0, 1,      // [8-9]   NSCOUNT=1
+      0, 0,      // [10-11] ARCOUNT=0
+      // First question
+      5, 'm', 't', 'a', 'l', 'k',
+      6, 'g', 'o', 'o', 'g', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1,  // QCLASS = IN (Internet)
+      // First authority
+      -64, 18,  // Compressed name reference to byte 18: google.com
+      0, 6,  // TYPE=SOA
+      0, 1,  // CLASS=IN (Internet)
+      0, 0, 0, 60,  // TTL=60
+      0, 32,  // RDLENGTH=32
+      3, 'n', 's', '1',
+      -64, 18,  // MNAME=ns1.google.com
+      3, 'd', 'n', 's',
+      -64, 18,  // RNAME=dns.google.com
+      0, 0, 0, 1,    // SERIAL
+      0, 0, 3, -124, // REFRESH=900s
+      0, 0, 3, -124, // RETRY=900s
+      0, 0, 7, 8,    // EXPIRE=1800s
+      0, 0, 0, 30    // MINIMUM=30s
+  };
+
+  private static DnsUdpQuery makeQuery() {
+    DnsUdpQuery query = new DnsUdpQuery();
+    query.name = "mtalk.google.com.";
+    query.type = 1;
+    query.qclass = 1;
+    query.requestId = -27142;
+    return query;
+  }
+
+  @Test
+  public void miss() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    assertNull(cache.get(makeQuery(), 0));
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void hit() throws ProtocolException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 1000);
+    byte[] cached = cache.get(makeQuery(), 1000).response;
+    assertNotNull(cached);
+    assertEquals(1, cache.getHits());
+
+    // The ID should match the new query, and the TTLs should be unchanged.
+    DnsPacket packet = new DnsPacket(cached);
+    assertEquals(-27142, packet.getId());
+    assertEquals(248, packet.getMinTtl());
+    assertEquals("173.194.204.188", packet.getResponseAddresses().get(0).getHostAddress());
+  }
+
+  @Test
+  public void ttlCountdown() throws ProtocolException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 1000);
+    byte[] cached = cache.get(makeQuery(), 101 * 1000).response;
+    assertEquals(148, new DnsPacket(cached).getMinTtl());
+  }
+
+  @Test
+  public void expiration() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    assertNotNull(cache.get(makeQuery(), 247 * 1000));
+    assertNull(cache.get(makeQuery(), 248 * 1000));
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(0, cache.getSizeBytes());
+  }
+
+  @Test
+  public void contains() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    assertTrue(cache.contains("mtalk.google.com.", (short) 1, (short) 1, false, 247 * 1000));
+    assertFalse(cache.contains("mtalk.google.com.", (short) 28, (short) 1, false, 0));
+    assertFalse(cache.contains("mtalk.google.com.", (short) 1, (short) 1, false, 248 * 1000));
+    // Lookups through contains() are not counted.
+    assertEquals(0, cache.getHits());
+    assertEquals(0, cache.getMisses());
+  }
+
+  @Test
+  public void ednsSeparated() throws ProtocolException {
+    byte[] opt = {
+        0,  // root name
+        0, 41,  // TYPE = OPT
+        16, 0,  // CLASS = UDP payload size
+        0, 0, 0, 0,  // TTL = extended RCODE and flags
+        0, 0  // RDLENGTH = 0
+    };
+    byte[] ednsResponse = Arrays.copyOf(RESPONSE_DATA, RESPONSE_DATA.length + opt.length);
+    System.arraycopy(opt, 0, ednsResponse, RESPONSE_DATA.length, opt.length);
+    ednsResponse[11] = 1;  // ARCOUNT
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(ednsResponse, 0);
+
+    // A client without EDNS must not receive the OPT record.
+    assertNull(cache.get(makeQuery(), 0));
+    DnsUdpQuery ednsQuery = makeQuery();
+    ednsQuery.edns = true;
+    assertTrue(new DnsPacket(cache.get(ednsQuery, 0).response).hasEdns());
+
+    cache.put(RESPONSE_DATA, 0);
+    assertFalse(new DnsPacket(cache.get(makeQuery(), 0).response).hasEdns());
+    assertEquals(2, cache.getEntryCount());
+  }
+
+  @Test
+  public void queryNotCached() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(QUERY_DATA, 0);
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void typeMismatch() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    DnsUdpQuery query = makeQuery();
+    query.type = 28;
+    assertNull(cache.get(query, 0));
+  }
+
+  @Test
+  public void budget() {
+    // The budget only has room for one entry, including overhead.
+    final int budget = 400;
+    DnsCache cache = new DnsCache(budget, budget);
+    cache.put(RESPONSE_DATA, 0);
+    assertEquals(1, cache.getEntryCount());
+
+    byte[] aaaa = RESPONSE_DATA.clone();
+    aaaa[31] = 28;  // QTYPE = AAAA
+    cache.put(aaaa, 0);
+    assertEquals(1, cache.getEntryCount());
+    // The older entry was evicted.
+    assertNull(cache.get(makeQuery(), 0));
+    assertTrue(cache.getSizeBytes() <= budget);
+  }
+
+  @Test
+  public void clear() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    cache.put(NXDOMAIN_DATA, 0);
+    cache.clear();
+    assertNull(cache.get(makeQuery(), 0));
+    assertEquals(0, cache.getSizeBytes());
+    assertEquals(0, cache.getNegativeSizeBytes());
+  }
+
+  @Test
+  public void negative() throws ProtocolException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(NXDOMAIN_DATA, 0);
+    assertEquals(0, cache.getEntryCount());
+    assertEquals(1, cache.getNegativeEntryCount());
+
+    byte[] cached = cache.get(makeQuery(), 10 * 1000).response;
+    assertNotNull(cached);
+    // A negative hit is not a miss.
+    assertEquals(0, cache.getMisses());
+    assertEquals(1, cache.getNegativeHits());
+    DnsPacket packet = new DnsPacket(cached);
+    assertEquals(DnsPacket.RCODE_NXDOMAIN, packet.getResponseCode());
+    assertEquals(20, packet.getNegativeTtl());
+
+    // The negative TTL is the SOA MINIMUM, not the SOA record's TTL.
+    assertNull(cache.get(makeQuery(), 30 * 1000));
+    assertEquals(1, cache.getNegativeMisses());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void stale() throws ProtocolException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.setMaxStaleness(60);
+    cache.put(RESPONSE_DATA, 0);
+
+    DnsCache.Hit hit = cache.get(makeQuery(), 247 * 1000);
+    assertFalse(hit.stale);
+    assertFalse(hit.needsRefresh);
+
+    // The first stale hit asks for a refresh, and has a short TTL.
+    hit = cache.get(makeQuery(), 250 * 1000);
+    assertTrue(hit.stale);
+    assertTrue(hit.needsRefresh);
+    assertEquals(30, new DnsPacket(hit.response).getMinTtl());
+    assertEquals(1, cache.getStaleHits());
+
+    // Subsequent stale hits don't ask for another refresh until the recheck interval elapses.
+    hit = cache.get(makeQuery(), 251 * 1000);
+    assertTrue(hit.stale);
+    assertFalse(hit.needsRefresh);
+    hit = cache.get(makeQuery(), 280 * 1000);
+    assertTrue(hit.needsRefresh);
+
+    // Past the maximum staleness, the entry is gone.
+    assertNull(cache.get(makeQuery(), 308 * 1000));
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void prefetch() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    cache.get(makeQuery(), 10 * 1000);
+    cache.get(makeQuery(), 20 * 1000);
+
+    // A popular entry is prefetched once, in the last 10% of its TTL.
+    assertFalse(cache.get(makeQuery(), 200 * 1000).needsRefresh);
+    DnsCache.Hit hit = cache.get(makeQuery(), 230 * 1000);
+    assertTrue(hit.needsRefresh);
+    assertTrue(hit.prefetch);
+    assertFalse(hit.stale);
+    assertFalse(cache.get(makeQuery(), 231 * 1000).needsRefresh);
+    assertEquals(1, cache.getPrefetches());
+
+    // The replacement entry inherits the popularity.
+    cache.put(RESPONSE_DATA, 240 * 1000);
+    assertTrue(cache.get(makeQuery(), 470 * 1000).prefetch);
+  }
+
+  @Test
+  public void noPrefetchForUnpopularEntry() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    assertFalse(cache.get(makeQuery(), 230 * 1000).needsRefresh);
+    assertEquals(0, cache.getPrefetches());
+  }
+
+  @Test
+  public void snapshot() throws IOException, ProtocolException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 1000 * 1000);
+    byte[] nxdomain = NXDOMAIN_DATA.clone();
+    nxdomain[31] = 28;  // QTYPE = AAAA
+    cache.put(nxdomain, 1000 * 1000);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    assertEquals(2, cache.writeSnapshot(new DataOutputStream(bytes), 1010 * 1000));
+
+    // Restore on a new timebase, 100 seconds after the snapshot was taken.
+    DnsCache restored = new DnsCache(BUDGET, BUDGET);
+    ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+    // The negative entry has expired.
+    assertEquals(1, restored.readSnapshot(in, 5000, 100 * 1000));
+    assertEquals(1, restored.getEntryCount());
+    assertEquals(0, restored.getNegativeEntryCount());
+
+    // 110 seconds have elapsed since the response was received.
+    byte[] cached = restored.get(makeQuery(), 5000).response;
+    assertEquals(248 - 110, new DnsPacket(cached).getMinTtl());
+  }
+
+  @Test
+  public void truncatedSnapshot() throws IOException {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(RESPONSE_DATA, 0);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    cache.writeSnapshot(new DataOutputStream(bytes), 0);
+    byte[] data = bytes.toByteArray();
+
+    DnsCache restored = new DnsCache(BUDGET, BUDGET);
+    ByteBuffer in = ByteBuffer.wrap(data, 0, data.length - 1);
+    assertEquals(0, restored.readSnapshot(in, 0, 0));
+  }
+
+  @Test
+  public void negativeBudget() {
+    DnsCache cache = new DnsCache(BUDGET, 0);
+    cache.put(NXDOMAIN_DATA, 0);
+    assertEquals(0, cache.getNegativeEntryCount());
+    cache.put(RESPONSE_DATA, 0);
+    assertEquals(1, cache.getEntryCount());
+  }
+
+  @Test
+  public void positiveReplacesNegative() {
+    DnsCache cache = new DnsCache(BUDGET, BUDGET);
+    cache.put(NXDOMAIN_DATA, 0);
+    cache.put(RESPONSE_DATA, 0);
+    assertEquals(1, cache.getEntryCount());
+    assertEquals(0, cache.getNegativeEntryCount());
+  }
+}
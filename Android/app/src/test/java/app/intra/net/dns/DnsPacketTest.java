@@ -91,6 +91,8 @@ public class DnsPacketTest {
     assertEquals(1, p.getQueryType());
     assertEquals(1, p.getResponseAddresses().size());
     assertEquals("173.194.204.188", p.getResponseAddresses().get(0).getHostAddress());
+    assertEquals(248, p.getMinTtl());
+    assertEquals(-1, p.getNegativeTtl());
   }
 
   @Test
@@ -136,6 +138,9 @@ public class DnsPacketTest {
     assertEquals("zzqubeqclggz.", p.getQueryName());
     assertEquals(28, p.getQueryType());
     assertEquals(0, p.getResponseAddresses().size());
+    assertEquals(DnsPacket.RCODE_NXDOMAIN, p.getResponseCode());
+    // The SOA record's TTL (86399) is lower than its MINIMUM (86400).
+    assertEquals(86399, p.getNegativeTtl());
   }
 
   @Test
@@ -252,5 +257,9 @@ public class DnsPacketTest {
     assertEquals("cdn.krxd.net.", p.getQueryName());
     assertEquals(28, p.getQueryType());
     assertEquals(0, p.getResponseAddresses().size());
+    assertEquals(20, p.getMinTtl());
+    assertEquals(4, p.getTtlOffsets().length);
+    // The SOA record's TTL (20) is lower than its compressed MINIMUM (30).
+    assertEquals(20, p.getNegativeTtl());
   }
 }
@@ -0,0 +1,80 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class BootstrapCacheTest {
+  private static final long NOW = 1500000000000L;
+
+  @Test
+  public void roundTrip() throws Exception {
+    List<InetAddress> ips = Arrays.asList(
+        InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1"));
+    String encoded = BootstrapCache.encode(NOW, ips);
+    assertEquals(NOW + ";192.0.2.1,2001:db8:0:0:0:0:0:1", encoded);
+    BootstrapCache.Entry entry = BootstrapCache.decode(encoded);
+    assertEquals(NOW, entry.timestamp);
+    assertEquals(ips, entry.ips);
+  }
+
+  @Test
+  public void malformed() {
+    assertNull(BootstrapCache.decode(null));
+    assertNull(BootstrapCache.decode(""));
+    assertNull(BootstrapCache.decode("192.0.2.1"));
+    assertNull(BootstrapCache.decode("yesterday;192.0.2.1"));
+    assertNull(BootstrapCache.decode(NOW + ";"));
+    assertNull(BootstrapCache.decode(BootstrapCache.encode(NOW,
+        Collections.<InetAddress>emptyList())));
+  }
+
+  @Test
+  public void skipsHostnames() throws Exception {
+    // Decoding must never query the resolver.
+    BootstrapCache.Entry entry = BootstrapCache.decode(NOW + ";dns.example,192.0.2.1");
+    assertEquals(Collections.singletonList(InetAddress.getByName("192.0.2.1")), entry.ips);
+  }
+
+  @Test
+  public void parseLiterals() throws Exception {
+    assertEquals(Collections.<InetAddress>emptyList(), BootstrapCache.parseLiterals(""));
+    assertEquals(Collections.<InetAddress>emptyList(),
+        BootstrapCache.parseLiterals("cloudflare.net"));
+    assertEquals(Arrays.asList(
+        InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1")),
+        BootstrapCache.parseLiterals("192.0.2.1,dns.example,,2001:db8::1"));
+  }
+
+  @Test
+  public void staleness() throws Exception {
+    BootstrapCache.Entry entry = BootstrapCache.decode(NOW + ";192.0.2.1");
+    assertFalse(entry.isStale(NOW));
+    assertFalse(entry.isStale(NOW + BootstrapCache.REFRESH_INTERVAL_MS));
+    assertTrue(entry.isStale(NOW + BootstrapCache.REFRESH_INTERVAL_MS + 1));
+    // The clock went backwards.
+    assertTrue(entry.isStale(NOW - 1));
+  }
+}
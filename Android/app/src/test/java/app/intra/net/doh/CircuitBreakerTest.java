@@ -0,0 +1,148 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import app.intra.net.doh.CircuitBreaker.State;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+  private static final String IP = "192.0.2.1";
+  private static final String OTHER_IP = "192.0.2.2";
+
+  // Records each transition as "FROM->TO".
+  private static class RecordingListener implements CircuitBreaker.Listener {
+    final List<String> transitions = new ArrayList<>();
+
+    @Override
+    public void onStateChanged(String ip, State from, State to) {
+      transitions.add(from + "->" + to);
+    }
+  }
+
+  private static void trip(CircuitBreaker breaker, String ip) {
+    for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      breaker.onFailure(ip);
+    }
+  }
+
+  @Test
+  public void startsClosed() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    assertEquals(State.CLOSED, breaker.getState(IP));
+    assertTrue(breaker.isAvailable(IP));
+    assertFalse(breaker.startHealthCheck(IP));
+    assertTrue(breaker.getUnavailable().isEmpty());
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      breaker.onFailure(IP);
+    }
+    assertTrue(breaker.isAvailable(IP));
+    breaker.onFailure(IP);
+    assertEquals(State.OPEN, breaker.getState(IP));
+    assertFalse(breaker.isAvailable(IP));
+    assertTrue(breaker.isAvailable(OTHER_IP));
+    assertEquals(Collections.singletonList(IP), breaker.getUnavailable());
+    assertEquals(1, breaker.getTripCount());
+  }
+
+  @Test
+  public void successResetsFailureCount() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      breaker.onFailure(IP);
+    }
+    breaker.onSuccess(IP);
+    breaker.onFailure(IP);
+    assertEquals(State.CLOSED, breaker.getState(IP));
+    assertEquals(0, breaker.getRecoveryCount());
+  }
+
+  @Test
+  public void healthCheckSuccess() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    RecordingListener listener = new RecordingListener();
+    breaker.addListener(listener);
+    trip(breaker, IP);
+    assertTrue(breaker.startHealthCheck(IP));
+    assertEquals(State.HALF_OPEN, breaker.getState(IP));
+    assertFalse(breaker.isAvailable(IP));
+    // Only one check at a time.
+    assertFalse(breaker.startHealthCheck(IP));
+    breaker.onSuccess(IP);
+    assertTrue(breaker.isAvailable(IP));
+    assertEquals(1, breaker.getRecoveryCount());
+    assertEquals(
+        Arrays.asList("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"),
+        listener.transitions);
+  }
+
+  @Test
+  public void healthCheckFailureBacksOff() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    trip(breaker, IP);
+    assertEquals(CircuitBreaker.INITIAL_OPEN_MS, breaker.getOpenMs(IP));
+    long expected = CircuitBreaker.INITIAL_OPEN_MS;
+    while (expected < CircuitBreaker.MAX_OPEN_MS) {
+      assertTrue(breaker.startHealthCheck(IP));
+      breaker.onFailure(IP);
+      assertEquals(State.OPEN, breaker.getState(IP));
+      expected = Math.min(expected * 2, CircuitBreaker.MAX_OPEN_MS);
+      assertEquals(expected, breaker.getOpenMs(IP));
+    }
+    assertTrue(breaker.startHealthCheck(IP));
+    breaker.onFailure(IP);
+    assertEquals(CircuitBreaker.MAX_OPEN_MS, breaker.getOpenMs(IP));
+    // Failed checks reopen the endpoint, but don't count as new trips.
+    assertEquals(1, breaker.getTripCount());
+
+    // Recovery resets the interval.
+    assertTrue(breaker.startHealthCheck(IP));
+    breaker.onSuccess(IP);
+    assertEquals(CircuitBreaker.INITIAL_OPEN_MS, breaker.getOpenMs(IP));
+  }
+
+  @Test
+  public void inFlightSuccessCloses() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    trip(breaker, IP);
+    breaker.onSuccess(IP);
+    assertEquals(State.CLOSED, breaker.getState(IP));
+    assertFalse(breaker.startHealthCheck(IP));
+  }
+
+  @Test
+  public void failuresWhileOpenAreIgnored() {
+    CircuitBreaker breaker = new CircuitBreaker();
+    RecordingListener listener = new RecordingListener();
+    breaker.addListener(listener);
+    trip(breaker, IP);
+    trip(breaker, IP);
+    assertEquals(1, breaker.getTripCount());
+    assertEquals(Collections.singletonList("CLOSED->OPEN"), listener.transitions);
+  }
+}
@@ -0,0 +1,225 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.Test;
+
+public class CompositeServerConnectionTest {
+  private static final byte[] QUERY_DATA = {1, 2, 3, 4};
+
+  // Records queries, and lets the test complete them.
+  private static class FakeConnection implements ServerConnection {
+    private final String url;
+    final List<Callback> callbacks = new ArrayList<>();
+    final List<byte[]> queries = new ArrayList<>();
+    int warmUps = 0;
+    int resets = 0;
+    int closes = 0;
+
+    FakeConnection(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public void performDnsRequest(DnsUdpQuery metadata, byte[] data, Callback cb) {
+      data[0] = 0;
+      queries.add(data);
+      callbacks.add(cb);
+    }
+
+    void respond(int index, int code) throws IOException {
+      Response response = new Response.Builder()
+          .request(new Request.Builder().url(url).build())
+          .protocol(Protocol.HTTP_2)
+          .code(code)
+          .message("")
+          .body(ResponseBody.create(MediaType.parse("application/dns-message"), url))
+          .build();
+      callbacks.get(index).onResponse(mock(Call.class), response);
+    }
+
+    void fail(int index) {
+      callbacks.get(index).onFailure(mock(Call.class), new IOException(url));
+    }
+
+    @Override
+    public String getUrl() {
+      return url;
+    }
+
+    @Override
+    public void warmUp() {
+      ++warmUps;
+    }
+
+    @Override
+    public void reset() {
+      ++resets;
+    }
+
+    @Override
+    public void close() {
+      ++closes;
+    }
+  }
+
+  // Records the result delivered to the caller.
+  private static class Result implements Callback {
+    int calls = 0;
+    Response response;
+    IOException error;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      ++calls;
+      error = e;
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      ++calls;
+      this.response = response;
+    }
+  }
+
+  private final FakeConnection a = new FakeConnection("https://a/");
+  private final FakeConnection b = new FakeConnection("https://b/");
+  private final CompositeServerConnection composite =
+      new CompositeServerConnection("https://a/ https://b/", Arrays.<ServerConnection>asList(a, b));
+
+  @Test
+  public void urls() {
+    assertTrue(CompositeServerConnection.isComposite("https://a/ tls://b"));
+    assertTrue(CompositeServerConnection.isComposite(" https://a/\n\thttps://b/ "));
+    assertFalse(CompositeServerConnection.isComposite("https://a/"));
+    assertFalse(CompositeServerConnection.isComposite(" https://a/ "));
+    assertFalse(CompositeServerConnection.isComposite(null));
+    assertEquals(Arrays.asList("https://a/", "tls://b"),
+        CompositeServerConnection.split(" https://a/  tls://b "));
+    assertEquals("https://a/ https://b/", composite.getUrl());
+  }
+
+  @Test
+  public void success() throws Exception {
+    Result result = new Result();
+    byte[] data = QUERY_DATA.clone();
+    composite.performDnsRequest(null, data, result);
+    assertEquals(1, a.queries.size());
+    // Each upstream gets its own copy of the query.
+    assertArrayEquals(QUERY_DATA, data);
+    a.respond(0, 200);
+    assertEquals(1, result.calls);
+    assertEquals(200, result.response.code());
+    assertEquals(0, b.queries.size());
+    assertEquals(1, composite.getBalancer().getShare(0), 0.001);
+  }
+
+  @Test
+  public void concurrentQueriesAreSpread() {
+    composite.performDnsRequest(null, QUERY_DATA.clone(), new Result());
+    composite.performDnsRequest(null, QUERY_DATA.clone(), new Result());
+    assertEquals(1, a.queries.size());
+    assertEquals(1, b.queries.size());
+  }
+
+  @Test
+  public void failoverOnError() throws Exception {
+    Result result = new Result();
+    composite.performDnsRequest(null, QUERY_DATA.clone(), result);
+    a.fail(0);
+    assertEquals(0, result.calls);
+    assertEquals(1, b.queries.size());
+    assertArrayEquals(new byte[] {0, 2, 3, 4}, b.queries.get(0));
+    b.respond(0, 200);
+    assertEquals(1, result.calls);
+    assertEquals("https://b/", result.response.body().string());
+    assertEquals(1, composite.getBalancer().getFailureCount(0));
+    assertEquals(1, composite.getBalancer().getFailoverCount(1));
+  }
+
+  @Test
+  public void failoverOnHttpError() throws Exception {
+    Result result = new Result();
+    composite.performDnsRequest(null, QUERY_DATA.clone(), result);
+    a.respond(0, 500);
+    assertEquals(0, result.calls);
+    b.respond(0, 200);
+    assertEquals(1, result.calls);
+    assertEquals(200, result.response.code());
+  }
+
+  @Test
+  public void allUpstreamsFail() throws Exception {
+    Result result = new Result();
+    composite.performDnsRequest(null, QUERY_DATA.clone(), result);
+    a.fail(0);
+    b.fail(0);
+    assertEquals(1, result.calls);
+    assertNull(result.response);
+    assertEquals("https://b/", result.error.getMessage());
+
+    // The last HTTP error is delivered as is.
+    Result httpResult = new Result();
+    composite.performDnsRequest(null, QUERY_DATA.clone(), httpResult);
+    FakeConnection first = a.queries.size() == 2 ? a : b;
+    FakeConnection second = first == a ? b : a;
+    first.respond(1, 500);
+    second.respond(1, 503);
+    assertEquals(1, httpResult.calls);
+    assertEquals(503, httpResult.response.code());
+  }
+
+  @Test
+  public void warmUpResetAndClose() {
+    composite.warmUp();
+    composite.reset();
+    assertEquals(1, a.warmUps);
+    assertEquals(1, b.warmUps);
+    assertEquals(1, a.resets);
+    assertEquals(1, b.resets);
+    composite.close();
+    assertEquals(1, a.closes);
+    assertEquals(1, b.closes);
+  }
+
+  @Test
+  public void upstreamsAreReported() {
+    UpstreamBalancer balancer = composite.getBalancer();
+    assertEquals(2, balancer.getUpstreamCount());
+    assertSame("https://a/", balancer.getUrl(0));
+    assertEquals(-1, balancer.getAverageLatencyMs(1), 0.001);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import app.intra.net.doh.ConnectionMonitor.ResetCause;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionMonitorTest {
+
+  private ConnectionPool pool;
+  private ConnectionMonitor monitor;
+
+  @Before
+  public void setUp() {
+    pool = new ConnectionPool();
+    monitor = new ConnectionMonitor(new Keepalive(), pool);
+  }
+
+  private static Connection mockConnection() {
+    Connection connection = mock(Connection.class);
+    when(connection.socket()).thenReturn(mock(Socket.class));
+    return connection;
+  }
+
+  @Test
+  public void timeoutClosesOnlyThatConnection() throws Exception {
+    Connection bad = mockConnection();
+    Connection good = mockConnection();
+    monitor.onConnectionAcquired(bad);
+    monitor.onConnectionAcquired(good);
+
+    monitor.onCallTimedOut(bad);
+    verify(bad.socket()).close();
+    verify(good.socket(), never()).close();
+    assertEquals(1, monitor.getResetCount(ResetCause.CONNECTION_TIMEOUT));
+    assertEquals(0, monitor.getResetCount(ResetCause.REPEATED_TIMEOUTS));
+  }
+
+  @Test
+  public void repeatedTimeouts() throws Exception {
+    Connection connection = mockConnection();
+    monitor.onConnectionAcquired(connection);
+    for (int i = 0; i < ConnectionMonitor.MAX_CONSECUTIVE_TIMEOUTS - 1; ++i) {
+      // Timeouts while connecting have no connection.
+      monitor.onCallTimedOut(null);
+    }
+    verify(connection.socket(), never()).close();
+    monitor.onCallTimedOut(null);
+    verify(connection.socket()).close();
+    assertEquals(1, monitor.getResetCount(ResetCause.REPEATED_TIMEOUTS));
+  }
+
+  @Test
+  public void successClearsTimeouts() throws Exception {
+    Connection connection = mockConnection();
+    monitor.onConnectionAcquired(connection);
+    for (int i = 0; i < ConnectionMonitor.MAX_CONSECUTIVE_TIMEOUTS * 2; ++i) {
+      monitor.onCallTimedOut(null);
+      monitor.onCallEnd(false, false, 10);
+    }
+    verify(connection.socket(), never()).close();
+    assertEquals(0, monitor.getResetCount(ResetCause.REPEATED_TIMEOUTS));
+  }
+
+  @Test
+  public void explicitReset() throws Exception {
+    Connection first = mockConnection();
+    Connection second = mockConnection();
+    monitor.onConnectionAcquired(first);
+    monitor.onConnectionAcquired(second);
+    monitor.reset(ResetCause.EXPLICIT);
+    verify(first.socket()).close();
+    verify(second.socket()).close();
+    assertEquals(1, monitor.getResetCount(ResetCause.EXPLICIT));
+
+    // Closed connections are forgotten.
+    monitor.reset(ResetCause.EXPLICIT);
+    verify(first.socket()).close();
+    assertEquals(2, monitor.getResetCount(ResetCause.EXPLICIT));
+  }
+
+  @Test
+  public void coldConnectionRate() {
+    assertEquals(0, monitor.getColdConnectionRate(), 0);
+    monitor.onCallEnd(false, true, 100);
+    monitor.onCallEnd(false, false, 10);
+    monitor.onCallEnd(false, false, 10);
+    monitor.onCallEnd(false, false, 10);
+    // Keepalives are excluded.
+    monitor.onCallEnd(true, true, 100);
+    assertEquals(4, monitor.getCallCount());
+    assertEquals(1, monitor.getColdCallCount());
+    assertEquals(0.25, monitor.getColdConnectionRate(), 0);
+  }
+
+  @Test
+  public void failedCallTimeout() throws Exception {
+    Connection connection = mockConnection();
+    monitor.onConnectionAcquired(connection);
+    monitor.onCallFailed(false, connection, new IOException("Canceled"));
+    verify(connection.socket(), never()).close();
+    monitor.onCallFailed(false, connection, new SocketTimeoutException());
+    verify(connection.socket()).close();
+  }
+}
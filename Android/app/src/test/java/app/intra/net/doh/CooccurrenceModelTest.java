@@ -0,0 +1,102 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class CooccurrenceModelTest {
+
+  // Records |names| in a burst, starting at |start|, 10 ms apart.
+  private static void burst(CooccurrenceModel model, long start, String... names) {
+    for (int i = 0; i < names.length; ++i) {
+      model.record(names[i], start + 10 * i);
+    }
+  }
+
+  @Test
+  public void learnsSuccessors() {
+    CooccurrenceModel model = new CooccurrenceModel();
+    for (int i = 0; i < CooccurrenceModel.MIN_OCCURRENCES; ++i) {
+      assertTrue(model.predict("api.").isEmpty());
+      burst(model, i * 10000, "api.", "cdn.", "cdn.", "telemetry.");
+    }
+    // Once more without telemetry, so that cdn is more likely.
+    burst(model, 100000, "api.", "cdn.");
+    assertEquals(Arrays.asList("cdn.", "telemetry."), model.predict("api."));
+    assertEquals(Arrays.asList("telemetry."), model.predict("cdn."));
+    assertTrue(model.predict("telemetry.").isEmpty());
+  }
+
+  @Test
+  public void windowEnds() {
+    CooccurrenceModel model = new CooccurrenceModel();
+    for (int i = 0; i < CooccurrenceModel.MIN_OCCURRENCES; ++i) {
+      model.record("api.", i * 10000);
+      model.record("late.", i * 10000 + CooccurrenceModel.SEQUENCE_WINDOW_MS);
+    }
+    assertTrue(model.predict("api.").isEmpty());
+  }
+
+  @Test
+  public void lowConfidence() {
+    CooccurrenceModel model = new CooccurrenceModel();
+    for (int i = 0; i < 10; ++i) {
+      if (i % 3 == 0) {
+        burst(model, i * 10000, "api.", "rare.");
+      } else {
+        burst(model, i * 10000, "api.", "common.");
+      }
+    }
+    assertEquals(Arrays.asList("common."), model.predict("api."));
+  }
+
+  @Test
+  public void adapts() {
+    CooccurrenceModel model = new CooccurrenceModel();
+    long now = 0;
+    for (int i = 0; i < CooccurrenceModel.MAX_COUNT; ++i, now += 10000) {
+      burst(model, now, "api.", "old.");
+    }
+    for (int i = 0; i < CooccurrenceModel.MAX_COUNT; ++i, now += 10000) {
+      burst(model, now, "api.", "new.");
+    }
+    assertEquals(Arrays.asList("new."), model.predict("api."));
+  }
+
+  @Test
+  public void bounded() {
+    CooccurrenceModel model = new CooccurrenceModel();
+    for (int i = 0; i < 2 * CooccurrenceModel.MAX_NAMES; ++i) {
+      model.record(i + ".", i * 10000);
+    }
+    assertEquals(CooccurrenceModel.MAX_NAMES, model.size());
+
+    for (int i = 0; i < CooccurrenceModel.MIN_OCCURRENCES; ++i) {
+      String[] names = new String[CooccurrenceModel.MAX_SUCCESSORS + 2];
+      names[0] = "api.";
+      for (int j = 1; j < names.length; ++j) {
+        names[j] = "s" + j + ".";
+      }
+      // Stay within the window, which only counts MAX_RECENT predecessors anyway.
+      burst(model, i * 10000, names);
+    }
+    assertTrue(model.predict("api.").size() <= CooccurrenceModel.MAX_PREDICTIONS);
+  }
+}
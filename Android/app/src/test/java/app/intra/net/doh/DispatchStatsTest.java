@@ -0,0 +1,44 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+
+import okhttp3.Dispatcher;
+import org.junit.Test;
+
+public class DispatchStatsTest {
+
+  @Test
+  public void queueTime() {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(7);
+    DispatchStats stats = new DispatchStats(dispatcher);
+    assertEquals(0, stats.getAverageQueueMs(), 0);
+    assertEquals(7, stats.getMaxConcurrentCalls());
+    assertEquals(0, stats.getQueuedCallCount());
+    assertEquals(0, stats.getRunningCallCount());
+
+    stats.recordQueueTime(0);
+    stats.recordQueueTime(0);
+    stats.recordQueueTime(30);
+    stats.recordQueueTime(10);
+    assertEquals(4, stats.getQueryCount());
+    assertEquals(2, stats.getQueuedQueryCount());
+    assertEquals(10, stats.getAverageQueueMs(), 0);
+    assertEquals(30, stats.getMaxQueueMs());
+  }
+}
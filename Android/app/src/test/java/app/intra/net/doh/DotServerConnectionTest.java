@@ -0,0 +1,335 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocketFactory;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DotServerConnectionTest {
+
+  private static final byte[] QUERY_DATA = {
+      -107, -6,  // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      7, 'y', 'o', 'u', 't', 'u', 'b', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  // Records the outcome of one query.
+  private static class Result implements Callback {
+    final CountDownLatch done = new CountDownLatch(1);
+    Response response;
+    byte[] body;
+    IOException error;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      error = e;
+      done.countDown();
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      this.response = response;
+      body = response.body().bytes();
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  private LocalDotServer server;
+  private DotServerConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalDotServer();
+    connection = makeConnection("localhost", DotServerConnection.DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.reset();
+    server.close();
+  }
+
+  private DotServerConnection makeConnection(String host, int readTimeoutMs) {
+    return new DotServerConnection(server.getUrl(), Collections.singletonList(server.getAddress()),
+        new DotServerConnection.TlsTransport(host, server.getPort(),
+            server.getClientSocketFactory(), LocalDotServer.getHostnameVerifier(), null),
+        readTimeoutMs);
+  }
+
+  private Result query(byte[] data) {
+    Result result = new Result();
+    connection.performDnsRequest(DnsUdpQuery.fromUdpBody(data), data.clone(), result);
+    return result;
+  }
+
+  // Returns the message ID of |message|.
+  private static int id(byte[] message) {
+    return ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+  }
+
+  // Checks that |result| is the echo of |query|, apart from the ID.
+  private static void assertEcho(byte[] query, Result result) {
+    assertNull(result.error);
+    assertEquals(200, result.response.code());
+    byte[] expected = LocalDotServer.echo(query);
+    assertArrayEquals(Arrays.copyOfRange(expected, 2, expected.length),
+        Arrays.copyOfRange(result.body, 2, result.body.length));
+  }
+
+  @Test
+  public void query() throws Exception {
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertEcho(QUERY_DATA, result);
+    assertEquals("127.0.0.1", result.response.header(IpTagInterceptor.HEADER_NAME));
+    // The response has the ID that the server saw.
+    assertEquals(id(server.getQueries().get(0)), id(result.body));
+  }
+
+  @Test
+  public void pipelinedOutOfOrder() throws Exception {
+    // The server waits for every query before answering any, then answers in reverse order.
+    final int QUERIES = 20;
+    final List<byte[]> received = new ArrayList<>();
+    server.setHandler(new LocalDotServer.Handler() {
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) throws IOException {
+        received.add(query);
+        if (received.size() < QUERIES) {
+          return;
+        }
+        for (int i = received.size() - 1; i >= 0; --i) {
+          responder.send(LocalDotServer.echo(received.get(i)));
+        }
+      }
+    });
+
+    List<byte[]> queries = new ArrayList<>();
+    List<Result> results = new ArrayList<>();
+    for (int i = 0; i < QUERIES; ++i) {
+      byte[] data = QUERY_DATA.clone();
+      data[13] = (byte) ('a' + i);  // A different name for each query.
+      queries.add(data);
+      results.add(query(data));
+    }
+    for (int i = 0; i < QUERIES; ++i) {
+      results.get(i).await();
+      assertEcho(queries.get(i), results.get(i));
+    }
+    assertEquals(1, server.getConnectionCount());
+
+    // Every query in flight had a different ID.
+    Set<Integer> ids = new HashSet<>();
+    for (byte[] query : received) {
+      ids.add(id(query));
+    }
+    assertEquals(QUERIES, ids.size());
+  }
+
+  @Test
+  public void unknownIdIsIgnored() throws Exception {
+    server.setHandler(new LocalDotServer.Handler() {
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) throws IOException {
+        byte[] stray = LocalDotServer.echo(query);
+        stray[0] ^= (byte) 0xff;
+        stray[1] ^= (byte) 0xff;
+        responder.send(stray);
+        responder.send(LocalDotServer.echo(query));
+      }
+    });
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertEcho(QUERY_DATA, result);
+    assertEquals(id(server.getQueries().get(0)), id(result.body));
+  }
+
+  @Test
+  public void reconnectAfterIdleClose() throws Exception {
+    Result first = query(QUERY_DATA);
+    first.await();
+    assertEcho(QUERY_DATA, first);
+
+    // The server closes the idle connection.
+    server.dropConnections();
+    Result second = query(QUERY_DATA);
+    second.await();
+    assertEcho(QUERY_DATA, second);
+    assertEquals(2, server.getConnectionCount());
+  }
+
+  @Test
+  public void retryWhenConnectionClosesWithQueryInFlight() throws Exception {
+    server.setHandler(new LocalDotServer.Handler() {
+      boolean closed = false;
+
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) throws IOException {
+        if (!closed) {
+          closed = true;
+          responder.close();
+          return;
+        }
+        LocalDotServer.ECHO.handle(query, responder);
+      }
+    });
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertEcho(QUERY_DATA, result);
+    assertEquals(2, server.getQueries().size());
+    assertEquals(2, server.getConnectionCount());
+  }
+
+  @Test
+  public void onlyOneRetry() throws Exception {
+    server.setHandler(new LocalDotServer.Handler() {
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) throws IOException {
+        responder.close();
+      }
+    });
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertNotNull(result.error);
+    assertEquals(2, server.getQueries().size());
+  }
+
+  @Test
+  public void timeout() throws Exception {
+    server.setHandler(new LocalDotServer.Handler() {
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) {
+        // Never respond.
+      }
+    });
+    connection = makeConnection("localhost", 0);
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertTrue(result.error instanceof SocketTimeoutException);
+  }
+
+  @Test
+  public void resetFailsQueriesInFlight() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    server.setHandler(new LocalDotServer.Handler() {
+      @Override
+      public void handle(byte[] query, LocalDotServer.Responder responder) {
+        received.countDown();
+      }
+    });
+    Result result = query(QUERY_DATA);
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    connection.reset();
+    result.await();
+    assertNotNull(result.error);
+    // Reset queries are not retried.
+    assertEquals(1, server.getQueries().size());
+  }
+
+  @Test
+  public void hostnameMismatch() throws Exception {
+    connection = makeConnection("dns.example", DotServerConnection.DEFAULT_READ_TIMEOUT_MS);
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertTrue(result.error instanceof SSLException);
+    assertEquals(0, server.getQueries().size());
+  }
+
+  @Test
+  public void warmUpConnects() throws Exception {
+    connection.warmUp();
+    for (int i = 0; i < 50 && server.getConnectionCount() == 0; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(1, server.getConnectionCount());
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertEcho(QUERY_DATA, result);
+    assertEquals(1, server.getConnectionCount());
+  }
+
+  @Test
+  public void usesPersistentSessions() throws Exception {
+    // Only the persistent factory trusts the server.
+    TlsSessionCache tlsSessions = new TlsSessionCache(
+        (SSLSocketFactory) SSLSocketFactory.getDefault(), null, server.getClientSocketFactory());
+    connection = new DotServerConnection(server.getUrl(),
+        Collections.singletonList(server.getAddress()),
+        new DotServerConnection.TlsTransport("localhost", server.getPort(), null,
+            LocalDotServer.getHostnameVerifier(), tlsSessions),
+        DotServerConnection.DEFAULT_READ_TIMEOUT_MS);
+    Result result = query(QUERY_DATA);
+    result.await();
+    assertEcho(QUERY_DATA, result);
+    assertEquals(1, tlsSessions.getHandshakeCount());
+  }
+
+  @Test
+  public void urls() throws Exception {
+    assertTrue(DotServerConnection.isDotUrl("tls://dns.example"));
+    assertFalse(DotServerConnection.isDotUrl("https://dns.example/dns-query"));
+    assertFalse(DotServerConnection.isDotUrl(null));
+
+    List<InetAddress> ips = Collections.singletonList(InetAddress.getByName("192.0.2.1"));
+    assertNull(DotServerConnection.get("https://192.0.2.1/dns-query", ips, null));
+    assertNull(DotServerConnection.get("tls://", ips, null));
+    DotServerConnection dot = DotServerConnection.get("tls://192.0.2.1", ips, null);
+    assertNotNull(dot);
+    assertEquals("tls://192.0.2.1", dot.getUrl());
+    assertNotNull(DotServerConnection.get("tls://[2001:db8::1]:8853", ips, null));
+    // The server name is not resolved.
+    assertNull(DotServerConnection.get("tls://192.0.2.1",
+        Collections.<InetAddress>emptyList(), null));
+  }
+}
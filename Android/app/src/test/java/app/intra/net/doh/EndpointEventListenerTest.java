@@ -0,0 +1,148 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import app.intra.net.doh.CircuitBreaker.State;
+import app.intra.net.doh.ConnectionMonitor.ResetCause;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.SocketFactory;
+import okhttp3.Address;
+import okhttp3.Authenticator;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Route;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EndpointEventListenerTest {
+  private static final String IP = "192.0.2.1";
+
+  private ConnectionMonitor monitor;
+  private CircuitBreaker breaker;
+  private EndpointEventListener.Factory factory;
+
+  @Before
+  public void setUp() {
+    monitor = new ConnectionMonitor(new Keepalive(), new ConnectionPool());
+    breaker = new CircuitBreaker();
+    factory = new EndpointEventListener.Factory(new EndpointStats(), monitor, null,
+        new DispatchStats(new Dispatcher()), breaker);
+  }
+
+  private static Connection mockConnection() {
+    Address address = new Address("dns.example", 443, Dns.SYSTEM, SocketFactory.getDefault(),
+        null, null, null, Authenticator.NONE, null,
+        Collections.singletonList(Protocol.HTTP_1_1),
+        Collections.singletonList(ConnectionSpec.CLEARTEXT), ProxySelector.getDefault());
+    Route route = new Route(address, Proxy.NO_PROXY, new InetSocketAddress(IP, 443));
+    Connection connection = mock(Connection.class);
+    when(connection.route()).thenReturn(route);
+    when(connection.socket()).thenReturn(mock(Socket.class));
+    return connection;
+  }
+
+  private static Call mockCall() {
+    Call call = mock(Call.class);
+    when(call.request()).thenReturn(new Request.Builder().url("https://dns.example/").build());
+    return call;
+  }
+
+  // Starts a call on |connection|, and returns its listener.
+  private EventListener startCall(Call call, Connection connection) {
+    EventListener listener = factory.create(call);
+    listener.callStart(call);
+    listener.connectionAcquired(call, connection);
+    return listener;
+  }
+
+  @Test
+  public void resetIsNotAFailure() {
+    Connection first = mockConnection();
+    Connection second = mockConnection();
+    List<Call> calls = new ArrayList<>();
+    List<EventListener> listeners = new ArrayList<>();
+    for (int i = 0; i < 2 * CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      Call call = mockCall();
+      calls.add(call);
+      listeners.add(startCall(call, i % 2 == 0 ? first : second));
+    }
+    monitor.reset(ResetCause.EXPLICIT);
+    for (int i = 0; i < calls.size(); ++i) {
+      listeners.get(i).callFailed(calls.get(i), new IOException("Socket closed"));
+    }
+    assertEquals(State.CLOSED, breaker.getState(IP));
+  }
+
+  @Test
+  public void oneFailurePerConnection() {
+    Connection connection = mockConnection();
+    List<Call> calls = new ArrayList<>();
+    List<EventListener> listeners = new ArrayList<>();
+    for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      Call call = mockCall();
+      calls.add(call);
+      listeners.add(startCall(call, connection));
+    }
+    // The connection breaks, and every call on it fails.
+    for (int i = 0; i < calls.size(); ++i) {
+      listeners.get(i).callFailed(calls.get(i), new IOException("Connection reset"));
+    }
+    assertEquals(State.CLOSED, breaker.getState(IP));
+
+    // Failures on new connections still count.
+    for (int i = 1; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      Call call = mockCall();
+      startCall(call, mockConnection()).callFailed(call, new IOException("Connection reset"));
+    }
+    assertEquals(State.OPEN, breaker.getState(IP));
+  }
+
+  @Test
+  public void timeoutCountsOnce() {
+    Connection connection = mockConnection();
+    Call timedOut = mockCall();
+    Call other = mockCall();
+    EventListener timedOutListener = startCall(timedOut, connection);
+    EventListener otherListener = startCall(other, connection);
+    // The timeout closes the connection, which fails the other call.
+    timedOutListener.callFailed(timedOut, new SocketTimeoutException());
+    otherListener.callFailed(other, new IOException("Socket closed"));
+    for (int i = 2; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+      Call call = mockCall();
+      startCall(call, mockConnection()).callFailed(call, new IOException("Connection reset"));
+    }
+    assertEquals(State.CLOSED, breaker.getState(IP));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EndpointStatsTest {
+
+  // A Random that always returns the same values, to control exploration.
+  private static class FixedRandom extends Random {
+    private static final long serialVersionUID = 1L;
+
+    double nextDouble = 1;
+    int nextInt = 0;
+
+    @Override
+    public double nextDouble() {
+      return nextDouble;
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      return nextInt;
+    }
+  }
+
+  private FixedRandom random;
+  private EndpointStats stats;
+  private InetAddress v6;
+  private InetAddress v4a;
+  private InetAddress v4b;
+  private List<InetAddress> interleaved;
+
+  @Before
+  public void setUp() throws Exception {
+    random = new FixedRandom();
+    stats = new EndpointStats(random);
+    v6 = InetAddress.getByName("2606:4700:4700::1111");
+    v4a = InetAddress.getByName("1.1.1.1");
+    v4b = InetAddress.getByName("1.0.0.1");
+    interleaved = Arrays.asList(v6, v4a, v4b);
+  }
+
+  @Test
+  public void unmeasuredKeepsOrder() {
+    assertEquals(interleaved, stats.order(interleaved));
+    assertNull(stats.get(v6.getHostAddress()));
+  }
+
+  @Test
+  public void fasterFirst() {
+    stats.recordConnect(v4a.getHostAddress(), 100);
+    stats.recordTls(v4a.getHostAddress(), 100);
+    stats.recordTtfb(v4a.getHostAddress(), 100);
+    stats.recordConnect(v4b.getHostAddress(), 10);
+    stats.recordTtfb(v4b.getHostAddress(), 10);
+    // Both measured addresses are faster than the unmeasured one.
+    assertEquals(Arrays.asList(v4b, v4a, v6), stats.order(interleaved));
+  }
+
+  @Test
+  public void brokenFamilyIsDemoted() {
+    stats.recordConnectFailure(v6.getHostAddress());
+    assertEquals(Arrays.asList(v4a, v4b, v6), stats.order(interleaved));
+    assertEquals(1, stats.get(v6.getHostAddress()).getFailures());
+    assertEquals(EndpointStats.FAILURE_PENALTY_MS,
+        stats.get(v6.getHostAddress()).getConnectMs(), 0);
+  }
+
+  @Test
+  public void movingAverage() {
+    String ip = v4a.getHostAddress();
+    stats.recordTtfb(ip, 100);
+    assertEquals(100, stats.get(ip).getTtfbMs(), 0);
+    stats.recordTtfb(ip, 200);
+    assertEquals(130, stats.get(ip).getTtfbMs(), 0.001);
+    assertEquals(-1, stats.get(ip).getConnectMs(), 0);
+  }
+
+  @Test
+  public void recovery() {
+    String ip = v6.getHostAddress();
+    stats.recordConnectFailure(ip);
+    for (int i = 0; i < 20; ++i) {
+      stats.recordConnect(ip, 5);
+    }
+    assertEquals(interleaved, stats.order(interleaved));
+  }
+
+  @Test
+  public void exploration() {
+    stats.recordConnectFailure(v6.getHostAddress());
+    random.nextDouble = 0;
+    random.nextInt = 1;
+    // Sorted order is v4a, v4b, v6.  Exploration moves index 1 + 1 to the front.
+    assertEquals(Arrays.asList(v6, v4a, v4b), stats.order(interleaved));
+  }
+}
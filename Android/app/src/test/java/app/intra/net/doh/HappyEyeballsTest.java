@@ -0,0 +1,159 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HappyEyeballsTest {
+
+  // Simulates connections.  Addresses that aren't listed never connect (i.e. are blackholed).
+  private static class FakeConnector implements HappyEyeballs.Connector {
+    final Map<InetAddress, Long> delays = new HashMap<>();
+    final Map<InetAddress, Boolean> refused = new HashMap<>();
+
+    @Override
+    public Socket connect(InetSocketAddress address, int timeoutMs) throws IOException {
+      Long delay = delays.get(address.getAddress());
+      try {
+        Thread.sleep(delay == null ? timeoutMs : delay);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      if (delay == null || refused.containsKey(address.getAddress())) {
+        throw new IOException("Failed");
+      }
+      return new Socket();
+    }
+  }
+
+  private FakeConnector connector;
+  private EndpointStats stats;
+  private HappyEyeballs happyEyeballs;
+  private InetAddress v6;
+  private InetAddress v4a;
+  private InetAddress v4b;
+
+  @Before
+  public void setUp() throws Exception {
+    connector = new FakeConnector();
+    stats = new EndpointStats();
+    happyEyeballs = new HappyEyeballs(443, 2000, stats, connector);
+    v6 = InetAddress.getByName("2606:4700:4700::1111");
+    v4a = InetAddress.getByName("1.1.1.1");
+    v4b = InetAddress.getByName("1.0.0.1");
+  }
+
+  @Test
+  public void interleave() {
+    List<InetAddress> mixed = Arrays.asList(v4a, v4b, v6);
+    assertTrue(happyEyeballs.isV6Preferred());
+    assertEquals(Arrays.asList(v6, v4a, v4b), happyEyeballs.interleave(mixed));
+  }
+
+  @Test
+  public void firstWins() {
+    connector.delays.put(v6, 10L);
+    connector.delays.put(v4a, 10L);
+    assertEquals(v6, happyEyeballs.race(Arrays.asList(v6, v4a)));
+    assertEquals(1, happyEyeballs.getV6Wins());
+    assertTrue(stats.isReachable(v6.getHostAddress()));
+  }
+
+  @Test
+  public void blackholedAddressIsSkipped() {
+    // v6 is blackholed, so v4a starts after ATTEMPT_DELAY_MS and wins long before the timeout.
+    connector.delays.put(v4a, 10L);
+    long start = System.currentTimeMillis();
+    assertEquals(v4a, happyEyeballs.race(Arrays.asList(v6, v4a)));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1, happyEyeballs.getV4Wins());
+    assertFalse(happyEyeballs.isV6Preferred());
+    // Later races start with IPv4.
+    assertEquals(Arrays.asList(v4a, v6, v4b),
+        happyEyeballs.interleave(Arrays.asList(v6, v4a, v4b)));
+  }
+
+  @Test
+  public void failureStartsNextAttempt() {
+    connector.delays.put(v6, 1L);
+    connector.refused.put(v6, true);
+    connector.delays.put(v4a, 1L);
+    assertEquals(v4a, happyEyeballs.race(Arrays.asList(v6, v4a)));
+    assertEquals(1, happyEyeballs.getV6Failures());
+    assertFalse(stats.isReachable(v6.getHostAddress()));
+  }
+
+  @Test
+  public void allFail() {
+    connector.delays.put(v6, 1L);
+    connector.refused.put(v6, true);
+    connector.delays.put(v4a, 1L);
+    connector.refused.put(v4a, true);
+    assertNull(happyEyeballs.race(Arrays.asList(v6, v4a)));
+    assertEquals(1, happyEyeballs.getV6Failures());
+    assertEquals(1, happyEyeballs.getV4Failures());
+    assertTrue(happyEyeballs.isV6Preferred());
+  }
+
+  @Test
+  public void winnerIsPromoted() {
+    List<InetAddress> addresses = Arrays.asList(v6, v4a, v4b);
+    assertFalse(happyEyeballs.hasWinner());
+    assertEquals(addresses, happyEyeballs.promoteWinner(addresses));
+
+    connector.delays.put(v4b, 10L);
+    assertEquals(v4b, happyEyeballs.race(addresses));
+    assertTrue(happyEyeballs.hasWinner());
+    assertEquals(Arrays.asList(v4b, v6, v4a), happyEyeballs.promoteWinner(addresses));
+
+    // The winner may not be reachable on a different network.
+    happyEyeballs.onNetworkChanged();
+    assertFalse(happyEyeballs.hasWinner());
+    assertEquals(addresses, happyEyeballs.promoteWinner(addresses));
+  }
+
+  @Test
+  public void raceInBackground() throws InterruptedException {
+    connector.delays.put(v4a, 10L);
+    final CountDownLatch done = new CountDownLatch(1);
+    assertTrue(happyEyeballs.raceInBackground(Arrays.asList(v6, v4a), new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    }));
+    // Only one race at a time.
+    assertFalse(happyEyeballs.raceInBackground(Arrays.asList(v6, v4a), null));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(v4a, v6), happyEyeballs.promoteWinner(Arrays.asList(v6, v4a)));
+  }
+}
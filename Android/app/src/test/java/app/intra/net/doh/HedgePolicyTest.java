@@ -0,0 +1,91 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HedgePolicyTest {
+
+  @Test
+  public void defaultDelay() {
+    HedgePolicy policy = new HedgePolicy();
+    assertEquals(HedgePolicy.DEFAULT_DELAY_MS, policy.getDelayMs());
+    policy.recordLatency(10);
+    assertEquals(HedgePolicy.DEFAULT_DELAY_MS, policy.getDelayMs());
+  }
+
+  @Test
+  public void percentileDelay() {
+    HedgePolicy policy = new HedgePolicy();
+    // 1..100 ms, in scrambled order.
+    for (int i = 0; i < 100; ++i) {
+      policy.recordLatency((i * 37) % 100 + 1);
+    }
+    assertEquals(90, policy.getDelayMs());
+  }
+
+  @Test
+  public void delayIsClamped() {
+    HedgePolicy policy = new HedgePolicy();
+    for (int i = 0; i < 100; ++i) {
+      policy.recordLatency(1);
+    }
+    assertEquals(HedgePolicy.MIN_DELAY_MS, policy.getDelayMs());
+    for (int i = 0; i < 200; ++i) {
+      policy.recordLatency(60000);
+    }
+    assertEquals(HedgePolicy.MAX_DELAY_MS, policy.getDelayMs());
+  }
+
+  @Test
+  public void hedgeRateIsCapped() {
+    HedgePolicy policy = new HedgePolicy();
+    // Try to hedge every query.
+    int hedges = 0;
+    for (int i = 0; i < 1000; ++i) {
+      policy.onQuery();
+      if (policy.tryHedge()) {
+        ++hedges;
+      }
+    }
+    assertEquals(hedges, policy.getHedgeCount());
+    assertEquals(1000, policy.getQueryCount());
+    // The initial burst allowance can add a few hedges beyond the long-term fraction.
+    assertTrue(hedges <= 1000 * HedgePolicy.HEDGE_FRACTION + 3);
+    assertTrue(hedges >= 1000 * HedgePolicy.HEDGE_FRACTION);
+    assertTrue(policy.getHedgeRate() < 0.06);
+  }
+
+  @Test
+  public void budgetRefills() {
+    HedgePolicy policy = new HedgePolicy();
+    while (policy.tryHedge()) {
+      policy.onQuery();
+    }
+    assertFalse(policy.tryHedge());
+    for (int i = 0; i < 20; ++i) {
+      policy.onQuery();
+    }
+    assertTrue(policy.tryHedge());
+    assertEquals(0, policy.getHedgeWinCount());
+    policy.onHedgeWon();
+    assertEquals(1, policy.getHedgeWinCount());
+  }
+}
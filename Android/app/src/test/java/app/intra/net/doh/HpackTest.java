@@ -0,0 +1,151 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+public class HpackTest {
+
+  // Collects decoded fields as "name: value".
+  private static class Fields implements Hpack.Listener {
+    final List<String> fields = new ArrayList<>();
+
+    @Override
+    public void onHeader(String name, String value) {
+      fields.add(name + ": " + value);
+    }
+  }
+
+  private static List<String> decode(Hpack.Decoder decoder, String hex) throws ProtocolException {
+    byte[] block = ByteString.decodeHex(hex).toByteArray();
+    Fields fields = new Fields();
+    decoder.decode(block, block.length, fields);
+    return fields.fields;
+  }
+
+  // RFC 7541 Appendix C.4: requests with Huffman coding, sharing one dynamic table.
+  @Test
+  public void rfcExamples() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    assertEquals(Arrays.asList(
+        ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+        decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+    assertEquals(Arrays.asList(
+        ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+        "cache-control: no-cache"),
+        decode(decoder, "828684be5886a8eb10649cbf"));
+    assertEquals(Arrays.asList(
+        ":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+        "custom-key: custom-value"),
+        decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+  }
+
+  @Test
+  public void tableSizeUpdateEvicts() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+    // Shrink the table to zero, which evicts www.example.com, then refer to it.
+    try {
+      decode(decoder, "20be");
+      fail("Evicted entry was still indexed");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void tableSizeUpdateAboveLimit() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    try {
+      // Size update to 4097.
+      decode(decoder, "3fe21f");
+      fail("Oversized table accepted");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void invalidIndex() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    try {
+      decode(decoder, "80");
+      fail("Index 0 accepted");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+    try {
+      decode(decoder, "ff00");
+      fail("Index beyond both tables accepted");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void truncatedBlock() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    try {
+      // A literal whose value claims 12 bytes but has only 2.
+      decode(decoder, "410c7777");
+      fail("Truncated literal accepted");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void huffmanPadding() throws Exception {
+    // "www.example.com", as in RFC 7541 C.4.1.
+    byte[] encoded = ByteString.decodeHex("f1e3c2e5f23a6ba0ab90f4ff").toByteArray();
+    assertEquals("www.example.com", Hpack.decodeHuffman(encoded, 0, encoded.length));
+    // Padding longer than 7 bits is invalid.
+    byte[] overpadded = ByteString.decodeHex("f1e3c2e5f23a6ba0ab90f4ffff").toByteArray();
+    try {
+      Hpack.decodeHuffman(overpadded, 0, overpadded.length);
+      fail("Overlong padding accepted");
+    } catch (ProtocolException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void encoderRoundTrip() throws Exception {
+    Buffer buffer = new Buffer();
+    Hpack.writeIndexed(buffer, Hpack.METHOD_POST);
+    Hpack.writeIndexed(buffer, Hpack.SCHEME_HTTPS);
+    Hpack.writeLiteral(buffer, Hpack.PATH, "/dns-query");
+    // Long enough to need a multi-byte length.
+    char[] longValue = new char[300];
+    Arrays.fill(longValue, 'x');
+    Hpack.writeLiteral(buffer, Hpack.USER_AGENT, new String(longValue));
+    byte[] block = buffer.readByteArray();
+
+    Fields fields = new Fields();
+    new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block, block.length, fields);
+    assertEquals(Arrays.asList(":method: POST", ":scheme: https", ":path: /dns-query",
+        "user-agent: " + new String(longValue)), fields.fields);
+  }
+}
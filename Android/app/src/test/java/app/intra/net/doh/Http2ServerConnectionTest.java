@@ -0,0 +1,366 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Headers;
+import okhttp3.Response;
+import okhttp3.internal.http2.ErrorCode;
+import okhttp3.internal.http2.Header;
+import okhttp3.internal.http2.Http2Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class Http2ServerConnectionTest {
+
+  private static final byte[] QUERY_DATA = {
+      -107, -6,  // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      7, 'y', 'o', 'u', 't', 'u', 'b', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  // Records the outcome of one query.
+  private static class Result implements Callback {
+    final CountDownLatch done = new CountDownLatch(1);
+    Call call;
+    Response response;
+    byte[] body;
+    IOException error;
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      this.call = call;
+      error = e;
+      done.countDown();
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) throws IOException {
+      this.call = call;
+      this.response = response;
+      body = response.body().bytes();
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+  }
+
+  private LocalHttp2Server server;
+  private Http2ServerConnection connection;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalHttp2Server();
+    connection = makeConnection(Http2ServerConnection.DEFAULT_READ_TIMEOUT_MS);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    connection.reset();
+    server.close();
+  }
+
+  private Http2ServerConnection makeConnection(int readTimeoutMs) {
+    return new Http2ServerConnection(server.getUrl(),
+        Collections.singletonList(server.getAddress()), server.getTransport(), readTimeoutMs);
+  }
+
+  private Result query(Http2ServerConnection connection, byte[] data) {
+    Result result = new Result();
+    connection.performDnsRequest(DnsUdpQuery.fromUdpBody(data), data.clone(), result);
+    return result;
+  }
+
+  private static byte[] expectedEcho(byte[] query) {
+    byte[] echo = query.clone();
+    echo[0] = 0;
+    echo[1] = 0;
+    echo[2] |= (byte) 0x80;
+    return echo;
+  }
+
+  @Test
+  public void query() throws Exception {
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertNull(result.error);
+    // There is no OkHttp Call.
+    assertNull(result.call);
+    assertEquals(200, result.response.code());
+    assertEquals(server.getAddress().getHostAddress(),
+        result.response.header(IpTagInterceptor.HEADER_NAME));
+    assertArrayEquals(expectedEcho(QUERY_DATA), result.body);
+
+    Headers request = server.getRequests().get(0);
+    assertEquals("POST", request.get(":method"));
+    assertEquals("/dns-query", request.get(":path"));
+    assertEquals("localhost:" + server.getUrl().split(":")[2].split("/")[0],
+        request.get(":authority"));
+    assertEquals("application/dns-message", request.get("content-type"));
+    assertEquals("application/dns-message", request.get("accept"));
+    assertEquals(Integer.toString(QUERY_DATA.length), request.get("content-length"));
+  }
+
+  @Test
+  public void multiplexing() throws Exception {
+    // Responses are sent in the reverse order of the queries.
+    final int QUERIES = 20;
+    final CountDownLatch allReceived = new CountDownLatch(QUERIES);
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+          throws IOException {
+        allReceived.countDown();
+        try {
+          allReceived.await(5, TimeUnit.SECONDS);
+          // Later streams have higher IDs.  Delay the earlier ones.
+          Thread.sleep(Math.max(0, 200 - stream.getId()));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        LocalHttp2Server.ECHO.handle(stream, requestHeaders, body);
+      }
+    });
+
+    List<Result> results = new ArrayList<>();
+    List<byte[]> queries = new ArrayList<>();
+    for (int i = 0; i < QUERIES; ++i) {
+      byte[] data = QUERY_DATA.clone();
+      data[13] = (byte) ('a' + i);  // A different name for each query.
+      queries.add(data);
+      results.add(query(connection, data));
+    }
+    for (int i = 0; i < QUERIES; ++i) {
+      results.get(i).await();
+      assertNull(results.get(i).error);
+      assertArrayEquals(expectedEcho(queries.get(i)), results.get(i).body);
+    }
+    assertEquals(1, server.getConnectionCount());
+  }
+
+  @Test
+  public void headerCompression() throws Exception {
+    // The server adds these headers to its dynamic table, and refers to them in later responses.
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+          throws IOException {
+        byte[] response = body.clone();
+        response[2] |= (byte) 0x80;
+        LocalHttp2Server.respond(stream, 200, response, new Header("age", "17"),
+            new Header("cache-control", "max-age=300"));
+      }
+    });
+    for (int i = 0; i < 3; ++i) {
+      Result result = query(connection, QUERY_DATA);
+      result.await();
+      assertNull(result.error);
+      assertEquals("17", result.response.header("Age"));
+      assertArrayEquals(expectedEcho(QUERY_DATA), result.body);
+    }
+    assertEquals(1, server.getConnectionCount());
+  }
+
+  @Test
+  public void httpError() throws Exception {
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+          throws IOException {
+        LocalHttp2Server.respond(stream, 500, new byte[0]);
+      }
+    });
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertNull(result.error);
+    assertEquals(500, result.response.code());
+    assertEquals(0, result.body.length);
+  }
+
+  @Test
+  public void refusedStreamIsRetried() throws Exception {
+    server.setHandler(new LocalHttp2Server.Handler() {
+      boolean refused = false;
+
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+          throws IOException {
+        if (!refused) {
+          refused = true;
+          stream.close(ErrorCode.REFUSED_STREAM);
+          return;
+        }
+        LocalHttp2Server.ECHO.handle(stream, requestHeaders, body);
+      }
+    });
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertNull(result.error);
+    assertArrayEquals(expectedEcho(QUERY_DATA), result.body);
+    assertEquals(2, server.getRequests().size());
+  }
+
+  @Test
+  public void streamReset() throws Exception {
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+          throws IOException {
+        stream.close(ErrorCode.INTERNAL_ERROR);
+      }
+    });
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertNotNull(result.error);
+    assertEquals(1, server.getRequests().size());
+  }
+
+  @Test
+  public void reconnectAfterConnectionLoss() throws Exception {
+    Result first = query(connection, QUERY_DATA);
+    first.await();
+    assertNull(first.error);
+
+    server.dropConnections();
+    // The loss may only be noticed when the next query is written, in which case that query
+    // fails, so try a few times.
+    Result second = null;
+    for (int i = 0; i < 3; ++i) {
+      second = query(connection, QUERY_DATA);
+      second.await();
+      if (second.error == null) {
+        break;
+      }
+    }
+    assertNull(second.error);
+    assertArrayEquals(expectedEcho(QUERY_DATA), second.body);
+    assertEquals(2, server.getConnectionCount());
+  }
+
+  @Test
+  public void resetFailsQueriesInFlight() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body) {
+        received.countDown();
+        // Never respond.
+      }
+    });
+    Result result = query(connection, QUERY_DATA);
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    connection.reset();
+    result.await();
+    assertNotNull(result.error);
+
+    server.setHandler(LocalHttp2Server.ECHO);
+    Result next = query(connection, QUERY_DATA);
+    next.await();
+    assertNull(next.error);
+    assertEquals(2, server.getConnectionCount());
+  }
+
+  @Test
+  public void timeout() throws Exception {
+    server.setHandler(new LocalHttp2Server.Handler() {
+      @Override
+      public void handle(Http2Stream stream, Headers requestHeaders, byte[] body) {
+        // Never respond.
+      }
+    });
+    connection = makeConnection(0);
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertTrue(result.error instanceof SocketTimeoutException);
+  }
+
+  @Test
+  public void warmUpConnects() throws Exception {
+    connection.warmUp();
+    for (int i = 0; i < 50 && server.getConnectionCount() == 0; ++i) {
+      Thread.sleep(20);
+    }
+    assertEquals(1, server.getConnectionCount());
+    Result result = query(connection, QUERY_DATA);
+    result.await();
+    assertNull(result.error);
+    // A second warm-up pings the existing connection instead of opening another.
+    connection.warmUp();
+    result = query(connection, QUERY_DATA);
+    result.await();
+    assertNull(result.error);
+    assertEquals(1, server.getConnectionCount());
+  }
+
+  @Test
+  public void wrongHostname() throws Exception {
+    Http2ServerConnection impostor = new Http2ServerConnection(server.getUrl(),
+        Collections.singletonList(server.getAddress()),
+        new Http2ServerConnection.TlsTransport("dns.example", server.getPort(),
+            server.getClientSocketFactory(), LocalDotServer.getHostnameVerifier(), null),
+        Http2ServerConnection.DEFAULT_READ_TIMEOUT_MS);
+    Result result = query(impostor, QUERY_DATA);
+    result.await();
+    assertTrue(result.error instanceof SSLPeerUnverifiedException);
+    assertTrue(server.getRequests().isEmpty());
+  }
+
+  @Test
+  public void connectionFailure() throws Exception {
+    Http2ServerConnection unreachable = new Http2ServerConnection(server.getUrl(),
+        Collections.singletonList(server.getAddress()), new Http2ServerConnection.Transport() {
+          @Override
+          public Socket connect(InetAddress address) throws IOException {
+            throw new ConnectException("Connection refused");
+          }
+        }, Http2ServerConnection.DEFAULT_READ_TIMEOUT_MS);
+    Result result = query(unreachable, QUERY_DATA);
+    result.await();
+    assertTrue(result.error instanceof ConnectException);
+    assertEquals(0, server.getConnectionCount());
+  }
+}
@@ -0,0 +1,97 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeepaliveTest {
+
+  private Keepalive keepalive;
+
+  @Before
+  public void setUp() {
+    keepalive = new Keepalive();
+  }
+
+  @Test
+  public void idleBeforeFirstQuery() {
+    assertEquals(-1, keepalive.getDelay(1000));
+  }
+
+  @Test
+  public void pingAfterIdleInterval() {
+    keepalive.onQuery(1000);
+    assertEquals(Keepalive.INITIAL_INTERVAL_MS, keepalive.getDelay(1000));
+    assertEquals(0, keepalive.getDelay(1000 + Keepalive.INITIAL_INTERVAL_MS));
+
+    // A ping restarts the interval.
+    long now = 1000 + Keepalive.INITIAL_INTERVAL_MS;
+    keepalive.onPingSent(now);
+    assertEquals(Keepalive.INITIAL_INTERVAL_MS, keepalive.getDelay(now));
+  }
+
+  @Test
+  public void stopsWhenIdle() {
+    keepalive.onQuery(1000);
+    keepalive.onPingSent(1000 + Keepalive.ACTIVE_WINDOW_MS);
+    assertEquals(-1, keepalive.getDelay(1001 + Keepalive.ACTIVE_WINDOW_MS));
+  }
+
+  @Test
+  public void intervalAdapts() {
+    keepalive.onPingResult(false, 40);
+    assertEquals(2 * Keepalive.INITIAL_INTERVAL_MS, keepalive.getIntervalMs());
+    keepalive.onPingResult(false, 40);
+    assertEquals(4 * Keepalive.INITIAL_INTERVAL_MS, keepalive.getIntervalMs());
+
+    // The connection was dropped at this interval, so back off and stay below it.
+    keepalive.onPingResult(true, 500);
+    assertEquals(2 * Keepalive.INITIAL_INTERVAL_MS, keepalive.getIntervalMs());
+    keepalive.onPingResult(false, 40);
+    assertEquals(4 * Keepalive.INITIAL_INTERVAL_MS - 1, keepalive.getIntervalMs());
+    keepalive.onPingResult(false, 40);
+    assertEquals(4 * Keepalive.INITIAL_INTERVAL_MS - 1, keepalive.getIntervalMs());
+
+    // A new network lifts the ceiling.
+    keepalive.onNetworkChanged();
+    assertEquals(Keepalive.INITIAL_INTERVAL_MS, keepalive.getIntervalMs());
+    for (int i = 0; i < 10; ++i) {
+      keepalive.onPingResult(false, 40);
+    }
+    assertEquals(Keepalive.MAX_INTERVAL_MS, keepalive.getIntervalMs());
+
+    for (int i = 0; i < 10; ++i) {
+      keepalive.onPingFailed();
+    }
+    assertEquals(Keepalive.MIN_INTERVAL_MS, keepalive.getIntervalMs());
+  }
+
+  @Test
+  public void rtt() {
+    assertEquals(-1, keepalive.getLastPingRttMs());
+    keepalive.onPingResult(false, 100);
+    keepalive.onPingResult(false, 200);
+    // Cold pings include connection setup, so they don't count.
+    keepalive.onPingResult(true, 1000);
+    assertEquals(200, keepalive.getLastPingRttMs());
+    assertEquals(130, keepalive.getAveragePingRttMs(), 0.001);
+    assertEquals(3, keepalive.getPingCount());
+    assertEquals(1, keepalive.getColdPingCount());
+  }
+}
@@ -0,0 +1,275 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * A DNS-over-TLS server on 127.0.0.1, for tests.  It has a self-signed certificate for
+ * "localhost" and 127.0.0.1, which is trusted by getClientSocketFactory().  Each connection's
+ * queries are passed to a Handler, which may answer them in any order, or not at all.
+ */
+class LocalDotServer implements Closeable {
+  // A PKCS12 key store holding an EC key, and a certificate for localhost and 127.0.0.1 that is
+  // valid for 100 years.  Generated with keytool.
+  private static final String KEY_STORE =
+      "MIIDfgIBAzCCAzcGCSqGSIb3DQEHAaCCAygEggMkMIIDIDCB5QYJKoZIhvcNAQcBoIHXBIHUMIHRMIHOBgsqhkiG9w"
+      + "0BDAoBAqB3MHUwKQYKKoZIhvcNAQwBAzAbBBTQNBNqMS6H01RW6Plt2F47bUvCEwIDAMNQBEjA2c7iImnmGFCYH2Ye"
+      + "QJr1WNjNob7ZAmHQngpOnOVW98Hwx6GlmEryXvB1gRgJrTW7KNy++RTtUXKYH2XtgE+E+tMh43mYhtgxRjAhBgkqhk"
+      + "iG9w0BCRQxFB4SAGwAbwBjAGEAbABoAG8AcwB0MCEGCSqGSIb3DQEJFTEUBBJUaW1lIDE3OTIyMDk0MjMyNDIwggI0"
+      + "BgkqhkiG9w0BBwagggIlMIICIQIBADCCAhoGCSqGSIb3DQEHATApBgoqhkiG9w0BDAEGMBsEFLgBANAh+SyOQf5qZX"
+      + "j+2IyEEtdzAgMAw1CAggHgn3BmGVpLti3aR7lAlD3E3RSJx87TDCtpFHw7pIaYLu7qnbQJSLN36VtJCjR24pgsF64e"
+      + "/xqnmkhCK0mTVwoPIyhvJKd9qgr7LziFQn2L25SeI15Q9FtP8ZXnxBgXAu07PCHJgRr1Vxyj95dL8teMRlvWNLI4mp"
+      + "afR9xj1ERH8Pm3FA4pvTXPkMuzgblr/kYqxJ0gbQxOqYyhftJe0r/oZPt5nLVyrk+iVS+Pnw1KKWhlTXfxcvedFkw6"
+      + "bGxFIMtrlBITv97x5q0vVF1dEytjQESr/4dy7/nLm/f6To5oge5ZcEZAa+dx6HTOgyTu6GOtUiCyu4qcIACHzIF4d/"
+      + "vbHxwxyOapv+a4VmJpF3fMit16ArAjB1YvWYE0o1avUP/ACxcYX1LLY1/CueSkrS2bPV7y7CkwIhSOyzk3C4Tu41yP"
+      + "nhGe2zOcGlfaEnWGGNDyhyu9uyUECTWpMMyeawrRXzOD09Uepye4TuBNk27IIe9FrfTgWBmC+2PM0Gf9WnU/IDzjnY"
+      + "kUjwuSG0UPpABtpSCYC/A3pbH56hjFVW+rEbw9Fx3DuJSk7g/PsJEBMS4AkpDWNGddbjjzSrBuShWnuS7CwDD19T2u"
+      + "Pc5txPdw1/f8sTsaTTD4StmJMWYwjz8cMD4wITAJBgUrDgMCGgUABBQskeSvWsiks8Waeo8xfvKJuquxYAQUmv4gZQ"
+      + "XxZSnNko48gBovLDDc1ecCAwGGoA==";
+  private static final char[] PASSWORD = "password".toCharArray();
+
+  /**
+   * Answers queries on one connection.
+   */
+  interface Handler {
+    /**
+     * Called for each query, on the connection's thread.
+     */
+    void handle(byte[] query, Responder responder) throws IOException;
+  }
+
+  /**
+   * Writes responses to one connection.  Thread-safe.
+   */
+  static class Responder {
+    private final Socket socket;
+    private final BufferedSink sink;
+
+    Responder(Socket socket) throws IOException {
+      this.socket = socket;
+      sink = Okio.buffer(Okio.sink(socket));
+    }
+
+    synchronized void send(byte[] response) throws IOException {
+      sink.writeShort(response.length);
+      sink.write(response);
+      sink.flush();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /**
+   * Responds with the query, with the QR bit set.
+   */
+  static final Handler ECHO = new Handler() {
+    @Override
+    public void handle(byte[] query, Responder responder) throws IOException {
+      responder.send(echo(query));
+    }
+  };
+
+  static byte[] echo(byte[] query) {
+    byte[] response = query.clone();
+    response[2] |= (byte) 0x80;
+    return response;
+  }
+
+  private final SSLContext context;
+  private final ServerSocket serverSocket;
+  private final int port;
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+  private final List<byte[]> queries = Collections.synchronizedList(new ArrayList<byte[]>());
+  private volatile Handler handler = ECHO;
+
+  private static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    keyStore.load(new ByteArrayInputStream(ByteString.decodeBase64(KEY_STORE).toByteArray()),
+        PASSWORD);
+    return keyStore;
+  }
+
+  /**
+   * @return A trust manager that trusts only the test certificate.
+   */
+  static X509TrustManager getTrustManager() throws IOException, GeneralSecurityException {
+    TrustManagerFactory trustManagers =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(loadKeyStore());
+    return (X509TrustManager) trustManagers.getTrustManagers()[0];
+  }
+
+  /**
+   * @return A TLS context that serves the test certificate, and trusts only that certificate.
+   *     Shared with LocalHttp2Server.
+   */
+  static SSLContext createContext() throws IOException, GeneralSecurityException {
+    KeyManagerFactory keyManagers =
+        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(loadKeyStore(), PASSWORD);
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagers.getKeyManagers(), new TrustManager[] {getTrustManager()}, null);
+    return context;
+  }
+
+  LocalDotServer() throws IOException, GeneralSecurityException {
+    context = createContext();
+
+    serverSocket = context.getServerSocketFactory()
+        .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    port = serverSocket.getLocalPort();
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            sockets.add(socket);
+            new Thread(new Runnable() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            }, "LocalDotServer connection").start();
+          }
+        } catch (IOException e) {
+          // The server was closed.
+        }
+      }
+    }, "LocalDotServer accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  private void serve(Socket socket) {
+    try {
+      Responder responder = new Responder(socket);
+      BufferedSource source = Okio.buffer(Okio.source(socket));
+      while (true) {
+        int length = source.readShort() & 0xffff;
+        byte[] query = source.readByteArray(length);
+        queries.add(query);
+        handler.handle(query, responder);
+      }
+    } catch (IOException e) {
+      // The connection was closed.
+    }
+  }
+
+  /**
+   * @return A socket factory that trusts this server's certificate.
+   */
+  SSLSocketFactory getClientSocketFactory() {
+    return context.getSocketFactory();
+  }
+
+  /**
+   * @return A verifier that accepts a host if it is one of the certificate's subject alternative
+   *     names, like the platform's default verifier on Android.  The JVM's default rejects all.
+   */
+  static HostnameVerifier getHostnameVerifier() {
+    return new HostnameVerifier() {
+      @Override
+      public boolean verify(String host, SSLSession session) {
+        try {
+          X509Certificate cert = (X509Certificate) session.getPeerCertificates()[0];
+          Collection<List<?>> names = cert.getSubjectAlternativeNames();
+          if (names == null) {
+            return false;
+          }
+          for (List<?> name : names) {
+            if (host.equalsIgnoreCase(String.valueOf(name.get(1)))) {
+              return true;
+            }
+          }
+        } catch (SSLPeerUnverifiedException | CertificateParsingException e) {
+          // Not verified.
+        }
+        return false;
+      }
+    };
+  }
+
+  void setHandler(Handler handler) {
+    this.handler = handler;
+  }
+
+  InetAddress getAddress() {
+    return serverSocket.getInetAddress();
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  String getUrl() {
+    return "tls://localhost:" + port;
+  }
+
+  int getConnectionCount() {
+    return sockets.size();
+  }
+
+  List<byte[]> getQueries() {
+    return queries;
+  }
+
+  /**
+   * Closes every connection, without closing the server.
+   */
+  void dropConnections() throws IOException {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    dropConnections();
+  }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocketFactory;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.internal.http2.Header;
+import okhttp3.internal.http2.Http2Connection;
+import okhttp3.internal.http2.Http2Stream;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * A stand-in DoH server on 127.0.0.1, for tests.  It uses OkHttp's server-side HTTP/2
+ * implementation, as an independent peer for the client under test, over TLS with
+ * LocalDotServer's certificate.  It only accepts HTTP/2, negotiated with ALPN.  Its HPACK encoder
+ * uses Huffman coding and the dynamic table, so responses exercise the client's decoder.
+ */
+class LocalHttp2Server implements Closeable {
+  // Names the server's threads, so that benchmarks can tell them apart from the client's.
+  static final String NAME = "stand-in";
+
+  static {
+    // OkHttp's HTTP/2 code relies on state that is set up when OkHttpClient is loaded, and the
+    // client under test doesn't load it.
+    new OkHttpClient.Builder();
+  }
+
+  /**
+   * Responds to a request.  Runs on a thread owned by the server.
+   */
+  interface Handler {
+    void handle(Http2Stream stream, Headers requestHeaders, byte[] body) throws IOException;
+  }
+
+  /**
+   * Responds with the query, with the QR bit set.
+   */
+  static final Handler ECHO = new Handler() {
+    @Override
+    public void handle(Http2Stream stream, Headers requestHeaders, byte[] body)
+        throws IOException {
+      byte[] response = body.clone();
+      response[2] |= (byte) 0x80;
+      respond(stream, 200, response);
+    }
+  };
+
+  private final SSLContext context;
+  private final SSLServerSocket serverSocket;
+  // Kept, because the socket forgets its port once it is closed.
+  private final int port;
+  private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+  private final List<Headers> requests = Collections.synchronizedList(new ArrayList<Headers>());
+  private volatile Handler handler = ECHO;
+
+  LocalHttp2Server() throws IOException, GeneralSecurityException {
+    context = LocalDotServer.createContext();
+    serverSocket = (SSLServerSocket) context.getServerSocketFactory()
+        .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    SSLParameters parameters = serverSocket.getSSLParameters();
+    parameters.setApplicationProtocols(new String[] {"h2"});
+    serverSocket.setSSLParameters(parameters);
+    port = serverSocket.getLocalPort();
+    Thread acceptThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            accept(serverSocket.accept());
+          }
+        } catch (IOException e) {
+          // The server was closed.
+        }
+      }
+    }, NAME + " accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  private void accept(Socket socket) throws IOException {
+    Http2Connection connection = new Http2Connection.Builder(false)
+        .socket(socket, NAME, Okio.buffer(Okio.source(socket)), Okio.buffer(Okio.sink(socket)))
+        .listener(new Http2Connection.Listener() {
+          @Override
+          public void onStream(Http2Stream stream) throws IOException {
+            Headers headers = stream.takeHeaders();
+            requests.add(headers);
+            byte[] body = Okio.buffer(stream.getSource()).readByteArray();
+            handler.handle(stream, headers, body);
+          }
+        })
+        .build();
+    sockets.add(socket);
+    connection.start();
+  }
+
+  static void respond(Http2Stream stream, int status, byte[] body, Header... extraHeaders)
+      throws IOException {
+    List<Header> headers = new ArrayList<>();
+    headers.add(new Header(Header.RESPONSE_STATUS, Integer.toString(status)));
+    headers.add(new Header("content-type", "application/dns-message"));
+    headers.add(new Header("content-length", Integer.toString(body.length)));
+    headers.addAll(Arrays.asList(extraHeaders));
+    stream.writeHeaders(headers, true);
+    BufferedSink sink = Okio.buffer(stream.getSink());
+    sink.write(body);
+    sink.close();
+  }
+
+  void setHandler(Handler handler) {
+    this.handler = handler;
+  }
+
+  InetAddress getAddress() {
+    return serverSocket.getInetAddress();
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  String getUrl() {
+    return "https://localhost:" + port + "/dns-query";
+  }
+
+  /**
+   * @return A socket factory that trusts this server's certificate.
+   */
+  SSLSocketFactory getClientSocketFactory() {
+    return context.getSocketFactory();
+  }
+
+  /**
+   * @return A Transport that connects to this server over TLS, like the production one.
+   */
+  Http2ServerConnection.Transport getTransport() {
+    return new Http2ServerConnection.TlsTransport("localhost", port, getClientSocketFactory(),
+        LocalDotServer.getHostnameVerifier(), null);
+  }
+
+  /**
+   * @return A session cache whose connections trust this server's certificate, for
+   *     StandardServerConnection.
+   */
+  TlsSessionCache getTlsSessionCache() throws IOException, GeneralSecurityException {
+    return new TlsSessionCache(getClientSocketFactory(), LocalDotServer.getTrustManager(),
+        getClientSocketFactory());
+  }
+
+  int getConnectionCount() {
+    return sockets.size();
+  }
+
+  List<Headers> getRequests() {
+    return requests;
+  }
+
+  /**
+   * Closes every connection without sending GOAWAY, as if the network had failed.
+   */
+  void dropConnections() throws IOException {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    dropConnections();
+  }
+}
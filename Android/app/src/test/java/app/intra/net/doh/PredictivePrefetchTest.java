@@ -0,0 +1,114 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class PredictivePrefetchTest {
+  private static final short TYPE_A = 1;
+
+  private static void train(PredictivePrefetch prefetch) {
+    for (int i = 0; i < CooccurrenceModel.MIN_OCCURRENCES; ++i) {
+      prefetch.recordQuery("api.", TYPE_A, i * 100000);
+      prefetch.recordQuery("cdn.", TYPE_A, i * 100000 + 10);
+    }
+  }
+
+  @Test
+  public void correctPrediction() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    train(prefetch);
+    long now = 1000000;
+    prefetch.recordQuery("api.", TYPE_A, now);
+    assertEquals(Arrays.asList("cdn."), prefetch.getPredictions("api."));
+    assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, now + 50));
+    // Already in flight.
+    assertFalse(prefetch.tryPrefetch("cdn.", TYPE_A, now + 60));
+    prefetch.onPrefetchResult("cdn.", TYPE_A, true, now + 80);
+    prefetch.recordQuery("cdn.", TYPE_A, now + 200);
+    assertEquals(1, prefetch.getPrefetchCount());
+    assertEquals(1, prefetch.getCorrectCount());
+    assertEquals(1.0, prefetch.getPrecision(), 0.001);
+    // The prefetch took 30 ms, which the client didn't have to wait for.
+    assertEquals(30, prefetch.getSavedLatencyMs());
+  }
+
+  @Test
+  public void prefetchInFlight() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, 0));
+    // The client's query waits for the prefetch, which had a 20 ms head start.
+    prefetch.recordQuery("cdn.", TYPE_A, 20);
+    assertEquals(20, prefetch.getSavedLatencyMs());
+  }
+
+  @Test
+  public void failedPrefetch() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, 0));
+    prefetch.onPrefetchResult("cdn.", TYPE_A, false, 10);
+    prefetch.recordQuery("cdn.", TYPE_A, 20);
+    assertEquals(1, prefetch.getCorrectCount());
+    assertEquals(0, prefetch.getSavedLatencyMs());
+  }
+
+  @Test
+  public void incorrectPrediction() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, 0));
+    assertTrue(prefetch.tryPrefetch("img.", TYPE_A, 0));
+    prefetch.recordQuery("cdn.", TYPE_A, 10);
+    // A different type doesn't count.
+    prefetch.recordQuery("img.", (short) 28, 20);
+    prefetch.recordQuery("other.", TYPE_A, PredictivePrefetch.USE_WINDOW_MS);
+    assertEquals(1, prefetch.getCorrectCount());
+    assertEquals(1, prefetch.getIncorrectCount());
+    assertEquals(0.5, prefetch.getPrecision(), 0.001);
+  }
+
+  @Test
+  public void withdrawn() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    for (int i = 0; i < PredictivePrefetch.MAX_PER_WINDOW; ++i) {
+      assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, i));
+      // The client's own query was already in flight.
+      prefetch.withdraw("cdn.", TYPE_A);
+    }
+    prefetch.recordQuery("cdn.", TYPE_A, 100);
+    prefetch.recordQuery("other.", TYPE_A, PredictivePrefetch.USE_WINDOW_MS);
+    assertEquals(0, prefetch.getPrefetchCount());
+    assertEquals(0, prefetch.getCorrectCount());
+    assertEquals(0, prefetch.getIncorrectCount());
+    // The rate limit wasn't used up.
+    assertTrue(prefetch.tryPrefetch("cdn.", TYPE_A, PredictivePrefetch.USE_WINDOW_MS));
+  }
+
+  @Test
+  public void rateLimited() {
+    PredictivePrefetch prefetch = new PredictivePrefetch();
+    for (int i = 0; i < PredictivePrefetch.MAX_PER_WINDOW; ++i) {
+      assertTrue(prefetch.tryPrefetch(i + ".", TYPE_A, i));
+    }
+    assertFalse(prefetch.tryPrefetch("limited.", TYPE_A, 100));
+    assertEquals(1, prefetch.getRateLimitedCount());
+    assertTrue(prefetch.tryPrefetch("limited.", TYPE_A, PredictivePrefetch.WINDOW_MS));
+  }
+}
@@ -18,12 +18,24 @@ package app.intra.net.doh;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import app.intra.net.dns.DnsUdpQuery;
 import app.intra.net.doh.Probe.Status;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -59,6 +71,24 @@ public class ProbeTest {
     mockFactory = null;
   }
 
+  // Returns a successful DoH response, with an empty NOERROR DNS message.
+  static Response makeAnswer() {
+    return makeResponse(200, 0);
+  }
+
+  private static Response makeResponse(int httpCode, int rcode) {
+    byte[] message = new byte[12];
+    message[2] = (byte) 0x81;  // QR=1, RD=1
+    message[3] = (byte) (0x80 | rcode);  // RA=1
+    return new Response.Builder()
+        .request(new Request.Builder().url("https://dns.example/dns-query").build())
+        .protocol(Protocol.HTTP_2)
+        .code(httpCode)
+        .message("")
+        .body(ResponseBody.create(MediaType.parse("application/dns-message"), message))
+        .build();
+  }
+
   private static void confirmEquals(ArgumentCaptor<byte[]> data, ArgumentCaptor<DnsUdpQuery> query) {
     assertEquals(DnsUdpQuery.fromUdpBody(data.getValue()).name, query.getValue().name);
   }
@@ -103,7 +133,7 @@ public class ProbeTest {
     // performDnsRequest was called.
     confirmEquals(dataCaptor, queryCaptor);
     // Simulate query success.
-    callbackCaptor.getValue().onResponse(null, null);
+    callbackCaptor.getValue().onResponse(null, makeAnswer());
     // Wait for success callback.
     done.acquire();
     assertEquals(Status.SUCCEEDED, probe.getStatus());
@@ -149,7 +179,7 @@ public class ProbeTest {
     // performDnsRequest was called.
     confirmEquals(dataCaptor, queryCaptor);
     // Simulate query failure.
-    callbackCaptor.getValue().onFailure(null, null);
+    callbackCaptor.getValue().onFailure(null, new IOException());
     // Wait for failure callback.
     done.acquire();
     assertEquals(Status.FAILED, probe.getStatus());
@@ -181,5 +211,145 @@ public class ProbeTest {
     assertEquals(Status.FAILED, probe.getStatus());
   }
 
-}
+  @Test
+  public void Canceled() throws Exception {
+    ServerConnection mockConn = mock(ServerConnection.class);
+    Semaphore proceed = new Semaphore(0);
+    when(mockFactory.get(URL)).then((InvocationOnMock invocation) -> {
+      done.release();
+      // Simulate a slow bootstrap, during which the probe is canceled.
+      proceed.acquireUninterruptibly();
+      return mockConn;
+    });
+
+    Probe.Callback callback = new Probe.Callback() {
+      @Override
+      public void onSuccess() {
+        fail();
+        done.release();
+      }
+
+      @Override
+      public void onFailure() {
+        done.release();
+      }
+    };
+    Probe probe = new Probe(mockFactory, URL, callback);
+    probe.start();
+    // Wait for call to ServerConnectionFactory.get()
+    done.acquire();
+    probe.cancel();
+    proceed.release();
+    // Wait for failure callback.
+    done.acquire();
+    assertEquals(Status.FAILED, probe.getStatus());
+    assertNull(probe.getConnection());
+    // The connection was closed without being used.
+    verify(mockConn).close();
+    verify(mockConn, never()).performDnsRequest(
+        queryCaptor.capture(), dataCaptor.capture(), callbackCaptor.capture());
+  }
+
+  // Runs |probe| to completion against |conn|, which answers each query with |answers| in turn.
+  private ProbeResult runSuite(ProbeSuite suite, Response... answers) throws Exception {
+    ServerConnection mockConn = mock(ServerConnection.class);
+    when(mockFactory.get(URL)).thenReturn(mockConn);
+    List<String> names = new ArrayList<>();
+    int[] next = {0};
+    doAnswer((InvocationOnMock invocation) -> {
+      names.add(((DnsUdpQuery) invocation.getArgument(0)).name);
+      Response answer = answers[next[0]++];
+      Callback cb = invocation.getArgument(2);
+      if (answer == null) {
+        cb.onFailure(null, new IOException());
+      } else {
+        cb.onResponse(null, answer);
+      }
+      return null;
+    }).when(mockConn).performDnsRequest(
+        queryCaptor.capture(),
+        dataCaptor.capture(),
+        callbackCaptor.capture());
+
+    Probe.Callback callback = new Probe.Callback() {
+      @Override
+      public void onSuccess() {
+        done.release();
+      }
+
+      @Override
+      public void onFailure() {
+        done.release();
+      }
+    };
+    Probe probe = new Probe(mockFactory, URL, suite, callback);
+    probe.start();
+    done.acquire();
+    ProbeResult result = probe.getResult();
+    assertEquals(result.isUsable() ? Status.SUCCEEDED : Status.FAILED, probe.getStatus());
+    assertEquals(result.getQueryCount(), names.size());
+    return result;
+  }
 
+  private static ProbeSuite twoByTwo() {
+    List<byte[]> queries = new ArrayList<>();
+    queries.add(ProbeSuite.makeQuery("a.example", ProbeSuite.TYPE_A));
+    queries.add(ProbeSuite.makeQuery("b.example", ProbeSuite.TYPE_AAAA));
+    return new ProbeSuite(queries, 2);
+  }
+
+  @Test
+  public void Rounds() throws Exception {
+    ProbeResult result = runSuite(twoByTwo(),
+        makeAnswer(), makeAnswer(), makeAnswer(), makeAnswer());
+    assertTrue(result.isUsable());
+    assertEquals(4, result.getQueryCount());
+    assertEquals(0, result.getFailureCount());
+    assertTrue(result.getColdLatencyMs() >= 0);
+    assertTrue(result.getWarmP50Ms() >= 0);
+    assertTrue(result.getWarmP95Ms() >= result.getWarmP50Ms());
+  }
+
+  @Test
+  public void CaseVaries() {
+    // Each round, and each salt, varies the case of the name, but not the name.
+    ProbeSuite suite = twoByTwo();
+    Set<String> names = new HashSet<>();
+    for (int salt : new int[] {0, 2}) {
+      for (int i = 0; i < suite.size(); i += 2) {
+        String name = DnsUdpQuery.fromUdpBody(suite.getQuery(i, salt)).name;
+        assertEquals("a.example.", name.toLowerCase());
+        assertFalse(name.equals("a.example."));
+        names.add(name);
+      }
+      assertEquals(ProbeSuite.TYPE_AAAA, DnsUdpQuery.fromUdpBody(suite.getQuery(1, salt)).type);
+    }
+    assertEquals(4, names.size());
+  }
+
+  @Test
+  public void ColdFailureEndsProbe() throws Exception {
+    ProbeResult result = runSuite(twoByTwo(), (Response) null);
+    assertFalse(result.isUsable());
+    assertEquals(1, result.getQueryCount());
+    assertEquals(-1, result.getColdLatencyMs());
+  }
+
+  @Test
+  public void ServerErrorsCount() throws Exception {
+    // A SERVFAIL, and an HTTP error, are failures.  Two of four is too many.
+    ProbeResult result = runSuite(twoByTwo(),
+        makeAnswer(), makeResponse(200, 2), makeResponse(503, 0));
+    assertFalse(result.isUsable());
+    assertEquals(3, result.getQueryCount());
+    assertEquals(2, result.getFailureCount());
+  }
+
+  @Test
+  public void OneWarmFailureTolerated() throws Exception {
+    ProbeResult result = runSuite(twoByTwo(),
+        makeAnswer(), (Response) null, makeAnswer(), makeAnswer());
+    assertTrue(result.isUsable());
+    assertEquals(0.25, result.getErrorRate(), 0.001);
+  }
+}
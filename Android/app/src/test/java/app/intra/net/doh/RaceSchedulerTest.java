@@ -0,0 +1,137 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RaceSchedulerTest {
+  // Far enough from zero that the scheduler's initial state doesn't matter.
+  private static final long START = 10 * RaceScheduler.PERIODIC_INTERVAL_MS;
+
+  private static void recordLatencies(RaceScheduler scheduler, long latencyMs, long now) {
+    for (int i = 0; i < RaceScheduler.MIN_SAMPLES; ++i) {
+      scheduler.recordLatency(latencyMs, now);
+    }
+  }
+
+  @Test
+  public void periodicOnlyWhenUnmeteredAndIdle() {
+    RaceScheduler scheduler = new RaceScheduler();
+    long now = START;
+    scheduler.onQuery(now);
+    // Busy.
+    assertFalse(scheduler.maybeStartRace(true, now + 1000));
+    now += RaceScheduler.IDLE_MS;
+    // Metered.
+    assertFalse(scheduler.maybeStartRace(false, now));
+    assertTrue(scheduler.maybeStartRace(true, now));
+    assertFalse(scheduler.onRaceResult(0, 0, now));
+    // Not due yet.
+    assertFalse(scheduler.maybeStartRace(true, now + RaceScheduler.PERIODIC_INTERVAL_MS - 1));
+    assertTrue(scheduler.maybeStartRace(true, now + RaceScheduler.PERIODIC_INTERVAL_MS));
+    assertEquals(2, scheduler.getRaceCount());
+    assertEquals(0, scheduler.getDegradedRaceCount());
+  }
+
+  @Test
+  public void degradedLatency() {
+    RaceScheduler scheduler = new RaceScheduler();
+    long now = START;
+    recordLatencies(scheduler, 100, now);
+    assertEquals(100, scheduler.getP95Ms());
+    assertFalse(scheduler.maybeStartRace(false, now));
+    recordLatencies(scheduler, RaceScheduler.DEGRADED_P95_MS + 1, now);
+    assertTrue(scheduler.maybeStartRace(false, now));
+    scheduler.onRaceResult(0, 0, now);
+    assertFalse(scheduler.maybeStartRace(false, now + RaceScheduler.DEGRADED_INTERVAL_MS - 1));
+    assertTrue(scheduler.maybeStartRace(false, now + RaceScheduler.DEGRADED_INTERVAL_MS));
+    assertEquals(2, scheduler.getDegradedRaceCount());
+  }
+
+  @Test
+  public void raceCandidate() {
+    RaceScheduler scheduler = new RaceScheduler();
+    long now = START;
+    scheduler.onQuery(now);
+    // Busy, with good latency.
+    recordLatencies(scheduler, 100, now);
+    assertFalse(scheduler.isRaceCandidate(now + 1000));
+    // Idle, so a periodic race is due if the network is unmetered.
+    now += RaceScheduler.IDLE_MS;
+    assertTrue(scheduler.isRaceCandidate(now));
+    assertFalse(scheduler.maybeStartRace(false, now));
+    assertTrue(scheduler.maybeStartRace(true, now));
+    assertFalse(scheduler.isRaceCandidate(now + RaceScheduler.IDLE_MS));
+    // Degraded latency makes a race due even while busy.
+    recordLatencies(scheduler, RaceScheduler.DEGRADED_P95_MS + 1, now);
+    assertFalse(scheduler.isRaceCandidate(now + RaceScheduler.DEGRADED_INTERVAL_MS - 1));
+    assertTrue(scheduler.isRaceCandidate(now + RaceScheduler.DEGRADED_INTERVAL_MS));
+  }
+
+  @Test
+  public void tooFewSamples() {
+    RaceScheduler scheduler = new RaceScheduler();
+    for (int i = 1; i < RaceScheduler.MIN_SAMPLES; ++i) {
+      scheduler.recordLatency(10000, START);
+    }
+    assertEquals(-1, scheduler.getP95Ms());
+    assertFalse(scheduler.maybeStartRace(false, START));
+  }
+
+  @Test
+  public void switchRequiresConsecutiveWins() {
+    RaceScheduler scheduler = new RaceScheduler();
+    long now = START;
+    assertFalse(scheduler.onRaceResult(2, 0, now));
+    // The active server won, so server 2 starts over.
+    assertFalse(scheduler.onRaceResult(0, 0, now));
+    assertFalse(scheduler.onRaceResult(2, 0, now));
+    // A different challenger starts over too.
+    assertFalse(scheduler.onRaceResult(3, 0, now));
+    // All servers failed.
+    assertFalse(scheduler.onRaceResult(-1, 0, now));
+    assertFalse(scheduler.onRaceResult(3, 0, now));
+    assertTrue(scheduler.onRaceResult(3, 0, now));
+    assertEquals(1, scheduler.getSwitchCount());
+  }
+
+  @Test
+  public void minimumDwell() {
+    RaceScheduler scheduler = new RaceScheduler();
+    long now = START;
+    scheduler.onRaceResult(1, 0, now);
+    assertTrue(scheduler.onRaceResult(1, 0, now));
+    // Server 1 is active now.  Server 0 wins twice, but too soon.
+    scheduler.onRaceResult(0, 1, now);
+    assertFalse(scheduler.onRaceResult(0, 1, now + RaceScheduler.MIN_DWELL_MS - 1));
+    // Its streak continues.
+    assertTrue(scheduler.onRaceResult(0, 1, now + RaceScheduler.MIN_DWELL_MS));
+    assertEquals(2, scheduler.getSwitchCount());
+  }
+
+  @Test
+  public void switchClearsSamples() {
+    RaceScheduler scheduler = new RaceScheduler();
+    recordLatencies(scheduler, RaceScheduler.DEGRADED_P95_MS + 1, START);
+    scheduler.onRaceResult(1, 0, START);
+    assertTrue(scheduler.onRaceResult(1, 0, START));
+    assertEquals(-1, scheduler.getP95Ms());
+  }
+}
@@ -18,10 +18,17 @@ package app.intra.net.doh;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import app.intra.net.dns.DnsUdpQuery;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.Callback;
 import org.junit.After;
 import org.junit.Before;
@@ -66,7 +73,7 @@ public class RaceTest {
       connections[i] = mock(ServerConnection.class);
       when(mockFactory.get(urls[i])).thenReturn(connections[i]);
       doAnswer((InvocationOnMock invocation) -> {
-        callbackCaptor.getValue().onResponse(null, null);
+        ((Callback) invocation.getArgument(2)).onResponse(null, ProbeTest.makeAnswer());
         return null;
       }).when(connections[i]).performDnsRequest(
           queryCaptor.capture(),
@@ -117,7 +124,7 @@ public class RaceTest {
         // Even-number servers succeed.
         when(mockFactory.get(urls[i])).thenReturn(connections[i]);
         doAnswer((InvocationOnMock invocation) -> {
-          callbackCaptor.getValue().onResponse(null, null);
+          ((Callback) invocation.getArgument(2)).onResponse(null, ProbeTest.makeAnswer());
           return null;
         }).when(connections[i]).performDnsRequest(
             queryCaptor.capture(),
@@ -140,5 +147,102 @@ public class RaceTest {
     done.acquire();
   }
 
-}
+  @Test
+  public void WinnerConnectionOffered() throws Exception {
+    final int N = 3;
+    String[] urls = new String[N];
+    ServerConnection[] connections = new ServerConnection[N];
+    for (int i = 0; i < N; ++i) {
+      urls[i] = String.format("server%d", i);
+      connections[i] = mock(ServerConnection.class);
+      when(mockFactory.get(urls[i])).thenReturn(connections[i]);
+      // Only server 1 answers.
+      final boolean answers = i == 1;
+      doAnswer((InvocationOnMock invocation) -> {
+        Callback cb = invocation.getArgument(2);
+        if (answers) {
+          cb.onResponse(null, ProbeTest.makeAnswer());
+        } else {
+          cb.onFailure(null, new IOException());
+        }
+        return null;
+      }).when(connections[i]).performDnsRequest(
+          queryCaptor.capture(),
+          dataCaptor.capture(),
+          callbackCaptor.capture());
+    }
+    Semaphore done = new Semaphore(0);
+    AtomicInteger winner = new AtomicInteger(-1);
+    Race race = new Race(mockFactory, urls, (int index) -> {
+      // The connection is offered before the listener runs.
+      verify(mockFactory).offerWarmConnection(connections[index]);
+      winner.set(index);
+      done.release();
+    });
+    race.start();
+    done.acquire();
+    assertEquals(1, winner.get());
+    assertEquals(N, race.getResults().size());
+    assertTrue(race.getResults().get(1).isUsable());
+    assertFalse(race.getResults().get(0).isUsable());
+    // The winner's connection stays open for reuse.
+    verify(connections[1], never()).close();
+  }
+
+  @Test
+  public void Deadline() throws Exception {
+    String[] urls = {"server0", "server1"};
+    ServerConnection fast = mock(ServerConnection.class);
+    when(mockFactory.get(urls[0])).thenReturn(fast);
+    doAnswer((InvocationOnMock invocation) -> {
+      ((Callback) invocation.getArgument(2)).onResponse(null, ProbeTest.makeAnswer());
+      return null;
+    }).when(fast).performDnsRequest(
+        queryCaptor.capture(),
+        dataCaptor.capture(),
+        callbackCaptor.capture());
+    // server1 never answers, so its probe would wait for each query's timeout.
+    ServerConnection stuck = mock(ServerConnection.class);
+    when(mockFactory.get(urls[1])).thenReturn(stuck);
+
+    Semaphore done = new Semaphore(0);
+    AtomicInteger winner = new AtomicInteger(-2);
+    Race race = new Race(mockFactory, urls, ProbeSuite.DEFAULT, 200, (int index) -> {
+      winner.set(index);
+      done.release();
+    });
+    race.start();
+    assertTrue(done.tryAcquire(Probe.QUERY_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS));
+    assertEquals(0, winner.get());
+    assertFalse(race.getResults().get(1).isUsable());
+    // The unfinished probe's connection is closed.
+    verify(stuck).close();
+  }
 
+  private static ProbeResult makeResult(long cold, int failures, Long... warm) {
+    return new ProbeResult("server", cold, Arrays.asList(warm), warm.length + 1 + failures,
+        failures);
+  }
+
+  @Test
+  public void ChooseWinner() {
+    ProbeResult fast = makeResult(300, 0, 20L, 20L, 30L);
+    // A faster cold query doesn't outweigh slower warm queries.
+    ProbeResult slowWarm = makeResult(100, 0, 40L, 40L, 50L);
+    // A long tail counts against a server.
+    ProbeResult tail = makeResult(100, 0, 10L, 10L, 200L);
+    assertEquals(0, Race.chooseWinner(Arrays.asList(fast, slowWarm, tail)));
+    assertEquals(1, Race.chooseWinner(Arrays.asList(tail, slowWarm)));
+
+    // Errors inflate the score.
+    ProbeResult flaky = makeResult(100, 1, 22L, 22L, 22L);
+    assertEquals(0, Race.chooseWinner(Arrays.asList(fast, flaky)));
+
+    // Unusable servers never win.
+    ProbeResult unreachable = makeResult(-1, 1);
+    ProbeResult failing = makeResult(100, 3, 1L, 1L);
+    assertEquals(1, Race.chooseWinner(Arrays.asList(unreachable, slowWarm, failing)));
+    assertEquals(-1, Race.chooseWinner(Arrays.asList(unreachable, failing)));
+    assertEquals(-1, Race.chooseWinner(Collections.<ProbeResult>emptyList()));
+  }
+}
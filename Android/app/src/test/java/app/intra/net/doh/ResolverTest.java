@@ -0,0 +1,122 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.dns.DnsUdpQuery;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ResolverTest {
+  private static final byte[] QUERY = {
+      0, 0,      // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT = 1
+      0, 0,      // [6-7]   ANCOUNT = 0
+      0, 0,      // [8-9]   NSCOUNT = 0
+      0, 1,      // [10-11] ARCOUNT = 1
+      7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1,  // QCLASS = IN
+      // EDNS OPT record
+      0,  // root name
+      0, 41,  // TYPE = OPT
+      16, 0,  // CLASS = UDP payload size
+      0, 0, 0, 0,  // TTL = extended RCODE and flags
+      0, 0  // RDLENGTH = 0
+  };
+
+  private static final byte[] SERVFAIL = {
+      18, 52,       // query ID
+      -127, -126,   // QR=1, RD=1, RA=1, RCODE=2
+      0, 1,
+      0, 0,
+      0, 0,
+      0, 0,         // The OPT record is dropped.
+      7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,
+      0, 1,
+      0, 1
+  };
+
+  @Test
+  public void makeServfail() {
+    assertArrayEquals(SERVFAIL, Resolver.makeServfail(QUERY, (short) 0x1234));
+  }
+
+  @Test
+  public void makeServfailDoesNotModifyQuery() {
+    byte[] query = QUERY.clone();
+    Resolver.makeServfail(query, (short) 0x1234);
+    assertArrayEquals(QUERY, query);
+  }
+
+  @Test
+  public void makeServfailWithoutQuestion() {
+    byte[] query = Arrays.copyOf(QUERY, 12);
+    query[5] = 0;  // QDCOUNT = 0
+    byte[] expected = Arrays.copyOf(SERVFAIL, 12);
+    expected[5] = 0;
+    assertArrayEquals(expected, Resolver.makeServfail(query, (short) 0x1234));
+  }
+
+  @Test
+  public void makeServfailMalformed() {
+    assertNull(Resolver.makeServfail(new byte[3], (short) 0));
+    // Truncated in the middle of the question.
+    assertNull(Resolver.makeServfail(Arrays.copyOf(QUERY, 20), (short) 0));
+    // A compressed name can't appear in the first question.
+    byte[] compressed = QUERY.clone();
+    compressed[12] = (byte) 0xC0;
+    assertNull(Resolver.makeServfail(compressed, (short) 0));
+  }
+
+  @Test
+  public void replaceName() throws Exception {
+    byte[] replaced = Resolver.replaceName(QUERY, true, "cdn.example.org.");
+    DnsUdpQuery query = DnsUdpQuery.fromUdpBody(replaced);
+    assertEquals("cdn.example.org.", query.name);
+    assertEquals(1, query.type);
+    assertTrue(new DnsPacket(replaced).hasEdns());
+    // The header is unchanged.
+    assertArrayEquals(Arrays.copyOf(QUERY, 12), Arrays.copyOf(replaced, 12));
+    // Only the name changed.
+    assertEquals(QUERY.length + "cdn.example.org".length() - "example.com".length(),
+        replaced.length);
+  }
+
+  @Test
+  public void replaceNameRejected() {
+    // The query doesn't match its EDNS flag.
+    assertNull(Resolver.replaceName(QUERY, false, "cdn.example."));
+    // A record that might point into the question.
+    byte[] answered = QUERY.clone();
+    answered[7] = 1;
+    assertNull(Resolver.replaceName(answered, true, "cdn.example."));
+    char[] longLabel = new char[64];
+    Arrays.fill(longLabel, 'a');
+    assertNull(Resolver.replaceName(QUERY, true, new String(longLabel) + ".example."));
+    assertNull(Resolver.replaceName(QUERY, true, "a..example."));
+  }
+}
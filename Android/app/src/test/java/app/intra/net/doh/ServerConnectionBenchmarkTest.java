@@ -0,0 +1,169 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the client-side CPU time and allocations per query of Http2ServerConnection and
+ * StandardServerConnection, against the same local HTTP/2 server over TLS.  Each client uses a
+ * single connection, so the handshake cost is negligible.  Only runs with -Dbenchmark=true.
+ */
+public class ServerConnectionBenchmarkTest {
+  private static final int WARMUP_QUERIES = 2000;
+  private static final int QUERIES = 20000;
+  // Queries in flight at once.
+  private static final int CONCURRENCY = 16;
+
+  private static final byte[] QUERY_DATA = {
+      -107, -6,  // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      7, 'y', 'o', 'u', 't', 'u', 'b', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  private LocalHttp2Server server;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeTrue(Boolean.getBoolean("benchmark"));
+    server = new LocalHttp2Server();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void compare() throws Exception {
+    ServerConnection standard = StandardServerConnection.get(server.getUrl(),
+        Collections.singletonList(server.getAddress()), null, server.getTlsSessionCache(),
+        new Dispatcher());
+    ServerConnection multiplexed = new Http2ServerConnection(server.getUrl(),
+        Collections.singletonList(server.getAddress()), server.getTransport(),
+        Http2ServerConnection.DEFAULT_READ_TIMEOUT_MS);
+
+    Cost standardCost = measure(standard);
+    Cost multiplexedCost = measure(multiplexed);
+    System.out.println("StandardServerConnection: " + standardCost);
+    System.out.println("Http2ServerConnection:    " + multiplexedCost);
+    standard.close();
+    multiplexed.close();
+  }
+
+  private static class Cost {
+    final double cpuMicros;
+    final double bytes;
+
+    Cost(double cpuMicros, double bytes) {
+      this.cpuMicros = cpuMicros;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.1f us CPU, %.0f bytes allocated per query", cpuMicros, bytes);
+    }
+  }
+
+  private Cost measure(ServerConnection connection) throws Exception {
+    run(connection, WARMUP_QUERIES);
+    Map<Long, long[]> before = clientThreadUsage();
+    run(connection, QUERIES);
+    Map<Long, long[]> after = clientThreadUsage();
+    long cpuNanos = 0;
+    long bytes = 0;
+    for (Map.Entry<Long, long[]> entry : after.entrySet()) {
+      long[] start = before.get(entry.getKey());
+      cpuNanos += entry.getValue()[0] - (start == null ? 0 : start[0]);
+      bytes += entry.getValue()[1] - (start == null ? 0 : start[1]);
+    }
+    return new Cost(cpuNanos / 1000.0 / QUERIES, (double) bytes / QUERIES);
+  }
+
+  // Sends |count| queries, keeping CONCURRENCY of them in flight.
+  private static void run(ServerConnection connection, int count) throws Exception {
+    final Semaphore slots = new Semaphore(CONCURRENCY);
+    final AtomicInteger failures = new AtomicInteger();
+    Callback callback = new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        failures.incrementAndGet();
+        slots.release();
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) throws IOException {
+        response.body().bytes();
+        slots.release();
+      }
+    };
+    for (int i = 0; i < count; ++i) {
+      slots.acquire();
+      byte[] data = QUERY_DATA.clone();
+      connection.performDnsRequest(DnsUdpQuery.fromUdpBody(data), data, callback);
+    }
+    slots.tryAcquire(CONCURRENCY, 10, TimeUnit.SECONDS);
+    assertEquals(0, failures.get());
+  }
+
+  // Returns the CPU time and allocated bytes of each live thread that isn't part of the server,
+  // by thread ID.
+  private static Map<Long, long[]> clientThreadUsage() {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Map<Long, long[]> usage = new HashMap<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      // OkHttp runs the server's stream handlers on its shared "OkHttp Http2Connection" pool.
+      if (name.contains(LocalHttp2Server.NAME) || name.equals("OkHttp Http2Connection")) {
+        continue;
+      }
+      long id = thread.getId();
+      usage.put(id, new long[] {bean.getThreadCpuTime(id), bean.getThreadAllocatedBytes(id)});
+    }
+    return usage;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import app.intra.net.dns.DnsUdpQuery;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SiblingPrefetchTest {
+  private static final List<Short> BOTH =
+      Arrays.asList(SiblingPrefetch.TYPE_AAAA, SiblingPrefetch.TYPE_HTTPS);
+
+  private static DnsUdpQuery makeQuery(String name, short type) {
+    DnsUdpQuery query = new DnsUdpQuery();
+    query.name = name;
+    query.type = type;
+    query.qclass = 1;
+    return query;
+  }
+
+  @Test
+  public void triggers() {
+    assertTrue(SiblingPrefetch.isTrigger(makeQuery("a.", SiblingPrefetch.TYPE_A)));
+    assertFalse(SiblingPrefetch.isTrigger(makeQuery("a.", SiblingPrefetch.TYPE_AAAA)));
+    DnsUdpQuery chaos = makeQuery("a.", SiblingPrefetch.TYPE_A);
+    chaos.qclass = 3;
+    assertFalse(SiblingPrefetch.isTrigger(chaos));
+  }
+
+  @Test
+  public void used() {
+    SiblingPrefetch prefetch = new SiblingPrefetch();
+    DnsUdpQuery a = makeQuery("a.", SiblingPrefetch.TYPE_A);
+    assertEquals(BOTH, prefetch.choose(a, BOTH, 0));
+    prefetch.onQuery(makeQuery("a.", SiblingPrefetch.TYPE_AAAA), 100);
+    assertEquals(1, prefetch.getUsedCount());
+    assertEquals(0, prefetch.getWastedCount());
+
+    // The HTTPS query never arrives.
+    prefetch.onQuery(makeQuery("b.", SiblingPrefetch.TYPE_A), SiblingPrefetch.USE_WINDOW_MS);
+    assertEquals(1, prefetch.getWastedCount());
+    assertEquals(0.5, prefetch.getWastedRatio(), 0.001);
+    assertEquals(2, prefetch.getFetchCount());
+  }
+
+  @Test
+  public void noDuplicates() {
+    SiblingPrefetch prefetch = new SiblingPrefetch();
+    DnsUdpQuery a = makeQuery("a.", SiblingPrefetch.TYPE_A);
+    assertEquals(BOTH, prefetch.choose(a, BOTH, 0));
+    assertEquals(Collections.<Short>emptyList(), prefetch.choose(a, BOTH, 1));
+    assertEquals(2, prefetch.getFetchCount());
+  }
+
+  @Test
+  public void rateLimited() {
+    SiblingPrefetch prefetch = new SiblingPrefetch();
+    for (int i = 0; i < SiblingPrefetch.MAX_PER_WINDOW; ++i) {
+      DnsUdpQuery a = makeQuery(i + ".", SiblingPrefetch.TYPE_A);
+      assertEquals(BOTH, prefetch.choose(a, BOTH, i));
+    }
+    DnsUdpQuery limited = makeQuery("limited.", SiblingPrefetch.TYPE_A);
+    assertTrue(prefetch.choose(limited, BOTH, 100).isEmpty());
+    assertEquals(1, prefetch.getRateLimitedCount());
+    assertEquals(BOTH, prefetch.choose(limited, BOTH, SiblingPrefetch.WINDOW_MS));
+  }
+
+  @Test
+  public void uselessTypeIsProbed() {
+    SiblingPrefetch prefetch = new SiblingPrefetch();
+    // Clients ask for AAAA, but never for HTTPS.
+    long now = 0;
+    int i = 0;
+    for (; i < 30; ++i) {
+      DnsUdpQuery a = makeQuery(i + ".", SiblingPrefetch.TYPE_A);
+      prefetch.choose(a, BOTH, now);
+      prefetch.onQuery(makeQuery(a.name, SiblingPrefetch.TYPE_AAAA), now);
+      now += SiblingPrefetch.USE_WINDOW_MS;
+    }
+    // HTTPS stopped being sent every time.
+    assertTrue(prefetch.getFetchCount() < 2 * 30);
+    // HTTPS is now only sent on one trigger in PROBE_INTERVAL.
+    int https = 0;
+    for (int j = 0; j < SiblingPrefetch.PROBE_INTERVAL; ++j) {
+      DnsUdpQuery a = makeQuery(i++ + ".", SiblingPrefetch.TYPE_A);
+      if (prefetch.choose(a, BOTH, now).contains(SiblingPrefetch.TYPE_HTTPS)) {
+        ++https;
+      }
+      now += SiblingPrefetch.WINDOW_MS;
+    }
+    assertEquals(1, https);
+  }
+}
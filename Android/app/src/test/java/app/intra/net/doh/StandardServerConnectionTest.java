@@ -0,0 +1,64 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StandardServerConnectionTest {
+
+  // The example query from RFC 8484 Section 4.1.1: www.example.com, type A, ID 0.
+  private static final byte[] QUERY_DATA = {
+      0, 0,     // [0-1]   query ID
+      1, 0,     // [2-3]   flags, RD=1
+      0, 1,     // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,     // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,     // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,     // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      3, 'w', 'w', 'w',
+      7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  private static final String ENCODED_QUERY = "AAABAAABAAAAAAAAA3d3dwdleGFtcGxlA2NvbQAAAQAB";
+
+  @Test
+  public void getQueryUrl() {
+    assertEquals("https://dnsserver.example.net/dns-query?dns=" + ENCODED_QUERY,
+        StandardServerConnection.getQueryUrl(
+            "https://dnsserver.example.net/dns-query", QUERY_DATA).toString());
+  }
+
+  @Test
+  public void getQueryUrlWithExistingParameter() {
+    assertEquals("https://example.net/doh?filter=1&dns=" + ENCODED_QUERY,
+        StandardServerConnection.getQueryUrl("https://example.net/doh?filter=1", QUERY_DATA)
+            .toString());
+  }
+
+  @Test
+  public void getQueryUrlStripsPadding() {
+    // 2 bytes encode to 3 base64 characters plus one padding character, which must be removed.
+    byte[] data = {0, 0};
+    assertEquals("https://example.net/doh?dns=AAA",
+        StandardServerConnection.getQueryUrl("https://example.net/doh", data).toString());
+  }
+}
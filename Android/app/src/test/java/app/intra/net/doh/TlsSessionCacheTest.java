@@ -0,0 +1,40 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TlsSessionCacheTest {
+
+  @Test
+  public void resumptionRate() {
+    TlsSessionCache cache = new TlsSessionCache(null, null, null);
+    assertEquals(0, cache.getResumptionRate(), 0);
+
+    // A new session, created during the handshake.
+    cache.recordHandshake(1000500, 1000400);
+    // A new session whose creation time was truncated to the second.
+    cache.recordHandshake(1000000, 1000400);
+    // A resumed session, created long before the handshake.
+    cache.recordHandshake(500000, 1000400);
+
+    assertEquals(3, cache.getHandshakeCount());
+    assertEquals(1, cache.getResumptionCount());
+    assertEquals(1.0 / 3, cache.getResumptionRate(), 1e-9);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import org.junit.Test;
+
+public class UpstreamBalancerTest {
+  private static final Set<Integer> NONE = Collections.emptySet();
+
+  private static UpstreamBalancer makeBalancer() {
+    return new UpstreamBalancer(Arrays.asList("https://a/", "https://b/", "https://c/"));
+  }
+
+  @Test
+  public void unmeasuredUpstreamsFirst() {
+    UpstreamBalancer balancer = makeBalancer();
+    // With no measurements, concurrent queries are spread by outstanding count.
+    assertEquals(0, balancer.choose(NONE, false, 0));
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    assertEquals(2, balancer.choose(NONE, false, 0));
+    balancer.onSuccess(0, 50, 0);
+    balancer.onSuccess(1, 20, 0);
+    // c is still unmeasured, so it is preferred even with one query outstanding.
+    assertEquals(2, balancer.choose(NONE, false, 0));
+  }
+
+  @Test
+  public void lowestLatency() {
+    UpstreamBalancer balancer = makeBalancer();
+    for (int i = 0; i < 3; ++i) {
+      balancer.choose(NONE, false, 0);
+    }
+    balancer.onSuccess(0, 100, 0);
+    balancer.onSuccess(1, 20, 0);
+    balancer.onSuccess(2, 50, 0);
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    balancer.onSuccess(1, 20, 0);
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    balancer.onSuccess(1, 20, 0);
+    assertEquals(20, balancer.getAverageLatencyMs(1), 0.001);
+  }
+
+  @Test
+  public void outstandingQueriesSpreadLoad() {
+    UpstreamBalancer balancer = makeBalancer();
+    for (int i = 0; i < 3; ++i) {
+      balancer.choose(NONE, false, 0);
+    }
+    balancer.onSuccess(0, 30, 0);
+    balancer.onSuccess(1, 20, 0);
+    balancer.onSuccess(2, 50, 0);
+    // b costs 20, 40, 60 with 0, 1, 2 outstanding.  a costs 30, 60.  c costs 50.
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    assertEquals(0, balancer.choose(NONE, false, 0));
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    assertEquals(2, balancer.choose(NONE, false, 0));
+    assertEquals(2, balancer.getOutstandingCount(1));
+    assertEquals(1, balancer.getOutstandingCount(0));
+    assertEquals(1, balancer.getOutstandingCount(2));
+  }
+
+  @Test
+  public void excludedUpstreams() {
+    UpstreamBalancer balancer = makeBalancer();
+    assertEquals(1, balancer.choose(Arrays.asList(0, 2), true, 0));
+    assertEquals(-1, balancer.choose(Arrays.asList(0, 1, 2), true, 0));
+  }
+
+  @Test
+  public void failurePenaltyAndRecovery() {
+    UpstreamBalancer balancer =
+        new UpstreamBalancer(Arrays.asList("https://a/", "https://b/"));
+    balancer.choose(NONE, false, 0);
+    balancer.choose(NONE, false, 0);
+    balancer.onFailure(0, 0);
+    balancer.onSuccess(1, 200, 0);
+    assertEquals(UpstreamBalancer.FAILURE_PENALTY_MS, balancer.getAverageLatencyMs(0), 0.001);
+    assertEquals(1, balancer.getFailureCount(0));
+    assertEquals(1, balancer.choose(NONE, false, 0));
+    balancer.onSuccess(1, 200, 0);
+
+    // b keeps answering in 200 ms.  After six idle half-lives, a's estimate has decayed below
+    // that, so a is retried.
+    long later = 6 * UpstreamBalancer.HALF_LIFE_MS;
+    assertEquals(1, balancer.choose(NONE, false, later));
+    balancer.onSuccess(1, 200, later);
+    assertEquals(0, balancer.choose(NONE, false, later));
+  }
+
+  @Test
+  public void shareAndFailovers() {
+    UpstreamBalancer balancer = makeBalancer();
+    assertEquals(0, balancer.getShare(0), 0.001);
+    int first = balancer.choose(NONE, false, 0);
+    balancer.onFailure(first, 0);
+    int second = balancer.choose(Collections.singleton(first), true, 0);
+    balancer.onSuccess(second, 10, 0);
+
+    assertEquals(1, balancer.getShare(first), 0.001);
+    assertEquals(0, balancer.getShare(second), 0.001);
+    assertEquals(1, balancer.getQueryCount(second));
+    assertEquals(1, balancer.getFailoverCount(second));
+    assertEquals(3, balancer.getUpstreamCount());
+    assertEquals("https://b/", balancer.getUrl(1));
+  }
+}
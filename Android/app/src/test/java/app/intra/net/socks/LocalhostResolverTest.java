@@ -15,6 +15,8 @@ limitations under the License.
 */
 package app.intra.net.socks;
 
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.doh.Resolver;
 import app.intra.net.doh.Transaction;
 import app.intra.net.socks.LocalhostResolver;
 import app.intra.net.doh.ServerConnection;
@@ -47,6 +49,7 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -106,6 +109,29 @@ public class LocalhostResolverTest {
   public void tearDown() throws Exception {
     resolver.shutdown();
     clientSocket.close();
+    Resolver.setQueryDeadline(Resolver.DEFAULT_QUERY_DEADLINE_MS);
+  }
+
+  // Checks that |response| is a SERVFAIL reply to QUERY_DATA.
+  private static void assertServfail(byte[] response) throws Exception {
+    assertNotNull(response);
+    DnsPacket packet = new DnsPacket(response);
+    assertTrue(packet.isResponse());
+    assertEquals(DnsPacket.RCODE_SERVFAIL, packet.getResponseCode());
+    assertEquals(QUERY.requestId, packet.getId());
+    assertEquals(QUERY.name, packet.getQueryName());
+    assertEquals(QUERY.type, packet.getQueryType());
+    assertEquals(0, packet.getAnswerCount());
+  }
+
+  // Receives the client's response, and checks that it is SERVFAIL.
+  private void receiveServfail() throws Exception {
+    byte[] responseBuffer = new byte[4096];
+    DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+    clientSocket.setSoTimeout(1000);
+    clientSocket.receive(responsePacket);
+    assertServfail(Arrays.copyOfRange(responsePacket.getData(), responsePacket.getOffset(),
+        responsePacket.getLength()));
   }
 
   @Test
@@ -210,7 +236,8 @@ public class LocalhostResolverTest {
     assertEquals(QUERY.timestamp, transaction.queryTime);
     assertEquals(SERVER_IP, transaction.serverIp);
     assertEquals(Transaction.Status.HTTP_ERROR, transaction.status);
-    assertNull(transaction.response);
+    assertServfail(transaction.response);
+    receiveServfail();
   }
 
   @Test
@@ -231,7 +258,8 @@ public class LocalhostResolverTest {
     assertEquals(query.type, transaction.type);
     assertNull(transaction.serverIp);
     assertEquals(Transaction.Status.SEND_FAIL, transaction.status);
-    assertNull(transaction.response);
+    assertServfail(transaction.response);
+    receiveServfail();
   }
 
   @Test
@@ -252,7 +280,8 @@ public class LocalhostResolverTest {
     assertEquals(query.type, transaction.type);
     assertNull(transaction.serverIp);
     assertEquals(Transaction.Status.CANCELED, transaction.status);
-    assertNull(transaction.response);
+    assertServfail(transaction.response);
+    receiveServfail();
   }
 
   @Test
@@ -275,7 +304,36 @@ public class LocalhostResolverTest {
     assertEquals(query.type, transaction.type);
     assertNull(transaction.serverIp);
     assertEquals(Transaction.Status.SEND_FAIL, transaction.status);
-    assertNull(transaction.response);
+    assertServfail(transaction.response);
+    receiveServfail();
+  }
+
+  @Test
+  public void deadline() throws Exception {
+    Resolver.setQueryDeadline(100);
+    sendQuery();
+
+    // The server doesn't respond in time, so the client gets SERVFAIL.
+    receiveServfail();
+    verify(mockVpn, timeout(1000)).recordTransaction(transactionCaptor.capture());
+    Transaction transaction = transactionCaptor.getValue();
+    assertEquals(Transaction.Status.TIMEOUT, transaction.status);
+    assertServfail(transaction.response);
+
+    // A late response is not sent to the client.
+    Call mockCall = mock(Call.class);
+    Request fakeRequest = (new Request.Builder()).url("https://example/").build();
+    ResponseBody fakeBody =
+        ResponseBody.create(MediaType.get("application/dns-message"), QUERY_DATA);
+    Response fakeResponse = (new Response.Builder())
+        .request(fakeRequest)
+        .protocol(Protocol.HTTP_2)
+        .code(200)
+        .message("OK")
+        .body(fakeBody)
+        .build();
+    callbackCaptor.getValue().onResponse(mockCall, fakeResponse);
+    verify(mockVpn, times(1)).recordTransaction(transactionCaptor.capture());
   }
 
   @Test
@@ -290,6 +348,65 @@ public class LocalhostResolverTest {
     success();
   }
 
+  @Test
+  public void coalescedQueries() throws Exception {
+    sendQuery();
+
+    // The same question, from a different socket with a different ID.
+    byte[] otherQueryData = QUERY_DATA.clone();
+    otherQueryData[0] = 1;
+    DatagramSocket otherSocket = new DatagramSocket();
+    otherSocket.connect(resolver.getAddress());
+    otherSocket.send(new DatagramPacket(otherQueryData, otherQueryData.length));
+
+    // A retransmission of the first query, which should be ignored.
+    clientSocket.send(new DatagramPacket(QUERY_DATA, QUERY_DATA.length));
+
+    // A different question, which should be sent.  Queries are processed in order, so once this
+    // one has been sent, the previous two have been processed.
+    byte[] differentQueryData = QUERY_DATA.clone();
+    differentQueryData[13] = 'Y';
+    clientSocket.send(new DatagramPacket(differentQueryData, differentQueryData.length));
+    verify(mockConnection, timeout(1000).times(2)).
+        performDnsRequest(queryCaptor.capture(), dataCaptor.capture(), callbackCaptor.capture());
+    assertArrayEquals(differentQueryData, dataCaptor.getValue());
+
+    // Respond to the first query.
+    Call mockCall = mock(Call.class);
+    Request fakeRequest = (new Request.Builder()).url("https://example/").build();
+    ResponseBody fakeBody =
+        ResponseBody.create(MediaType.get("application/dns-message"), QUERY_DATA);
+    Response fakeResponse = (new Response.Builder())
+        .request(fakeRequest)
+        .protocol(Protocol.HTTP_2)
+        .code(200)
+        .message("OK")
+        .addHeader(IpTagInterceptor.HEADER_NAME, SERVER_IP)
+        .body(fakeBody)
+        .build();
+    callbackCaptor.getAllValues().get(0).onResponse(mockCall, fakeResponse);
+
+    // Both sockets receive the response, each with its own ID.
+    byte[] responseBuffer = new byte[4096];
+    DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+    clientSocket.receive(responsePacket);
+    assertArrayEquals(QUERY_DATA, Arrays.copyOfRange(responsePacket.getData(),
+        responsePacket.getOffset(),
+        responsePacket.getLength()));
+    otherSocket.receive(responsePacket);
+    assertArrayEquals(otherQueryData, Arrays.copyOfRange(responsePacket.getData(),
+        responsePacket.getOffset(),
+        responsePacket.getLength()));
+    otherSocket.close();
+
+    // One transaction is recorded for each distinct client query.
+    verify(mockVpn, times(2)).recordTransaction(transactionCaptor.capture());
+    for (Transaction transaction : transactionCaptor.getAllValues()) {
+      assertEquals(Transaction.Status.COMPLETE, transaction.status);
+      assertEquals(SERVER_IP, transaction.serverIp);
+    }
+  }
+
   @Test
   public void sequentialQueries() throws Exception {
     // Try three queries in a row.
@@ -0,0 +1,48 @@
+/*
+Copyright 2019 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Timer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SafeTimerTaskTest {
+
+  @Test
+  public void timerSurvivesException() throws InterruptedException {
+    Timer timer = new Timer(true);
+    timer.schedule(new SafeTimerTask() {
+      @Override
+      protected void runSafely() {
+        throw new IllegalStateException("Test");
+      }
+    }, 0);
+    final CountDownLatch ran = new CountDownLatch(1);
+    // Would throw IllegalStateException if the first task had killed the Timer.
+    Thread.sleep(50);
+    timer.schedule(new SafeTimerTask() {
+      @Override
+      protected void runSafely() {
+        ran.countDown();
+      }
+    }, 0);
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    timer.cancel();
+  }
+}